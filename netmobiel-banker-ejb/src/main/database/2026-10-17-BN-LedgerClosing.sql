@@ -0,0 +1,9 @@
+-- Banker - Record the progress of closing a ledger
+
+ALTER TABLE public.ledger 
+	-- The state of the closing procedure: M = moving transactions, C = closed
+	ADD COLUMN close_state character varying(1)
+;
+
+-- Select the transactions beyond the end of the period efficiently
+CREATE INDEX accounting_transaction_ledger_time_ix ON public.accounting_transaction USING btree (ledger, accounting_time);
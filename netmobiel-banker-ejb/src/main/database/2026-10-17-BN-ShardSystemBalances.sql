@@ -0,0 +1,13 @@
+-- Banker - Divide the balance of the system accounts in shards to reduce the lock contention
+
+ALTER TABLE public.balance 
+	-- The shard of the balance, only the system accounts have more than one shard
+	ADD COLUMN shard integer NOT NULL DEFAULT 0
+;
+
+ALTER TABLE public.balance 
+	DROP CONSTRAINT cs_balance_unique,
+	ADD CONSTRAINT cs_balance_unique UNIQUE (account, ledger, shard)
+;
+
+-- The missing shards of the system accounts are created by the banker at startup.
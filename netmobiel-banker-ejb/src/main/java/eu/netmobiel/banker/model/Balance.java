@@ -16,6 +16,7 @@ import javax.persistence.PrePersist;
 import javax.persistence.PreUpdate;
 import javax.persistence.SequenceGenerator;
 import javax.persistence.Table;
+import javax.persistence.Transient;
 import javax.persistence.UniqueConstraint;
 import javax.persistence.Version;
 
@@ -30,12 +31,18 @@ import eu.netmobiel.banker.exception.BalanceInsufficientException;
  * 
  * The balance is protected with a version number against modification out of order (optimistic lock).
  * 
+ * The system accounts are used in nearly every transaction. To prevent a single hot spot, the balance of a system account 
+ * is divided in a number of shards, each with its own row (and lock). The shard is chosen by the other (user) account involved in 
+ * the transaction. The balance of the system account is the sum of all shards. Each shard is checked for an overdraft 
+ * by itself, so only the locked shard is needed for the check. A shard that runs low is replenished from the 
+ * other shards before the transaction (see LedgerService). The shard of a non-system account is always 0.
+ * 
  * @author Jaap Reitsma
  *
  */
 @Entity
 @Table(name = "balance", uniqueConstraints = {
-	    @UniqueConstraint(name = "cs_balance_unique", columnNames = { "account", "ledger" })
+	    @UniqueConstraint(name = "cs_balance_unique", columnNames = { "account", "ledger", "shard" })
 })
 @Vetoed
 @SequenceGenerator(name = "balance_sg", sequenceName = "balance_seq", allocationSize = 1, initialValue = 50)
@@ -67,13 +74,31 @@ public class Balance  implements Serializable {
 	@JoinColumn(name = "account", nullable = false, foreignKey = @ForeignKey(name = "balance_account_fk"))
 	private Account account;
 
+	/**
+	 * The shard of the balance of the account. Only the system accounts have more than one shard.
+	 */
+	@Column(name = "shard", nullable = false)
+	private int shard;
+
+	/**
+	 * The sum of the end amounts of the other shards of the account, for informational purposes. 
+	 * Not persisted, set only when retrieved as part of a sharded balance.
+	 */
+	@Transient
+	private int otherShardsAmount;
+
 	public Balance() {
 		
 	}
 	
 	public Balance(Ledger ledger, Account acc, int start) {
+		this(ledger, acc, 0, start);
+	}
+	
+	public Balance(Ledger ledger, Account acc, int shard, int start) {
 		this.ledger = ledger;
 		this.account = acc;
+		this.shard = shard;
 		this.startAmount = start;
 		this.endAmount = this.startAmount;
 	}
@@ -128,6 +153,30 @@ public class Balance  implements Serializable {
 		return modifiedTime;
 	}
 
+	public int getShard() {
+		return shard;
+	}
+
+	public void setShard(int shard) {
+		this.shard = shard;
+	}
+
+	public int getOtherShardsAmount() {
+		return otherShardsAmount;
+	}
+
+	public void setOtherShardsAmount(int otherShardsAmount) {
+		this.otherShardsAmount = otherShardsAmount;
+	}
+
+	/**
+	 * Returns the end amount of the account, i.e. the sum of the end amounts of all shards. 
+	 * @return the total end amount.
+	 */
+	public int getTotalEndAmount() {
+		return endAmount + otherShardsAmount;
+	}
+
 	public void debit(int amount, boolean allowOverdraft) throws BalanceInsufficientException {
 		if (account.getAccountType() == AccountType.ASSET) {
 			endAmount += amount;
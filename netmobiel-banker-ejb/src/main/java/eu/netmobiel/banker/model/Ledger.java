@@ -26,6 +26,7 @@ import javax.validation.constraints.Size;
  * A ledger has a specific and unique date range. Multiple ledger comprise of a continuous date range.
  * The most recent ledger is open-ended, i.e. no end date is set yet. When closing a ledger, the ledger is in fact split.
  * In effect a new ledger is created and all relevant transactions are moved to the new ledger, balances are recalculated. 
+ * The closing is a procedure in steps, the close state of the ledger records the progress.
  * 
  * @author Jaap Reitsma
  *
@@ -66,6 +67,13 @@ public class Ledger  implements Serializable {
 	@Column(name = "name", nullable = false, length = NAME_MAX_LENGTH)
 	private String name;
 
+	/**
+	 * The state of the closing procedure. If not set then the ledger has never been closed (or it was closed
+	 * manually before the procedure existed).
+	 */
+	@Column(name = "close_state", length = 1, nullable = true)
+	private LedgerCloseState closeState;
+
 	/**
 	 * The list of transactions. Transactions are never removed.
 	 */
@@ -110,6 +118,14 @@ public class Ledger  implements Serializable {
 		this.name = name;
 	}
 
+	public LedgerCloseState getCloseState() {
+		return closeState;
+	}
+
+	public void setCloseState(LedgerCloseState closeState) {
+		this.closeState = closeState;
+	}
+
 	public List<AccountingTransaction> getTransactions() {
 		if (transactions == null) {
 			transactions = new ArrayList<>();
@@ -181,7 +197,8 @@ public class Ledger  implements Serializable {
 
 	@Override
 	public String toString() {
-		return String.format("Ledger [%s '%s' %s %s]", id, name, formatDateTime(startPeriod), formatDateTime(endPeriod));
+		return String.format("Ledger [%s '%s' %s %s%s]", id, name, formatDateTime(startPeriod), formatDateTime(endPeriod), 
+				closeState != null ? " " + closeState : "");
 	}
 	
 	
@@ -0,0 +1,30 @@
+package eu.netmobiel.banker.model;
+
+/**
+ * The state of the closing procedure of a ledger. 
+ *  
+ * @author Jaap Reitsma
+ *
+ */
+public enum LedgerCloseState {
+	/**
+	 * The ledger is being closed: The successor ledger is created, the transactions beyond the end of 
+	 * the period are being moved to the successor ledger.
+	 */
+	MOVING("M"),
+	/**
+	 * The ledger is closed, the balances of the successor ledger are final.
+	 */
+	CLOSED("C");
+	
+	private String code;
+	 
+    private LedgerCloseState(String code) {
+        this.code = code;
+    }
+ 
+    public String getCode() {
+        return code;
+    }
+
+}
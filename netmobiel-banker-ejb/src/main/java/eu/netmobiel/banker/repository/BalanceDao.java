@@ -48,17 +48,19 @@ public class BalanceDao extends AbstractDao<Balance, Long> {
 
 	/**
 	 * Finds the most recent balance given an account. This method is to inform the caller about the number of credits in the balance.
-	 * A dirty read is no problem.
+	 * A dirty read is no problem. In case of a sharded balance, the first shard is returned with the amount of the other shards.
 	 * @param account the account in question
 	 * @return the balance belonging to the account and the ledger period.
 	 * @throws NoResultException
 	 * @throws NonUniqueResultException
 	 */
 	public Balance findActualBalance(@NotNull Account account) throws NoResultException, NonUniqueResultException {
-		String q = "from Balance bal where bal.ledger.endPeriod is null and bal.account = :account";
-		return em.createQuery(q, Balance.class)
+		String q = "from Balance bal where bal.ledger.endPeriod is null and bal.account = :account and bal.shard = 0";
+		Balance balance = em.createQuery(q, Balance.class)
 				.setParameter("account", account)
 				.getSingleResult();
+		balance.setOtherShardsAmount(sumOtherShards(balance));
+		return balance;
 	}
 	
 	/**
@@ -72,10 +74,26 @@ public class BalanceDao extends AbstractDao<Balance, Long> {
 	 * @throws NonUniqueResultException
 	 */
 	public Balance findByLedgerAndAccount(@NotNull Ledger ledger, @NotNull Account account, LockModeType lockMode) throws NoResultException, NonUniqueResultException {
-		String q = "from Balance bal where bal.ledger = :ledger and bal.account = :account";
+		return findByLedgerAndAccount(ledger, account, 0, lockMode);
+	}
+	
+	/**
+	 * Finds a shard of the balance given the ledger and the account. The call is in general a preparation for an update, so 
+	 * a lock type is also a parameter.
+	 * @param ledger the ledger to use
+	 * @param account the account
+	 * @param shard the shard of the balance. Only the system accounts have more than a single shard.
+	 * @param lockMode the lock mode. Use PESSIMISTIC_WRITE to lock the entity for update of intensively used balances (banking reserve etc).
+	 * @return The balance
+	 * @throws NoResultException
+	 * @throws NonUniqueResultException
+	 */
+	public Balance findByLedgerAndAccount(@NotNull Ledger ledger, @NotNull Account account, int shard, LockModeType lockMode) throws NoResultException, NonUniqueResultException {
+		String q = "from Balance bal where bal.ledger = :ledger and bal.account = :account and bal.shard = :shard";
 		return em.createQuery(q, Balance.class)
 				.setParameter("ledger", ledger)
 				.setParameter("account", account)
+				.setParameter("shard", shard)
 				.setLockMode(lockMode)
 				.getSingleResult();
 	}
@@ -91,13 +109,97 @@ public class BalanceDao extends AbstractDao<Balance, Long> {
 	 * @throws NonUniqueResultException
 	 */
 	public Balance findByLedgerAndAccountNumber(@NotNull Ledger ledger, @NotNull String ncan, LockModeType lockMode) throws NoResultException, NonUniqueResultException {
-		String q = "from Balance bal where bal.ledger = :ledger and bal.account.ncan = :ncan";
+		return findByLedgerAndAccountNumber(ledger, ncan, 0, lockMode);
+	}
+	
+	/**
+	 * Finds a shard of the balance given the ledger and the account number. The call is in general a preparation for an update, so 
+	 * a lock type is also a parameter.
+	 * @param ledger the ledger to use
+	 * @param ncan the Netmobiel Credit Account Number
+	 * @param shard the shard of the balance. Only the system accounts have more than a single shard.
+	 * @param lockMode the lock mode. Use PESSIMISTIC_WRITE to lock the entity for update of intensively used balances (banking reserve etc).
+	 * @return The balance
+	 * @throws NoResultException
+	 * @throws NonUniqueResultException
+	 */
+	public Balance findByLedgerAndAccountNumber(@NotNull Ledger ledger, @NotNull String ncan, int shard, LockModeType lockMode) throws NoResultException, NonUniqueResultException {
+		String q = "from Balance bal where bal.ledger = :ledger and bal.account.ncan = :ncan and bal.shard = :shard";
 		return em.createQuery(q, Balance.class)
 				.setParameter("ledger", ledger)
 				.setParameter("ncan", ncan)
+				.setParameter("shard", shard)
 				.setLockMode(lockMode)
 				.getSingleResult();
 	}
+
+	/**
+	 * Reads the end amount of a shard of a balance without loading (or locking) the entity. The amount may be modified
+	 * concurrently, the result is only a hint.
+	 * @param ledger the ledger to use
+	 * @param ncan the Netmobiel Credit Account Number
+	 * @param shard the shard of the balance.
+	 * @return the end amount of the shard. 
+	 */
+	public int peekEndAmount(@NotNull Ledger ledger, @NotNull String ncan, int shard) {
+		String q = "select bal.endAmount from Balance bal where bal.ledger = :ledger and bal.account.ncan = :ncan and bal.shard = :shard";
+		return em.createQuery(q, Integer.class)
+				.setParameter("ledger", ledger)
+				.setParameter("ncan", ncan)
+				.setParameter("shard", shard)
+				.getSingleResult();
+	}
+
+	/**
+	 * Locks all shards of the balance of an account with a pessimistic write lock. The shards are locked one by one 
+	 * in shard order, the same order for every transaction, to prevent a deadlock. A shard already in the persistence 
+	 * context is version checked by the lock.
+	 * @param ledger the ledger to use
+	 * @param ncan the Netmobiel Credit Account Number
+	 * @return the shards in shard order.
+	 */
+	public List<Balance> lockAllShards(@NotNull Ledger ledger, @NotNull String ncan) {
+		String q = "select bal.id from Balance bal where bal.ledger = :ledger and bal.account.ncan = :ncan order by bal.shard asc";
+		List<Long> ids = em.createQuery(q, Long.class)
+				.setParameter("ledger", ledger)
+				.setParameter("ncan", ncan)
+				.getResultList();
+		List<Balance> shards = new ArrayList<>();
+		for (Long id : ids) {
+			shards.add(em.find(Balance.class, id, LockModeType.PESSIMISTIC_WRITE));
+		}
+		return shards;
+	}
+
+	/**
+	 * Calculates the sum of the end amounts of the other shards of the account of a balance. No locking is applied,
+	 * the other shards may be modified concurrently. The result is intended for informational purposes only.
+	 * @param balance the balance (shard).
+	 * @return the sum of the end amounts of the other shards, 0 if there are none.
+	 */
+	public int sumOtherShards(@NotNull Balance balance) {
+		String q = "select coalesce(sum(bal.endAmount), 0) from Balance bal where bal.ledger = :ledger and bal.account = :account and bal.shard <> :shard";
+		Long sum = em.createQuery(q, Long.class)
+				.setParameter("ledger", balance.getLedger())
+				.setParameter("account", balance.getAccount())
+				.setParameter("shard", balance.getShard())
+				.getSingleResult();
+		return sum.intValue();
+	}
+
+	/**
+	 * Lists the shard numbers of the balance of an account in a ledger.
+	 * @param ledger the ledger
+	 * @param account the account 
+	 * @return the shard numbers in ascending order.
+	 */
+	public List<Integer> listShards(@NotNull Ledger ledger, @NotNull Account account) {
+		String q = "select bal.shard from Balance bal where bal.ledger = :ledger and bal.account = :account order by bal.shard asc";
+		return em.createQuery(q, Integer.class)
+				.setParameter("ledger", ledger)
+				.setParameter("account", account)
+				.getResultList();
+	}
 	
     public PagedResult<Long> listBalances(Account acc, @NotNull Ledger ledger, Integer maxResults, Integer offset) {
     	CriteriaBuilder cb = em.getCriteriaBuilder();
@@ -105,6 +207,8 @@ public class BalanceDao extends AbstractDao<Balance, Long> {
         Root<Balance> entry = cq.from(Balance.class);
         List<Predicate> predicates = new ArrayList<>();
         predicates.add(cb.equal(entry.get(Balance_.ledger), ledger));
+        // Only the first shard, the caller adds the amount of the other shards
+        predicates.add(cb.equal(entry.get(Balance_.shard), 0));
         if (acc != null) {
             Predicate predAccRef = cb.equal(entry.get(Balance_.account), acc);
             predicates.add(predAccRef);
@@ -144,6 +248,8 @@ public class BalanceDao extends AbstractDao<Balance, Long> {
         List<Predicate> predicates = new ArrayList<>();
         Path<Account> account = root.get(Balance_.account);
         predicates.add(cb.equal(root.get(Balance_.ledger), ledger));
+        // Only the first shard, the caller adds the amount of the other shards
+        predicates.add(cb.equal(root.get(Balance_.shard), 0));
         if (accountName != null) {
             predicates.add(cb.like(cb.lower(account.get(Account_.name)), accountName.toLowerCase(), '\\'));
         }
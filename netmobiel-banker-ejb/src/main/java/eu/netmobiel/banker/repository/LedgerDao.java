@@ -8,12 +8,14 @@ import javax.enterprise.context.ApplicationScoped;
 import javax.enterprise.inject.Typed;
 import javax.inject.Inject;
 import javax.persistence.EntityManager;
+import javax.persistence.LockModeType;
 import javax.persistence.NoResultException;
 import javax.persistence.NonUniqueResultException;
 import javax.persistence.TypedQuery;
 
 import eu.netmobiel.banker.annotation.BankerDatabase;
 import eu.netmobiel.banker.model.Ledger;
+import eu.netmobiel.banker.model.LedgerCloseState;
 import eu.netmobiel.commons.model.PagedResult;
 import eu.netmobiel.commons.repository.AbstractDao;
 
@@ -40,6 +42,28 @@ public class LedgerDao extends AbstractDao<Ledger, Long> {
 		return tq.getSingleResult();
 	}
 	
+	/**
+	 * Locks a ledger and rereads its state. The bookings lock the ledger in shared mode, the closing of the 
+	 * ledger in exclusive mode. A booking therefore waits for a closing in progress and vice versa.
+	 * @param ledger the ledger.
+	 * @param lockMode the lock mode, PESSIMISTIC_READ for a booking, PESSIMISTIC_WRITE for closing.
+	 */
+	public void lock(Ledger ledger, LockModeType lockMode) {
+		em.refresh(ledger, lockMode);
+	}
+
+	/**
+	 * Lists the ledgers in a specific state of the closing procedure.
+	 * @param state the close state.
+	 * @return the ledgers, the oldest first.
+	 */
+	public List<Ledger> listLedgers(LedgerCloseState state) {
+		String q = "from Ledger ldg where ldg.closeState = :state order by ldg.startPeriod asc";
+		return em.createQuery(q, Ledger.class)
+				.setParameter("state", state)
+				.getResultList();
+	}
+	
 	public PagedResult<Long> listLedgers(Integer maxResults, Integer offset) {
 		Long totalCount = null;
         List<Long> results = null;
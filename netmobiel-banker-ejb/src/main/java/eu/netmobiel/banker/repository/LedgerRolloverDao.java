@@ -0,0 +1,156 @@
+package eu.netmobiel.banker.repository;
+
+import java.time.Instant;
+import java.util.List;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import javax.persistence.EntityManager;
+import javax.validation.constraints.NotNull;
+
+import eu.netmobiel.banker.annotation.BankerDatabase;
+import eu.netmobiel.banker.model.Ledger;
+
+/**
+ * Set-based operations for closing a ledger, i.e. the rollover of the balances and transactions to the successor ledger.
+ * The balances of the successor ledger are created as a copy of the closing balances, the transactions beyond the
+ * end of the period are then moved in batches. Each moved batch corrects the closing balance of the old ledger
+ * and the start balance of the new ledger in the same statement. The end amount of the new ledger balances never
+ * changes by the move, so the actual balances remain valid during the procedure.
+ *
+ * The bookings are kept out of the closing ledger by the lock on the ledger row, see LedgerService. Each balance 
+ * update by this DAO increments the version as well, to let concurrent optimistic modifications of the same balance fail.
+ *
+ * This DAO uses native PostgreSQL SQL.
+ *
+ * @author Jaap Reitsma
+ *
+ */
+@ApplicationScoped
+public class LedgerRolloverDao {
+	/**
+	 * The change of a balance by an accounting entry: A debit increases an asset and decreases a liability,
+	 * a credit the other way round. See Balance.
+	 */
+	private static final String ENTRY_DELTA = "case when (a.account_type = 'A') = (e.entry_type = 'D') then e.amount else -e.amount end";
+
+    @Inject @BankerDatabase
+    private EntityManager em;
+
+    /**
+     * Locks all balances of a ledger and increments their version. A concurrent transaction that has locked a balance
+     * (e.g. a system balance shard with a pessimistic lock) is awaited. A concurrent transaction that has read a balance 
+     * with an optimistic version check fails. Note that a transaction with a pessimistic lock only is not stopped
+     * by the new version: The bookings must lock the ledger to stay out of a closing ledger.
+     * @param ledger the ledger.
+     * @return the number of balances.
+     */
+    public int lockBalances(@NotNull Ledger ledger) {
+    	return em.createNativeQuery("update balance set version = coalesce(version, 0) + 1 where ledger = :ledger")
+    			.setParameter("ledger", ledger.getId())
+    			.executeUpdate();
+    }
+
+    /**
+     * Creates the balances of the successor ledger as a copy of the end amount of each balance (shard) of the
+     * closing ledger. Balances already present are left untouched.
+     * @param closing the closing ledger.
+     * @param successor the successor ledger.
+     * @return the number of balances created.
+     */
+    public int createOpeningBalances(@NotNull Ledger closing, @NotNull Ledger successor) {
+    	return em.createNativeQuery("insert into balance (id, version, modified_time, start_amount, end_amount, account, ledger, shard) " +
+    			"select nextval('balance_seq'), 0, now(), b.end_amount, b.end_amount, b.account, :successor, b.shard " +
+    			"from balance b where b.ledger = :closing " +
+    			"on conflict (account, ledger, shard) do nothing")
+    			.setParameter("closing", closing.getId())
+    			.setParameter("successor", successor.getId())
+    			.executeUpdate();
+    }
+
+    /**
+     * Lists the transactions of a ledger with an accounting time at or beyond the specified time.
+     * @param ledger the ledger.
+     * @param since the start of the period.
+     * @param maxResults the maximum number of transactions.
+     * @return the transaction ids, in ascending order.
+     */
+    public List<Long> listTransactionsSince(@NotNull Ledger ledger, @NotNull Instant since, int maxResults) {
+    	return em.createQuery("select t.id from AccountingTransaction t where t.ledger = :ledger and t.accountingTime >= :since order by t.id asc", Long.class)
+    			.setParameter("ledger", ledger)
+    			.setParameter("since", since)
+    			.setMaxResults(maxResults)
+    			.getResultList();
+    }
+
+    /**
+     * Moves transactions to the successor ledger. The net change of each account by the moved transactions is subtracted from
+     * both the end amount of the closing ledger balance and the start amount of the successor ledger balance (the first shard).
+     * @param closing the closing ledger.
+     * @param successor the successor ledger.
+     * @param transactionIds the transactions to move.
+     * @return the number of transactions moved.
+     */
+    public int moveTransactions(@NotNull Ledger closing, @NotNull Ledger successor, @NotNull List<Long> transactionIds) {
+    	if (transactionIds.isEmpty()) {
+    		return 0;
+    	}
+    	Number moved = (Number) em.createNativeQuery("with moved as (" +
+    			"update accounting_transaction set ledger = :successor where ledger = :closing and id in (:ids) returning id" +
+    			"), delta as (" +
+    			"select e.account, sum(" + ENTRY_DELTA + ") as amount from accounting_entry e " +
+    			"join moved m on m.id = e.transaction join account a on a.id = e.account group by e.account" +
+    			"), closing_balance as (" +
+    			"update balance b set end_amount = b.end_amount - d.amount, version = coalesce(b.version, 0) + 1, modified_time = now() " +
+    			"from delta d where b.ledger = :closing and b.account = d.account and b.shard = 0 returning b.id" +
+    			"), opening_balance as (" +
+    			"update balance b set start_amount = b.start_amount - d.amount, version = coalesce(b.version, 0) + 1, modified_time = now() " +
+    			"from delta d where b.ledger = :successor and b.account = d.account and b.shard = 0 returning b.id" +
+    			") select count(*) from moved")
+    			.setParameter("closing", closing.getId())
+    			.setParameter("successor", successor.getId())
+    			.setParameter("ids", transactionIds)
+    			.getSingleResult();
+    	return moved.intValue();
+    }
+
+    /**
+     * Verifies the closing: For each account the end amount of a ledger must match the start amount plus
+     * the net change by the transactions of the ledger. Apply to both the closed ledger and its successor.
+     * @param ledger the closed ledger or its successor.
+     * @return the number of accounts with a mismatch.
+     */
+    public int countBalanceMismatches(@NotNull Ledger ledger) {
+    	Number count = (Number) em.createNativeQuery("select count(*) from (" +
+    			"select b.account, sum(b.start_amount) as start_amount, sum(b.end_amount) as end_amount from balance b " +
+    			"where b.ledger = :ledger group by b.account) bal " +
+    			"left join (select e.account, sum(" + ENTRY_DELTA + ") as amount from accounting_entry e " +
+    			"join accounting_transaction t on t.id = e.transaction join account a on a.id = e.account " +
+    			"where t.ledger = :ledger group by e.account) ent on ent.account = bal.account " +
+    			"where bal.end_amount <> bal.start_amount + coalesce(ent.amount, 0)")
+    			.setParameter("ledger", ledger.getId())
+    			.getSingleResult();
+    	return count.intValue();
+    }
+
+    /**
+     * Verifies the continuity of the closing: For each account the start amount of the successor ledger must match the 
+     * end amount of the closing ledger. The shards of a balance are summed. A booking written into the closing ledger 
+     * after the balances were copied breaks the continuity, although both ledgers are consistent by themselves.
+     * @param closing the closing ledger.
+     * @param successor the successor ledger.
+     * @return the number of accounts with a mismatch.
+     */
+    public int countOpeningMismatches(@NotNull Ledger closing, @NotNull Ledger successor) {
+    	Number count = (Number) em.createNativeQuery("select count(*) from (" +
+    			"select b.account, sum(b.end_amount) as amount from balance b where b.ledger = :closing group by b.account) c " +
+    			"full outer join (" +
+    			"select b.account, sum(b.start_amount) as amount from balance b where b.ledger = :successor group by b.account) s " +
+    			"on s.account = c.account " +
+    			"where coalesce(c.amount, 0) <> coalesce(s.amount, 0)")
+    			.setParameter("closing", closing.getId())
+    			.setParameter("successor", successor.getId())
+    			.getSingleResult();
+    	return count.intValue();
+    }
+}
@@ -0,0 +1,28 @@
+package eu.netmobiel.banker.repository.converter;
+
+import java.util.stream.Stream;
+
+import javax.persistence.AttributeConverter;
+import javax.persistence.Converter;
+
+import eu.netmobiel.banker.model.LedgerCloseState;
+
+@Converter(autoApply = true)
+public class LedgerCloseStateConverter implements AttributeConverter<LedgerCloseState, String> {
+
+	@Override
+	public String convertToDatabaseColumn(LedgerCloseState type) {
+		return type == null ? null : type.getCode();
+	}
+
+	@Override
+	public LedgerCloseState convertToEntityAttribute(String code) {
+		if (code == null) {
+            return null;
+        }
+		return Stream.of(LedgerCloseState.values())
+		          .filter(c -> c.getCode().equals(code))
+		          .findFirst()
+		          .orElseThrow(IllegalArgumentException::new);
+	}
+}
\ No newline at end of file
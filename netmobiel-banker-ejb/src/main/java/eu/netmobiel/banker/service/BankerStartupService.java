@@ -70,6 +70,8 @@ public class BankerStartupService {
     		OffsetDateTime odt = OffsetDateTime.of(Instant.now().atOffset(ZoneOffset.UTC).getYear(), 1, 1, 0, 0, 0, 0, ZoneOffset.UTC);
     		ledgerService.createLedger(odt.toInstant());
     	}
+    	// Finish the closing of a ledger, if interrupted
+   		ledgerService.resumeLedgerClosing();
    		ledgerService.prepareAccount(LedgerService.ACC_REF_BANKING_RESERVE, 
    				LedgerService.ACC_NAME_BANKING_RESERVE, AccountType.ASSET, AccountPurposeType.SYSTEM);
    		ledgerService.prepareAccount(LedgerService.ACC_REF_RESERVATIONS, 
@@ -0,0 +1,70 @@
+package eu.netmobiel.banker.service;
+
+import java.time.Duration;
+import java.util.Optional;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+
+import eu.netmobiel.banker.model.Incentive;
+import eu.netmobiel.banker.repository.IncentiveDao;
+import eu.netmobiel.commons.cache.ReferenceDataCache;
+
+/**
+ * Cache of the incentives by code. The incentives are looked up for every reward event, but change rarely. 
+ * The cached incentives are detached from the persistence context they were loaded in, the same instance is 
+ * shared by all transactions and threads. The cached incentives must therefore never be modified. To use 
+ * an incentive in an association, take a reference in the current persistence context, see 
+ * {@link IncentiveDao#getReference(Object)}.
+ * 
+ * @author Jaap Reitsma
+ *
+ */
+@ApplicationScoped
+public class IncentiveCache {
+	/**
+	 * The incentives are maintained directly in the database, a change is picked up after at most this period.
+	 */
+	private static final Duration TIME_TO_LIVE = Duration.ofMinutes(10);
+	private static final int MAX_ENTRIES = 500;
+
+	@Inject
+	private IncentiveDao incentiveDao;
+
+	private final ReferenceDataCache<String, Optional<Incentive>> cache = 
+			new ReferenceDataCache<>("banker-incentives", TIME_TO_LIVE, MAX_ENTRIES);
+
+	@PostConstruct
+	public void initialize() {
+		cache.registerMBean();
+	}
+
+	@PreDestroy
+	public void destroy() {
+		cache.unregisterMBean();
+	}
+
+	/**
+	 * Looks up an incentive by code.
+	 * @param code the incentive code.
+	 * @return the incentive, if any.
+	 */
+	public Optional<Incentive> lookup(String code) {
+		return cache.get(code, this::load);
+	}
+
+	private Optional<Incentive> load(String code) {
+		Optional<Incentive> incentive = incentiveDao.findByCode(code);
+		incentive.ifPresent(incentiveDao::detach);
+		return incentive;
+	}
+
+	/**
+	 * Removes all incentives from the cache. Call this method after a change of an incentive.
+	 */
+	public void invalidate() {
+		cache.invalidateAll();
+	}
+}
@@ -43,6 +43,7 @@ import eu.netmobiel.banker.model.Balance;
 import eu.netmobiel.banker.model.BankerUser;
 import eu.netmobiel.banker.model.Charity;
 import eu.netmobiel.banker.model.Ledger;
+import eu.netmobiel.banker.model.LedgerCloseState;
 import eu.netmobiel.banker.model.Reward;
 import eu.netmobiel.banker.model.SettlementOrder;
 import eu.netmobiel.banker.model.TransactionType;
@@ -52,6 +53,7 @@ import eu.netmobiel.banker.repository.AccountingTransactionDao;
 import eu.netmobiel.banker.repository.BalanceDao;
 import eu.netmobiel.banker.repository.BankerUserDao;
 import eu.netmobiel.banker.repository.LedgerDao;
+import eu.netmobiel.banker.repository.LedgerRolloverDao;
 import eu.netmobiel.banker.repository.RewardDao;
 import eu.netmobiel.commons.annotation.Created;
 import eu.netmobiel.commons.annotation.Removed;
@@ -81,6 +83,13 @@ import eu.netmobiel.commons.util.UrnHelper;
  * The balances are a shared resources for many processes. To prevent too many roll-backs, the system balances are locked with
  * a pessimistic write. To prevent deadlock, system balances are always locked in the same sequence: 
  * banking-reserve, reservations, premiums.
+ * To prevent the system balances becoming a single point of contention, each system balance is divided in a number of shards. 
+ * A transaction locks only the shard that belongs to the (user) account involved in the transaction, so transactions of 
+ * different users can proceed in parallel. The locking sequence of the system accounts remains the same. 
+ * Each shard must cover its own withdrawals, the overdraft check needs the locked shard only. If a shard runs low, 
+ * all shards of the system account are locked in shard order and the total is redistributed over the shards. 
+ * Before any balance, a booking locks the ledger in shared mode. The closing of a ledger locks the ledger in exclusive 
+ * mode, so a booking never ends up in a ledger that is being closed.
  * 
  * 
  * @author Jaap Reitsma
@@ -114,6 +123,14 @@ public class LedgerService {
 	public static final int CREDIT_EXCHANGE_RATE = 19;	// 1 credit is x euro cent
 
 	public static final List<String> SYSTEM_NCAN = List.of(ACC_REF_BANKING_RESERVE, ACC_REF_RESERVATIONS, ACC_REF_PREMIUMS);
+	/**
+	 * The number of shards of the balance of a system account.
+	 */
+	public static final int SYSTEM_BALANCE_SHARDS = 8;
+	/**
+	 * The number of transactions moved to the successor ledger in a single database transaction when closing a ledger.
+	 */
+	public static final int LEDGER_CLOSE_BATCH_SIZE = 1000;
 	
 	@Inject
     private Logger log;
@@ -135,6 +152,8 @@ public class LedgerService {
     private BankerUserDao userDao;
     @Inject
     private RewardDao rewardDao;
+    @Inject
+    private LedgerRolloverDao ledgerRolloverDao;
 
     /**
      * Tool to check whether a transaction is active.
@@ -194,6 +213,102 @@ public class LedgerService {
 		});
     }
 
+    /**
+     * Determines the shard of the system balances to use for a transaction of the specified account.
+     * @param acc the (user) account involved in the transaction.
+     * @return the shard number.
+     */
+    static int systemBalanceShard(Account acc) {
+    	if (acc == null || acc.getId() == null) {
+    		return 0;
+    	}
+    	return (int) Math.floorMod(acc.getId(), (long) SYSTEM_BALANCE_SHARDS);
+    }
+
+    /**
+     * Looks up the open ledger for a booking and locks the ledger in shared mode until the end of the transaction. 
+     * The closing of a ledger locks the ledger in exclusive mode, see {@link #startLedgerClosing(Instant)}. 
+     * A booking that has read the ledger as open, but was blocked by the closing, rereads the ledger after the lock
+     * is granted and moves to the successor ledger. No booking can therefore end up in the closing ledger after 
+     * the balances have been copied to the successor.
+     * @param when the accounting time of the booking.
+     * @return the open ledger, locked.
+     * @throws IllegalStateException if the ledger of the accounting time is closed.
+     */
+    private Ledger lookupOpenLedger(Instant when) {
+    	Ledger ledger = ledgerDao.findByDate(when);
+    	ledgerDao.lock(ledger, LockModeType.PESSIMISTIC_READ);
+    	if (ledger.getEndPeriod() != null && !when.isBefore(ledger.getEndPeriod())) {
+    		// Closed while waiting for the lock, the accounting time belongs to the successor now
+    		ledger = ledgerDao.findByDate(when);
+    		ledgerDao.lock(ledger, LockModeType.PESSIMISTIC_READ);
+    	}
+    	ledger.expectOpen();
+    	return ledger;
+    }
+
+    /**
+     * Looks up and locks the shard of a system balance that belongs to the specified account. The shard must cover
+     * the withdrawal by itself. If the (unlocked) amount of the shard shows it cannot, all shards are locked in shard 
+     * order and redistributed before the transaction. This decision is taken before any shard is locked, to keep 
+     * the lock order. Only if the shard is drained concurrently between the check and the lock, the other shards are 
+     * locked while holding the shard. A deadlock with another redistribution is then detected by the database and one 
+     * of the transactions is rolled back.
+     * @param ledger the ledger.
+     * @param ncan the account number of the system account.
+     * @param acc the (user) account involved in the transaction.
+     * @param withdrawal the amount the transaction takes from the system balance, i.e. the debit of a liability or the 
+     * 			credit of an asset account. Use 0 if the transaction only adds to the balance or if an overdraft is allowed.
+     * @return the balance shard. 
+     */
+    private Balance lookupSystemBalance(Ledger ledger, String ncan, Account acc, int withdrawal) {
+    	final int shard = systemBalanceShard(acc);
+    	Balance balance = null;
+    	if (withdrawal <= 0 || balanceDao.peekEndAmount(ledger, ncan, shard) >= withdrawal) {
+    		balance = balanceDao.findByLedgerAndAccountNumber(ledger, ncan, shard, LockModeType.PESSIMISTIC_WRITE);
+    	}
+    	if (balance == null || balance.getEndAmount() < withdrawal) {
+    		List<Balance> shards = balanceDao.lockAllShards(ledger, ncan);
+    		balance = shards.stream()
+    				.filter(b -> b.getShard() == shard)
+    				.findFirst()
+    				.orElseThrow(() -> new IllegalStateException("No such balance shard: " + ncan + " " + shard));
+    		redistributeShards(shards, balance, withdrawal);
+    	}
+    	balance.setOtherShardsAmount(balanceDao.sumOtherShards(balance));
+    	return balance;
+    }
+
+    /**
+     * Redistributes the total amount of the shards of a system balance: The target shard gets the withdrawal, 
+     * the remainder is divided equally over all shards. The total does not change, the accounting entries do not 
+     * refer to a shard. If the total does not cover the withdrawal, nothing is changed and the overdraft check of the 
+     * transaction fails. 
+     * @param shards all shards of the balance, locked.
+     * @param target the shard to withdraw from.
+     * @param withdrawal the amount to withdraw.
+     */
+    static void redistributeShards(List<Balance> shards, Balance target, int withdrawal) {
+    	int total = shards.stream().mapToInt(Balance::getEndAmount).sum();
+    	if (total < withdrawal) {
+    		return;
+    	}
+    	int remainder = total - withdrawal;
+    	int share = remainder / shards.size();
+    	shards.forEach(b -> b.setEndAmount(share));
+    	target.setEndAmount(withdrawal + share + remainder % shards.size());
+    }
+
+    /**
+     * Adds the amount of the other shards to the balance of a system account, for informational purposes.
+     * @param balance the balance.
+     */
+    private void addOtherShards(Balance balance) {
+    	if (balance.getAccount().getPurpose() == AccountPurposeType.SYSTEM) {
+    		balance.setOtherShardsAmount(balanceDao.sumOtherShards(balance));
+    	}
+    }
+
     /**
      * A Netmobiel user deposits credits. The balance of the netmobiel credit system grows: the account of the user gets
      * more credits and the banking reserve of Netmobiel is equally increased.
@@ -205,9 +320,8 @@ public class LedgerService {
      * @description the description in the journal.
      */
     public AccountingTransaction deposit(Account acc, int amount, OffsetDateTime when, String description, String reference) {
-    	Ledger ledger = ledgerDao.findByDate(when.toInstant());
-    	ledger.expectOpen();
-    	Balance assetBalance = balanceDao.findByLedgerAndAccountNumber(ledger, ACC_REF_BANKING_RESERVE, LockModeType.PESSIMISTIC_WRITE);  
+    	Ledger ledger = lookupOpenLedger(when.toInstant());
+    	Balance assetBalance = lookupSystemBalance(ledger, ACC_REF_BANKING_RESERVE, acc, 0);  
     	expect(assetBalance.getAccount(), AccountType.ASSET);
     	Balance liabilityBalance = balanceDao.findByLedgerAndAccount(ledger, acc, LockModeType.OPTIMISTIC_FORCE_INCREMENT);
     	expect(liabilityBalance.getAccount(), AccountType.LIABILITY);
@@ -235,9 +349,8 @@ public class LedgerService {
      * @description the description in the journal.
      */
     public  AccountingTransaction withdraw(Account acc, int amount, OffsetDateTime when, String description, String reference) throws BalanceInsufficientException {
-    	Ledger ledger = ledgerDao.findByDate(when.toInstant());
-    	ledger.expectOpen();
-    	Balance assetBalance = balanceDao.findByLedgerAndAccountNumber(ledger, ACC_REF_BANKING_RESERVE, LockModeType.PESSIMISTIC_WRITE);  
+    	Ledger ledger = lookupOpenLedger(when.toInstant());
+    	Balance assetBalance = lookupSystemBalance(ledger, ACC_REF_BANKING_RESERVE, acc, amount);  
     	expect(assetBalance.getAccount(), AccountType.ASSET);
     	Balance liabilityBalance = balanceDao.findByLedgerAndAccount(ledger, acc, LockModeType.OPTIMISTIC_FORCE_INCREMENT);  
     	expect(liabilityBalance.getAccount(), AccountType.LIABILITY);
@@ -269,11 +382,10 @@ public class LedgerService {
 		AccountingEntry userAccEntry = reservation.lookup(TransactionType.RESERVATION, AccountingEntryType.DEBIT);
 		final int amount = userAccEntry.getAmount();
 
-		Ledger ledger = ledgerDao.findByDate(when.toInstant());
-    	ledger.expectOpen();
-    	Balance brab = balanceDao.findByLedgerAndAccountNumber(ledger, ACC_REF_BANKING_RESERVE, LockModeType.PESSIMISTIC_WRITE);  
+    	Ledger ledger = lookupOpenLedger(when.toInstant());
+    	Balance brab = lookupSystemBalance(ledger, ACC_REF_BANKING_RESERVE, userAccEntry.getAccount(), amount);  
     	expect(brab.getAccount(), AccountType.ASSET);
-    	Balance rb = balanceDao.findByLedgerAndAccountNumber(ledger, ACC_REF_RESERVATIONS, LockModeType.PESSIMISTIC_WRITE);
+    	Balance rb = lookupSystemBalance(ledger, ACC_REF_RESERVATIONS, userAccEntry.getAccount(), amount);
     	expect(rb.getAccount(), AccountType.LIABILITY);
     	Balance userAccountBalance = balanceDao.findByLedgerAndAccount(ledger, userAccEntry.getAccount(), LockModeType.OPTIMISTIC_FORCE_INCREMENT);  
     	expect(userAccountBalance.getAccount(), AccountType.LIABILITY);
@@ -302,8 +414,7 @@ public class LedgerService {
      */
     public AccountingTransaction transfer(Account originator, Account beneficiary, int amount, OffsetDateTime when, 
     		String description, String reference, boolean rollback) throws BalanceInsufficientException {
-    	Ledger ledger = ledgerDao.findByDate(when.toInstant());
-    	ledger.expectOpen();
+    	Ledger ledger = lookupOpenLedger(when.toInstant());
     	Balance originatorBalance = balanceDao.findByLedgerAndAccount(ledger, originator, LockModeType.OPTIMISTIC_FORCE_INCREMENT);  
     	expect(originatorBalance.getAccount(), AccountType.LIABILITY);
     	Balance beneficiaryBalance = balanceDao.findByLedgerAndAccount(ledger, beneficiary, LockModeType.OPTIMISTIC_FORCE_INCREMENT);
@@ -318,6 +429,25 @@ public class LedgerService {
     	return tr;
     }
 
+    /**
+     * Calculates the amount a reversal takes from the balance of a system account: The credits of a liability account 
+     * and the debits of an asset account are reversed into a withdrawal.
+     * @param trToReverse the transaction to reverse.
+     * @param acc the system account.
+     * @param allowOverdraft if true then the overdraft of a liability account is allowed.
+     * @return the amount to withdraw.
+     */
+    private static int reversalWithdrawal(AccountingTransaction trToReverse, Account acc, boolean allowOverdraft) {
+    	AccountingEntryType reducingType = acc.getAccountType() == AccountType.ASSET ? AccountingEntryType.DEBIT : AccountingEntryType.CREDIT;
+    	if (allowOverdraft && acc.getAccountType() == AccountType.LIABILITY) {
+    		return 0;
+    	}
+    	return trToReverse.getAccountingEntries().stream()
+    			.filter(e -> e.getAccount().equals(acc) && e.getEntryType() == reducingType)
+    			.mapToInt(AccountingEntry::getAmount)
+    			.sum();
+    }
+
 	/**
 	 * Create a transaction that reverses this transaction. The opposite accounting entry is created and also the purpose is reversed.
 	 * @param head The head of the conversation
@@ -331,8 +461,7 @@ public class LedgerService {
 	private AccountingTransaction reverse(@NotNull AccountingTransaction head, AccountingTransaction trToReverse, 
 			Instant accountingTime, boolean isRollback, boolean allowOverdraft) 
 			throws BalanceInsufficientException {
-    	Ledger ledger = ledgerDao.findByDate(accountingTime);
-    	ledger.expectOpen();
+    	Ledger ledger = lookupOpenLedger(accountingTime);
 		AccountingTransaction.Builder trb =	ledger
 				.createFollowUpTransactionFromHead(head, accountingTime, Instant.now())
 				.rollback(isRollback);
@@ -341,11 +470,16 @@ public class LedgerService {
 				.map(ae -> ae.getAccount())
 				.collect(Collectors.toList());
 		sortAccountsForLocking(accounts);
+		// The shard of the system balances is determined by the (first) non-system account, as in the original transaction
+		Account shardAccount = accounts.stream()
+				.filter(acc -> acc.getPurpose() != AccountPurposeType.SYSTEM)
+				.findFirst()
+				.orElse(null);
 		Map<Account, Balance> balanceMap = new HashMap<>();
 		accounts.forEach(acc -> {
-			LockModeType type = acc.getPurpose() == AccountPurposeType.SYSTEM ? LockModeType.PESSIMISTIC_WRITE
-					: LockModeType.OPTIMISTIC_FORCE_INCREMENT;
-	    	Balance balance = balanceDao.findByLedgerAndAccount(ledger, acc, type);
+			Balance balance = acc.getPurpose() == AccountPurposeType.SYSTEM 
+					? lookupSystemBalance(ledger, acc.getNcan(), shardAccount, reversalWithdrawal(trToReverse, acc, allowOverdraft))
+					: balanceDao.findByLedgerAndAccount(ledger, acc, LockModeType.OPTIMISTIC_FORCE_INCREMENT);
 			balanceMap.put(acc, balance);
 		});
 		// Iterate the transactions also in opposite sequence, that is for the logic in the list of statements
@@ -380,9 +514,8 @@ public class LedgerService {
      */
     public AccountingTransaction reserve(Account acc, int amount, Account premiumAcc, int maxPremiumPercentage, 
     		OffsetDateTime when, String description, String reference, boolean rollback) throws BalanceInsufficientException {
-    	Ledger ledger = ledgerDao.findByDate(when.toInstant());
-    	ledger.expectOpen();
-    	Balance rb = balanceDao.findByLedgerAndAccountNumber(ledger, ACC_REF_RESERVATIONS, LockModeType.PESSIMISTIC_WRITE);  
+    	Ledger ledger = lookupOpenLedger(when.toInstant());
+    	Balance rb = lookupSystemBalance(ledger, ACC_REF_RESERVATIONS, acc, 0);  
     	expect(rb.getAccount(), AccountType.LIABILITY);
     	Balance userBalance = balanceDao.findByLedgerAndAccount(ledger, acc, LockModeType.OPTIMISTIC_FORCE_INCREMENT);  
     	expect(userBalance.getAccount(), AccountType.LIABILITY);
@@ -541,9 +674,8 @@ public class LedgerService {
 		AccountingEntry userAccEntry = reservation.lookup(TransactionType.RESERVATION, AccountingEntryType.DEBIT);
 		// The conversation head is the head of the previous transaction , or the reservation itself. 
 		AccountingTransaction head = reservation.getHead() != null ? reservation.getHead() : reservation;
-		Ledger ledger = ledgerDao.findByDate(when.toInstant());
-    	ledger.expectOpen();
-    	Balance rb = balanceDao.findByLedgerAndAccountNumber(ledger, ACC_REF_RESERVATIONS, LockModeType.PESSIMISTIC_WRITE);
+    	Ledger ledger = lookupOpenLedger(when.toInstant());
+    	Balance rb = lookupSystemBalance(ledger, ACC_REF_RESERVATIONS, userAccEntry.getAccount(), userAccEntry.getAmount());
     	Balance userBalance = balanceDao.findByLedgerAndAccount(ledger, userAccEntry.getAccount(), LockModeType.OPTIMISTIC_FORCE_INCREMENT);  
     	Balance beneficiaryBalance = balanceDao.findByLedgerAndAccount(ledger, beneficiary.getPersonalAccount(), LockModeType.OPTIMISTIC_FORCE_INCREMENT);  
     	if (rb.getId().equals(userBalance.getId())) {
@@ -585,29 +717,121 @@ public class LedgerService {
      * Move all transactions with accountingTime >= newStartPeriod to the new ledger.
      * Calculate the account balances of the closed ledger and calculate the balances for
      * the new ledger. 
-     * @param newStartPeriod
+     * The procedure runs in several database transactions. First the new ledger is created with a copy of the balances, 
+     * from then on all new transactions are booked in the new ledger. Next the transactions beyond the end of the period are 
+     * moved in batches, correcting the closing and opening balances on the fly. The end amounts of the new ledger 
+     * remain valid during the procedure. An interrupted procedure is resumed at startup, see {@link #resumeLedgerClosing()}.
+     * Finally the balances are verified. If the balances do not match the transactions, the ledger is not closed and 
+     * remains in the moving state.
+     * @param newStartPeriod the start of the new period, i.e. the end of the current period. Must not be in the future.
      */
-    //TODO finish implementation
+    @TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
     public void closeLedger(OffsetDateTime newStartPeriod) {
-    	// Find the active ledger
-    	@SuppressWarnings("unused")
-		Ledger ledger = ledgerDao.findByDate(newStartPeriod.toInstant());
-    	
-    	Ledger newLedger = new Ledger();
-    	newLedger.setStartPeriod(newStartPeriod.toInstant());
-    	newLedger.setName(String.format("%d", newStartPeriod.getYear()));
+    	LedgerService self = sessionContext.getBusinessObject(LedgerService.class);
+    	Long ledgerId = self.startLedgerClosing(newStartPeriod.toInstant());
+    	completeLedgerClosing(self, ledgerId);
+    }
+
+    /**
+     * Resumes the closing of the ledger(s) that were interrupted, e.g. by a shutdown.
+     */
+    @TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+    public void resumeLedgerClosing() {
+    	LedgerService self = sessionContext.getBusinessObject(LedgerService.class);
+    	for (Ledger ledger : ledgerDao.listLedgers(LedgerCloseState.MOVING)) {
+    		log.info("Resume closing of " + ledger);
+    		try {
+    			completeLedgerClosing(self, ledger.getId());
+    		} catch (Exception ex) {
+    			// The ledger remains in the moving state, the new transactions are booked in the successor anyway
+    			log.error(String.format("Unable to close %s: %s", ledger, ex.toString()));
+    		}
+    	}
+    }
+
+    private void completeLedgerClosing(LedgerService self, Long ledgerId) {
+    	int total = 0;
+    	int moved;
+    	do {
+    		moved = self.moveLedgerTransactions(ledgerId, LEDGER_CLOSE_BATCH_SIZE);
+    		total += moved;
+    	} while (moved > 0);
+    	log.info(String.format("Moved %d transactions to the successor ledger", total));
+    	self.finishLedgerClosing(ledgerId);
+    }
+
+    /**
+     * The first step of closing a ledger: Close the ledger for new transactions, create the successor ledger and 
+     * copy the balances. 
+     * @param newStartPeriod the start of the new period. Must not be in the future, otherwise there would be no ledger
+     * 			for the bookings until then.
+     * @return the id of the closing ledger.
+     */
+    @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+    public Long startLedgerClosing(Instant newStartPeriod) {
+		Ledger ledger = ledgerDao.findByDate(newStartPeriod);
+		// Wait for the bookings in progress, block new bookings until the successor ledger is committed
+		ledgerDao.lock(ledger, LockModeType.PESSIMISTIC_WRITE);
+		ledger.expectOpen();
+		if (!newStartPeriod.isAfter(ledger.getStartPeriod())) {
+			throw new IllegalArgumentException("New start period must be after the start of the ledger: " + ledger);
+		}
+		if (newStartPeriod.isAfter(Instant.now())) {
+			throw new IllegalArgumentException("New start period must not be in the future: " + newStartPeriod);
+		}
+    	ledger.setEndPeriod(newStartPeriod);
+    	ledger.setCloseState(LedgerCloseState.MOVING);
+    	Ledger successor = createLedger(newStartPeriod);
+    	ledgerDao.flush();
+    	// Wait for the pending modifications of the balances that do not lock the ledger
+    	ledgerRolloverDao.lockBalances(ledger);
+    	int count = ledgerRolloverDao.createOpeningBalances(ledger, successor);
+    	log.info(String.format("Closing %s, created %d balances in %s", ledger, count, successor));
+    	return ledger.getId();
+    }
 
-    	// Move all transactions with accounting time equal or beyond newStartPeriod to the new ledger
-    	
-    	// Calculate the final balance of all accounts of the old ledger
-    	// No transactions are required to transfer balances. All accounts are balance accounts (as opposed
-    	// to revenue and expenses accounts in real life). [Is that true? You to transfer from one ledger to the next. 
-    	// Hmmm ok, yes might work, start amount of balance].
-    	// Calculate the new balance of all accounts of the new ledger
-    	// We need a flag for each balance to notify it is dirty
-    	// Should we also mark the ledger as being in maintenance?
-    	// At startup we need to check for maintenance and finish whatever was started.
-    	throw new UnsupportedOperationException("closeLedger is not yet implemented");
+    /**
+     * Moves a batch of transactions of a closing ledger to its successor.
+     * @param ledgerId the closing ledger.
+     * @param batchSize the maximum number of transactions to move.
+     * @return the number of transactions moved. If 0 then there is nothing left to move.
+     */
+    @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+    public int moveLedgerTransactions(Long ledgerId, int batchSize) {
+    	Ledger ledger = ledgerDao.find(ledgerId)
+    			.orElseThrow(() -> new IllegalStateException("No such ledger: " + ledgerId));
+    	ledger.expect(ldg -> ldg.getCloseState() == LedgerCloseState.MOVING, "Ledger is not being closed: " + ledger);
+    	Ledger successor = ledgerDao.findByDate(ledger.getEndPeriod());
+    	List<Long> transactionIds = ledgerRolloverDao.listTransactionsSince(ledger, ledger.getEndPeriod(), batchSize);
+    	return ledgerRolloverDao.moveTransactions(ledger, successor, transactionIds);
+    }
+
+    /**
+     * The last step of closing a ledger: Verify the balances of both the closing ledger and its successor, verify 
+     * that the successor starts where the closing ledger ends and mark the ledger as closed. A ledger with balances that do not match the transactions is never closed, it remains 
+     * in the moving state.
+     * @param ledgerId the closing ledger.
+     * @throws IllegalStateException if the balances do not match the transactions.
+     */
+    @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+    public void finishLedgerClosing(Long ledgerId) {
+    	Ledger ledger = ledgerDao.find(ledgerId)
+    			.orElseThrow(() -> new IllegalStateException("No such ledger: " + ledgerId));
+    	int mismatches = ledgerRolloverDao.countBalanceMismatches(ledger);
+    	if (mismatches > 0) {
+    		throw new IllegalStateException(String.format("Closing %s: %d account balance(s) do not match the transactions", ledger, mismatches));
+    	}
+    	Ledger successor = ledgerDao.findByDate(ledger.getEndPeriod());
+    	mismatches = ledgerRolloverDao.countBalanceMismatches(successor);
+    	if (mismatches > 0) {
+    		throw new IllegalStateException(String.format("Closing %s: %d account balance(s) of successor %s do not match the transactions", ledger, mismatches, successor));
+    	}
+    	mismatches = ledgerRolloverDao.countOpeningMismatches(ledger, successor);
+    	if (mismatches > 0) {
+    		throw new IllegalStateException(String.format("Closing %s: %d opening balance(s) of successor %s do not match the closing balances", ledger, mismatches, successor));
+    	}
+    	ledger.setCloseState(LedgerCloseState.CLOSED);
+    	log.info("Closed " + ledger);
     }
     
     public PagedResult<Ledger> listLedgers(Integer maxResults, Integer offset) {
@@ -681,7 +905,10 @@ public class LedgerService {
     		// Get the actual data
     		PagedResult<Long> ids = balanceDao.listBalances(accountName, purpose, null, ledger, maxResults, offset);
     		List<Balance> results = balanceDao.loadGraphs(ids.getData(), null, Balance::getId);
-        	results.forEach(b -> b.getAccount().setActualBalance(b));
+        	results.forEach(b -> {
+        		addOtherShards(b);
+        		b.getAccount().setActualBalance(b);
+        	});
         	accounts = results.stream().map(b -> b.getAccount()).collect(Collectors.toList());
     	}
     	return new PagedResult<>(accounts, maxResults, offset, prs.getTotalCount());
@@ -704,6 +931,7 @@ public class LedgerService {
     		// Get the actual data
     		PagedResult<Long> ids = balanceDao.listBalances(acc, ledger, maxResults, offset);
     		results = balanceDao.loadGraphs(ids.getData(), null, Balance::getId);
+    		results.forEach(b -> addOtherShards(b));
     	}
     	return new PagedResult<>(results, maxResults, offset, prs.getTotalCount());
     }
@@ -746,15 +974,32 @@ public class LedgerService {
      */
     public Account createAccount(String reference, String name, AccountType type, AccountPurposeType purpose) {
     	Instant now = Instant.now();
-    	Ledger ledger = ledgerDao.findByDate(now);
+    	Ledger ledger = lookupOpenLedger(now);
     	Account acc = Account.newInstant(reference, name, type, purpose);
     	accountDao.save(acc);
     	Balance bal = new Balance(ledger, acc, 0);
     	balanceDao.save(bal);
     	acc.setActualBalance(bal);
+    	if (purpose == AccountPurposeType.SYSTEM) {
+    		prepareSystemBalanceShards(ledger, acc);
+    	}
     	return acc;
     }
 
+    /**
+     * Creates the missing shards of the balance of a system account. 
+     * @param ledger the ledger 
+     * @param acc the system account.
+     */
+    private void prepareSystemBalanceShards(Ledger ledger, Account acc) {
+    	List<Integer> shards = balanceDao.listShards(ledger, acc);
+    	for (int shard = 0; shard < SYSTEM_BALANCE_SHARDS; shard++) {
+    		if (!shards.contains(shard)) {
+    			balanceDao.save(new Balance(ledger, acc, shard, 0));
+    		}
+    	}
+    }
+
     /**
      * Retrieves the specified account, including the actual balance.
      * @param id
@@ -793,8 +1038,11 @@ public class LedgerService {
      * @return the account  
      */
     public void prepareAccount(String ncan, String name, AccountType type, AccountPurposeType purpose) {
-    	if (accountDao.findByAccountNumber(ncan).isEmpty()) {
+    	Optional<Account> acc = accountDao.findByAccountNumber(ncan);
+    	if (acc.isEmpty()) {
     		createAccount(ncan, name, type, purpose);
+    	} else if (purpose == AccountPurposeType.SYSTEM) {
+    		prepareSystemBalanceShards(lookupOpenLedger(Instant.now()), acc.get());
     	}
     }
 
@@ -905,9 +1153,8 @@ public class LedgerService {
     	BankerUser user = userDao.loadGraph(rewarddb.getRecipient().getId(), BankerUser.GRAPH_WITH_ACCOUNT)  
     			.orElseThrow(() -> new NotFoundException("No such user: " + rewarddb.getRecipient().getManagedIdentity()));
     	int amount = rewarddb.getAmount();
-    	Ledger ledger = ledgerDao.findByDate(when.toInstant());
-    	ledger.expectOpen();
-    	Balance maecenasBalance = balanceDao.findByLedgerAndAccountNumber(ledger, ACC_REF_PREMIUMS, LockModeType.PESSIMISTIC_WRITE);  
+    	Ledger ledger = lookupOpenLedger(when.toInstant());
+    	Balance maecenasBalance = lookupSystemBalance(ledger, ACC_REF_PREMIUMS, user.getPersonalAccount(), amount);  
     	expect(maecenasBalance.getAccount(), AccountType.LIABILITY);
     	Balance personalBalance = balanceDao.findByLedgerAndAccount(ledger, user.getPersonalAccount(), LockModeType.OPTIMISTIC_FORCE_INCREMENT);  
     	expect(personalBalance.getAccount(), AccountType.LIABILITY);
@@ -954,8 +1201,7 @@ public class LedgerService {
     			.orElseThrow(() -> new NotFoundException("No such reward: " + reward.getId()));
     	BankerUser user = userDao.loadGraph(rewarddb.getRecipient().getId(), BankerUser.GRAPH_WITH_ACCOUNT)  
     			.orElseThrow(() -> new NotFoundException("No such user: " + rewarddb.getRecipient().getManagedIdentity()));
-    	Ledger ledger = ledgerDao.findByDate(when.toInstant());
-    	ledger.expectOpen();
+    	Ledger ledger = lookupOpenLedger(when.toInstant());
     	Balance personalBalance = balanceDao.findByLedgerAndAccount(ledger, user.getPersonalAccount(), LockModeType.OPTIMISTIC_FORCE_INCREMENT);  
     	expect(personalBalance.getAccount(), AccountType.LIABILITY);
     	Balance personalPremiumBalance = balanceDao.findByLedgerAndAccount(ledger, user.getPremiumAccount(), LockModeType.OPTIMISTIC_FORCE_INCREMENT);
@@ -1032,7 +1278,9 @@ public class LedgerService {
     }
 
     /** 
-     * Checks whether there are at least some premium credits to pay for rewards. Premium balance is locked!
+     * Checks whether there are at least some premium credits to pay for rewards. The premium balance is sharded,
+     * the total of the shards is checked without a lock, the result is only a hint. The actual transfer locks the shard 
+     * (if necessary all shards to replenish the shard) and checks the shard again.
      *  
      * @param amount
      * @return
@@ -1040,9 +1288,9 @@ public class LedgerService {
     public boolean fiatForPremiumBalance(int amount) {
     	OffsetDateTime when = OffsetDateTime.now();
     	Ledger ledger = ledgerDao.findByDate(when.toInstant());
-    	// Try to lock the balance, next step is the acrtual transfer
-    	Balance maecenasBalance = balanceDao.findByLedgerAndAccountNumber(ledger, ACC_REF_PREMIUMS, LockModeType.PESSIMISTIC_WRITE);
-    	return maecenasBalance.getEndAmount() >= amount;
+    	Balance maecenasBalance = balanceDao.findByLedgerAndAccountNumber(ledger, ACC_REF_PREMIUMS, LockModeType.NONE);
+    	addOtherShards(maecenasBalance);
+    	return maecenasBalance.getTotalEndAmount() >= amount;
     }
 
     /**
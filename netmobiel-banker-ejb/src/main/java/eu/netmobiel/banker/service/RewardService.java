@@ -24,6 +24,7 @@ import eu.netmobiel.commons.annotation.Created;
 import eu.netmobiel.commons.annotation.Removed;
 import eu.netmobiel.commons.annotation.Updated;
 import eu.netmobiel.commons.exception.BadRequestException;
+import eu.netmobiel.commons.exception.DuplicateEntryException;
 import eu.netmobiel.commons.exception.NotFoundException;
 import eu.netmobiel.commons.filter.Cursor;
 import eu.netmobiel.commons.model.NetMobielUser;
@@ -60,6 +61,9 @@ public class RewardService {
     @Inject
     private IncentiveDao incentiveDao;
 
+    @Inject
+    private IncentiveCache incentiveCache;
+
     @Inject @Created
 	private Event<Reward> rewardCreatedEvent;
 	
@@ -125,7 +129,8 @@ public class RewardService {
     	BankerUser rcp = userDao.findByManagedIdentity(recipient.getManagedIdentity())
     			.orElseThrow(() -> new NotFoundException("No such user: " + recipient.getManagedIdentity()));
     	int rewardAmount = incentive.calculateAmountToReward(yield);
-    	Reward reward = new Reward(incentive, rcp, fact, rewardAmount);
+    	// The incentive is possibly a (detached) cached instance, associate the reward with a managed reference
+    	Reward reward = new Reward(incentiveDao.getReference(incentive.getId()), rcp, fact, rewardAmount);
     	rewardDao.save(reward);
 		// Inform other parties of the creation the new reward.
 		rewardCreatedEvent.fire(reward);
@@ -156,8 +161,71 @@ public class RewardService {
     	return rewarddb;
     }
 
+    /**
+     * Looks up an incentive by code. The incentives are cached, the incentive is detached and shared with other 
+     * callers. Do not modify it.
+     * @param incentiveCode the incentive code.
+     * @return the incentive, if any.
+     */
     public Optional<Incentive> lookupIncentive(String incentiveCode) {
-    	return incentiveCode == null ? Optional.empty() : incentiveDao.findByCode(incentiveCode);
+    	return incentiveCode == null ? Optional.empty() : incentiveCache.lookup(incentiveCode);
+    }
+
+    /**
+     * Invalidates the cached incentives. This method is called after each change of an incentive by this service.
+     * Call this method after changing the incentives directly in the database, otherwise the change is picked up 
+     * when the cached incentives expire.
+     */
+    public void invalidateIncentives() {
+    	incentiveCache.invalidate();
+    }
+
+    /**
+     * Creates an incentive. 
+     * @param incentive the new incentive.
+     * @return the id of the incentive.
+     * @throws DuplicateEntryException if the code of the incentive is already in use.
+     */
+    public Long createIncentive(Incentive incentive) throws DuplicateEntryException {
+    	if (incentiveDao.findByCode(incentive.getCode()).isPresent()) {
+    		throw new DuplicateEntryException("Incentive code already in use: " + incentive.getCode());
+    	}
+    	incentiveDao.save(incentive);
+    	invalidateIncentives();
+    	return incentive.getId();
+    }
+
+    /**
+     * Updates an incentive. All attributes are replaced. 
+     * @param incentiveId the id of the incentive.
+     * @param incentive the new state of the incentive.
+     * @throws NotFoundException if the incentive does not exist.
+     * @throws DuplicateEntryException if the code of the incentive is in use by another incentive.
+     */
+    public void updateIncentive(Long incentiveId, Incentive incentive) throws NotFoundException, DuplicateEntryException {
+    	incentiveDao.find(incentiveId)
+    		.orElseThrow(() -> new NotFoundException("No such incentive: " + incentiveId));
+    	Optional<Incentive> other = incentiveDao.findByCode(incentive.getCode());
+    	if (other.isPresent() && !other.get().getId().equals(incentiveId)) {
+    		throw new DuplicateEntryException("Incentive code already in use: " + incentive.getCode());
+    	}
+    	incentive.setId(incentiveId);
+    	incentiveDao.merge(incentive);
+    	invalidateIncentives();
+    }
+
+    /**
+     * Disables an incentive. A disabled incentive does not hand out rewards anymore. 
+     * @param incentiveId the id of the incentive.
+     * @throws NotFoundException if the incentive does not exist.
+     */
+    public void disableIncentive(Long incentiveId) throws NotFoundException {
+    	Incentive incdb = incentiveDao.find(incentiveId)
+    		.orElseThrow(() -> new NotFoundException("No such incentive: " + incentiveId));
+    	if (incdb.getDisableTime() == null) {
+    		incdb.setDisableTime(Instant.now());
+    	}
+    	invalidateIncentives();
     }
     
     public Optional<Reward> lookupRewardByFact(Incentive incentive, NetMobielUser recipient, String fact) throws NotFoundException {
@@ -125,4 +125,25 @@ public class AccountingTransactionTest {
 		assertEquals(100, assetBalance.getEndAmount());
 		assertEquals(100, balance1.getEndAmount() - oldAmount);
 	}
+
+	@Test
+	public void testTransaction_WithdrawFromShard() throws BalanceInsufficientException {
+		// The shard itself is empty, the other shards do not count: Each shard must cover its own withdrawals
+		Balance assetShard = new Balance(ledger, assetAccount, 3, 0);
+		assetShard.setOtherShardsAmount(100);
+		try {
+			assetShard.credit(50);
+			fail("Expected BalanceInsufficientException");
+		} catch (BalanceInsufficientException ex) {
+			// Expected, the shard would become negative
+		}
+		assetShard.setEndAmount(50);
+		Instant acctime = Instant.parse("2020-08-01T01:00:00Z");
+		ledger.createStartTransaction("withdrawal", null, acctime, Instant.now())
+					.credit(assetShard, 50, TransactionType.WITHDRAWAL, balance1.getAccount())
+					.debit(balance1, 50, TransactionType.WITHDRAWAL, assetShard.getAccount())
+					.build();
+		assertEquals(0, assetShard.getEndAmount());
+		assertEquals(100, assetShard.getTotalEndAmount());
+	}
 }
@@ -0,0 +1,170 @@
+package eu.netmobiel.banker.repository;
+
+
+import static org.junit.Assert.*;
+
+import java.time.Instant;
+import java.util.List;
+
+import javax.inject.Inject;
+import javax.persistence.LockModeType;
+import javax.persistence.TypedQuery;
+
+import org.jboss.arquillian.container.test.api.Deployment;
+import org.jboss.arquillian.junit.Arquillian;
+import org.jboss.shrinkwrap.api.Archive;
+import org.jboss.shrinkwrap.api.spec.WebArchive;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import eu.netmobiel.banker.model.Account;
+import eu.netmobiel.banker.model.AccountingTransaction;
+import eu.netmobiel.banker.model.Balance;
+import eu.netmobiel.banker.model.Ledger;
+import eu.netmobiel.banker.model.LedgerCloseState;
+import eu.netmobiel.banker.model.TransactionType;
+import eu.netmobiel.banker.test.BankerIntegrationTestBase;
+import eu.netmobiel.banker.test.Fixture;
+
+/**
+ * Tests the steps of closing a ledger in the sequence of LedgerService: start (copy the balances), move the
+ * transactions in batches and verify the balances of both ledgers.
+ */
+@RunWith(Arquillian.class)
+public class LedgerRolloverDaoIT extends BankerIntegrationTestBase {
+	@Deployment
+    public static Archive<?> createTestArchive() {
+        WebArchive archive = createDeploymentBase()
+        		.addClass(LedgerDao.class)
+        		.addClass(LedgerRolloverDao.class)
+        ;
+// 		System.out.println(archive.toString(true));
+		return archive;
+    }
+
+	private static final Instant CUT_OFF = Instant.parse("2020-07-01T00:00:00Z");
+
+    @Inject
+    private LedgerDao ledgerDao;
+
+    @Inject
+    private LedgerRolloverDao ledgerRolloverDao;
+
+	@Override
+	protected void insertData() throws Exception {
+		prepareBasicLedger();
+	}
+
+    private Balance findBalance(Ledger ldg, Account acc) {
+		TypedQuery<Balance> tq = em.createQuery("from Balance bal where bal.ledger = :ledger and bal.account = :account and bal.shard = 0", Balance.class);
+		tq.setParameter("ledger", ldg);
+		tq.setParameter("account", acc);
+		return tq.getSingleResult();
+    }
+
+    /**
+     * Books a payment from account 2 to account 1 in the ledger.
+     */
+    private void book(Ledger ldg, String reference, int amount, Instant accountingTime) throws Exception {
+    	Balance from = findBalance(ldg, account2);
+    	Balance to = findBalance(ldg, account1);
+    	AccountingTransaction trans = ldg.createStartTransaction("description " + reference, reference, accountingTime, accountingTime)
+    			.debit(from, amount, TransactionType.PAYMENT, to.getAccount())
+    			.credit(to, amount, TransactionType.PAYMENT, from.getAccount())
+    			.build();
+    	em.persist(trans);
+    }
+
+    /**
+     * The first step of closing: Close the ledger, create the successor and copy the balances.
+     */
+    private Ledger startClosing() throws Exception {
+    	ledger = em.find(Ledger.class, ledger.getId());
+    	ledgerDao.lock(ledger, LockModeType.PESSIMISTIC_WRITE);
+    	ledger.setEndPeriod(CUT_OFF);
+    	ledger.setCloseState(LedgerCloseState.MOVING);
+    	Ledger successor = Fixture.createLedger("ledger-2", CUT_OFF.toString(), null);
+    	em.persist(successor);
+    	em.flush();
+    	assertEquals(4, ledgerRolloverDao.lockBalances(ledger));
+    	assertEquals(4, ledgerRolloverDao.createOpeningBalances(ledger, successor));
+    	// Running it again does not create balances twice
+    	assertEquals(0, ledgerRolloverDao.createOpeningBalances(ledger, successor));
+    	flush();
+    	return successor;
+    }
+
+    private int moveAll(Ledger successor, int batchSize) throws Exception {
+    	int total = 0;
+    	int moved;
+    	do {
+    		ledger = em.find(Ledger.class, ledger.getId());
+    		successor = em.find(Ledger.class, successor.getId());
+    		List<Long> ids = ledgerRolloverDao.listTransactionsSince(ledger, ledger.getEndPeriod(), batchSize);
+    		moved = ledgerRolloverDao.moveTransactions(ledger, successor, ids);
+    		total += moved;
+    		flush();
+    	} while (moved > 0);
+    	return total;
+    }
+
+    @Test
+    public void closeMoveAndVerify() throws Exception {
+    	book(ledger, "before-1", 10, Instant.parse("2020-04-07T17:00:00Z"));
+    	book(ledger, "after-1", 20, Instant.parse("2020-07-02T17:00:00Z"));
+    	book(ledger, "after-2", 30, Instant.parse("2020-08-02T17:00:00Z"));
+    	flush();
+
+    	Ledger successor = startClosing();
+    	ledger = em.find(Ledger.class, ledger.getId());
+    	successor = em.find(Ledger.class, successor.getId());
+    	assertEquals(100 + 60, findBalance(successor, account1).getStartAmount());
+    	assertEquals(100 + 60, findBalance(successor, account1).getEndAmount());
+
+    	// A booking after the start of the closing goes into the successor
+    	book(successor, "after-3", 5, Instant.parse("2020-09-01T12:00:00Z"));
+    	flush();
+
+    	assertEquals(2, moveAll(successor, 1));
+
+    	ledger = em.find(Ledger.class, ledger.getId());
+    	successor = em.find(Ledger.class, successor.getId());
+    	Balance closed1 = findBalance(ledger, account1);
+    	Balance closed2 = findBalance(ledger, account2);
+    	Balance opening1 = findBalance(successor, account1);
+    	Balance opening2 = findBalance(successor, account2);
+    	assertEquals(100 + 10, closed1.getEndAmount());
+    	assertEquals(200 - 10, closed2.getEndAmount());
+    	assertEquals(closed1.getEndAmount(), opening1.getStartAmount());
+    	assertEquals(closed2.getEndAmount(), opening2.getStartAmount());
+    	assertEquals(100 + 65, opening1.getEndAmount());
+    	assertEquals(200 - 65, opening2.getEndAmount());
+    	assertEquals(0, ledgerRolloverDao.countBalanceMismatches(ledger));
+    	assertEquals(0, ledgerRolloverDao.countBalanceMismatches(successor));
+    	assertEquals(0, ledgerRolloverDao.countOpeningMismatches(ledger, successor));
+    	// Nothing left to move
+    	assertTrue(ledgerRolloverDao.listTransactionsSince(ledger, CUT_OFF, 10).isEmpty());
+    }
+
+    @Test
+    public void lateBookingInClosingLedger() throws Exception {
+    	book(ledger, "after-1", 20, Instant.parse("2020-07-02T17:00:00Z"));
+    	flush();
+
+    	Ledger successor = startClosing();
+    	// A booking that slipped past the lock on the ledger: Written into the closing ledger after the copy of the balances
+    	ledger = em.find(Ledger.class, ledger.getId());
+    	book(ledger, "late-1", 7, Instant.parse("2020-07-03T17:00:00Z"));
+    	flush();
+
+    	assertEquals(2, moveAll(successor, 10));
+    	ledger = em.find(Ledger.class, ledger.getId());
+    	successor = em.find(Ledger.class, successor.getId());
+    	// Both ledgers are consistent by themselves, but the successor does not start where the closing ledger ends
+    	assertEquals(0, ledgerRolloverDao.countBalanceMismatches(ledger));
+    	assertEquals(0, ledgerRolloverDao.countBalanceMismatches(successor));
+    	assertEquals(2, ledgerRolloverDao.countOpeningMismatches(ledger, successor));
+    	assertEquals(100, findBalance(ledger, account1).getEndAmount());
+    	assertEquals(100 - 7, findBalance(successor, account1).getStartAmount());
+    }
+}
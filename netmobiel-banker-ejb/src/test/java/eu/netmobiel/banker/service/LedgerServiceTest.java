@@ -12,6 +12,8 @@ import org.junit.Test;
 import eu.netmobiel.banker.model.Account;
 import eu.netmobiel.banker.model.AccountPurposeType;
 import eu.netmobiel.banker.model.AccountType;
+import eu.netmobiel.banker.model.Balance;
+import eu.netmobiel.banker.model.Ledger;
 
 public class LedgerServiceTest {
 
@@ -48,4 +50,39 @@ public class LedgerServiceTest {
 		assertEquals(accounts.get(5), user1P);
 	}
 
+	@Test
+	public void testSystemBalanceShard() {
+		assertEquals(0, LedgerService.systemBalanceShard(null));
+		assertEquals(0, LedgerService.systemBalanceShard(user1));
+		for (long id = 1; id < 100; id++) {
+			user1.setId(id);
+			int shard = LedgerService.systemBalanceShard(user1);
+			assertTrue(shard >= 0 && shard < LedgerService.SYSTEM_BALANCE_SHARDS);
+			assertEquals(shard, LedgerService.systemBalanceShard(user1));
+		}
+	}
+
+	@Test
+	public void testRedistributeShards() {
+		Ledger ledger = new Ledger();
+		List<Balance> shards = new ArrayList<>();
+		int[] amounts = { 40, -5, 0, 30 };
+		for (int i = 0; i < amounts.length; i++) {
+			Balance b = new Balance(ledger, premiums, i, 0);
+			b.setEndAmount(amounts[i]);
+			shards.add(b);
+		}
+		// The total is 65, withdraw 20 from shard 2. The remainder of 45 is divided: 11 each, 1 extra for the target 
+		LedgerService.redistributeShards(shards, shards.get(2), 20);
+		assertEquals(65, shards.stream().mapToInt(Balance::getEndAmount).sum());
+		assertEquals(32, shards.get(2).getEndAmount());
+		assertEquals(11, shards.get(0).getEndAmount());
+		assertEquals(11, shards.get(1).getEndAmount());
+		assertEquals(11, shards.get(3).getEndAmount());
+		// Not enough in total, nothing changes
+		LedgerService.redistributeShards(shards, shards.get(0), 100);
+		assertEquals(11, shards.get(0).getEndAmount());
+		assertEquals(32, shards.get(2).getEndAmount());
+	}
+
 }
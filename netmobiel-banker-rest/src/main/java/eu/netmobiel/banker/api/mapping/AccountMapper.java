@@ -33,7 +33,7 @@ public abstract class AccountMapper {
 	@AccountMinimal
 	public abstract eu.netmobiel.banker.api.model.Account mapMinimal(Account acc);
 
-	@Mapping(target = "credits", source = "actualBalance.endAmount")
+	@Mapping(target = "credits", source = "actualBalance.totalEndAmount")
 	@Mapping(target = "type", source = "accountType")
 //	@Mapping(target = "id", ignore = true)
 	@AccountAll
@@ -21,6 +21,7 @@ public interface BalanceMapper {
 
 	// Domain --> API
 	@Mapping(target = "ledger", source = "ledger.name")
+	@Mapping(target = "endAmount", source = "totalEndAmount")
 	@Mapping(target = "account", source = "account", qualifiedBy = { AccountMapperQualifier.class, AccountMinimal.class })
 	eu.netmobiel.banker.api.model.Balance map(Balance source);
 	
@@ -0,0 +1,153 @@
+package eu.netmobiel.benchmarks;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+
+/**
+ * The reference scores of the benchmarks. The baseline is stored as a properties file, one score per
+ * benchmark (including the mode and parameters). The scores depend on the machine, a baseline is only useful
+ * on the machine it was recorded.
+ *
+ * @author Jaap Reitsma
+ *
+ */
+public class Baseline {
+	private final Map<String, Double> scores = new TreeMap<>();
+
+	/**
+	 * The outcome of the comparison of a single benchmark with the baseline.
+	 */
+	public static class Comparison {
+		private final String key;
+		private final Double baselineScore;
+		private final double score;
+		private final boolean higherIsBetter;
+
+		public Comparison(String key, Double baselineScore, double score, boolean higherIsBetter) {
+			this.key = key;
+			this.baselineScore = baselineScore;
+			this.score = score;
+			this.higherIsBetter = higherIsBetter;
+		}
+
+		public String getKey() {
+			return key;
+		}
+
+		public Double getBaselineScore() {
+			return baselineScore;
+		}
+
+		public double getScore() {
+			return score;
+		}
+
+		/**
+		 * The relative change of the score, positive is an improvement, negative a deterioration.
+		 * @return the change as a fraction of the baseline score or null if there is no baseline.
+		 */
+		public Double getChange() {
+			if (baselineScore == null || baselineScore == 0) {
+				return null;
+			}
+			double change = (score - baselineScore) / baselineScore;
+			return higherIsBetter ? change : -change;
+		}
+
+		/**
+		 * Determines whether the score is worse than the baseline by more than the threshold.
+		 * @param threshold the allowed deterioration as a fraction, e.g. 0.1 for 10%.
+		 * @return true if this benchmark has regressed.
+		 */
+		public boolean isRegression(double threshold) {
+			Double change = getChange();
+			return change != null && change < -threshold;
+		}
+
+		@Override
+		public String toString() {
+			Double change = getChange();
+			return String.format("%-90s %14.3f %14s %8s", key, score,
+					baselineScore == null ? "-" : String.format("%.3f", baselineScore),
+					change == null ? "new" : String.format("%+.1f%%", change * 100));
+		}
+	}
+
+	/**
+	 * Creates the key of a benchmark result.
+	 * @param benchmark the full name of the benchmark method.
+	 * @param mode the short label of the benchmark mode.
+	 * @param params the parameters of the benchmark, may be empty.
+	 * @return the key, e.g. eu.netmobiel.benchmarks.PolylineEncoderBenchmark.concat/thrpt/points-100
+	 */
+	public static String createKey(String benchmark, String mode, Map<String, String> params) {
+		StringBuilder sb = new StringBuilder(benchmark).append('/').append(mode);
+		new TreeMap<>(params).forEach((k, v) -> sb.append('/').append(k).append('-').append(v));
+		return sb.toString();
+	}
+
+	/**
+	 * Loads the baseline. A missing file yields an empty baseline.
+	 * @param file the baseline file.
+	 * @return the baseline.
+	 * @throws IOException on error reading the file.
+	 */
+	public static Baseline load(Path file) throws IOException {
+		Baseline baseline = new Baseline();
+		if (Files.exists(file)) {
+			Properties props = new Properties();
+			try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+				props.load(reader);
+			}
+			props.stringPropertyNames().forEach(k -> baseline.scores.put(k, Double.valueOf(props.getProperty(k))));
+		}
+		return baseline;
+	}
+
+	/**
+	 * Saves the baseline.
+	 * @param file the baseline file.
+	 * @throws IOException on error writing the file.
+	 */
+	public void save(Path file) throws IOException {
+		// Write sorted, to keep the diffs small
+		String content = scores.entrySet().stream()
+				.map(e -> e.getKey() + "=" + e.getValue())
+				.collect(Collectors.joining("\n", "# Benchmark scores, created by eu.netmobiel.benchmarks.BenchmarkRunner\n", "\n"));
+		try (Writer writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+			writer.write(content);
+		}
+	}
+
+	public Optional<Double> getScore(String key) {
+		return Optional.ofNullable(scores.get(key));
+	}
+
+	public void setScore(String key, double score) {
+		scores.put(key, score);
+	}
+
+	public boolean isEmpty() {
+		return scores.isEmpty();
+	}
+
+	/**
+	 * Compares a score with the baseline.
+	 * @param key the benchmark key.
+	 * @param score the measured score.
+	 * @param higherIsBetter true for throughput, false for time measurements.
+	 * @return the comparison.
+	 */
+	public Comparison compare(String key, double score, boolean higherIsBetter) {
+		return new Comparison(key, scores.get(key), score, higherIsBetter);
+	}
+}
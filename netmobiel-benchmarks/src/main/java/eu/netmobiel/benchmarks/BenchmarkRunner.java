@@ -0,0 +1,77 @@
+package eu.netmobiel.benchmarks;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks and compares the scores with the baseline. The process exits with status 1 if one or more
+ * benchmarks score worse than the baseline by more than the threshold.
+ * The arguments are the regular JMH command line arguments, e.g. a regular expression to select the benchmarks.
+ * The comparison is configured by system properties:
+ * <ul>
+ * <li>benchmark.baseline - the baseline file, default baseline.properties. Benchmarks without a baseline score 
+ * 		are added to the file.
+ * <li>benchmark.threshold - the allowed deterioration as a fraction, default 0.10.
+ * <li>benchmark.update - if true then the scores replace the baseline, without failing.
+ * </ul>
+ *
+ * @author Jaap Reitsma
+ *
+ */
+public class BenchmarkRunner {
+
+	public static void main(String[] args) throws Exception {
+		Path baselineFile = Paths.get(System.getProperty("benchmark.baseline", "baseline.properties"));
+		double threshold = Double.parseDouble(System.getProperty("benchmark.threshold", "0.10"));
+		boolean update = Boolean.getBoolean("benchmark.update");
+
+		Options options = new OptionsBuilder()
+				.parent(new CommandLineOptions(args))
+				.build();
+		Collection<RunResult> results = new Runner(options).run();
+
+		Baseline baseline = Baseline.load(baselineFile);
+		boolean changed = false;
+		List<Baseline.Comparison> regressions = new ArrayList<>();
+		System.out.println();
+		System.out.println(String.format("%-90s %14s %14s %8s", "Benchmark", "Score", "Baseline", "Change"));
+		for (RunResult result : results) {
+			BenchmarkParams params = result.getParams();
+			Map<String, String> paramValues = new HashMap<>();
+			params.getParamsKeys().forEach(k -> paramValues.put(k, params.getParam(k)));
+			String key = Baseline.createKey(params.getBenchmark(), params.getMode().shortLabel(), paramValues);
+			double score = result.getPrimaryResult().getScore();
+			Baseline.Comparison cmp = baseline.compare(key, score, params.getMode() == Mode.Throughput);
+			System.out.println(cmp.toString());
+			if (cmp.isRegression(threshold)) {
+				regressions.add(cmp);
+			}
+			if (update || cmp.getBaselineScore() == null) {
+				baseline.setScore(key, score);
+				changed = true;
+			}
+		}
+		if (changed) {
+			baseline.save(baselineFile);
+			System.out.println("Baseline written to " + baselineFile.toAbsolutePath());
+		}
+		if (!update && !regressions.isEmpty()) {
+			System.out.println(String.format("%d benchmark(s) regressed more than %.0f%%:", regressions.size(), threshold * 100));
+			regressions.forEach(r -> System.out.println("\t" + r.getKey()));
+			System.exit(1);
+		}
+	}
+}
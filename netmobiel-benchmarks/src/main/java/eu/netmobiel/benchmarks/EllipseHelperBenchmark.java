@@ -0,0 +1,48 @@
+package eu.netmobiel.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.vividsolutions.jts.geom.Point;
+
+import eu.netmobiel.commons.model.GeoLocation;
+import eu.netmobiel.commons.util.EllipseHelper;
+import eu.netmobiel.commons.util.EllipseHelper.EligibleArea;
+
+/**
+ * Benchmark of the calculation of the eligible area of a rideshare ride or a passenger search.
+ * The second case crosses the UTM zone boundary at 6 degrees longitude.
+ *
+ * @author Jaap Reitsma
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EllipseHelperBenchmark {
+	private final Point zutphen = GeoLocation.fromString("Rabobank Zutphen::52.148125, 6.196966").getPoint();
+	private final Point hengelo = GeoLocation.fromString("Rembrandtstraat 8, Hengelo (OV)::52.273440,6.785370").getPoint();
+	private final Point amersfoort = GeoLocation.fromString("Rembrandtstraat 8, Amersfoort (UT)::52.145710,5.388120").getPoint();
+
+	@Benchmark
+	public EligibleArea singleZone() {
+		return EllipseHelper.calculateEllipse(zutphen, hengelo, null, 0.5);
+	}
+
+	@Benchmark
+	public EligibleArea acrossZones() {
+		return EllipseHelper.calculateEllipse(amersfoort, hengelo, 1000.0, 0.0);
+	}
+}
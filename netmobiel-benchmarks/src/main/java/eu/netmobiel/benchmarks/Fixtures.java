@@ -0,0 +1,124 @@
+package eu.netmobiel.benchmarks;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Field;
+
+import javax.inject.Inject;
+
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import eu.netmobiel.opentripplanner.api.model.PlanResponse;
+import eu.netmobiel.opentripplanner.client.Jackson2ObjectMapperContextResolver;
+import eu.netmobiel.planner.model.TripPlan;
+import eu.netmobiel.planner.repository.mapping.TripPlanMapper;
+
+/**
+ * The fixture data of the benchmarks. The OTP responses in the resources are not recordings of a real OTP,
+ * they are assembled by hand in the format of the /routers/nl/plan endpoint. The trips are in and around
+ * Enschede and Hengelo.
+ *
+ * @author Jaap Reitsma
+ *
+ */
+public class Fixtures {
+	public static final String OTP_FIXTURES = "/fixtures/otp/";
+	public static final String OTP_PLAN_TRANSIT = "plan-enschede-hengelo-transit.json";
+	public static final String OTP_PLAN_CAR = "plan-enschede-hengelo-car.json";
+
+	private static final ObjectMapper otpObjectMapper = new Jackson2ObjectMapperContextResolver().getContext(PlanResponse.class);
+
+	private Fixtures() {
+		// Only static methods.
+	}
+
+	/**
+	 * Reads a fixture from the class path.
+	 * @param resource the resource name.
+	 * @return the raw content.
+	 */
+	public static byte[] readResource(String resource) {
+		try (InputStream is = Fixtures.class.getResourceAsStream(resource)) {
+			if (is == null) {
+				throw new IllegalArgumentException("No such fixture: " + resource);
+			}
+			return is.readAllBytes();
+		} catch (IOException ex) {
+			throw new UncheckedIOException("Error reading fixture " + resource, ex);
+		}
+	}
+
+	/**
+	 * Reads a hand-made OTP plan response.
+	 * @param name the name of the fixture.
+	 * @return the raw response.
+	 */
+	public static byte[] readOtpResponse(String name) {
+		return readResource(OTP_FIXTURES + name);
+	}
+
+	/**
+	 * Parses an OTP plan response in the same way as the OTP client.
+	 * @param rawResponse the response body.
+	 * @return the plan response.
+	 */
+	public static PlanResponse parsePlanResponse(byte[] rawResponse) {
+		try {
+			PlanResponse response = otpObjectMapper.readValue(rawResponse, PlanResponse.class);
+			// Like the client does
+			response.plan.itineraries.forEach(it -> it.updateCharacteristics());
+			return response;
+		} catch (IOException ex) {
+			throw new UncheckedIOException("Error parsing OTP response", ex);
+		}
+	}
+
+	/**
+	 * Reads an OTP fixture and maps it to a planner trip plan.
+	 * @param name the name of the fixture.
+	 * @param mapper the mapper.
+	 * @return the trip plan with the itineraries as a linear graph.
+	 */
+	public static TripPlan readTripPlan(String name, TripPlanMapper mapper) {
+		return mapper.map(parsePlanResponse(readOtpResponse(name)).plan);
+	}
+
+	/**
+	 * Creates the trip plan mapper as generated by MapStruct. The mapper is a CDI bean,
+	 * the injection is done here by hand.
+	 * @return the mapper.
+	 */
+	public static TripPlanMapper createTripPlanMapper() {
+		return createMapper(TripPlanMapper.class);
+	}
+
+	/**
+	 * Instantiates a MapStruct generated mapper and injects the used mappers and the logger.
+	 */
+	private static <T> T createMapper(Class<T> mapperClass) {
+		try {
+			@SuppressWarnings("unchecked")
+			Class<? extends T> implClass = (Class<? extends T>) Class.forName(mapperClass.getName() + "Impl");
+			T mapper = implClass.getDeclaredConstructor().newInstance();
+			for (Class<?> c = implClass; c != Object.class; c = c.getSuperclass()) {
+				for (Field field : c.getDeclaredFields()) {
+					if (!field.isAnnotationPresent(Inject.class)) {
+						continue;
+					}
+					field.setAccessible(true);
+					if (field.getType() == org.slf4j.Logger.class) {
+						field.set(mapper, LoggerFactory.getLogger(c));
+					} else {
+						field.set(mapper, createMapper(field.getType()));
+					}
+				}
+			}
+			return mapper;
+		} catch (ReflectiveOperationException ex) {
+			throw new IllegalStateException("Cannot create mapper " + mapperClass.getName(), ex);
+		}
+	}
+}
@@ -0,0 +1,109 @@
+package eu.netmobiel.benchmarks;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import eu.netmobiel.planner.model.Itinerary;
+import eu.netmobiel.planner.model.Leg;
+import eu.netmobiel.planner.model.TraverseMode;
+import eu.netmobiel.planner.model.TripPlan;
+import eu.netmobiel.planner.service.BasicItineraryRankingAlgorithm;
+
+/**
+ * Benchmark of the itinerary manipulations of the multi-modal planner: The composition of a rideshare leg with
+ * a transit itinerary (append and prepend), the shift in time and the ranking. The itineraries are taken from 
+ * the transit fixture: walk - train - walk. The walk legs stand in for the rideshare legs.
+ *
+ * @author Jaap Reitsma
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ItineraryBenchmark {
+	private static final Duration SHIFT = Duration.ofMinutes(7);
+
+	private List<Itinerary> itineraries;
+	private Itinerary firstMile;
+	private Itinerary transit;
+	private Itinerary lastMile;
+	private Itinerary shifted;
+	private Instant travelTime;
+	private BasicItineraryRankingAlgorithm rankingAlgorithm;
+
+	@Setup
+	public void setup() {
+		TripPlan plan = Fixtures.readTripPlan(Fixtures.OTP_PLAN_TRANSIT, Fixtures.createTripPlanMapper());
+		itineraries = new ArrayList<>(plan.getItineraries());
+		travelTime = plan.getTravelTime();
+		Itinerary it = itineraries.stream()
+				.filter(i -> i.getLegs().size() == 3 && i.getLegs().get(1).getTraverseMode() == TraverseMode.RAIL)
+				.findFirst()
+				.orElseThrow(() -> new IllegalStateException("No train itinerary in fixture"));
+		firstMile = singleLeg(it, 0);
+		transit = singleLeg(it, 1);
+		lastMile = singleLeg(it, 2);
+		shifted = it.deepCopy();
+		rankingAlgorithm = new BasicItineraryRankingAlgorithm();
+	}
+
+	private static Itinerary singleLeg(Itinerary it, int index) {
+		Leg leg = it.getLegs().get(index);
+		return it.createSingleLeggedItinerary(leg.getFrom().getLocation(), leg.getTo().getLocation());
+	}
+
+	/**
+	 * A rideshare leg as first leg, followed by transit. 
+	 */
+	@Benchmark
+	public Itinerary append() {
+		return firstMile.append(transit);
+	}
+
+	/**
+	 * A rideshare leg as last leg, preceded by transit. 
+	 */
+	@Benchmark
+	public Itinerary prepend() {
+		return lastMile.prepend(transit);
+	}
+
+	/**
+	 * Shifts the itinerary forth and back, i.e. two shifts per invocation.
+	 */
+	@Benchmark
+	public Itinerary shiftLinear() {
+		shifted.shiftLinear(SHIFT);
+		shifted.shiftLinear(SHIFT.negated());
+		return shifted;
+	}
+
+	/**
+	 * Scores all itineraries of the plan.
+	 */
+	@Benchmark
+	public void calculateScore(Blackhole bh) {
+		for (Itinerary it : itineraries) {
+			rankingAlgorithm.calculateScore(it, travelTime, false);
+			bh.consume(it.getScore());
+		}
+	}
+}
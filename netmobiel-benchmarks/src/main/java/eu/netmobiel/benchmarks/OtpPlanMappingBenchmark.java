@@ -0,0 +1,67 @@
+package eu.netmobiel.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import eu.netmobiel.opentripplanner.api.model.PlanResponse;
+import eu.netmobiel.planner.model.TripPlan;
+import eu.netmobiel.planner.repository.mapping.TripPlanMapper;
+
+/**
+ * Benchmark of the processing of an OTP plan response: The parsing of the JSON response and the mapping of the OTP
+ * plan to the planner domain (including the decoding of the leg geometry).
+ *
+ * @author Jaap Reitsma
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class OtpPlanMappingBenchmark {
+
+	@Param({ Fixtures.OTP_PLAN_TRANSIT, Fixtures.OTP_PLAN_CAR })
+	private String fixture;
+
+	private byte[] rawResponse;
+	private PlanResponse planResponse;
+	private TripPlanMapper mapper;
+
+	@Setup
+	public void setup() {
+		rawResponse = Fixtures.readOtpResponse(fixture);
+		planResponse = Fixtures.parsePlanResponse(rawResponse);
+		mapper = Fixtures.createTripPlanMapper();
+	}
+
+	@Benchmark
+	public PlanResponse parse() {
+		return Fixtures.parsePlanResponse(rawResponse);
+	}
+
+	@Benchmark
+	public TripPlan map() {
+		return mapper.map(planResponse.plan);
+	}
+
+	/**
+	 * The complete processing of a response by the planner. 
+	 */
+	@Benchmark
+	public TripPlan parseAndMap() {
+		return mapper.map(Fixtures.parsePlanResponse(rawResponse).plan);
+	}
+}
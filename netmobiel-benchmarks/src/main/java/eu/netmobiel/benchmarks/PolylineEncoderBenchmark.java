@@ -0,0 +1,96 @@
+package eu.netmobiel.benchmarks;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.vividsolutions.jts.geom.Coordinate;
+
+import eu.netmobiel.commons.util.PolylineEncoder;
+
+/**
+ * Micro benchmark of the polyline codec. The polylines are random walks with steps of the size of a road segment.
+ *
+ * @author Jaap Reitsma
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PolylineEncoderBenchmark {
+
+	@Param({ "100", "2000" })
+	private int points;
+
+	private double[] latLon;
+	private List<Coordinate> coordinates;
+	private String polyline;
+	private String otherPolyline;
+
+	@Setup
+	public void setup() {
+		Random random = new Random(points);
+		latLon = new double[points * 2];
+		double lat = 52.2215;
+		double lon = 6.8937;
+		for (int i = 0; i < latLon.length; i += 2) {
+			lat += (random.nextDouble() - 0.5) * 0.002;
+			lon += (random.nextDouble() - 0.5) * 0.003;
+			latLon[i] = lat;
+			latLon[i + 1] = lon;
+		}
+		polyline = PolylineEncoder.encode(latLon);
+		coordinates = PolylineEncoder.decode(polyline);
+		otherPolyline = PolylineEncoder.encode(new double[] { lat, lon, lat + 0.01, lon - 0.01, lat + 0.02, lon - 0.015 });
+	}
+
+	@Benchmark
+	public String encodeArray() {
+		return PolylineEncoder.encode(latLon);
+	}
+
+	@Benchmark
+	public String encodeCoordinates() {
+		return PolylineEncoder.createEncodings(coordinates).getPoints();
+	}
+
+	@Benchmark
+	public double[] decodeArray() {
+		return PolylineEncoder.decodeToArray(polyline);
+	}
+
+	@Benchmark
+	public List<Coordinate> decodeCoordinates() {
+		return PolylineEncoder.decode(polyline);
+	}
+
+	@Benchmark
+	public String concat() {
+		return PolylineEncoder.concat(polyline, otherPolyline);
+	}
+
+	/**
+	 * The former way of concatenation: Decode both, encode the result.
+	 */
+	@Benchmark
+	public String concatByDecoding() {
+		List<Coordinate> coords = PolylineEncoder.decode(polyline);
+		coords.addAll(PolylineEncoder.decode(otherPolyline));
+		return PolylineEncoder.createEncodings(coords).getPoints();
+	}
+}
@@ -0,0 +1,48 @@
+package eu.netmobiel.benchmarks.load;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Minimal parser of command line options in the form --name value. An option without a value is 'true'.
+ *
+ * @author Jaap Reitsma
+ *
+ */
+class CommandLine {
+	private final Map<String, String> options = new HashMap<>();
+
+	public CommandLine(String[] args) {
+		for (int i = 0; i < args.length; i++) {
+			if (!args[i].startsWith("--")) {
+				throw new IllegalArgumentException("Expected an option, got: " + args[i]);
+			}
+			String name = args[i].substring(2);
+			String value = "true";
+			if (i + 1 < args.length && !args[i + 1].startsWith("--")) {
+				value = args[++i];
+			}
+			options.put(name, value);
+		}
+	}
+
+	public boolean has(String name) {
+		return options.containsKey(name);
+	}
+
+	public String get(String name, String defaultValue) {
+		return options.getOrDefault(name, defaultValue);
+	}
+
+	public String getRequired(String name) {
+		String value = options.get(name);
+		if (value == null) {
+			throw new IllegalArgumentException("Missing mandatory option --" + name);
+		}
+		return value;
+	}
+
+	public int getInt(String name, int defaultValue) {
+		return options.containsKey(name) ? Integer.parseInt(options.get(name)) : defaultValue;
+	}
+}
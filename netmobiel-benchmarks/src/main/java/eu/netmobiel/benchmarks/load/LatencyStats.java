@@ -0,0 +1,63 @@
+package eu.netmobiel.benchmarks.load;
+
+import java.util.Arrays;
+
+/**
+ * Collects the latencies of the requests and calculates the percentiles. Thread-safe.
+ *
+ * @author Jaap Reitsma
+ *
+ */
+public class LatencyStats {
+	private long[] latencies = new long[1024];
+	private int count;
+	private int errors;
+
+	/**
+	 * Records the latency of a successful request.
+	 * @param nanos the latency in nanoseconds.
+	 */
+	public synchronized void record(long nanos) {
+		if (count == latencies.length) {
+			latencies = Arrays.copyOf(latencies, count * 2);
+		}
+		latencies[count++] = nanos;
+	}
+
+	/**
+	 * Records a failed request. The latency of a failed request is not included in the percentiles.
+	 */
+	public synchronized void recordError() {
+		errors++;
+	}
+
+	public synchronized int getCount() {
+		return count;
+	}
+
+	public synchronized int getErrors() {
+		return errors;
+	}
+
+	/**
+	 * Calculates a percentile with the nearest-rank method.
+	 * @param percentile the percentile, in the range (0, 100].
+	 * @return the latency in nanoseconds or 0 if nothing was recorded.
+	 */
+	public synchronized long getPercentile(double percentile) {
+		if (percentile <= 0 || percentile > 100) {
+			throw new IllegalArgumentException("Percentile must be in the range (0, 100]: " + percentile);
+		}
+		if (count == 0) {
+			return 0;
+		}
+		long[] sorted = Arrays.copyOf(latencies, count);
+		Arrays.sort(sorted);
+		int rank = (int) Math.ceil(percentile / 100.0 * count);
+		return sorted[Math.max(rank, 1) - 1];
+	}
+
+	public synchronized long getMax() {
+		return getPercentile(100);
+	}
+}
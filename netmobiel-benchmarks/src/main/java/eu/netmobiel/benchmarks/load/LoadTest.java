@@ -0,0 +1,260 @@
+package eu.netmobiel.benchmarks.load;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.OffsetDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Load driver for the trip search of the planner and of the rideshare transport operator. Each virtual user
+ * issues search requests back to back. After the warm-up period the latencies are recorded for the duration
+ * of the measurement. The measurement starts when the last warm-up request has finished, the requests of the 
+ * warm-up are never counted. The report lists the throughput, the latency percentiles and, if the replay server is
+ * given, the number of calls to OTP and HERE per search.
+ * <p>
+ * Options:
+ * <ul>
+ * <li>--scenario - planner (GET /search/plan) or rideshare (POST /planning/inquiries), default planner.
+ * <li>--planner - the base URL of the planner API, default http://localhost:8080/planner/api.
+ * <li>--rideshare-to - the base URL of the rideshare TOMP API, default http://localhost:8080/rideshare-to/api.
+ * <li>--stub - the base URL of the replay server, e.g. http://localhost:8099. Without it no calls are counted.
+ * <li>--token or --token-file - the bearer token (an access token of a test user).
+ * <li>--users - the number of concurrent virtual users, default 10.
+ * <li>--warmup - the warm-up period in seconds, default 10.
+ * <li>--duration - the measurement period in seconds, default 60.
+ * <li>--from and --to - the places as label::lat,lon, default Enschede and Hengelo.
+ * <li>--modalities - the modalities of a planner search, default WALK,TRANSIT,RIDESHARE.
+ * <li>--days-ahead - the day of the travel, relative to today, default 1.
+ * <li>--time-spread - the travel time is picked at random from 8:00 + [0, spread) minutes, default 120.
+ * <li>--maas-id - the maas-id header of a rideshare inquiry, default netmobiel-loadtest.
+ * </ul>
+ *
+ * @author Jaap Reitsma
+ *
+ */
+public class LoadTest {
+	private static final String DEFAULT_FROM = "Enschede Station::52.22347,6.89012";
+	private static final String DEFAULT_TO = "Hengelo Station::52.26378,6.79412";
+
+	private final ObjectMapper mapper = new ObjectMapper();
+	private final HttpClient client = HttpClient.newBuilder()
+			.connectTimeout(Duration.ofSeconds(10))
+			.build();
+	private final CommandLine cmd;
+	private final String token;
+	private final String stubUrl;
+	private final boolean rideshareScenario;
+
+	public LoadTest(CommandLine cmd) throws IOException {
+		this.cmd = cmd;
+		String t = cmd.get("token", null);
+		if (t == null && cmd.has("token-file")) {
+			t = Files.readString(Paths.get(cmd.get("token-file", null))).trim();
+		}
+		this.token = t;
+		this.stubUrl = cmd.get("stub", null);
+		String scenario = cmd.get("scenario", "planner");
+		if (!scenario.equals("planner") && !scenario.equals("rideshare")) {
+			throw new IllegalArgumentException("Unknown scenario: " + scenario);
+		}
+		this.rideshareScenario = scenario.equals("rideshare");
+	}
+
+	public static void main(String[] args) throws Exception {
+		new LoadTest(new CommandLine(args)).run();
+	}
+
+	public void run() throws Exception {
+		int users = cmd.getInt("users", 10);
+		long warmupEnd = System.nanoTime() + TimeUnit.SECONDS.toNanos(cmd.getInt("warmup", 10));
+		long duration = TimeUnit.SECONDS.toNanos(cmd.getInt("duration", 60));
+		AtomicLong measurementEnd = new AtomicLong();
+		CountDownLatch warmupDone = new CountDownLatch(users);
+		CountDownLatch measurementStart = new CountDownLatch(1);
+		LatencyStats stats = new LatencyStats();
+
+		System.out.println(String.format("Scenario %s, %d users, warm-up %ds, duration %ds",
+				rideshareScenario ? "rideshare" : "planner", users, cmd.getInt("warmup", 10), cmd.getInt("duration", 60)));
+		ExecutorService executor = Executors.newFixedThreadPool(users);
+		List<Future<?>> futures = new ArrayList<>();
+		for (int i = 0; i < users; i++) {
+			futures.add(executor.submit(() -> {
+				try {
+					while (System.nanoTime() < warmupEnd) {
+						try {
+							search();
+						} catch (IOException ex) {
+							// Failures during the warm-up are not counted
+						}
+					}
+				} finally {
+					warmupDone.countDown();
+				}
+				measurementStart.await();
+				while (System.nanoTime() < measurementEnd.get()) {
+					try {
+						long start = System.nanoTime();
+						int status = search();
+						long latency = System.nanoTime() - start;
+						if (status >= 200 && status < 300) {
+							stats.record(latency);
+						} else {
+							stats.recordError();
+						}
+					} catch (IOException ex) {
+						stats.recordError();
+					}
+				}
+				return null;
+			}));
+		}
+		// Reset the counters of the stub at the start of the measurement. A warm-up request may still be in 
+		// progress at the end of the warm-up period, its calls to the stub would be counted as part of the 
+		// measurement. Therefore the measurement starts only when all warm-up requests have finished.
+		Map<String, Long> stubCountersStart = null;
+		try {
+			warmupDone.await();
+			stubCountersStart = readStubCounters(true);
+		} finally {
+			measurementEnd.set(System.nanoTime() + duration);
+			measurementStart.countDown();
+		}
+		for (Future<?> f : futures) {
+			f.get();
+		}
+		executor.shutdown();
+		Map<String, Long> stubCounters = readStubCounters(false);
+		report(stats, cmd.getInt("duration", 60), stubCountersStart != null ? stubCounters : null);
+	}
+
+	/**
+	 * Issues a single search request.
+	 * @return the HTTP status.
+	 */
+	private int search() throws IOException, InterruptedException {
+		OffsetDateTime travelTime = OffsetDateTime.now(ZoneId.systemDefault())
+				.truncatedTo(ChronoUnit.DAYS)
+				.plusDays(cmd.getInt("days-ahead", 1))
+				.withHour(8)
+				.plusMinutes(ThreadLocalRandom.current().nextInt(Math.max(cmd.getInt("time-spread", 120), 1)));
+		HttpRequest.Builder rb = rideshareScenario ? createInquiry(travelTime) : createPlanSearch(travelTime);
+		rb.timeout(Duration.ofSeconds(60));
+		if (token != null) {
+			rb.header("Authorization", "Bearer " + token);
+		}
+		HttpResponse<Void> response = client.send(rb.build(), HttpResponse.BodyHandlers.discarding());
+		return response.statusCode();
+	}
+
+	private HttpRequest.Builder createPlanSearch(OffsetDateTime travelTime) {
+		String query = String.format("from=%s&to=%s&travelTime=%s&modalities=%s",
+				encode(cmd.get("from", DEFAULT_FROM)),
+				encode(cmd.get("to", DEFAULT_TO)),
+				encode(travelTime.format(DateTimeFormatter.ISO_OFFSET_DATE_TIME)),
+				encode(cmd.get("modalities", "WALK,TRANSIT,RIDESHARE")));
+		return HttpRequest.newBuilder(URI.create(cmd.get("planner", "http://localhost:8080/planner/api") + "/search/plan?" + query))
+				.header("Accept", "application/json")
+				.GET();
+	}
+
+	private HttpRequest.Builder createInquiry(OffsetDateTime travelTime) throws IOException {
+		ObjectNode body = mapper.createObjectNode();
+		setCoordinates(body.putObject("from"), cmd.get("from", DEFAULT_FROM));
+		setCoordinates(body.putObject("to"), cmd.get("to", DEFAULT_TO));
+		body.put("departureTime", travelTime.format(DateTimeFormatter.ISO_OFFSET_DATE_TIME));
+		body.put("nrOfTravelers", 1);
+		return HttpRequest.newBuilder(URI.create(cmd.get("rideshare-to", "http://localhost:8080/rideshare-to/api") + "/planning/inquiries"))
+				.header("Accept", "application/json")
+				.header("Content-Type", "application/json")
+				.header("Accept-Language", "nl")
+				.header("Api", "TOMP")
+				.header("Api-Version", "1.3.0")
+				.header("maas-id", cmd.get("maas-id", "netmobiel-loadtest"))
+				.POST(HttpRequest.BodyPublishers.ofByteArray(mapper.writeValueAsBytes(body)));
+	}
+
+	/**
+	 * Sets the TOMP coordinates of a place given as label::lat,lon.
+	 */
+	private static void setCoordinates(ObjectNode place, String spec) {
+		String[] parts = spec.split("::");
+		String[] latlon = parts[parts.length - 1].split(",");
+		ObjectNode coordinates = place.putObject("coordinates");
+		coordinates.put("lat", Double.parseDouble(latlon[0].trim()));
+		coordinates.put("lng", Double.parseDouble(latlon[1].trim()));
+		if (parts.length > 1) {
+			place.put("name", parts[0]);
+		}
+	}
+
+	/**
+	 * Reads the call counters of the replay server.
+	 * @param reset if true then reset the counters.
+	 * @return the counters, or null if there is no replay server.
+	 */
+	private Map<String, Long> readStubCounters(boolean reset) throws IOException, InterruptedException {
+		if (stubUrl == null) {
+			return null;
+		}
+		HttpRequest.Builder rb = HttpRequest.newBuilder(URI.create(stubUrl + ReplayServer.STATS_PATH));
+		rb = reset ? rb.POST(HttpRequest.BodyPublishers.noBody()) : rb.GET();
+		HttpResponse<byte[]> response = client.send(rb.build(), HttpResponse.BodyHandlers.ofByteArray());
+		if (response.statusCode() != 200) {
+			throw new IllegalStateException("Cannot read the counters of the replay server: " + response.statusCode());
+		}
+		return mapper.readValue(response.body(), new TypeReference<Map<String, Long>>() {});
+	}
+
+	private static void report(LatencyStats stats, int duration, Map<String, Long> stubCounters) {
+		int count = stats.getCount();
+		System.out.println();
+		System.out.println(String.format("Searches:   %d ok, %d errors", count, stats.getErrors()));
+		System.out.println(String.format("Throughput: %.1f searches/s", count / (double) duration));
+		System.out.println(String.format("Latency:    p50 %d ms, p95 %d ms, p99 %d ms, max %d ms",
+				toMillis(stats.getPercentile(50)), toMillis(stats.getPercentile(95)),
+				toMillis(stats.getPercentile(99)), toMillis(stats.getMax())));
+		if (stubCounters != null) {
+			// The counters include the calls of failed searches
+			int searches = Math.max(count + stats.getErrors(), 1);
+			long otpCalls = stubCounters.getOrDefault(ReplayServer.OTP_PLAN, 0L) + stubCounters.getOrDefault(ReplayServer.OTP_GRAPHQL, 0L);
+			long hereCalls = stubCounters.getOrDefault(ReplayServer.HERE_REVGEOCODE, 0L) + stubCounters.getOrDefault(ReplayServer.HERE_AUTOSUGGEST, 0L);
+			System.out.println(String.format("OTP calls:  %.2f per search (plan %d, graphql %d)", otpCalls / (double) searches,
+					stubCounters.getOrDefault(ReplayServer.OTP_PLAN, 0L), stubCounters.getOrDefault(ReplayServer.OTP_GRAPHQL, 0L)));
+			System.out.println(String.format("HERE calls: %.2f per search", hereCalls / (double) searches));
+			new TreeMap<>(stubCounters).forEach((k, v) -> System.out.println(String.format("\t%-20s %d", k, v)));
+		}
+	}
+
+	private static long toMillis(long nanos) {
+		return TimeUnit.NANOSECONDS.toMillis(nanos);
+	}
+
+	private static String encode(String value) {
+		return URLEncoder.encode(value, StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,306 @@
+package eu.netmobiel.benchmarks.load;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import eu.netmobiel.benchmarks.Fixtures;
+
+/**
+ * Stand-in for OpenTripPlanner and the HERE search services. The server replays the fixture responses with
+ * a configurable latency. The times in a replayed OTP plan are shifted to the requested travel time.
+ * The server counts the calls per service, see /__stats (GET to read, POST to reset).
+ * <p>
+ * Point the platform to the server:
+ * <ul>
+ * <li>java:global/openTripPlanner/apiUrl = http://localhost:8099/otp
+ * <li>java:global/geocode/hereSearchUrl = http://localhost:8099/here
+ * </ul>
+ * Options:
+ * <ul>
+ * <li>--port - the port to listen to, default 8099.
+ * <li>--latency - the minimum latency of each response in milliseconds, default 0.
+ * <li>--jitter - the maximum additional random latency in milliseconds, default 0.
+ * <li>--fixtures - a directory with fixtures, instead of the built-in fixtures.
+ * <li>--otp-transit - the OTP plan replayed for requests with a transit mode.
+ * <li>--otp-car - the OTP plan replayed for all other plan requests.
+ * <li>--record-otp - the base URL of a real OTP (e.g. http://otp.example.com/otp). The plan requests are
+ * 	forwarded and the responses are saved in the fixture directory.
+ * </ul>
+ *
+ * @author Jaap Reitsma
+ *
+ */
+public class ReplayServer {
+	public static final String STATS_PATH = "/__stats";
+	public static final String OTP_PLAN = "otp.plan";
+	public static final String OTP_GRAPHQL = "otp.graphql";
+	public static final String HERE_REVGEOCODE = "here.revgeocode";
+	public static final String HERE_AUTOSUGGEST = "here.autosuggest";
+
+	private static final Set<String> TRANSIT_MODES = Set.of("TRANSIT", "RAIL", "BUS", "TRAM", "SUBWAY", "FERRY", "CABLE_CAR", "GONDOLA", "FUNICULAR");
+	private static final Set<String> TIME_FIELDS = Set.of("date", "startTime", "endTime", "arrival", "departure");
+	private static final Pattern GRAPHQL_FIELD = Pattern.compile("\\{\\s*(\\w+)");
+
+	private final ObjectMapper mapper = new ObjectMapper();
+	private final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+	private final Map<String, byte[]> fixtureCache = new ConcurrentHashMap<>();
+	private final AtomicInteger recordingSequence = new AtomicInteger();
+	private final HttpClient upstreamClient = HttpClient.newHttpClient();
+
+	private final int latency;
+	private final int jitter;
+	private final Path fixtureDirectory;
+	private final String otpTransitFixture;
+	private final String otpCarFixture;
+	private final String recordOtpUrl;
+	private HttpServer server;
+
+	public ReplayServer(int latency, int jitter, Path fixtureDirectory, String otpTransitFixture, String otpCarFixture, String recordOtpUrl) {
+		this.latency = latency;
+		this.jitter = jitter;
+		this.fixtureDirectory = fixtureDirectory;
+		this.otpTransitFixture = otpTransitFixture;
+		this.otpCarFixture = otpCarFixture;
+		this.recordOtpUrl = recordOtpUrl;
+		if (recordOtpUrl != null && fixtureDirectory == null) {
+			throw new IllegalArgumentException("Recording requires a fixture directory");
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		CommandLine cmd = new CommandLine(args);
+		ReplayServer rs = new ReplayServer(cmd.getInt("latency", 0), cmd.getInt("jitter", 0),
+				cmd.has("fixtures") ? Paths.get(cmd.get("fixtures", null)) : null,
+				cmd.get("otp-transit", Fixtures.OTP_PLAN_TRANSIT),
+				cmd.get("otp-car", Fixtures.OTP_PLAN_CAR),
+				cmd.get("record-otp", null));
+		int port = cmd.getInt("port", 8099);
+		rs.start(port);
+		System.out.println(String.format("Replay server listening on port %d, latency %d + [0, %d] ms", port, rs.latency, rs.jitter));
+	}
+
+	public void start(int port) throws IOException {
+		server = HttpServer.create(new InetSocketAddress(port), 100);
+		// The latency is simulated by sleeping, each request needs its own thread
+		server.setExecutor(Executors.newCachedThreadPool());
+		server.createContext("/", this::handle);
+		server.start();
+	}
+
+	public void stop() {
+		server.stop(0);
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+		try {
+			String path = exchange.getRequestURI().getPath();
+			if (path.equals(STATS_PATH)) {
+				handleStats(exchange);
+				return;
+			}
+			byte[] body;
+			if (path.endsWith("/routers/nl/plan")) {
+				body = replayOtpPlan(exchange);
+			} else if (path.endsWith("/routers/nl/index/graphql")) {
+				body = replayGraphQL(exchange);
+			} else if (path.endsWith("/v1/revgeocode")) {
+				count(HERE_REVGEOCODE);
+				body = readFixture("here/revgeocode.json");
+			} else if (path.endsWith("/v1/autosuggest")) {
+				count(HERE_AUTOSUGGEST);
+				body = readFixture("here/autosuggest.json");
+			} else {
+				count("unknown");
+				send(exchange, 404, ("{ \"message\": \"No stub for " + path + "\" }").getBytes(StandardCharsets.UTF_8));
+				return;
+			}
+			delay();
+			send(exchange, 200, body);
+		} catch (Exception ex) {
+			System.err.println("Error handling " + exchange.getRequestURI() + ": " + ex.toString());
+			send(exchange, 500, ("{ \"message\": \"" + ex.toString().replace('"', '\'') + "\" }").getBytes(StandardCharsets.UTF_8));
+		} finally {
+			exchange.close();
+		}
+	}
+
+	private void handleStats(HttpExchange exchange) throws IOException {
+		if ("POST".equals(exchange.getRequestMethod())) {
+			counters.clear();
+		}
+		Map<String, Long> stats = new TreeMap<>();
+		counters.forEach((k, v) -> stats.put(k, v.sum()));
+		send(exchange, 200, mapper.writeValueAsBytes(stats));
+	}
+
+	private byte[] replayOtpPlan(HttpExchange exchange) throws IOException, InterruptedException {
+		count(OTP_PLAN);
+		Map<String, String> params = parseQuery(exchange.getRequestURI().getRawQuery());
+		if (recordOtpUrl != null) {
+			return recordOtpPlan(exchange, params);
+		}
+		boolean transit = Stream.of(params.getOrDefault("mode", "").split(","))
+				.anyMatch(TRANSIT_MODES::contains);
+		JsonNode response = mapper.readTree(readOtpFixture(transit ? otpTransitFixture : otpCarFixture));
+		shiftToTravelTime(response, params);
+		return mapper.writeValueAsBytes(response);
+	}
+
+	private byte[] recordOtpPlan(HttpExchange exchange, Map<String, String> params) throws IOException, InterruptedException {
+		URI uri = URI.create(recordOtpUrl + "/routers/nl/plan?" + exchange.getRequestURI().getRawQuery());
+		HttpResponse<byte[]> response = upstreamClient.send(HttpRequest.newBuilder(uri).GET().build(), HttpResponse.BodyHandlers.ofByteArray());
+		String name = String.format("recorded-%s-%03d.json",
+				params.getOrDefault("mode", "none").toLowerCase().replace(',', '-'), recordingSequence.incrementAndGet());
+		Files.write(fixtureDirectory.resolve(name), response.body());
+		System.out.println("Recorded " + name);
+		return response.body();
+	}
+
+	private byte[] replayGraphQL(HttpExchange exchange) throws IOException {
+		count(OTP_GRAPHQL);
+		String query;
+		try (InputStream is = exchange.getRequestBody()) {
+			query = mapper.readTree(is).path("query").asText();
+		}
+		Matcher m = GRAPHQL_FIELD.matcher(query);
+		String field = m.find() ? m.group(1) : "unknown";
+		try {
+			return readFixture("otp/graphql-" + field + ".json");
+		} catch (IllegalArgumentException ex) {
+			// No fixture, reply with an empty list
+			ObjectNode result = mapper.createObjectNode();
+			result.putObject("data").putArray(field);
+			return mapper.writeValueAsBytes(result);
+		}
+	}
+
+	/**
+	 * Shifts all times in the plan such that the first itinerary departs at the travel time (or the last
+	 * arrives at the travel time, if arriveBy is set). The OTP client passes the local time in the
+	 * default time zone, the server is assumed to be in the same time zone.
+	 */
+	private static void shiftToTravelTime(JsonNode response, Map<String, String> params) {
+		JsonNode itineraries = response.path("plan").path("itineraries");
+		if (!itineraries.isArray() || itineraries.size() == 0 || !params.containsKey("date") || !params.containsKey("time")) {
+			return;
+		}
+		Instant travelTime = LocalDate.parse(params.get("date"))
+				.atTime(LocalTime.parse(params.get("time")))
+				.atZone(ZoneId.systemDefault())
+				.toInstant();
+		boolean arriveBy = Boolean.parseBoolean(params.get("arriveBy"));
+		long reference = arriveBy ? Long.MIN_VALUE : Long.MAX_VALUE;
+		for (JsonNode it : itineraries) {
+			reference = arriveBy ? Math.max(reference, it.path("endTime").asLong()) : Math.min(reference, it.path("startTime").asLong());
+		}
+		shiftTimes(response, travelTime.toEpochMilli() - reference);
+	}
+
+	private static void shiftTimes(JsonNode node, long delta) {
+		if (node.isObject()) {
+			ObjectNode obj = (ObjectNode) node;
+			for (Iterator<Map.Entry<String, JsonNode>> it = obj.fields(); it.hasNext(); ) {
+				Map.Entry<String, JsonNode> field = it.next();
+				if (TIME_FIELDS.contains(field.getKey()) && field.getValue().isIntegralNumber()) {
+					field.setValue(obj.numberNode(field.getValue().asLong() + delta));
+				} else {
+					shiftTimes(field.getValue(), delta);
+				}
+			}
+		} else if (node.isArray()) {
+			node.forEach(child -> shiftTimes(child, delta));
+		}
+	}
+
+	private byte[] readOtpFixture(String name) {
+		return readFixture("otp/" + name);
+	}
+
+	/**
+	 * Reads a fixture from the fixture directory (without the subdirectory) or else from the built-in fixtures.
+	 */
+	private byte[] readFixture(String name) {
+		return fixtureCache.computeIfAbsent(name, n -> {
+			if (fixtureDirectory != null) {
+				Path file = fixtureDirectory.resolve(Paths.get(n).getFileName());
+				if (Files.exists(file)) {
+					try {
+						return Files.readAllBytes(file);
+					} catch (IOException ex) {
+						throw new IllegalStateException("Cannot read " + file, ex);
+					}
+				}
+			}
+			return Fixtures.readResource("/fixtures/" + n);
+		});
+	}
+
+	private void delay() throws InterruptedException {
+		int ms = latency + (jitter > 0 ? ThreadLocalRandom.current().nextInt(jitter + 1) : 0);
+		if (ms > 0) {
+			Thread.sleep(ms);
+		}
+	}
+
+	private void count(String counter) {
+		counters.computeIfAbsent(counter, k -> new LongAdder()).increment();
+	}
+
+	private static void send(HttpExchange exchange, int status, byte[] body) throws IOException {
+		exchange.getResponseHeaders().set("Content-Type", "application/json");
+		exchange.sendResponseHeaders(status, body.length);
+		try (OutputStream os = exchange.getResponseBody()) {
+			os.write(body);
+		}
+	}
+
+	private static Map<String, String> parseQuery(String rawQuery) {
+		Map<String, String> params = new HashMap<>();
+		if (rawQuery != null) {
+			// Repeated parameters (intermediatePlaces) are not needed, the last one wins
+			params.putAll(Stream.of(rawQuery.split("&"))
+					.filter(p -> !p.isEmpty())
+					.map(p -> p.split("=", 2))
+					.collect(Collectors.toMap(
+							p -> URLDecoder.decode(p[0], StandardCharsets.UTF_8),
+							p -> p.length > 1 ? URLDecoder.decode(p[1], StandardCharsets.UTF_8) : "",
+							(a, b) -> b)));
+		}
+		return params;
+	}
+}
@@ -0,0 +1,60 @@
+package eu.netmobiel.benchmarks;
+
+import static org.junit.Assert.*;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class BaselineTest {
+
+	@Test
+	public void testCreateKey() {
+		assertEquals("a.B.c/thrpt", Baseline.createKey("a.B.c", "thrpt", Collections.emptyMap()));
+		assertEquals("a.B.c/avgt/n-1/points-100", Baseline.createKey("a.B.c", "avgt", Map.of("points", "100", "n", "1")));
+	}
+
+	@Test
+	public void testThroughputRegression() {
+		Baseline baseline = new Baseline();
+		baseline.setScore("x", 1000.0);
+		assertFalse(baseline.compare("x", 950.0, true).isRegression(0.1));
+		assertTrue(baseline.compare("x", 850.0, true).isRegression(0.1));
+		assertFalse(baseline.compare("x", 2000.0, true).isRegression(0.1));
+		assertEquals(-0.15, baseline.compare("x", 850.0, true).getChange(), 1e-9);
+	}
+
+	@Test
+	public void testAverageTimeRegression() {
+		Baseline baseline = new Baseline();
+		baseline.setScore("x", 100.0);
+		assertFalse(baseline.compare("x", 90.0, false).isRegression(0.1));
+		assertTrue(baseline.compare("x", 120.0, false).isRegression(0.1));
+	}
+
+	@Test
+	public void testNewBenchmark() {
+		Baseline baseline = new Baseline();
+		Baseline.Comparison cmp = baseline.compare("x", 100.0, true);
+		assertNull(cmp.getChange());
+		assertFalse(cmp.isRegression(0.1));
+	}
+
+	@Test
+	public void testSaveAndLoad() throws Exception {
+		Path file = Files.createTempFile("baseline", ".properties");
+		try {
+			Baseline baseline = new Baseline();
+			baseline.setScore("eu.netmobiel.benchmarks.PolylineEncoderBenchmark.concat/thrpt/points-100", 1234.5);
+			baseline.save(file);
+			Baseline loaded = Baseline.load(file);
+			assertEquals(1234.5, loaded.getScore("eu.netmobiel.benchmarks.PolylineEncoderBenchmark.concat/thrpt/points-100").get(), 1e-9);
+			assertTrue(Baseline.load(file.resolveSibling("does-not-exist.properties")).isEmpty());
+		} finally {
+			Files.delete(file);
+		}
+	}
+}
@@ -0,0 +1,38 @@
+package eu.netmobiel.benchmarks.load;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class LatencyStatsTest {
+
+	@Test
+	public void testPercentiles() {
+		LatencyStats stats = new LatencyStats();
+		// Record in reverse order, the percentiles must not depend on the order
+		for (int i = 2000; i >= 1; i--) {
+			stats.record(i);
+		}
+		assertEquals(2000, stats.getCount());
+		assertEquals(1000, stats.getPercentile(50));
+		assertEquals(1900, stats.getPercentile(95));
+		assertEquals(1980, stats.getPercentile(99));
+		assertEquals(2000, stats.getMax());
+		assertEquals(1, stats.getPercentile(0.01));
+	}
+
+	@Test
+	public void testEmpty() {
+		LatencyStats stats = new LatencyStats();
+		stats.recordError();
+		assertEquals(0, stats.getCount());
+		assertEquals(1, stats.getErrors());
+		assertEquals(0, stats.getPercentile(99));
+		assertEquals(0, stats.getMax());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidPercentile() {
+		new LatencyStats().getPercentile(0);
+	}
+}
@@ -0,0 +1,62 @@
+package eu.netmobiel.commons.cache;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Publishes the metrics of a cache through JMX as a {@link ReferenceDataCacheMXBean}. The name of the cache
+ * must be unique within the application server, the deployments share the platform MBean server.
+ *
+ * @author Jaap Reitsma
+ *
+ */
+public final class CacheMBeanSupport {
+	private static final Logger log = LoggerFactory.getLogger(CacheMBeanSupport.class);
+	public static final String MBEAN_DOMAIN = "eu.netmobiel";
+
+	private CacheMBeanSupport() {
+		// No instances
+	}
+
+	/**
+	 * Registers the management interface of a cache. An MBean with the same name is replaced,
+	 * it is a left-over of a previous deployment.
+	 * @param cache the cache.
+	 * @return the object name of the MBean or null if the registration failed.
+	 */
+	public static ObjectName register(ReferenceDataCacheMXBean cache) {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName on = ObjectName.getInstance(String.format("%s:type=ReferenceDataCache,name=%s", MBEAN_DOMAIN, ObjectName.quote(cache.getName())));
+			if (server.isRegistered(on)) {
+				server.unregisterMBean(on);
+			}
+			server.registerMBean(cache, on);
+			return on;
+		} catch (JMException ex) {
+			log.warn(String.format("Cannot register the metrics of cache %s: %s", cache.getName(), ex.toString()));
+			return null;
+		}
+	}
+
+	/**
+	 * Removes the management interface of a cache.
+	 * @param objectName the object name returned by {@link #register(ReferenceDataCacheMXBean)}. If null, nothing happens.
+	 */
+	public static void unregister(ObjectName objectName) {
+		if (objectName == null) {
+			return;
+		}
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+		} catch (JMException ex) {
+			log.warn(String.format("Cannot unregister the metrics of %s: %s", objectName, ex.toString()));
+		}
+	}
+}
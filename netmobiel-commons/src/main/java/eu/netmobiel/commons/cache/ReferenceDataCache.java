@@ -0,0 +1,209 @@
+package eu.netmobiel.commons.cache;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Read-through cache of slowly changing reference data, e.g. incentives, transport operators or transit hubs.
+ * An entry expires after the time-to-live. The owner of the cache invalidates the entries explicitly 
+ * when it knows the reference data has changed. The cache is bounded: when full, the expired entries are removed 
+ * first, then the entry expiring first.
+ * 
+ * The values are loaded outside any lock. Concurrent misses for the same key may load the value more than once, 
+ * acceptable for reference data. A value loaded while the cache was invalidated is not stored. 
+ * A null value is never cached, wrap an absent value in an Optional to cache the absence as well.
+ * The values are shared between the callers, they must not be modified. Entities are detached.
+ * 
+ * The hit and miss counts are published through JMX after calling {@link #registerMBean()}.
+ * 
+ * This class is thread-safe.
+ *
+ * @author Jaap Reitsma
+ *
+ */
+public class ReferenceDataCache<K, V> implements ReferenceDataCacheMXBean {
+	private static final Logger log = LoggerFactory.getLogger(ReferenceDataCache.class);
+
+	private static class Entry<V> {
+		private final V value;
+		private final Instant expirationTime;
+
+		public Entry(V value, Instant expirationTime) {
+			this.value = value;
+			this.expirationTime = expirationTime;
+		}
+	}
+
+	private final String name;
+	private final Duration timeToLive;
+	private final int maxEntries;
+	private final Clock clock;
+	private final Map<K, Entry<V>> entries = new ConcurrentHashMap<>();
+	/**
+	 * The generation is incremented with each invalidation, to discard the values loaded in the meantime.
+	 */
+	private final AtomicLong generation = new AtomicLong();
+	private final AtomicLong hitCount = new AtomicLong();
+	private final AtomicLong missCount = new AtomicLong();
+	private final AtomicLong evictionCount = new AtomicLong();
+	private final AtomicLong invalidationCount = new AtomicLong();
+	private ObjectName objectName;
+
+	/**
+	 * Creates a cache.
+	 * @param name the name of the cache, used for the metrics.
+	 * @param timeToLive the maximum age of an entry.
+	 * @param maxEntries the maximum number of entries.
+	 */
+	public ReferenceDataCache(String name, Duration timeToLive, int maxEntries) {
+		this(name, timeToLive, maxEntries, Clock.systemUTC());
+	}
+
+	ReferenceDataCache(String name, Duration timeToLive, int maxEntries, Clock clock) {
+		if (maxEntries < 1) {
+			throw new IllegalArgumentException("maxEntries must be positive");
+		}
+		this.name = name;
+		this.timeToLive = timeToLive;
+		this.maxEntries = maxEntries;
+		this.clock = clock;
+	}
+
+	/**
+	 * Retrieves the value of a key. If the value is not cached or expired, the value is loaded and cached.
+	 * @param key the key.
+	 * @param loader the function to load the value of the key.
+	 * @return the value, possibly null if the loader returned null.
+	 */
+	public V get(K key, Function<K, V> loader) {
+		Instant now = clock.instant();
+		Entry<V> entry = entries.get(key);
+		if (entry != null && now.isBefore(entry.expirationTime)) {
+			hitCount.incrementAndGet();
+			return entry.value;
+		}
+		missCount.incrementAndGet();
+		long gen = generation.get();
+		V value = loader.apply(key);
+		if (value != null) {
+			if (entries.size() >= maxEntries && !entries.containsKey(key)) {
+				evict(now);
+			}
+			entries.put(key, new Entry<>(value, now.plus(timeToLive)));
+			if (generation.get() != gen) {
+				// Invalidated while loading, the value might be stale already
+				entries.remove(key);
+			}
+		}
+		return value;
+	}
+
+	private void evict(Instant now) {
+		int size = entries.size();
+		entries.values().removeIf(e -> !now.isBefore(e.expirationTime));
+		if (entries.size() >= maxEntries) {
+			entries.entrySet().stream()
+				.min(Comparator.comparing(e -> e.getValue().expirationTime))
+				.ifPresent(e -> entries.remove(e.getKey()));
+		}
+		evictionCount.addAndGet(Math.max(0, size - entries.size()));
+	}
+
+	/**
+	 * Removes the entry of a key.
+	 * @param key the key.
+	 */
+	public void invalidate(K key) {
+		generation.incrementAndGet();
+		invalidationCount.incrementAndGet();
+		entries.remove(key);
+	}
+
+	/**
+	 * Removes all entries.
+	 */
+	@Override
+	public void invalidateAll() {
+		generation.incrementAndGet();
+		invalidationCount.incrementAndGet();
+		entries.clear();
+		if (log.isDebugEnabled()) {
+			log.debug(String.format("Reference data cache %s is invalidated", name));
+		}
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	@Override
+	public long getTimeToLiveSeconds() {
+		return timeToLive.getSeconds();
+	}
+
+	@Override
+	public int getSize() {
+		return entries.size();
+	}
+
+	@Override
+	public long getHitCount() {
+		return hitCount.get();
+	}
+
+	@Override
+	public long getMissCount() {
+		return missCount.get();
+	}
+
+	@Override
+	public long getEvictionCount() {
+		return evictionCount.get();
+	}
+
+	@Override
+	public long getInvalidationCount() {
+		return invalidationCount.get();
+	}
+
+	@Override
+	public double getHitRatio() {
+		long hits = hitCount.get();
+		long total = hits + missCount.get();
+		return total == 0 ? 0.0 : (double) hits / total;
+	}
+
+	/**
+	 * Publishes the metrics of the cache through JMX. Call {@link #unregisterMBean()} when the owner of the cache 
+	 * is destroyed.
+	 */
+	public synchronized void registerMBean() {
+		objectName = CacheMBeanSupport.register(this);
+	}
+
+	/**
+	 * Removes the metrics of the cache from JMX.
+	 */
+	public synchronized void unregisterMBean() {
+		CacheMBeanSupport.unregister(objectName);
+		objectName = null;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("ReferenceDataCache %s [size %d, hits %d, misses %d, hit ratio %.2f]", 
+				name, getSize(), getHitCount(), getMissCount(), getHitRatio());
+	}
+}
@@ -0,0 +1,20 @@
+package eu.netmobiel.commons.cache;
+
+/**
+ * The management interface of a reference data cache. The cache statistics are published through JMX 
+ * under the object name 'eu.netmobiel:type=ReferenceDataCache,name=&lt;cache name&gt;'.
+ * 
+ * @author Jaap Reitsma
+ *
+ */
+public interface ReferenceDataCacheMXBean {
+	String getName();
+	long getTimeToLiveSeconds();
+	int getSize();
+	long getHitCount();
+	long getMissCount();
+	long getEvictionCount();
+	long getInvalidationCount();
+	double getHitRatio();
+	void invalidateAll();
+}
@@ -0,0 +1,58 @@
+package eu.netmobiel.commons.event;
+
+import java.io.Serializable;
+import java.time.Instant;
+
+/**
+ * This event is issued by a monitor (the ride or trip state machine) when the wake-up time of an object changes.
+ * The monitor observes its own events after a successful commit and only then updates its timer registry,
+ * so a rolled back transaction leaves the registry untouched.
+ *
+ * @author Jaap Reitsma
+ *
+ */
+public class MonitorWakeupEvent implements Serializable {
+	private static final long serialVersionUID = -6385462079452118120L;
+
+	/**
+	 * The name of the monitor that issued the event.
+	 */
+	private String monitor;
+
+	/**
+	 * The id of the monitored object.
+	 */
+	private Long objectId;
+
+	/**
+	 * The new wake-up time. If null then the wake-up is cancelled.
+	 */
+	private Instant wakeupTime;
+
+	public MonitorWakeupEvent(String aMonitor, Long anObjectId, Instant aWakeupTime) {
+		this.monitor = aMonitor;
+		this.objectId = anObjectId;
+		this.wakeupTime = aWakeupTime;
+	}
+
+	public String getMonitor() {
+		return monitor;
+	}
+
+	public Long getObjectId() {
+		return objectId;
+	}
+
+	public Instant getWakeupTime() {
+		return wakeupTime;
+	}
+
+	public boolean isCancel() {
+		return wakeupTime == null;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("MonitorWakeupEvent [%s %s %s]", monitor, objectId, wakeupTime);
+	}
+}
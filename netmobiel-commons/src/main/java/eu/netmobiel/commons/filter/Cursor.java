@@ -11,6 +11,14 @@ import eu.netmobiel.commons.exception.BadRequestException;
 public class Cursor {
 	private Integer maxResults;
 	private Integer offset;
+	/**
+	 * The opaque continuation token as returned with the previous page. If set, keyset pagination is used.
+	 */
+	private String after;
+	/**
+	 * The decoded continuation token. Only available after validation.
+	 */
+	private KeysetToken keyset;
 	public static final Cursor COUNTING_CURSOR = new Cursor(0, 0);
 	public static final int MAX_RESULTS = 100;
 	
@@ -23,6 +31,11 @@ public class Cursor {
 		this.offset = anOffset;
 	}
 	
+	public Cursor(Integer aMaxResult, Integer anOffset, String anAfter) {
+		this(aMaxResult, anOffset);
+		this.after = anAfter;
+	}
+	
 	public void validate(Integer defaultMaxResults, Integer defaultOffset) throws BadRequestException {
     	if (maxResults != null && maxResults > 100) {
     		throw new BadRequestException("Constraint violation: 'maxResults' <= 100.");
@@ -39,6 +52,10 @@ public class Cursor {
         if (offset == null) {
         	offset = defaultOffset;
         }
+        if (after != null && !after.isBlank()) {
+        	keyset = KeysetToken.decode(after);
+        	offset = keyset.getOffset();
+        }
 	}
 
 	public Integer getMaxResults() {
@@ -49,6 +66,14 @@ public class Cursor {
 		return offset;
 	}
 	
+	public String getAfter() {
+		return after;
+	}
+
+	public KeysetToken getKeyset() {
+		return keyset;
+	}
+
 	public boolean isCountingQuery() {
 		return maxResults == 0;
 	}
@@ -56,9 +81,9 @@ public class Cursor {
 	public void next() {
 		this.offset += this.maxResults;
 	}
-	
+
 	@Override
 	public String toString() {
-		return String.format("Cursor [%s %s]", maxResults, offset);
+		return String.format("Cursor [%s %s%s]", maxResults, offset, after != null ? " " + after : "");
 	}
 }
@@ -0,0 +1,93 @@
+package eu.netmobiel.commons.filter;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Base64;
+
+import eu.netmobiel.commons.exception.BadRequestException;
+
+/**
+ * The continuation token for keyset (seek) pagination. The token contains the sort key of the last row of a page,
+ * the offset of the next page and the total count of the result set, if known. The client sees only
+ * an opaque string, the token is valid for the same query only.
+ *
+ * @author Jaap Reitsma
+ *
+ */
+public class KeysetToken {
+	private static final String VERSION = "k1";
+	/**
+	 * The value of the sort expression of the last row.
+	 */
+	private Instant sortValue;
+	/**
+	 * The primary key of the last row, used to break ties in the sort value.
+	 */
+	private Long id;
+	/**
+	 * The offset of the next page. Informational only.
+	 */
+	private int offset;
+	/**
+	 * The total count of the result set as determined by the first page.
+	 */
+	private Long totalCount;
+
+	public KeysetToken(Instant aSortValue, Long anId, int anOffset, Long aTotalCount) {
+		this.sortValue = aSortValue;
+		this.id = anId;
+		this.offset = anOffset;
+		this.totalCount = aTotalCount;
+	}
+
+	/**
+	 * Encodes the token into a URL-safe opaque string.
+	 * @return the encoded token.
+	 */
+	public String encode() {
+		String s = String.join(":", VERSION, Long.toString(sortValue.getEpochSecond()), Integer.toString(sortValue.getNano()),
+				id.toString(), Integer.toString(offset), totalCount != null ? totalCount.toString() : "");
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(s.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Decodes a token.
+	 * @param token the encoded token.
+	 * @return the token object.
+	 * @throws BadRequestException if the token is not valid.
+	 */
+	public static KeysetToken decode(String token) throws BadRequestException {
+		try {
+			String s = new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8);
+			String[] parts = s.split(":", -1);
+			if (parts.length != 6 || !VERSION.equals(parts[0])) {
+				throw new IllegalArgumentException("Unknown format");
+			}
+			return new KeysetToken(Instant.ofEpochSecond(Long.parseLong(parts[1]), Long.parseLong(parts[2])),
+					Long.valueOf(parts[3]), Integer.parseInt(parts[4]), parts[5].isEmpty() ? null : Long.valueOf(parts[5]));
+		} catch (IllegalArgumentException ex) {
+			throw new BadRequestException("Invalid continuation token: " + token);
+		}
+	}
+
+	public Instant getSortValue() {
+		return sortValue;
+	}
+
+	public Long getId() {
+		return id;
+	}
+
+	public int getOffset() {
+		return offset;
+	}
+
+	public Long getTotalCount() {
+		return totalCount;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("KeysetToken [%s %s %s %s]", sortValue, id, offset, totalCount);
+	}
+}
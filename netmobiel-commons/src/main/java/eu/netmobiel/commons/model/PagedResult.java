@@ -22,6 +22,11 @@ public class PagedResult<T> {
 	 * The zero-based offset in the result set. 
 	 */
 	private int offset;
+	/**
+	 * The opaque continuation token to retrieve the next page. Null if there is no next page or when 
+	 * keyset pagination is not supported by the query. 
+	 */
+	private String next;
 	
 	public PagedResult() {
 		this(null, 0, 0, 0L);
@@ -65,4 +70,12 @@ public class PagedResult<T> {
 	public void setOffset(int offset) {
 		this.offset = offset;
 	}
+
+	public String getNext() {
+		return next;
+	}
+
+	public void setNext(String next) {
+		this.next = next;
+	}
 }
@@ -0,0 +1,87 @@
+package eu.netmobiel.commons.report;
+
+import java.time.Instant;
+import java.time.YearMonth;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BinaryOperator;
+
+/**
+ * Helper for the incremental aggregation of the monthly report counts. The counts of a month are calculated once 
+ * and stored in the report aggregate table of the service when the month is settled, i.e. when the month has ended
+ * and the state of the objects of that month is not expected to change anymore (for example a trip can still be 
+ * confirmed after departure). The months that are not settled yet are calculated from the source tables on 
+ * each report run.
+ * 
+ * The tables (in each service schema using the aggregation):
+ * <pre>
+ * report_aggregate        query_name, period (first day of the month), managed_identity, modality, year, month, count
+ * report_aggregate_period query_name, period, aggregated_time
+ * </pre>
+ * A period is aggregated when it is listed in the period table, even if there are no counts. 
+ * 
+ * The months of the aggregates are determined in the time zone of the report (java:global/report/timeZone), 
+ * the report queries label the values with the month in UTC. At the boundary of a month, the values of 
+ * a single label can therefore come from two adjacent periods. The values are merged by key before use.
+ * 
+ * @author Jaap Reitsma
+ *
+ */
+public class ReportAggregation {
+	/**
+	 * The number of months after the end of a month before a month is considered settled.
+	 */
+	public static final int SETTLE_MONTHS = 1;
+	/**
+	 * The number of settled months to aggregate when looking for missing aggregates.
+	 */
+	public static final int LOOKBACK_MONTHS = 36;
+
+	private ReportAggregation() {
+		// No instances
+	}
+
+	/**
+	 * Returns the last month that is settled. 
+	 * @param now the reference time.
+	 * @param zone the time zone of the report.
+	 * @return the last settled month.
+	 */
+	public static YearMonth lastSettledPeriod(Instant now, ZoneId zone) {
+		return YearMonth.from(now.atZone(zone)).minusMonths(SETTLE_MONTHS + 1L);
+	}
+
+	/**
+	 * Returns the settled months that are candidates for aggregation, the oldest first.
+	 * @param now the reference time.
+	 * @param zone the time zone of the report.
+	 * @return a list of LOOKBACK_MONTHS months, the last one is the last settled month. 
+	 */
+	public static List<YearMonth> settledPeriods(Instant now, ZoneId zone) {
+		YearMonth last = lastSettledPeriod(now, zone);
+		List<YearMonth> periods = new ArrayList<>();
+		for (YearMonth p = last.minusMonths(LOOKBACK_MONTHS - 1L); !p.isAfter(last); p = p.plusMonths(1)) {
+			periods.add(p);
+		}
+		return periods;
+	}
+
+	/**
+	 * Merges the report values with the same key into a single value. The report is sorted by key.
+	 * @param <V> the type of report value.
+	 * @param values the report values, possibly with duplicate keys. The values may be modified.
+	 * @param sum the function to add the second value to the first, returns the first.
+	 * @return the merged report values, a single value per key.
+	 */
+	public static <V extends ReportPeriodKey> List<V> mergeByKey(List<V> values, BinaryOperator<V> sum) {
+		Map<String, V> merged = new LinkedHashMap<>();
+		values.forEach(v -> merged.merge(v.getKey(), v, sum));
+		List<V> results = new ArrayList<>(merged.values());
+		Collections.sort(results);
+		return results;
+	}
+}
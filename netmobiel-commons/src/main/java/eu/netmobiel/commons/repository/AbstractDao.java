@@ -2,6 +2,7 @@ package eu.netmobiel.commons.repository;
 
 
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
@@ -13,17 +14,23 @@ import java.util.stream.Collectors;
 import javax.persistence.EntityGraph;
 import javax.persistence.EntityManager;
 import javax.persistence.PersistenceUnitUtil;
+import javax.persistence.Tuple;
 import javax.persistence.TypedQuery;
 import javax.persistence.criteria.CriteriaBuilder;
 import javax.persistence.criteria.CriteriaQuery;
 import javax.persistence.criteria.Expression;
 import javax.persistence.criteria.Fetch;
 import javax.persistence.criteria.Join;
+import javax.persistence.criteria.Path;
+import javax.persistence.criteria.Predicate;
 import javax.persistence.criteria.Root;
 
 import org.hibernate.jpa.QueryHints;
 
+import eu.netmobiel.commons.filter.Cursor;
+import eu.netmobiel.commons.filter.KeysetToken;
 import eu.netmobiel.commons.model.PagedResult;
+import eu.netmobiel.commons.model.SortDirection;
 import eu.netmobiel.commons.report.ModalityNumericReportValue;
 import eu.netmobiel.commons.report.NumericReportValue;
 
@@ -160,6 +167,73 @@ public abstract class AbstractDao<T, ID> {
 	    return new PagedResult<>(results, maxResults, offset, totalCount);
     }
 
+    /**
+     * Retrieves a page of primary keys using keyset (seek) pagination. The caller prepares the query with the root and 
+     * the predicates, this method adds the sorting, the keyset restriction and the selection. Each row is ordered 
+     * by the sort expression and then by the primary key, to obtain a stable order. The next page starts after the last row
+     * of the previous page, as recorded in the continuation token of the cursor, so a deep page costs the same as the first.
+     * If there is no continuation token, then the plain offset is applied, as before.
+     * The total count is determined only when it is not known yet, i.e. by the first page. The count is carried 
+     * along in the continuation token.
+     * @param cb the criteria builder.
+     * @param cq the tuple query. The query is modified.
+     * @param root the root of the query.
+     * @param predicates the restrictions of the query.
+     * @param sortExpression the expression to sort on. The value must not be null.
+     * @param sortDir the sort direction. Default (null) is ascending.
+     * @param cursor the validated cursor.
+     * @return A page of primary keys with the total count. If there is a next page, then the continuation token is set.
+     * 		The continuation token requires a primary key of type Long.
+     */
+    protected PagedResult<ID> queryKeysetPage(CriteriaBuilder cb, CriteriaQuery<Tuple> cq, Root<T> root, List<Predicate> predicates, 
+    		Expression<Instant> sortExpression, SortDirection sortDir, Cursor cursor) {
+    	Path<ID> idPath = root.get(root.getModel().getDeclaredId(getPrimaryKeyClass()));
+    	KeysetToken after = cursor.getKeyset();
+    	Long totalCount = after != null ? after.getTotalCount() : null;
+    	if (totalCount == null) {
+            cq.where(cb.and(predicates.toArray(new Predicate[predicates.size()])));
+            cq.multiselect(cb.count(idPath));
+            totalCount = getEntityManager().createQuery(cq).getSingleResult().get(0, Long.class);
+    	}
+    	if (cursor.isCountingQuery() || totalCount == 0) {
+    		return new PagedResult<>(Collections.emptyList(), cursor, totalCount);
+    	}
+    	boolean descending = sortDir == SortDirection.DESC;
+    	List<Predicate> pagePredicates = new ArrayList<>(predicates);
+    	if (after != null) {
+        	@SuppressWarnings("unchecked")
+			Path<Long> keyPath = (Path<Long>) idPath;
+    		Predicate beyondSortValue = descending ? cb.lessThan(sortExpression, after.getSortValue()) 
+    				: cb.greaterThan(sortExpression, after.getSortValue()); 
+    		Predicate beyondKey = descending ? cb.lessThan(keyPath, after.getId()) : cb.greaterThan(keyPath, after.getId()); 
+    		pagePredicates.add(cb.or(beyondSortValue, cb.and(cb.equal(sortExpression, after.getSortValue()), beyondKey)));
+    	}
+        cq.where(cb.and(pagePredicates.toArray(new Predicate[pagePredicates.size()])));
+        cq.multiselect(idPath, sortExpression);
+        cq.orderBy(descending ? cb.desc(sortExpression) : cb.asc(sortExpression), descending ? cb.desc(idPath) : cb.asc(idPath));
+        TypedQuery<Tuple> tq = getEntityManager().createQuery(cq);
+        if (after == null) {
+        	tq.setFirstResult(cursor.getOffset());
+        }
+        // Fetch one more to detect whether there is a next page
+		tq.setMaxResults(cursor.getMaxResults() + 1);
+		List<Tuple> rows = tq.getResultList();
+		boolean hasNext = rows.size() > cursor.getMaxResults();
+		if (hasNext) {
+			rows = rows.subList(0, cursor.getMaxResults());
+		}
+		List<ID> results = rows.stream()
+				.map(t -> t.get(0, getPrimaryKeyClass()))
+				.collect(Collectors.toList());
+		PagedResult<ID> page = new PagedResult<>(results, cursor, totalCount);
+		if (hasNext) {
+			Tuple last = rows.get(rows.size() - 1);
+			page.setNext(new KeysetToken(last.get(1, Instant.class), (Long) last.get(0), 
+					cursor.getOffset() + rows.size(), totalCount).encode());
+		}
+		return page;
+    }
+
     /**
      * Given a list of identifiers, return the objects according the graph and the query hint type. 
      * The output list has NOT necessarily the same order as the input list, specify a keyMapper to guarantee the same order.
@@ -0,0 +1,257 @@
+package eu.netmobiel.commons.repository;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.BinaryOperator;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import javax.persistence.EntityManager;
+
+import eu.netmobiel.commons.report.ModalityNumericReportValue;
+import eu.netmobiel.commons.report.NumericReportValue;
+import eu.netmobiel.commons.report.ReportAggregation;
+import eu.netmobiel.commons.report.ReportPeriodKey;
+
+/**
+ * Base class for the DAO of the monthly report aggregates of a service, see {@link ReportAggregation}.
+ * The report counts of the months that are aggregated already are read from the aggregate table, only the other
+ * months are calculated with the named report query. Each service has its own report_aggregate and
+ * report_aggregate_period tables, the subclass of the service only supplies the entity manager of the service.
+ *
+ * @author Jaap Reitsma
+ *
+ */
+public abstract class ReportAggregateDao {
+
+	protected abstract EntityManager getEntityManager();
+
+	/**
+	 * Lists the months that are aggregated for a report query.
+	 * @param queryName the name of the report query.
+	 * @param from the first day of the first month.
+	 * @param until the day after the last month (exclusive).
+	 * @return the first days of the aggregated months.
+	 */
+	public List<LocalDate> listAggregatedReportPeriods(String queryName, LocalDate from, LocalDate until) {
+		@SuppressWarnings("unchecked")
+		List<Object> periods = getEntityManager().createNativeQuery(
+				"select period from report_aggregate_period where query_name = ?1 and period >= ?2 and period < ?3 order by period")
+				.setParameter(1, queryName)
+				.setParameter(2, from)
+				.setParameter(3, until)
+				.getResultList();
+		return periods.stream()
+				.map(p -> p instanceof java.sql.Date ? ((java.sql.Date) p).toLocalDate() : (LocalDate) p)
+				.collect(Collectors.toList());
+	}
+
+	/**
+	 * Reads the stored aggregates of a report query for a range of months.
+	 * @param queryName the name of the report query.
+	 * @param firstPeriod the first day of the first month.
+	 * @param lastPeriod the first day of the last month (inclusive).
+	 * @return the report values. The modality of a value of a report query without modality is an empty string.
+	 */
+	protected List<ModalityNumericReportValue> readAggregates(String queryName, LocalDate firstPeriod, LocalDate lastPeriod) {
+		@SuppressWarnings("unchecked")
+		List<Object[]> rows = getEntityManager().createNativeQuery(
+				"select managed_identity, year, month, count, modality from report_aggregate " +
+				"where query_name = ?1 and period >= ?2 and period <= ?3")
+				.setParameter(1, queryName)
+				.setParameter(2, firstPeriod)
+				.setParameter(3, lastPeriod)
+				.getResultList();
+		return rows.stream()
+				.map(row -> new ModalityNumericReportValue((String) row[0], ((Number) row[1]).intValue(), ((Number) row[2]).intValue(),
+						((Number) row[3]).intValue(), (String) row[4]))
+				.collect(Collectors.toList());
+	}
+
+	/**
+	 * Replaces the stored aggregate of a report query for a single month and marks the month as aggregated.
+	 * @param queryName the name of the report query.
+	 * @param period the first day of the month.
+	 * @param values the report values. The modality of a value of a report query without modality is an empty string.
+	 */
+	protected void writeAggregates(String queryName, LocalDate period, List<ModalityNumericReportValue> values) {
+		EntityManager em = getEntityManager();
+		em.createNativeQuery("delete from report_aggregate where query_name = ?1 and period = ?2")
+			.setParameter(1, queryName)
+			.setParameter(2, period)
+			.executeUpdate();
+		for (ModalityNumericReportValue v : values) {
+			em.createNativeQuery("insert into report_aggregate (query_name, period, managed_identity, modality, year, month, count) " +
+					"values (?1, ?2, ?3, ?4, ?5, ?6, ?7)")
+				.setParameter(1, queryName)
+				.setParameter(2, period)
+				.setParameter(3, v.getManagedIdentity())
+				.setParameter(4, v.getModality())
+				.setParameter(5, v.getYear())
+				.setParameter(6, v.getMonth())
+				.setParameter(7, v.getValue())
+				.executeUpdate();
+		}
+		em.createNativeQuery("insert into report_aggregate_period (query_name, period, aggregated_time) values (?1, ?2, ?3) " +
+				"on conflict (query_name, period) do update set aggregated_time = excluded.aggregated_time")
+			.setParameter(1, queryName)
+			.setParameter(2, period)
+			.setParameter(3, Instant.now())
+			.executeUpdate();
+	}
+
+	/**
+	 * Reports the monthly counts per user like {@link AbstractDao#reportCount(String, Instant, Instant)}, but the months
+	 * that are aggregated already are read from the report aggregate table. Only the other months are calculated
+	 * from the source tables.
+	 * @param queryName the name of the report query.
+	 * @param since the start of the report period.
+	 * @param until the end of the report period (exclusive).
+	 * @param zone the time zone of the report, needed to determine the months.
+	 * @return the report values, a single value per key.
+	 */
+	public List<NumericReportValue> reportAggregatedCount(String queryName, Instant since, Instant until, ZoneId zone) {
+		return reportAggregated(queryName, since, until, zone, (s, u) -> reportCount(queryName, s, u),
+				v -> new NumericReportValue(v.getManagedIdentity(), v.getYear(), v.getMonth(), v.getValue()),
+				(a, b) -> {
+					a.setValue(a.getValue() + b.getValue());
+					return a;
+				});
+	}
+
+	/**
+	 * Reports the monthly counts per user and modality like {@link AbstractDao#reportModalityCount(String, Instant, Instant)},
+	 * but the months that are aggregated already are read from the report aggregate table.
+	 * See {@link #reportAggregatedCount(String, Instant, Instant, ZoneId)}.
+	 * @param queryName the name of the report query.
+	 * @param since the start of the report period.
+	 * @param until the end of the report period (exclusive).
+	 * @param zone the time zone of the report, needed to determine the months.
+	 * @return the report values, a single value per key.
+	 */
+	public List<ModalityNumericReportValue> reportAggregatedModalityCount(String queryName, Instant since, Instant until, ZoneId zone) {
+		return reportAggregated(queryName, since, until, zone, (s, u) -> reportModalityCount(queryName, s, u),
+				Function.identity(),
+				(a, b) -> {
+					a.setValue(a.getValue() + b.getValue());
+					return a;
+				});
+	}
+
+	/**
+	 * Calculates the counts of a report query for a single month and stores them in the report aggregate table.
+	 * An existing aggregate of the month is replaced.
+	 * @param queryName the name of the report query.
+	 * @param period the month.
+	 * @param zone the time zone of the report.
+	 * @param byModality if true then the query is a modality report query.
+	 * @return the number of report values stored.
+	 */
+	public int aggregateReportPeriod(String queryName, YearMonth period, ZoneId zone, boolean byModality) {
+		Instant since = period.atDay(1).atStartOfDay(zone).toInstant();
+		Instant until = period.plusMonths(1).atDay(1).atStartOfDay(zone).toInstant();
+		List<ModalityNumericReportValue> values = byModality ? reportModalityCount(queryName, since, until) :
+			reportCount(queryName, since, until).stream()
+				.map(v -> new ModalityNumericReportValue(v.getManagedIdentity(), v.getYear(), v.getMonth(), v.getValue(), ""))
+				.collect(Collectors.toList());
+		writeAggregates(queryName, period.atDay(1), values);
+		return values.size();
+	}
+
+	/**
+	 * Aggregates the settled months of the report queries that are not aggregated yet. The first run fills
+	 * the aggregates of the whole lookback period, see {@link ReportAggregation#settledPeriods(Instant, ZoneId)}.
+	 * The aggregation of a single month is delegated to the caller, because each month should be aggregated
+	 * in its own transaction: The caller passes a REQUIRES_NEW business method that calls
+	 * {@link #aggregateReportPeriod(String, YearMonth, ZoneId, boolean)}.
+	 * @param queryNames the names of the report queries.
+	 * @param zone the time zone of the report.
+	 * @param periodAggregator the aggregator of a single month of a report query.
+	 * @return the number of months aggregated.
+	 */
+	public int aggregateSettledPeriods(List<String> queryNames, ZoneId zone, BiConsumer<String, YearMonth> periodAggregator) {
+		List<YearMonth> periods = ReportAggregation.settledPeriods(Instant.now(), zone);
+		int count = 0;
+		for (String queryName : queryNames) {
+			Set<LocalDate> aggregated = new HashSet<>(listAggregatedReportPeriods(queryName,
+					periods.get(0).atDay(1), periods.get(periods.size() - 1).plusMonths(1).atDay(1)));
+			for (YearMonth period : periods) {
+				if (!aggregated.contains(period.atDay(1))) {
+					periodAggregator.accept(queryName, period);
+					count++;
+				}
+			}
+		}
+		return count;
+	}
+
+	protected List<NumericReportValue> reportCount(String queryName, Instant since, Instant until) {
+		return getEntityManager().createNamedQuery(queryName, NumericReportValue.class)
+				.setParameter(1, since)
+				.setParameter(2, until)
+				.getResultList();
+	}
+
+	protected List<ModalityNumericReportValue> reportModalityCount(String queryName, Instant since, Instant until) {
+		return getEntityManager().createNamedQuery(queryName, ModalityNumericReportValue.class)
+				.setParameter(1, since)
+				.setParameter(2, until)
+				.getResultList();
+	}
+
+	/**
+	 * Collects the report values of a period. The months are determined in the time zone of the report.
+	 * Consecutive months without aggregate are calculated with a single source query. The values of the
+	 * source queries and of the aggregates are merged by key: The queries label the values with the month
+	 * in UTC, which is not necessarily the month of the period the value was collected for.
+	 */
+	private <V extends ReportPeriodKey> List<V> reportAggregated(String queryName, Instant since, Instant until, ZoneId zone,
+			BiFunction<Instant, Instant, List<V>> sourceQuery, Function<ModalityNumericReportValue, V> aggregateMapper,
+			BinaryOperator<V> sum) {
+		ZonedDateTime end = until.atZone(zone);
+		Set<LocalDate> aggregatedPeriods = new HashSet<>(listAggregatedReportPeriods(queryName,
+				since.atZone(zone).toLocalDate().withDayOfMonth(1), end.toLocalDate()));
+		List<V> results = new ArrayList<>();
+		LocalDate firstUsed = null;
+		LocalDate lastUsed = null;
+		// Walk through the months, collect the consecutive months without aggregate into a single source query
+		ZonedDateTime sourceStart = null;
+		ZonedDateTime cursor = since.atZone(zone);
+		while (cursor.isBefore(end)) {
+			ZonedDateTime monthStart = cursor.truncatedTo(ChronoUnit.DAYS).withDayOfMonth(1);
+			ZonedDateTime nextMonth = monthStart.plusMonths(1);
+			boolean wholeMonth = cursor.equals(monthStart) && !nextMonth.isAfter(end);
+			if (wholeMonth && aggregatedPeriods.contains(monthStart.toLocalDate())) {
+				if (sourceStart != null) {
+					results.addAll(sourceQuery.apply(sourceStart.toInstant(), cursor.toInstant()));
+					sourceStart = null;
+				}
+				if (firstUsed == null) {
+					firstUsed = monthStart.toLocalDate();
+				}
+				lastUsed = monthStart.toLocalDate();
+			} else if (sourceStart == null) {
+				sourceStart = cursor;
+			}
+			cursor = nextMonth.isAfter(end) ? end : nextMonth;
+		}
+		if (sourceStart != null) {
+			results.addAll(sourceQuery.apply(sourceStart.toInstant(), end.toInstant()));
+		}
+		if (firstUsed != null) {
+			// Only aggregated periods have rows, so all the rows in the range are from used periods
+			readAggregates(queryName, firstUsed, lastUsed).forEach(v -> results.add(aggregateMapper.apply(v)));
+		}
+		return ReportAggregation.mergeByKey(results, sum);
+	}
+}
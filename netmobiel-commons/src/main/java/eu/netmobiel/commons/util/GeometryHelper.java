@@ -184,9 +184,7 @@ public class GeometryHelper {
     	if (polyline1 == null || polyline2 == null) {
     		throw new IllegalArgumentException("Polylines cannot be null");
     	}
-    	List<Coordinate> coords = PolylineEncoder.decode(polyline1);
-    	coords.addAll(PolylineEncoder.decode(polyline2));
-    	return PolylineEncoder.createEncodings(coords).getPoints();
+    	return PolylineEncoder.concat(polyline1, polyline2);
     }
 
 }
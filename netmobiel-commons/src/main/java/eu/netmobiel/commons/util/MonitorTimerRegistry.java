@@ -0,0 +1,143 @@
+package eu.netmobiel.commons.util;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Optional;
+import java.util.TreeSet;
+
+/**
+ * Registry of the wake-up times of the objects watched by a monitor (the ride or trip state machines).
+ * Each object (key) has at most a single wake-up time. The wake-ups are kept in a time-ordered queue, so scheduling,
+ * cancelling and collecting the due wake-ups cost O(log n), independent of the number of container timers.
+ *
+ * The registry does not set timers by itself: The monitor uses a single container timer, set at the time of the first
+ * wake-up in the queue. The registry keeps track of that (armed) time to prevent unnecessary timers.
+ * The registry is in-memory only, the monitor must be able to rebuild its content (e.g. after a restart) by
+ * evaluating the state of the objects.
+ *
+ * This class is thread-safe.
+ *
+ * @author Jaap Reitsma
+ *
+ */
+public class MonitorTimerRegistry<K extends Comparable<K>> {
+	/**
+	 * An armed time older than this is considered lost (e.g. the timer was created in a transaction that rolled back).
+	 */
+	private static final Duration ARMED_TIMER_GRACE_PERIOD = Duration.ofMinutes(5);
+
+	private static class Wakeup<K extends Comparable<K>> implements Comparable<Wakeup<K>> {
+		private final Instant time;
+		private final K key;
+
+		public Wakeup(Instant time, K key) {
+			this.time = time;
+			this.key = key;
+		}
+
+		@Override
+		public int compareTo(Wakeup<K> other) {
+			int c = time.compareTo(other.time);
+			return c != 0 ? c : key.compareTo(other.key);
+		}
+	}
+
+	private final Map<K, Wakeup<K>> wakeupsByKey = new HashMap<>();
+	private final NavigableSet<Wakeup<K>> queue = new TreeSet<>();
+	/**
+	 * The expiration time of the container timer, if set.
+	 */
+	private Instant armedTime;
+
+	/**
+	 * Sets or replaces the wake-up time of an object.
+	 * @param key the object key.
+	 * @param time the wake-up time.
+	 */
+	public synchronized void schedule(K key, Instant time) {
+		Wakeup<K> wakeup = new Wakeup<>(time, key);
+		Wakeup<K> old = wakeupsByKey.put(key, wakeup);
+		if (old != null) {
+			queue.remove(old);
+		}
+		queue.add(wakeup);
+	}
+
+	/**
+	 * Removes the wake-up of an object, if any.
+	 * @param key the object key.
+	 * @return true if there was a wake-up.
+	 */
+	public synchronized boolean cancel(K key) {
+		Wakeup<K> old = wakeupsByKey.remove(key);
+		if (old != null) {
+			queue.remove(old);
+		}
+		return old != null;
+	}
+
+	/**
+	 * Returns the wake-up time of an object.
+	 * @param key the object key.
+	 * @return the wake-up time, if any.
+	 */
+	public synchronized Optional<Instant> getWakeupTime(K key) {
+		return Optional.ofNullable(wakeupsByKey.get(key)).map(w -> w.time);
+	}
+
+	/**
+	 * Removes and returns the objects that are due. If the armed timer has expired, the registry is disarmed.
+	 * @param now the current time.
+	 * @return the keys of the due objects, the earliest first.
+	 */
+	public synchronized List<K> pollDue(Instant now) {
+		List<K> dueKeys = new ArrayList<>();
+		while (!queue.isEmpty() && !queue.first().time.isAfter(now)) {
+			Wakeup<K> wakeup = queue.pollFirst();
+			wakeupsByKey.remove(wakeup.key);
+			dueKeys.add(wakeup.key);
+		}
+		if (armedTime != null && !armedTime.isAfter(now)) {
+			armedTime = null;
+		}
+		return dueKeys;
+	}
+
+	/**
+	 * Determines whether the container timer must be (re)set. That is the case if there is no timer yet, if
+	 * the first wake-up is earlier than the timer or if the timer seems lost. If so, the registry is
+	 * marked as armed with the returned time, the caller must set the timer.
+	 * @param now the current time.
+	 * @return the time to set the timer to, or empty if no (new) timer is needed.
+	 */
+	public synchronized Optional<Instant> arm(Instant now) {
+		if (queue.isEmpty()) {
+			return Optional.empty();
+		}
+		Instant first = queue.first().time;
+		if (armedTime == null || first.isBefore(armedTime) || armedTime.isBefore(now.minus(ARMED_TIMER_GRACE_PERIOD))) {
+			armedTime = first;
+			return Optional.of(first);
+		}
+		return Optional.empty();
+	}
+
+	public synchronized int size() {
+		return queue.size();
+	}
+
+	/**
+	 * Lists the wake-ups, for logging purposes.
+	 * @return a list of strings with the key and the time, the earliest first.
+	 */
+	public synchronized List<String> list() {
+		List<String> wakeups = new ArrayList<>();
+		queue.forEach(w -> wakeups.add(String.format("%s %s", w.key, w.time)));
+		return wakeups;
+	}
+}
@@ -2,6 +2,7 @@ package eu.netmobiel.commons.util;
 
 import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
 
@@ -13,23 +14,43 @@ import com.vividsolutions.jts.geom.MultiPoint;
 
 import eu.netmobiel.commons.api.EncodedPolylineBean;
 
+/**
+ * Encoder and decoder of the encoded polyline format (Google, also used by OpenTripPlanner). The coordinates have
+ * a precision of 10<sup>-5</sup> degree. Each point is encoded as the difference with the previous point.
+ * 
+ * The primitive methods ({@link #encode(double[])}, {@link #decodeToArray(String)} and {@link #concat(String, String)})
+ * work in a single pass without intermediate objects per number or coordinate.
+ */
 public class PolylineEncoder {
+	/**
+	 * The maximum number of characters of an encoded 32-bit number.
+	 */
+	private static final int MAX_NUMBER_LENGTH = 7;
 
 	private PolylineEncoder() {
 		// Only static methods.
 	}
 	
     public static EncodedPolylineBean createEncodings(double[] lat, double[] lon) {
-        return createEncodings(new PointAdapterList(lat, lon));
+        return createEncodings(lat, lon, 0, lat.length, -1);
     }
 
     public static EncodedPolylineBean createEncodings(double[] lat, double[] lon, int level) {
-        return createEncodings(new PointAdapterList(lat, lon), level);
+        return createEncodings(lat, lon, 0, lat.length, level);
     }
 
     public static EncodedPolylineBean createEncodings(double[] lat, double[] lon, int offset,
             int length, int level) {
-        return createEncodings(new PointAdapterList(lat, lon, offset, length), level);
+    	String points = encode(lat, lon, offset, length);
+    	String levels = null;
+    	if (level >= 0) {
+    		StringBuilder encodedLevels = new StringBuilder(length * MAX_NUMBER_LENGTH);
+    		for (int i = 0; i < length; i++) {
+    			appendNumber(encodedLevels, level);
+    		}
+    		levels = encodedLevels.toString();
+    	}
+        return new EncodedPolylineBean(points, levels, length);
     }
 
     public static EncodedPolylineBean createEncodings(Collection<Coordinate> points) {
@@ -67,8 +88,8 @@ public class PolylineEncoder {
      */
     public static EncodedPolylineBean createEncodings(Iterable<Coordinate> points, int level) {
 
-        StringBuilder encodedPoints = new StringBuilder();
-        StringBuilder encodedLevels = new StringBuilder();
+        StringBuilder encodedPoints = new StringBuilder(256);
+        StringBuilder encodedLevels = level >= 0 ? new StringBuilder(64) : null;
 
         int plat = 0;
         int plng = 0;
@@ -76,8 +97,8 @@ public class PolylineEncoder {
 
         for (Coordinate point : points) {
 
-            int late5 = floor1e5(point.y);
-            int lnge5 = floor1e5(point.x);
+            int late5 = toE5(point.y);
+            int lnge5 = toE5(point.x);
 
             int dlat = late5 - plat;
             int dlng = lnge5 - plng;
@@ -85,9 +106,10 @@ public class PolylineEncoder {
             plat = late5;
             plng = lnge5;
 
-            encodedPoints.append(encodeSignedNumber(dlat)).append(encodeSignedNumber(dlng));
+            appendSignedNumber(encodedPoints, dlat);
+            appendSignedNumber(encodedPoints, dlng);
             if (level >= 0)
-                encodedLevels.append(encodeNumber(level));
+                appendNumber(encodedLevels, level);
             count++;
         }
 
@@ -101,34 +123,201 @@ public class PolylineEncoder {
     }
     
     public static List<Coordinate> decode(String pointString) {
-        double lat = 0;
-        double lon = 0;
-
-        int strIndex = 0;
-        List<Coordinate> points = new ArrayList<>();
-
-        while (strIndex < pointString.length()) {
+    	double[] latLon = decodeToArray(pointString);
+        List<Coordinate> points = new ArrayList<>(latLon.length / 2);
+        for (int i = 0; i < latLon.length; i += 2) {
+            points.add(new Coordinate(latLon[i + 1], latLon[i]));
+        }
+        return points;
+    }
 
-            int[] rLat = decodeSignedNumberWithIndex(pointString, strIndex);
-            lat = lat + rLat[0] * 1e-5;
-            strIndex = rLat[1];
+    /**
+     * Encodes a sequence of points.
+     * @param latLon the points as pairs of latitude and longitude: lat0, lon0, lat1, lon1, ...
+     * @return the encoded points.
+     */
+    public static String encode(double[] latLon) {
+    	if (latLon.length % 2 != 0) {
+    		throw new IllegalArgumentException("Expected pairs of latitude and longitude");
+    	}
+    	char[] buf = new char[latLon.length * MAX_NUMBER_LENGTH];
+    	int pos = 0;
+    	int plat = 0;
+    	int plng = 0;
+    	for (int i = 0; i < latLon.length; i += 2) {
+    		int late5 = toE5(latLon[i]);
+    		int lnge5 = toE5(latLon[i + 1]);
+    		pos = writeSignedNumber(buf, pos, late5 - plat);
+    		pos = writeSignedNumber(buf, pos, lnge5 - plng);
+    		plat = late5;
+    		plng = lnge5;
+    	}
+    	return new String(buf, 0, pos);
+    }
 
-            int[] rLon = decodeSignedNumberWithIndex(pointString, strIndex);
-            lon = lon + rLon[0] * 1e-5;
-            strIndex = rLon[1];
+    /**
+     * Encodes a sequence of points.
+     * @param lat the latitudes.
+     * @param lon the longitudes.
+     * @param offset the index of the first point to encode.
+     * @param length the number of points to encode.
+     * @return the encoded points.
+     */
+    public static String encode(double[] lat, double[] lon, int offset, int length) {
+    	char[] buf = new char[length * 2 * MAX_NUMBER_LENGTH];
+    	int pos = 0;
+    	int plat = 0;
+    	int plng = 0;
+    	for (int i = offset; i < offset + length; i++) {
+    		int late5 = toE5(lat[i]);
+    		int lnge5 = toE5(lon[i]);
+    		pos = writeSignedNumber(buf, pos, late5 - plat);
+    		pos = writeSignedNumber(buf, pos, lnge5 - plng);
+    		plat = late5;
+    		plng = lnge5;
+    	}
+    	return new String(buf, 0, pos);
+    }
 
-            points.add(new Coordinate(lon, lat));
-        }
+    /**
+     * Decodes the encoded points.
+     * @param pointString the encoded points.
+     * @return the points as pairs of latitude and longitude: lat0, lon0, lat1, lon1, ...
+     */
+    public static double[] decodeToArray(String pointString) {
+    	// Each number takes at least one character
+    	double[] latLon = new double[pointString.length()];
+    	int n = 0;
+    	int lat = 0;
+    	int lon = 0;
+    	int index = 0;
+    	int length = pointString.length();
+    	while (index < length) {
+    		int num = 0;
+    		int shift = 0;
+    		int v;
+    		do {
+    			v = pointString.charAt(index++) - 63;
+    			num |= (v & 0x1f) << shift;
+    			shift += 5;
+    		} while (v >= 0x20);
+    		int delta = (num & 1) != 0 ? ~(num >> 1) : num >> 1;
+    		if ((n & 1) == 0) {
+    			lat += delta;
+    			latLon[n++] = lat / 1e5;
+    		} else {
+    			lon += delta;
+    			latLon[n++] = lon / 1e5;
+    		}
+    	}
+    	if ((n & 1) != 0) {
+    		throw new IllegalArgumentException("Incomplete point in polyline");
+    	}
+    	return Arrays.copyOf(latLon, n);
+    }
 
-        return points;
+    /**
+     * Concatenates two encoded polylines. The points of the first polyline are copied, the first point of the second
+     * polyline is re-encoded relative to the last point of the first polyline, the other points of the 
+     * second polyline are copied as well. The result is exactly the same as the encoding of all points.
+     * @param polyline1 the first polyline.
+     * @param polyline2 the second polyline.
+     * @return the concatenation.
+     */
+    public static String concat(String polyline1, String polyline2) {
+    	if (polyline1.isEmpty()) {
+    		return polyline2;
+    	} else if (polyline2.isEmpty()) {
+    		return polyline1;
+    	}
+    	// Find the absolute value of the last point of the first polyline, summing the deltas  
+    	int lat = 0;
+    	int lon = 0;
+    	int count = 0;
+    	int index = 0;
+    	while (index < polyline1.length()) {
+    		int num = 0;
+    		int shift = 0;
+    		int v;
+    		do {
+    			v = polyline1.charAt(index++) - 63;
+    			num |= (v & 0x1f) << shift;
+    			shift += 5;
+    		} while (v >= 0x20);
+    		int delta = (num & 1) != 0 ? ~(num >> 1) : num >> 1;
+    		if ((count++ & 1) == 0) {
+    			lat += delta;
+    		} else {
+    			lon += delta;
+    		}
+    	}
+    	// The first point of the second polyline is absolute
+    	int[] first = new int[2];
+    	index = 0;
+    	for (int i = 0; i < 2; i++) {
+    		int num = 0;
+    		int shift = 0;
+    		int v;
+    		do {
+    			v = polyline2.charAt(index++) - 63;
+    			num |= (v & 0x1f) << shift;
+    			shift += 5;
+    		} while (v >= 0x20);
+    		first[i] = (num & 1) != 0 ? ~(num >> 1) : num >> 1;
+    	}
+    	char[] buf = new char[polyline1.length() + 2 * MAX_NUMBER_LENGTH + polyline2.length() - index];
+    	polyline1.getChars(0, polyline1.length(), buf, 0);
+    	int pos = polyline1.length();
+    	pos = writeSignedNumber(buf, pos, first[0] - lat);
+    	pos = writeSignedNumber(buf, pos, first[1] - lon);
+    	polyline2.getChars(index, polyline2.length(), buf, pos);
+    	pos += polyline2.length() - index;
+    	return new String(buf, 0, pos);
     }
 
     /*****************************************************************************
      * Private Methods
      ****************************************************************************/
 
-    private static final int floor1e5(double coordinate) {
-        return (int) Math.floor(coordinate * 1e5);
+    /**
+     * Converts a coordinate to the encoded precision. The value is rounded, which makes encoding the decoded value 
+     * yield the same value. 
+     */
+    private static final int toE5(double coordinate) {
+        return (int) Math.round(coordinate * 1e5);
+    }
+
+    private static int writeSignedNumber(char[] buf, int pos, int num) {
+        int sgn_num = num << 1;
+        if (num < 0) {
+            sgn_num = ~(sgn_num);
+        }
+        return writeNumber(buf, pos, sgn_num);
+    }
+
+    private static int writeNumber(char[] buf, int pos, int num) {
+        while (Integer.compareUnsigned(num, 0x20) >= 0) {
+            buf[pos++] = (char) ((0x20 | (num & 0x1f)) + 63);
+            num >>>= 5;
+        }
+        buf[pos++] = (char) (num + 63);
+        return pos;
+    }
+
+    private static void appendSignedNumber(StringBuilder sb, int num) {
+        int sgn_num = num << 1;
+        if (num < 0) {
+            sgn_num = ~(sgn_num);
+        }
+        appendNumber(sb, sgn_num);
+    }
+
+    private static void appendNumber(StringBuilder sb, int num) {
+        while (Integer.compareUnsigned(num, 0x20) >= 0) {
+            sb.append((char) ((0x20 | (num & 0x1f)) + 63));
+            num >>>= 5;
+        }
+        sb.append((char) (num + 63));
     }
 
     public static String encodeSignedNumber(int num) {
@@ -155,19 +344,8 @@ public class PolylineEncoder {
     }
 
     public static String encodeNumber(int num) {
-
-        StringBuilder encodeString = new StringBuilder();
-
-        while (num >= 0x20) {
-            int nextValue = (0x20 | (num & 0x1f)) + 63;
-            encodeString.append((char) (nextValue));
-            num >>= 5;
-        }
-
-        num += 63;
-        encodeString.append((char) (num));
-
-        return encodeString.toString();
+        char[] buf = new char[MAX_NUMBER_LENGTH];
+        return new String(buf, 0, writeNumber(buf, 0, num));
     }
 
     public static int decodeNumber(String value) {
@@ -193,35 +371,6 @@ public class PolylineEncoder {
         return new int[] { num, index };
     }
 
-    private static class PointAdapterList extends AbstractList<Coordinate> {
-
-        private double[] lat;
-        private double[] lon;
-        private int offset;
-        private int length;
-
-        public PointAdapterList(double[] lat, double[] lon) {
-            this(lat, lon, 0, lat.length);
-        }
-
-        public PointAdapterList(double[] lat, double[] lon, int offset, int length) {
-            this.lat = lat;
-            this.lon = lon;
-            this.offset = offset;
-            this.length = length;
-        }
-
-        @Override
-        public Coordinate get(int index) {
-            return new Coordinate(lon[offset + index], lat[offset + index]);
-        }
-
-        @Override
-        public int size() {
-            return length;
-        }
-    }
-
     private static class CoordinateList extends AbstractList<Coordinate> {
 
         private Coordinate[] coordinates;
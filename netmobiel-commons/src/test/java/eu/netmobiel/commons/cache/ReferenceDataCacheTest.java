@@ -0,0 +1,124 @@
+package eu.netmobiel.commons.cache;
+
+import static org.junit.Assert.*;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class ReferenceDataCacheTest {
+	private static final Instant now = Instant.parse("2020-06-01T10:00:00Z");
+
+	private static class TestClock extends Clock {
+		private Instant instant = now;
+
+		@Override
+		public ZoneId getZone() {
+			return ZoneOffset.UTC;
+		}
+
+		@Override
+		public Clock withZone(ZoneId zone) {
+			return this;
+		}
+
+		@Override
+		public Instant instant() {
+			return instant;
+		}
+
+		public void advance(Duration d) {
+			instant = instant.plus(d);
+		}
+	}
+
+	private TestClock clock;
+	private ReferenceDataCache<String, Optional<String>> cache;
+	private AtomicInteger loads;
+
+	@Before
+	public void setUp() {
+		clock = new TestClock();
+		cache = new ReferenceDataCache<>("test", Duration.ofMinutes(10), 3, clock);
+		loads = new AtomicInteger();
+	}
+
+	private Optional<String> load(String key) {
+		loads.incrementAndGet();
+		return key.startsWith("x") ? Optional.empty() : Optional.of(key.toUpperCase());
+	}
+
+	@Test
+	public void testReadThrough() {
+		assertEquals(Optional.of("A"), cache.get("a", this::load));
+		assertEquals(Optional.of("A"), cache.get("a", this::load));
+		assertEquals(1, loads.get());
+		assertEquals(1, cache.getHitCount());
+		assertEquals(1, cache.getMissCount());
+		assertEquals(0.5, cache.getHitRatio(), 1e-6);
+	}
+
+	@Test
+	public void testAbsentValue() {
+		assertEquals(Optional.empty(), cache.get("x", this::load));
+		assertEquals(Optional.empty(), cache.get("x", this::load));
+		assertEquals(1, loads.get());
+		assertNull(cache.get("n", k -> null));
+		assertNull(cache.get("n", k -> null));
+		assertEquals(1, cache.getSize());
+	}
+
+	@Test
+	public void testExpiration() {
+		cache.get("a", this::load);
+		clock.advance(Duration.ofMinutes(9));
+		cache.get("a", this::load);
+		assertEquals(1, loads.get());
+		clock.advance(Duration.ofMinutes(1));
+		cache.get("a", this::load);
+		assertEquals(2, loads.get());
+	}
+
+	@Test
+	public void testInvalidation() {
+		cache.get("a", this::load);
+		cache.get("b", this::load);
+		cache.invalidate("a");
+		cache.get("a", this::load);
+		cache.get("b", this::load);
+		assertEquals(3, loads.get());
+		cache.invalidateAll();
+		assertEquals(0, cache.getSize());
+		assertEquals(2, cache.getInvalidationCount());
+	}
+
+	@Test
+	public void testInvalidationWhileLoading() {
+		cache.get("a", k -> {
+			cache.invalidateAll();
+			return Optional.of("stale");
+		});
+		assertEquals(0, cache.getSize());
+	}
+
+	@Test
+	public void testBounded() {
+		cache.get("a", this::load);
+		clock.advance(Duration.ofMinutes(1));
+		cache.get("b", this::load);
+		cache.get("c", this::load);
+		cache.get("d", this::load);
+		assertEquals(3, cache.getSize());
+		assertEquals(1, cache.getEvictionCount());
+		// The oldest entry is gone
+		cache.get("a", this::load);
+		assertEquals(5, loads.get());
+	}
+}
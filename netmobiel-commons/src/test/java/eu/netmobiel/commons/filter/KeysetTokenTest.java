@@ -0,0 +1,44 @@
+package eu.netmobiel.commons.filter;
+
+import static org.junit.Assert.*;
+
+import java.time.Instant;
+
+import org.junit.Test;
+
+import eu.netmobiel.commons.exception.BadRequestException;
+
+public class KeysetTokenTest {
+
+	@Test
+	public void testRoundTrip() throws Exception {
+		Instant t = Instant.parse("2021-03-14T09:26:53.589793Z");
+		KeysetToken token = new KeysetToken(t, 4711L, 20, 123L);
+		KeysetToken decoded = KeysetToken.decode(token.encode());
+		assertEquals(t, decoded.getSortValue());
+		assertEquals(Long.valueOf(4711L), decoded.getId());
+		assertEquals(20, decoded.getOffset());
+		assertEquals(Long.valueOf(123L), decoded.getTotalCount());
+	}
+
+	@Test
+	public void testRoundTripNoCount() throws Exception {
+		KeysetToken token = new KeysetToken(Instant.EPOCH, 1L, 10, null);
+		KeysetToken decoded = KeysetToken.decode(token.encode());
+		assertNull(decoded.getTotalCount());
+	}
+
+	@Test(expected = BadRequestException.class)
+	public void testInvalid() throws Exception {
+		KeysetToken.decode("not-a-token");
+	}
+
+	@Test
+	public void testCursor() throws Exception {
+		KeysetToken token = new KeysetToken(Instant.EPOCH, 1L, 10, 42L);
+		Cursor cursor = new Cursor(10, 0, token.encode());
+		cursor.validate(10, 0);
+		assertNotNull(cursor.getKeyset());
+		assertEquals(Integer.valueOf(10), cursor.getOffset());
+	}
+}
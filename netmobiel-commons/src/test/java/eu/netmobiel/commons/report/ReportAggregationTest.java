@@ -0,0 +1,71 @@
+package eu.netmobiel.commons.report;
+
+import static org.junit.Assert.*;
+
+import java.time.Instant;
+import java.time.YearMonth;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class ReportAggregationTest {
+	private static final ZoneId ZONE = ZoneId.of("Europe/Amsterdam");
+
+	@Test
+	public void testLastSettledPeriod() {
+		assertEquals(YearMonth.of(2026, 8), ReportAggregation.lastSettledPeriod(Instant.parse("2026-10-17T10:00:00Z"), ZONE));
+		// Already october in Amsterdam
+		assertEquals(YearMonth.of(2026, 8), ReportAggregation.lastSettledPeriod(Instant.parse("2026-09-30T22:30:00Z"), ZONE));
+		assertEquals(YearMonth.of(2026, 7), ReportAggregation.lastSettledPeriod(Instant.parse("2026-09-30T21:30:00Z"), ZONE));
+		assertEquals(YearMonth.of(2025, 12), ReportAggregation.lastSettledPeriod(Instant.parse("2026-02-01T00:00:00Z"), ZONE));
+	}
+
+	@Test
+	public void testSettledPeriods() {
+		List<YearMonth> periods = ReportAggregation.settledPeriods(Instant.parse("2026-10-17T10:00:00Z"), ZONE);
+		assertEquals(ReportAggregation.LOOKBACK_MONTHS, periods.size());
+		assertEquals(YearMonth.of(2026, 8), periods.get(periods.size() - 1));
+		assertEquals(YearMonth.of(2026, 8).minusMonths(ReportAggregation.LOOKBACK_MONTHS - 1L), periods.get(0));
+		for (int i = 1; i < periods.size(); i++) {
+			assertEquals(periods.get(i - 1).plusMonths(1), periods.get(i));
+		}
+	}
+
+	@Test
+	public void testMergeByKey() {
+		List<NumericReportValue> values = new ArrayList<>();
+		// The same month label from two adjacent periods
+		values.add(new NumericReportValue("B", 2026, 3, 5));
+		values.add(new NumericReportValue("A", 2026, 3, 1));
+		values.add(new NumericReportValue("B", 2026, 4, 7));
+		values.add(new NumericReportValue("B", 2026, 3, 2));
+		List<NumericReportValue> merged = ReportAggregation.mergeByKey(values, (a, b) -> {
+			a.setValue(a.getValue() + b.getValue());
+			return a;
+		});
+		assertEquals(3, merged.size());
+		assertEquals("A-2026-03", merged.get(0).getKey());
+		assertEquals(1, merged.get(0).getValue());
+		assertEquals("B-2026-03", merged.get(1).getKey());
+		assertEquals(7, merged.get(1).getValue());
+		assertEquals("B-2026-04", merged.get(2).getKey());
+		assertEquals(7, merged.get(2).getValue());
+	}
+
+	@Test
+	public void testMergeByKeyWithModality() {
+		List<ModalityNumericReportValue> values = new ArrayList<>();
+		values.add(new ModalityNumericReportValue("A", 2026, 3, 2, "BUS"));
+		values.add(new ModalityNumericReportValue("A", 2026, 3, 3, "RAIL"));
+		values.add(new ModalityNumericReportValue("A", 2026, 3, 4, "BUS"));
+		List<ModalityNumericReportValue> merged = ReportAggregation.mergeByKey(values, (a, b) -> {
+			a.setValue(a.getValue() + b.getValue());
+			return a;
+		});
+		assertEquals(2, merged.size());
+		assertEquals(6, merged.get(0).getValue());
+		assertEquals(3, merged.get(1).getValue());
+	}
+}
@@ -0,0 +1,79 @@
+package eu.netmobiel.commons.util;
+
+import static org.junit.Assert.*;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Optional;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class MonitorTimerRegistryTest {
+	private static final Instant now = Instant.parse("2020-06-01T10:00:00Z");
+
+	private MonitorTimerRegistry<Long> registry;
+
+	@Before
+	public void setUp() {
+		registry = new MonitorTimerRegistry<>();
+	}
+
+	@Test
+	public void testScheduleAndPoll() {
+		registry.schedule(3L, now.plusSeconds(30));
+		registry.schedule(1L, now.plusSeconds(10));
+		registry.schedule(2L, now.plusSeconds(10));
+		registry.schedule(4L, now.plusSeconds(60));
+		assertEquals(4, registry.size());
+		List<Long> due = registry.pollDue(now.plusSeconds(30));
+		assertEquals(List.of(1L, 2L, 3L), due);
+		assertEquals(1, registry.size());
+		assertTrue(registry.pollDue(now.plusSeconds(30)).isEmpty());
+	}
+
+	@Test
+	public void testReschedule() {
+		registry.schedule(1L, now.plusSeconds(10));
+		registry.schedule(1L, now.plusSeconds(100));
+		assertEquals(1, registry.size());
+		assertEquals(Optional.of(now.plusSeconds(100)), registry.getWakeupTime(1L));
+		assertTrue(registry.pollDue(now.plusSeconds(50)).isEmpty());
+	}
+
+	@Test
+	public void testCancel() {
+		registry.schedule(1L, now.plusSeconds(10));
+		assertTrue(registry.cancel(1L));
+		assertFalse(registry.cancel(1L));
+		assertEquals(0, registry.size());
+		assertTrue(registry.getWakeupTime(1L).isEmpty());
+	}
+
+	@Test
+	public void testArm() {
+		assertTrue(registry.arm(now).isEmpty());
+		registry.schedule(1L, now.plusSeconds(100));
+		assertEquals(Optional.of(now.plusSeconds(100)), registry.arm(now));
+		// Already armed
+		assertTrue(registry.arm(now).isEmpty());
+		registry.schedule(2L, now.plusSeconds(200));
+		assertTrue(registry.arm(now).isEmpty());
+		// An earlier wake-up needs a new timer
+		registry.schedule(3L, now.plusSeconds(50));
+		assertEquals(Optional.of(now.plusSeconds(50)), registry.arm(now));
+		// The timer expires
+		assertEquals(List.of(3L), registry.pollDue(now.plusSeconds(50)));
+		assertEquals(Optional.of(now.plusSeconds(100)), registry.arm(now.plusSeconds(50)));
+	}
+
+	@Test
+	public void testArmLostTimer() {
+		registry.schedule(1L, now.plusSeconds(100));
+		assertEquals(Optional.of(now.plusSeconds(100)), registry.arm(now));
+		// The timer never fired, re-arm after the grace period
+		assertTrue(registry.arm(now.plusSeconds(110)).isEmpty());
+		assertEquals(Optional.of(now.plusSeconds(100)), registry.arm(now.plusSeconds(100).plus(Duration.ofMinutes(10))));
+	}
+}
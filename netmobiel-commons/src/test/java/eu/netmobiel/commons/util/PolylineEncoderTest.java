@@ -0,0 +1,87 @@
+package eu.netmobiel.commons.util;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.vividsolutions.jts.geom.Coordinate;
+
+public class PolylineEncoderTest {
+	/**
+	 * The example of the Google documentation of the encoded polyline algorithm.
+	 */
+	private static final String GOOGLE_EXAMPLE = "_p~iF~ps|U_ulLnnqC_mqNvxq`@";
+	private static final double[] GOOGLE_EXAMPLE_POINTS = new double[] { 38.5, -120.2, 40.7, -120.95, 43.252, -126.453 };
+
+	@Test
+	public void testEncode() {
+		assertEquals(GOOGLE_EXAMPLE, PolylineEncoder.encode(GOOGLE_EXAMPLE_POINTS));
+	}
+
+	@Test
+	public void testCreateEncodings() {
+		List<Coordinate> coords = new ArrayList<>();
+		for (int i = 0; i < GOOGLE_EXAMPLE_POINTS.length; i += 2) {
+			coords.add(new Coordinate(GOOGLE_EXAMPLE_POINTS[i + 1], GOOGLE_EXAMPLE_POINTS[i]));
+		}
+		assertEquals(GOOGLE_EXAMPLE, PolylineEncoder.createEncodings(coords).getPoints());
+		assertEquals(3, PolylineEncoder.createEncodings(coords).getLength());
+	}
+
+	@Test
+	public void testDecode() {
+		assertArrayEquals(GOOGLE_EXAMPLE_POINTS, PolylineEncoder.decodeToArray(GOOGLE_EXAMPLE), 1e-9);
+		List<Coordinate> coords = PolylineEncoder.decode(GOOGLE_EXAMPLE);
+		assertEquals(3, coords.size());
+		assertEquals(43.252, coords.get(2).y, 1e-9);
+		assertEquals(-126.453, coords.get(2).x, 1e-9);
+	}
+
+	@Test
+	public void testDecodeEmpty() {
+		assertEquals(0, PolylineEncoder.decodeToArray("").length);
+		assertEquals("", PolylineEncoder.encode(new double[0]));
+	}
+
+	@Test
+	public void testRoundTrip() {
+		Random random = new Random(42);
+		double[] latLon = new double[2000];
+		for (int i = 0; i < latLon.length; i += 2) {
+			latLon[i] = Math.round((random.nextDouble() * 180 - 90) * 1e5) / 1e5;
+			latLon[i + 1] = Math.round((random.nextDouble() * 360 - 180) * 1e5) / 1e5;
+		}
+		String encoded = PolylineEncoder.encode(latLon);
+		assertArrayEquals(latLon, PolylineEncoder.decodeToArray(encoded), 1e-9);
+		assertEquals(encoded, PolylineEncoder.encode(PolylineEncoder.decodeToArray(encoded)));
+	}
+
+	@Test
+	public void testConcat() {
+		double[] first = new double[] { 52.22347, 6.89012, 52.22401, 6.89155, 52.23001, 6.90001 };
+		double[] second = new double[] { 52.23001, 6.90001, 52.25000, 6.70000, 52.26001, 6.65432 };
+		double[] all = new double[first.length + second.length];
+		System.arraycopy(first, 0, all, 0, first.length);
+		System.arraycopy(second, 0, all, first.length, second.length);
+		String concatenated = PolylineEncoder.concat(PolylineEncoder.encode(first), PolylineEncoder.encode(second));
+		assertEquals(PolylineEncoder.encode(all), concatenated);
+		assertEquals(concatenated, GeometryHelper.concatEncodedPolylines(PolylineEncoder.encode(first), PolylineEncoder.encode(second)));
+	}
+
+	@Test
+	public void testConcatEmpty() {
+		assertEquals(GOOGLE_EXAMPLE, PolylineEncoder.concat("", GOOGLE_EXAMPLE));
+		assertEquals(GOOGLE_EXAMPLE, PolylineEncoder.concat(GOOGLE_EXAMPLE, ""));
+	}
+
+	@Test
+	public void testEncodeNumber() {
+		assertEquals(17, PolylineEncoder.decodeNumber(PolylineEncoder.encodeNumber(17)));
+		assertEquals(-179998, PolylineEncoder.decodeSignedNumber(PolylineEncoder.encodeSignedNumber(-179998)));
+		assertEquals("`~oia@", PolylineEncoder.encodeSignedNumber(-17998321));
+	}
+}
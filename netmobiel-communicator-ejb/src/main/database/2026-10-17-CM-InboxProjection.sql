@@ -0,0 +1,30 @@
+-- Communicator - Inbox projection: The most recent message and the unread count per conversation
+
+ALTER TABLE public.conversation
+	ADD COLUMN recent_message bigint NULL,
+	ADD COLUMN recent_message_time timestamp without time zone NULL,
+	ADD COLUMN unread_count integer NOT NULL DEFAULT 0,
+	ADD CONSTRAINT conversation_recent_message_fk FOREIGN KEY (recent_message) REFERENCES public.message (id) ON DELETE SET NULL
+;
+
+-- Only messages with delivery mode ALL or MESSAGE are shown in the inbox
+UPDATE public.conversation c SET recent_message = r.message, recent_message_time = r.created_time
+	FROM (SELECT DISTINCT ON (e.conversation) e.conversation, m.id AS message, m.created_time 
+		FROM public.envelope e JOIN public.message m ON m.id = e.message 
+		WHERE m.delivery_mode IN ('AL', 'MS')
+		ORDER BY e.conversation, m.id DESC
+	) r
+	WHERE r.conversation = c.id
+;
+
+UPDATE public.conversation c SET unread_count = u.cnt
+	FROM (SELECT e.conversation, count(*) AS cnt 
+		FROM public.envelope e JOIN public.message m ON m.id = e.message 
+		WHERE m.delivery_mode IN ('AL', 'MS') AND e.sender = false AND e.ack_time IS NULL
+		GROUP BY e.conversation
+	) u
+	WHERE u.conversation = c.id
+;
+
+-- The inbox is a range scan on the owner, ordered by the most recent message
+CREATE INDEX conversation_inbox_ix ON public.conversation USING btree (owner, recent_message) WHERE recent_message IS NOT NULL;
@@ -0,0 +1,21 @@
+-- Communicator - Outbox of the push notifications
+
+CREATE SEQUENCE public.pending_notification_id_seq
+    START WITH 50
+    INCREMENT BY 1
+    NO MINVALUE
+    NO MAXVALUE
+    CACHE 1;
+
+CREATE TABLE public.pending_notification (
+    id bigint NOT NULL,
+    envelope bigint NOT NULL,
+    created_time timestamp without time zone NOT NULL,
+    next_attempt_time timestamp without time zone NOT NULL,
+    attempts integer NOT NULL DEFAULT 0,
+    CONSTRAINT pending_notification_pkey PRIMARY KEY (id),
+    CONSTRAINT cs_pending_notification_unique UNIQUE (envelope),
+    CONSTRAINT pending_notification_envelope_fk FOREIGN KEY (envelope) REFERENCES public.envelope (id)
+);
+
+CREATE INDEX pending_notification_next_attempt_ix ON public.pending_notification USING btree (next_attempt_time);
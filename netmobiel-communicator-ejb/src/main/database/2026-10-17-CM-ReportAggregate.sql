@@ -0,0 +1,19 @@
+-- Communicator - Monthly aggregates of the report counts, see ReportAggregation
+
+CREATE TABLE public.report_aggregate (
+    query_name character varying(64) NOT NULL,
+    period date NOT NULL,
+    managed_identity character varying(36) NOT NULL,
+    modality character varying(16) NOT NULL DEFAULT '',
+    year integer NOT NULL,
+    month integer NOT NULL,
+    count integer NOT NULL,
+    CONSTRAINT report_aggregate_pkey PRIMARY KEY (query_name, period, managed_identity, modality, year, month)
+);
+
+CREATE TABLE public.report_aggregate_period (
+    query_name character varying(64) NOT NULL,
+    period date NOT NULL,
+    aggregated_time timestamp without time zone NOT NULL,
+    CONSTRAINT report_aggregate_period_pkey PRIMARY KEY (query_name, period)
+);
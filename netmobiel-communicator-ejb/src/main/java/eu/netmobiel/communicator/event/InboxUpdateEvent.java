@@ -0,0 +1,42 @@
+package eu.netmobiel.communicator.event;
+
+import java.io.Serializable;
+import java.util.Set;
+
+import javax.validation.constraints.NotNull;
+
+/**
+ * This event is issued when the inbox of one or more users changes: A new message is posted or the unread count 
+ * has changed by an acknowledgement. The event is used to push the changes to the connected clients after the commit.
+ * 
+ * @author Jaap Reitsma
+ *
+ */
+public class InboxUpdateEvent implements Serializable {
+	private static final long serialVersionUID = -4126498734532786410L;
+
+	private Long messageId;
+
+	@NotNull
+	private Set<String> owners;
+
+    public InboxUpdateEvent(Long aMessageId, Set<String> theOwners) {
+    	this.messageId = aMessageId;
+    	this.owners = theOwners;
+    }
+
+	/**
+	 * The id of the new message. If null then only the unread count has changed.
+	 */
+	public Long getMessageId() {
+		return messageId;
+	}
+
+	/**
+	 * The managed identities of the owners of the affected conversations.
+	 */
+	public Set<String> getOwners() {
+		return owners;
+	}
+
+}
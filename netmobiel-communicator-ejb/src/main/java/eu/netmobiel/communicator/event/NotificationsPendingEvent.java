@@ -0,0 +1,28 @@
+package eu.netmobiel.communicator.event;
+
+import java.io.Serializable;
+
+/**
+ * This event is issued when push notifications are added to the outbox. After the commit the notifier starts 
+ * sending the notifications.
+ * 
+ * @author Jaap Reitsma
+ *
+ */
+public class NotificationsPendingEvent implements Serializable {
+	private static final long serialVersionUID = -1880617520634617735L;
+
+	private int count;
+
+    public NotificationsPendingEvent(int aCount) {
+    	this.count = aCount;
+    }
+
+	/**
+	 * The number of notifications added.
+	 */
+	public int getCount() {
+		return count;
+	}
+    
+}
@@ -134,9 +134,23 @@ public class Conversation extends ReferableObject implements Serializable {
     private Message recentMessage;
     
     /**
-     * The number of unread messages in this conversation. Only valid when requesting the inbox messages.
+     * The id of the most recent (inbox) message in this conversation, i.e. a message with delivery mode ALL or MESSAGE.
+     * This column is part of the inbox projection and is only maintained by bulk updates. 
      */
-	@Transient
+    @Column(name = "recent_message", insertable = false, updatable = false)
+    private Long recentMessageId;
+
+    /**
+     * The creation time of the most recent (inbox) message. Part of the inbox projection.
+     */
+    @Column(name = "recent_message_time", insertable = false, updatable = false)
+    private Instant recentMessageTime;
+
+    /**
+     * The number of unread (inbox) messages in this conversation. Part of the inbox projection, 
+     * only maintained by bulk updates.
+     */
+    @Column(name = "unread_count", nullable = false, updatable = false)
     private int unreadCount;
 
 	/**
@@ -273,6 +287,22 @@ public class Conversation extends ReferableObject implements Serializable {
 		this.unreadCount = unreadCount;
 	}
 
+	public Long getRecentMessageId() {
+		return recentMessageId;
+	}
+
+	public void setRecentMessageId(Long recentMessageId) {
+		this.recentMessageId = recentMessageId;
+	}
+
+	public Instant getRecentMessageTime() {
+		return recentMessageTime;
+	}
+
+	public void setRecentMessageTime(Instant recentMessageTime) {
+		this.recentMessageTime = recentMessageTime;
+	}
+
 	public String getInitialContext() {
 		return initialContext;
 	}
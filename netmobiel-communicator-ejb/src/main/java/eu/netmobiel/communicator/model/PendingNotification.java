@@ -0,0 +1,121 @@
+package eu.netmobiel.communicator.model;
+
+import java.io.Serializable;
+import java.time.Instant;
+
+import javax.enterprise.inject.Vetoed;
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.FetchType;
+import javax.persistence.ForeignKey;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.JoinColumn;
+import javax.persistence.OneToOne;
+import javax.persistence.SequenceGenerator;
+import javax.persistence.Table;
+import javax.persistence.UniqueConstraint;
+
+/**
+ * The outbox of push notifications. A pending notification is created together with the envelope in the
+ * business transaction. The notifier sends the notifications after the commit and removes the pending notification
+ * when the push is done (or will never succeed). A failed push is retried later.
+ *
+ * @author Jaap Reitsma
+ *
+ */
+@Entity
+@Table(name = "pending_notification", uniqueConstraints = {
+	    @UniqueConstraint(name = "cs_pending_notification_unique", columnNames = { "envelope" })
+})
+@Vetoed
+@SequenceGenerator(name = "pending_notification_sg", sequenceName = "pending_notification_id_seq", allocationSize = 1, initialValue = 50)
+public class PendingNotification implements Serializable {
+
+	private static final long serialVersionUID = -6364018364563017853L;
+
+	@Id
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "pending_notification_sg")
+    private Long id;
+
+	/**
+	 * The envelope to push.
+	 */
+	@OneToOne(fetch = FetchType.LAZY)
+	@JoinColumn(name = "envelope", nullable = false, foreignKey = @ForeignKey(name = "pending_notification_envelope_fk"))
+	private Envelope envelope;
+
+	/**
+	 * The time of creation.
+	 */
+	@Column(name = "created_time", nullable = false)
+	private Instant createdTime;
+
+	/**
+	 * The earliest time of the next delivery attempt.
+	 */
+	@Column(name = "next_attempt_time", nullable = false)
+	private Instant nextAttemptTime;
+
+	/**
+	 * The number of failed delivery attempts.
+	 */
+	@Column(name = "attempts", nullable = false)
+	private int attempts;
+
+	public PendingNotification() {
+
+	}
+
+	public PendingNotification(Envelope anEnvelope, Instant now) {
+		this.envelope = anEnvelope;
+		this.createdTime = now;
+		this.nextAttemptTime = now;
+	}
+
+	public Long getId() {
+		return id;
+	}
+
+	public void setId(Long id) {
+		this.id = id;
+	}
+
+	public Envelope getEnvelope() {
+		return envelope;
+	}
+
+	public void setEnvelope(Envelope envelope) {
+		this.envelope = envelope;
+	}
+
+	public Instant getCreatedTime() {
+		return createdTime;
+	}
+
+	public void setCreatedTime(Instant createdTime) {
+		this.createdTime = createdTime;
+	}
+
+	public Instant getNextAttemptTime() {
+		return nextAttemptTime;
+	}
+
+	public void setNextAttemptTime(Instant nextAttemptTime) {
+		this.nextAttemptTime = nextAttemptTime;
+	}
+
+	public int getAttempts() {
+		return attempts;
+	}
+
+	public void setAttempts(int attempts) {
+		this.attempts = attempts;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("PendingNotification [%s %s %d]", id, nextAttemptTime, attempts);
+	}
+}
@@ -0,0 +1,28 @@
+package eu.netmobiel.communicator.repository;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.inject.Typed;
+import javax.inject.Inject;
+import javax.persistence.EntityManager;
+
+import eu.netmobiel.commons.repository.ReportAggregateDao;
+import eu.netmobiel.communicator.annotation.CommunicatorDatabase;
+
+/**
+ * The report aggregates of the communicator service, stored in the tables report_aggregate and report_aggregate_period.
+ *
+ * @author Jaap Reitsma
+ *
+ */
+@ApplicationScoped
+@Typed(CommunicatorReportAggregateDao.class)
+public class CommunicatorReportAggregateDao extends ReportAggregateDao {
+
+	@Inject @CommunicatorDatabase
+	private EntityManager em;
+
+	@Override
+	protected EntityManager getEntityManager() {
+		return em;
+	}
+}
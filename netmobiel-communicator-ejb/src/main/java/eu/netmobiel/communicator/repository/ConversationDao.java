@@ -2,8 +2,11 @@ package eu.netmobiel.communicator.repository;
 
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 
 import javax.enterprise.context.ApplicationScoped;
@@ -143,4 +146,114 @@ public class ConversationDao extends AbstractDao<Conversation, Long> {
    		return query.executeUpdate();
 	}
 
+	/**
+	 * Lists the conversations of a user for the inbox, using the inbox projection. Conversations without
+	 * inbox messages are skipped.
+	 * @param owner the owner of the conversations.
+	 * @param actualOnly If true then list only the conversations that are not archived.
+	 * @param archivedOnly If true then list only the archived conversations.
+	 * @param sortDir the sort direction on the most recent message. Default is descending.
+	 * @param maxResults the maximum number of results. If 0 then only the total count is determined.
+	 * @param offset the zero-based offset.
+	 * @return a page with conversation ids.
+	 */
+	public PagedResult<Long> listInboxConversations(CommunicatorUser owner, boolean actualOnly, boolean archivedOnly, 
+			SortDirection sortDir, Integer maxResults, Integer offset) {
+		String sort = sortDir != null ? sortDir.name().toLowerCase() : "desc"; 
+		String queryString = String.format( 
+				"%s from Conversation c where c.owner = :owner and c.recentMessageId is not null %s %s",
+				maxResults == 0 ? "select count(c)" : "select c.id",  
+				actualOnly ? "and c.archivedTime is null" : (archivedOnly ? "and c.archivedTime is not null" : ""),
+				maxResults > 0 ? "order by c.recentMessageId " + sort : ""
+		);
+		TypedQuery<Long> query = em.createQuery(queryString, Long.class);
+		query.setParameter("owner", owner);
+		Long totalCount = null;
+        List<Long> results = null;
+        if (maxResults == 0) {
+            totalCount = query.getSingleResult();
+            results = Collections.emptyList();
+        } else {
+    		query.setFirstResult(offset);
+    		query.setMaxResults(maxResults);
+    		results = query.getResultList();
+        }
+        return new PagedResult<>(results, maxResults, offset, totalCount);
+	}
+
+	/**
+	 * Updates the inbox projection of a conversation with a new inbox message. 
+	 * The most recent message is only replaced by a more recent one.
+	 * @param conversation the conversation.
+	 * @param messageId the id of the message.
+	 * @param createdTime the creation time of the message.
+	 * @param unread if true then the unread count is incremented.
+	 */
+	public void addInboxMessage(Conversation conversation, Long messageId, Instant createdTime, boolean unread) {
+		em.createQuery("update Conversation c set c.recentMessageId = :messageId, c.recentMessageTime = :createdTime " +
+				"where c = :conversation and (c.recentMessageId is null or c.recentMessageId < :messageId)")
+			.setParameter("conversation", conversation)
+			.setParameter("messageId", messageId)
+			.setParameter("createdTime", createdTime)
+			.executeUpdate();
+		if (unread) {
+			updateUnreadCount(conversation, 1);
+		}
+	}
+
+	/**
+	 * Changes the unread count of the conversation. The count never drops below zero.
+	 * @param conversation the conversation.
+	 * @param delta the change of the count.
+	 */
+	public void updateUnreadCount(Conversation conversation, int delta) {
+		em.createQuery("update Conversation c set c.unreadCount = c.unreadCount + :delta " + 
+				"where c = :conversation and c.unreadCount + :delta >= 0")
+			.setParameter("conversation", conversation)
+			.setParameter("delta", delta)
+			.executeUpdate();
+	}
+
+	/**
+	 * Sets the unread count of the conversation to zero.
+	 * @param conversation the conversation.
+	 */
+	public void resetUnreadCount(Conversation conversation) {
+		em.createQuery("update Conversation c set c.unreadCount = 0 where c = :conversation and c.unreadCount <> 0")
+			.setParameter("conversation", conversation)
+			.executeUpdate();
+	}
+
+    /**
+	 * Count the unread messages of a user, by summing the unread counts of the conversations. 
+	 * @param user the user to count the unread messages for.
+	 * @return a count value.
+	 */
+	public int countUnreadMessages(CommunicatorUser user) {
+		Long count = em.createQuery("select sum(c.unreadCount) from Conversation c where c.owner = :user and c.recentMessageId is not null and c.unreadCount > 0", Long.class)
+				.setParameter("user", user)
+				.getSingleResult();
+		return count == null ? 0 : count.intValue();
+	}
+
+    /**
+	 * Count the unread messages of a number of users. 
+	 * @param managedIdentities the managed identities of the users.
+	 * @return a map of managed identity and count. Users without unread messages are absent.
+	 */
+	public Map<String, Integer> countUnreadMessages(Collection<String> managedIdentities) {
+		Map<String, Integer> counts = new HashMap<>();
+		if (managedIdentities.isEmpty()) {
+			return counts;
+		}
+		List<Object[]> results = em.createQuery("select c.owner.managedIdentity, sum(c.unreadCount) from Conversation c " + 
+					"where c.owner.managedIdentity in :identities and c.recentMessageId is not null and c.unreadCount > 0 " +
+					"group by c.owner.managedIdentity", Object[].class)
+				.setParameter("identities", managedIdentities)
+				.getResultList();
+		for (Object[] r : results) {
+			counts.put((String) r[0], ((Number) r[1]).intValue());
+		}
+		return counts;
+	}
 }
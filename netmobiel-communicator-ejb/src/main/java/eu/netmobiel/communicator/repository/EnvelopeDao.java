@@ -1,9 +1,6 @@
 package eu.netmobiel.communicator.repository;
 
 import java.time.Instant;
-import java.util.Collection;
-import java.util.Collections;
-import java.util.EnumSet;
 import java.util.List;
 
 import javax.enterprise.context.ApplicationScoped;
@@ -18,7 +15,6 @@ import eu.netmobiel.commons.repository.AbstractDao;
 import eu.netmobiel.communicator.annotation.CommunicatorDatabase;
 import eu.netmobiel.communicator.model.CommunicatorUser;
 import eu.netmobiel.communicator.model.Conversation;
-import eu.netmobiel.communicator.model.DeliveryMode;
 import eu.netmobiel.communicator.model.Envelope;
 
 @ApplicationScoped
@@ -51,34 +47,6 @@ public class EnvelopeDao extends AbstractDao<Envelope, Long> {
 		return tq.getSingleResult();
 	}
 	
-    public static class UnreadMessagesCount {
-    	public Long conversationId;
-    	public Long unreadCount;
-    	
-    	public UnreadMessagesCount(Long aConversationId, Long anUnreadCount) {
-    		this.conversationId = aConversationId;
-    		this.unreadCount = anUnreadCount;
-    	}
-    }
-
-    /**
-	 * Count the unread messages in each conversation.
-	 * @param conversations the conversations to count the messages of.
-	 * @return a list of UnreadMessagesCount objects.
-	 */
-	public List<UnreadMessagesCount> countUnreadMessages(Collection<Long> conversationIds) {
-		if (conversationIds.isEmpty()) {
-			return Collections.emptyList();
-		}
-		String q = "select new eu.netmobiel.communicator.repository.EnvelopeDao$UnreadMessagesCount(e.conversation.id, count(e)) " +
-				"from Envelope e where e.conversation.id in :conversationIds and e.sender = false and e.ackTime is null and " +
-				"e.message.deliveryMode in :deliveryModes group by e.conversation";
-		TypedQuery<UnreadMessagesCount> tq = em.createQuery(q, UnreadMessagesCount.class);
-		tq.setParameter("conversationIds", conversationIds);
-		tq.setParameter("deliveryModes", EnumSet.of(DeliveryMode.ALL, DeliveryMode.MESSAGE));
-		return tq.getResultList();
-	}
-
 	/**
 	 * Mark all envelopes of the conversation as acknowledged.
 	 * @param conversation the conversation to acknowledge. 
@@ -92,18 +60,4 @@ public class EnvelopeDao extends AbstractDao<Envelope, Long> {
 		query.setParameter("conversation", conversation);
    		query.executeUpdate();
 	}
-
-    /**
-	 * Count the unread messages in each conversation.
-	 * @param user the user to count the unread messages for.
-	 * @return a count value.
-	 */
-	public int countUnreadMessages(CommunicatorUser user) {
-		String q = "select count(e) from Envelope e where e.conversation.owner = :user and " + 
-						"e.sender = false and e.ackTime is null and e.message.deliveryMode in :deliveryModes";
-		TypedQuery<Long> tq = em.createQuery(q, Long.class);
-		tq.setParameter("user", user);
-		tq.setParameter("deliveryModes", EnumSet.of(DeliveryMode.ALL, DeliveryMode.MESSAGE));
-		return tq.getSingleResult().intValue();
-	}
 }
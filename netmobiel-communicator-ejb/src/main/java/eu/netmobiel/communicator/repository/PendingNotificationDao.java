@@ -0,0 +1,67 @@
+package eu.netmobiel.communicator.repository;
+
+import java.time.Instant;
+import java.util.Collections;
+import java.util.List;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.inject.Typed;
+import javax.inject.Inject;
+import javax.persistence.EntityManager;
+import javax.persistence.LockModeType;
+
+import eu.netmobiel.commons.repository.AbstractDao;
+import eu.netmobiel.communicator.annotation.CommunicatorDatabase;
+import eu.netmobiel.communicator.model.PendingNotification;
+
+@ApplicationScoped
+@Typed(PendingNotificationDao.class)
+public class PendingNotificationDao extends AbstractDao<PendingNotification, Long> {
+	/**
+	 * The lock timeout hint value to skip the rows locked by another transaction (Hibernate: LockOptions.SKIP_LOCKED).
+	 */
+	private static final int LOCK_TIMEOUT_SKIP_LOCKED = -2;
+
+	@Inject @CommunicatorDatabase
+    private EntityManager em;
+
+    public PendingNotificationDao() {
+		super(PendingNotification.class);
+	}
+
+	@Override
+	protected EntityManager getEntityManager() {
+		return em;
+	}
+
+	/**
+	 * Claims the pending notifications that are due. The notifications are locked until the end of the transaction,
+	 * notifications locked by another worker are skipped.
+	 * @param now the reference time.
+	 * @param maxResults the maximum number of notifications.
+	 * @return the notifications, the oldest first.
+	 */
+	public List<PendingNotification> claimDueNotifications(Instant now, int maxResults) {
+		return em.createQuery("select pn from PendingNotification pn where pn.nextAttemptTime <= :now order by pn.id asc", PendingNotification.class)
+				.setParameter("now", now)
+				.setMaxResults(maxResults)
+				.setLockMode(LockModeType.PESSIMISTIC_WRITE)
+				.setHint("javax.persistence.lock.timeout", LOCK_TIMEOUT_SKIP_LOCKED)
+				.getResultList();
+	}
+
+	/**
+	 * Loads the pending notifications including the envelope, the message and the recipient.
+	 * @param ids the notification ids.
+	 * @return the notifications.
+	 */
+	public List<PendingNotification> loadWithEnvelopes(List<Long> ids) {
+		if (ids.isEmpty()) {
+			return Collections.emptyList();
+		}
+		return em.createQuery("select pn from PendingNotification pn join fetch pn.envelope env join fetch env.message " +
+					"join fetch env.conversation c join fetch c.owner where pn.id in :ids order by pn.id asc", PendingNotification.class)
+				.setParameter("ids", ids)
+				.getResultList();
+	}
+}
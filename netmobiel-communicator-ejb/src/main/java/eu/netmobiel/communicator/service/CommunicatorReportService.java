@@ -1,12 +1,19 @@
 package eu.netmobiel.communicator.service;
 
 import java.time.Instant;
+import java.time.YearMonth;
+import java.time.ZoneId;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.stream.Collectors;
 
+import javax.annotation.Resource;
+import javax.ejb.Schedule;
+import javax.ejb.SessionContext;
 import javax.ejb.Stateless;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
 import javax.inject.Inject;
 
 import org.slf4j.Logger;
@@ -15,9 +22,10 @@ import eu.netmobiel.commons.exception.BadRequestException;
 import eu.netmobiel.commons.report.ActivityReport;
 import eu.netmobiel.commons.report.NumericReportValue;
 import eu.netmobiel.commons.report.ShoutOutRecipientReport;
+import eu.netmobiel.commons.util.ExceptionUtil;
 import eu.netmobiel.commons.util.Logging;
 import eu.netmobiel.communicator.model.Envelope;
-import eu.netmobiel.communicator.repository.EnvelopeDao;
+import eu.netmobiel.communicator.repository.CommunicatorReportAggregateDao;
 
 /**
  * Bean class for Publisher enterprise bean. 
@@ -26,12 +34,64 @@ import eu.netmobiel.communicator.repository.EnvelopeDao;
 @Logging
 public class CommunicatorReportService {
 
-    @SuppressWarnings("unused")
 	@Inject
     private Logger logger;
 
     @Inject
-    private EnvelopeDao envelopeDao;
+    private CommunicatorReportAggregateDao reportAggregateDao;
+
+    /**
+     * The time zone of the report, the months of the report are determined in this zone. 
+     * The same setting is used by the report processor.
+     */
+    @Resource(lookup = "java:global/report/timeZone")
+    private String reportTimeZone;
+
+    @Resource
+	private SessionContext sessionContext;
+
+    /**
+     * The report count queries that are aggregated per month, once the month is settled.
+     */
+    private static final List<String> AGGREGATED_COUNT_QUERIES = List.of(
+    		Envelope.ACT_1_MESSAGES_RECEIVED_COUNT,
+    		Envelope.ACT_2_NOTIFICATIONS_RECEIVED_COUNT,
+    		Envelope.ACT_3_MESSAGES_READ_COUNT,
+    		Envelope.ACT_4_NOTIFICATIONS_READ_COUNT,
+    		Envelope.RGC_5_SHOUT_OUT_NOTIFICATIONS_RECEIVED_COUNT,
+    		Envelope.RGC_6_SHOUT_OUT_NOTIFICATIONS_READ_COUNT
+    );
+
+    private ZoneId getReportZone() {
+    	return ZoneId.of(reportTimeZone);
+    }
+
+    /**
+     * Aggregates the report counts of the settled months that are not aggregated yet,
+     * see {@link CommunicatorReportAggregateDao#aggregateSettledPeriods(List, ZoneId, java.util.function.BiConsumer)}.
+     */
+	@Schedule(info = "Report aggregation", hour = "2", minute = "50", second = "0", persistent = false /* non-critical job */)
+    @TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+    public void aggregateReports() {
+    	try {
+	    	CommunicatorReportService self = sessionContext.getBusinessObject(CommunicatorReportService.class);
+	    	int count = reportAggregateDao.aggregateSettledPeriods(AGGREGATED_COUNT_QUERIES, getReportZone(),
+	    			(queryName, period) -> self.aggregateReportPeriod(queryName, period, false));
+	    	if (count > 0) {
+	    		logger.info(String.format("Aggregated %d report periods", count));
+	    	}
+		} catch (Exception ex) {
+			logger.error("Error aggregating the reports: " + String.join("\n\t", ExceptionUtil.unwindException(ex)));
+		}
+    }
+
+    /**
+     * Aggregates the report counts of a single month in a transaction of its own.
+     */
+    @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+    public void aggregateReportPeriod(String queryName, YearMonth period, boolean byModality) {
+    	reportAggregateDao.aggregateReportPeriod(queryName, period, getReportZone(), byModality);
+    }
     
     /**
 	 * Report on indicators of the communicator service, group by identity, year, month.
@@ -44,19 +104,19 @@ public class CommunicatorReportService {
     public Map<String, ActivityReport> reportActivity(Instant since, Instant until) throws BadRequestException {
     	Map<String, ActivityReport> reportMap = new HashMap<>();
     	// The first could have been realized without lookup, but now it is all the same.
-    	for (NumericReportValue nrv : envelopeDao.reportCount(Envelope.ACT_1_MESSAGES_RECEIVED_COUNT, since, until)) {
+    	for (NumericReportValue nrv : reportAggregateDao.reportAggregatedCount(Envelope.ACT_1_MESSAGES_RECEIVED_COUNT, since, until, getReportZone())) {
     		reportMap.computeIfAbsent(nrv.getKey(), k -> new ActivityReport(nrv))
 			.setMessageCount(nrv.getValue());
 		}
-    	for (NumericReportValue nrv : envelopeDao.reportCount(Envelope.ACT_2_NOTIFICATIONS_RECEIVED_COUNT, since, until)) {
+    	for (NumericReportValue nrv : reportAggregateDao.reportAggregatedCount(Envelope.ACT_2_NOTIFICATIONS_RECEIVED_COUNT, since, until, getReportZone())) {
     		reportMap.computeIfAbsent(nrv.getKey(), k -> new ActivityReport(nrv))
     			.setNotificationCount(nrv.getValue());
 		}
-    	for (NumericReportValue nrv : envelopeDao.reportCount(Envelope.ACT_3_MESSAGES_READ_COUNT, since, until)) {
+    	for (NumericReportValue nrv : reportAggregateDao.reportAggregatedCount(Envelope.ACT_3_MESSAGES_READ_COUNT, since, until, getReportZone())) {
     		reportMap.computeIfAbsent(nrv.getKey(), k -> new ActivityReport(nrv))
     			.setMessageAckedCount(nrv.getValue());
 		}
-    	for (NumericReportValue nrv : envelopeDao.reportCount(Envelope.ACT_4_NOTIFICATIONS_READ_COUNT,since, until)) {
+    	for (NumericReportValue nrv : reportAggregateDao.reportAggregatedCount(Envelope.ACT_4_NOTIFICATIONS_READ_COUNT, since, until, getReportZone())) {
     		reportMap.computeIfAbsent(nrv.getKey(), k -> new ActivityReport(nrv))
     			.setNotificationAckedCount(nrv.getValue());
 		}
@@ -74,11 +134,11 @@ public class CommunicatorReportService {
     public List<ShoutOutRecipientReport> reportShoutOutActivity(Instant since, Instant until) throws BadRequestException {
     	Map<String, ShoutOutRecipientReport> reportMap = new HashMap<>();
     	// The first could have been realized without lookup, but now it is all the same.
-    	for (NumericReportValue nrv : envelopeDao.reportCount(Envelope.RGC_5_SHOUT_OUT_NOTIFICATIONS_RECEIVED_COUNT, since, until)) {
+    	for (NumericReportValue nrv : reportAggregateDao.reportAggregatedCount(Envelope.RGC_5_SHOUT_OUT_NOTIFICATIONS_RECEIVED_COUNT, since, until, getReportZone())) {
     		reportMap.computeIfAbsent(nrv.getKey(), k -> new ShoutOutRecipientReport(nrv))
 			.setShoutOutNotificationCount(nrv.getValue());
 		}
-    	for (NumericReportValue nrv : envelopeDao.reportCount(Envelope.RGC_6_SHOUT_OUT_NOTIFICATIONS_READ_COUNT, since, until)) {
+    	for (NumericReportValue nrv : reportAggregateDao.reportAggregatedCount(Envelope.RGC_6_SHOUT_OUT_NOTIFICATIONS_READ_COUNT, since, until, getReportZone())) {
     		reportMap.computeIfAbsent(nrv.getKey(), k -> new ShoutOutRecipientReport(nrv))
     			.setShoutOutNotificationAckedCount(nrv.getValue());
 		}
@@ -16,7 +16,7 @@ import eu.netmobiel.commons.service.UserManager;
 import eu.netmobiel.commons.util.Logging;
 import eu.netmobiel.communicator.model.CommunicatorUser;
 import eu.netmobiel.communicator.repository.CommunicatorUserDao;
-import eu.netmobiel.communicator.repository.EnvelopeDao;
+import eu.netmobiel.communicator.repository.ConversationDao;
 import eu.netmobiel.profile.service.ProfileManager;
 
 @Singleton
@@ -28,7 +28,7 @@ public class CommunicatorUserManager extends UserManager<CommunicatorUserDao, Co
     private CommunicatorUserDao userDao;
 
     @Inject
-    private EnvelopeDao envelopeDao;
+    private ConversationDao conversationDao;
 
     @Inject
     protected Logger log;
@@ -70,7 +70,7 @@ public class CommunicatorUserManager extends UserManager<CommunicatorUserDao, Co
 
 	public CommunicatorUser getUserAndStatus(Long userId) throws NotFoundException {
 		CommunicatorUser usr = getUser(userId);
-		usr.setUnreadMessageCount(envelopeDao.countUnreadMessages(usr));
+		usr.setUnreadMessageCount(conversationDao.countUnreadMessages(usr));
 		return usr;
 	}
 	
@@ -1,71 +1,187 @@
 package eu.netmobiel.communicator.service;
 
+import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
 
+import javax.annotation.Resource;
 import javax.ejb.Asynchronous;
+import javax.ejb.Schedule;
+import javax.ejb.SessionContext;
 import javax.ejb.Stateless;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+import javax.enterprise.event.Observes;
+import javax.enterprise.event.TransactionPhase;
 import javax.inject.Inject;
 
 import org.slf4j.Logger;
 
-import eu.netmobiel.commons.exception.NotFoundException;
+import eu.netmobiel.commons.annotation.Created;
 import eu.netmobiel.commons.util.ExceptionUtil;
 import eu.netmobiel.commons.util.Logging;
+import eu.netmobiel.communicator.event.NotificationsPendingEvent;
 import eu.netmobiel.communicator.model.CommunicatorUser;
-import eu.netmobiel.communicator.model.DeliveryMode;
 import eu.netmobiel.communicator.model.Envelope;
 import eu.netmobiel.communicator.model.Message;
-import eu.netmobiel.communicator.repository.MessageDao;
+import eu.netmobiel.communicator.model.PendingNotification;
+import eu.netmobiel.communicator.repository.PendingNotificationDao;
 import eu.netmobiel.firebase.messaging.FirebaseMessagingClient;
+import eu.netmobiel.firebase.messaging.MulticastResult;
 
 /**
- * Bean class for Publisher enterprise bean. 
+ * The notifier sends the push notifications in the outbox (the pending notifications) to the recipients.
+ * The notifier is triggered after the commit of the transaction that added the notifications and once a minute
+ * to retry the failed notifications. The notifications of the same message are sent as a multicast message.
+ * Each batch is processed in its own transaction. Concurrent workers skip each other's notifications.
  */
 @Stateless
 @Logging
 public class NotifierService {
+	/**
+	 * The maximum number of notifications processed in a single transaction.
+	 */
+	public static final int NOTIFICATION_BATCH_SIZE = 1000;
+	/**
+	 * The maximum number of delivery attempts of a notification.
+	 */
+	public static final int MAX_ATTEMPTS = 5;
+	/**
+	 * The delay before the first retry, doubled with each next attempt.
+	 */
+	private static final Duration RETRY_DELAY = Duration.ofMinutes(1);
 
     @Inject
     private Logger logger;
 
+    @Resource
+	private SessionContext sessionContext;
+
     @Inject
     private FirebaseMessagingClient firebaseMessagingClient;
 
     @Inject
-    private MessageDao messageDao;
+    private PendingNotificationDao pendingNotificationDao;
+
+    /**
+     * Starts the delivery of the new notifications after the commit.
+     * @param event the event.
+     */
+    public void onNotificationsPending(@Observes(during = TransactionPhase.AFTER_SUCCESS) @Created NotificationsPendingEvent event) {
+    	sessionContext.getBusinessObject(NotifierService.class).deliverPendingNotifications();
+    }
 
     /**
-     * Sends notifications to each recipient in the message.
-     * FIXME This method does not save the push time properly. Reason not known yet. DO NOT USE.
-     * @param msg the message with the envelopes
-     * @throws NotFoundException 
+     * Retries the failed notifications and picks up notifications left behind (e.g. by a shutdown).
      */
+	@Schedule(info = "Notification outbox", hour = "*", minute = "*/1", second = "30", persistent = false /* non-critical job */)
+    @TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+	public void retryPendingNotifications() {
+		deliverPendingNotifications();
+	}
+
+	/**
+	 * Sends the pending notifications that are due, batch after batch.
+	 */
     @Asynchronous
-    public void sendNotification(Message msg) throws NotFoundException {
-		// Send each user a notification, if required
-		if (msg.getDeliveryMode() == DeliveryMode.NOTIFICATION || msg.getDeliveryMode() == DeliveryMode.ALL) {
-			// Assure presence in persistence context
-	    	Message msgdb = messageDao.loadGraph(msg.getId(), Message.MESSAGE_ENVELOPES_ENTITY_GRAPH)
-	    			.orElseThrow(() -> new NotFoundException("No such message: " + msg.getId())); 
-			for (Envelope env : msgdb.getEnvelopes()) {
-				try {
-					CommunicatorUser user = env.getRecipient();
-					if (user.getFcmToken() == null || user.getFcmToken().isBlank()) {
-						logger.warn(String.format("Cannot send push notification to %s (%s): No FCM token set", 
-								user.getManagedIdentity(), user.getName()));  
-					} else if (FirebaseMessagingClient.isFcmTokenProbablyStale(user.getFcmTokenTimestamp())) {
-						logger.warn(String.format("Cannot send push notification to %s: FCM token (%s) is probably stale", user.getName(), user.getFcmTokenTimestamp()));
-						user.setFcmToken(null);
-					} else {
-						firebaseMessagingClient.send(user.getFcmToken(), msgdb);
-						env.setPushTime(Instant.now());
-					}
-				} catch (Exception ex) {
-					logger.error(String.format("Cannot send push notification to %s: %s", 
-							env.getRecipient().getManagedIdentity(), String.join("\n\t", ExceptionUtil.unwindException(ex))));
+    @TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+    public void deliverPendingNotifications() {
+    	try {
+	    	NotifierService self = sessionContext.getBusinessObject(NotifierService.class);
+	    	int count;
+	    	do {
+	    		count = self.deliverNotificationBatch(NOTIFICATION_BATCH_SIZE);
+	    	} while (count == NOTIFICATION_BATCH_SIZE);
+		} catch (Exception ex) {
+			logger.error("Error delivering the pending notifications: " + String.join("\n\t", ExceptionUtil.unwindException(ex)));
+		}
+    }
+
+    /**
+     * Sends a batch of pending notifications. The notifications of the same message are combined in a multicast message.
+     * @param maxResults the maximum number of notifications to process.
+     * @return the number of notifications processed.
+     */
+    @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+    public int deliverNotificationBatch(int maxResults) {
+    	Instant now = Instant.now();
+    	List<PendingNotification> claimed = pendingNotificationDao.claimDueNotifications(now, maxResults);
+    	List<PendingNotification> pns = pendingNotificationDao.loadWithEnvelopes(claimed.stream()
+    			.map(PendingNotification::getId)
+    			.collect(Collectors.toList()));
+    	// Collect the recipient tokens per message
+    	Map<Message, Map<String, List<PendingNotification>>> tokensByMessage = new LinkedHashMap<>();
+    	for (PendingNotification pn : pns) {
+    		Envelope env = pn.getEnvelope();
+			CommunicatorUser user = env.getRecipient();
+			if (user.getFcmToken() == null || user.getFcmToken().isBlank()) {
+				if (logger.isDebugEnabled()) {
+					logger.debug(String.format("Cannot send push notification to %s (%s): No FCM token set",
+							user.getManagedIdentity(), user.getName()));
 				}
+				pendingNotificationDao.remove(pn);
+			} else if (FirebaseMessagingClient.isFcmTokenProbablyStale(user.getFcmTokenTimestamp())) {
+				logger.warn(String.format("Cannot send push notification to %s: FCM token (%s) is probably stale", user.getName(), user.getFcmTokenTimestamp()));
+				user.setFcmToken(null);
+				pendingNotificationDao.remove(pn);
+			} else {
+				tokensByMessage.computeIfAbsent(env.getMessage(), m -> new LinkedHashMap<>())
+					.computeIfAbsent(user.getFcmToken(), t -> new ArrayList<>())
+					.add(pn);
 			}
-		}
+    	}
+    	for (Map.Entry<Message, Map<String, List<PendingNotification>>> entry : tokensByMessage.entrySet()) {
+    		List<String> tokens = new ArrayList<>(entry.getValue().keySet());
+    		for (int i = 0; i < tokens.size(); i += FirebaseMessagingClient.MAX_MULTICAST_TOKENS) {
+    			List<String> chunk = tokens.subList(i, Math.min(i + FirebaseMessagingClient.MAX_MULTICAST_TOKENS, tokens.size()));
+    			sendMulticast(entry.getKey(), chunk, entry.getValue());
+    		}
+    	}
+    	return claimed.size();
     }
 
+    private void sendMulticast(Message msg, List<String> tokens, Map<String, List<PendingNotification>> notificationsByToken) {
+    	MulticastResult result;
+    	try {
+    		result = firebaseMessagingClient.send(tokens, msg);
+    	} catch (Exception ex) {
+			logger.error(String.format("Cannot send push notification for message %s: %s",
+					msg.getId(), String.join("\n\t", ExceptionUtil.unwindException(ex))));
+			tokens.forEach(t -> notificationsByToken.get(t).forEach(pn -> retryLater(pn)));
+			return;
+    	}
+    	Instant pushTime = Instant.now();
+    	for (String token : result.getDeliveredTokens()) {
+    		for (PendingNotification pn : notificationsByToken.get(token)) {
+    			pn.getEnvelope().setPushTime(pushTime);
+    			pendingNotificationDao.remove(pn);
+    		}
+    	}
+    	for (String token : result.getRejectedTokens()) {
+    		for (PendingNotification pn : notificationsByToken.get(token)) {
+    			CommunicatorUser user = pn.getEnvelope().getRecipient();
+				logger.error(String.format("Cannot send push notification to %s: FCM token (%s) is stale or invalid.", user.getManagedIdentity(), user.getFcmTokenTimestamp()));
+				user.setFcmToken(null);
+    			pendingNotificationDao.remove(pn);
+    		}
+    	}
+    	for (String token : result.getFailedTokens()) {
+    		notificationsByToken.get(token).forEach(pn -> retryLater(pn));
+    	}
+    }
+
+    private void retryLater(PendingNotification pn) {
+    	pn.setAttempts(pn.getAttempts() + 1);
+    	if (pn.getAttempts() >= MAX_ATTEMPTS) {
+			logger.warn(String.format("Giving up push notification to %s after %d attempts",
+					pn.getEnvelope().getRecipient().getManagedIdentity(), pn.getAttempts()));
+    		pendingNotificationDao.remove(pn);
+    	} else {
+    		pn.setNextAttemptTime(Instant.now().plus(RETRY_DELAY.multipliedBy(1L << (pn.getAttempts() - 1))));
+    	}
+    }
 }
@@ -1,12 +1,13 @@
 package eu.netmobiel.communicator.service;
 
 import java.time.Instant;
-import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 
@@ -26,19 +27,21 @@ import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 
 import eu.netmobiel.commons.annotation.Created;
+import eu.netmobiel.commons.annotation.Updated;
 import eu.netmobiel.commons.exception.BadRequestException;
 import eu.netmobiel.commons.exception.BusinessException;
 import eu.netmobiel.commons.exception.CreateException;
 import eu.netmobiel.commons.exception.DuplicateEntryException;
 import eu.netmobiel.commons.exception.NotFoundException;
 import eu.netmobiel.commons.filter.Cursor;
-import eu.netmobiel.commons.model.NetMobielMessage;
 import eu.netmobiel.commons.model.NetMobielUser;
 import eu.netmobiel.commons.model.PagedResult;
 import eu.netmobiel.commons.model.SortDirection;
 import eu.netmobiel.commons.util.ExceptionUtil;
 import eu.netmobiel.commons.util.Logging;
 import eu.netmobiel.communicator.event.ChatMessageEvent;
+import eu.netmobiel.communicator.event.InboxUpdateEvent;
+import eu.netmobiel.communicator.event.NotificationsPendingEvent;
 import eu.netmobiel.communicator.event.RequestConversationEvent;
 import eu.netmobiel.communicator.filter.ConversationFilter;
 import eu.netmobiel.communicator.filter.MessageFilter;
@@ -47,13 +50,13 @@ import eu.netmobiel.communicator.model.Conversation;
 import eu.netmobiel.communicator.model.DeliveryMode;
 import eu.netmobiel.communicator.model.Envelope;
 import eu.netmobiel.communicator.model.Message;
+import eu.netmobiel.communicator.model.PendingNotification;
 import eu.netmobiel.communicator.model.UserRole;
 import eu.netmobiel.communicator.repository.CommunicatorUserDao;
 import eu.netmobiel.communicator.repository.ConversationDao;
 import eu.netmobiel.communicator.repository.EnvelopeDao;
 import eu.netmobiel.communicator.repository.MessageDao;
-import eu.netmobiel.communicator.repository.EnvelopeDao.UnreadMessagesCount;
-import eu.netmobiel.firebase.messaging.FirebaseMessagingClient;
+import eu.netmobiel.communicator.repository.PendingNotificationDao;
 import eu.netmobiel.messagebird.MessageBird;
 
 /**
@@ -94,11 +97,15 @@ public class PublisherService {
 
     @Inject @Created
     private Event<RequestConversationEvent> requestConversationEvent;
-//    @Inject
-//    private NotifierService notifierService;
+
+    @Inject @Created
+    private Event<NotificationsPendingEvent> notificationsPendingEvent;
 
     @Inject
-    private FirebaseMessagingClient firebaseMessagingClient;
+    private PendingNotificationDao pendingNotificationDao;
+
+    @Inject @Updated
+    private Event<InboxUpdateEvent> inboxUpdateEvent;
 
 	private static void validateChatMessage(Message msg) throws CreateException, BadRequestException {
 		// There must be a real sender
@@ -136,37 +143,6 @@ public class PublisherService {
 		return msgId;
     }
 
-    /**
-     * Notifies the recipient in the specified envelope with the given message.
-     * @param msg the message to send as push notification
-     * @param env the recipient's envelope
-     */
-    private void notifyRecipient(NetMobielMessage msg, Envelope env) {
-		try {
-			CommunicatorUser user = env.getRecipient();
-			if (user.getFcmToken() == null || user.getFcmToken().isBlank()) {
-				if (logger.isDebugEnabled()) {
-					logger.debug(String.format("Cannot send push notification to %s (%s): No FCM token set", 
-							user.getManagedIdentity(), user.getName()));
-				}
-			} else if (FirebaseMessagingClient.isFcmTokenProbablyStale(user.getFcmTokenTimestamp())) {
-				logger.warn(String.format("Cannot send push notification to %s: FCM token (%s) is probably stale", user.getName(), user.getFcmTokenTimestamp()));
-				user.setFcmToken(null);
-			} else {
-				try {
-					firebaseMessagingClient.send(user.getFcmToken(), msg);
-					env.setPushTime(Instant.now());
-				} catch (NotFoundException | BadRequestException ex) {
-					logger.error(String.format("Cannot send push notification to %s: FCM token (%s) is stale or invalid.", user.getManagedIdentity(), user.getFcmTokenTimestamp()));
-					user.setFcmToken(null);
-				}
-			}
-		} catch (Exception ex) {
-			logger.error(String.format("Cannot send push notification to %s: %s", 
-					env.getRecipient().getManagedIdentity(), String.join("\n\t", ExceptionUtil.unwindException(ex))));
-		}
-    }
-    
     /**
      * Sends a message and/or a notification to the recipients in the message envelopes.
      * The conversations of sender and recipients must already exist!
@@ -199,22 +175,45 @@ public class PublisherService {
 		messageDao.save(msg);
 		// Just to be sure before invoking the next (asynchronous) method.
 //		messageDao.flush();
-		// Send each user a notification, if required
+		// Update the inbox projection of each conversation
+		if (isInboxMessage(msg)) {
+			for (Envelope env : msg.getEnvelopes()) {
+				conversationDao.addInboxMessage(env.getConversation(), msg.getId(), msg.getCreatedTime(), 
+						!env.isSender() && env.getAckTime() == null);
+			}
+			// Let the connected clients know after the commit
+			inboxUpdateEvent.fire(new InboxUpdateEvent(msg.getId(), msg.getEnvelopes().stream()
+					.map(env -> env.getConversation().getOwner().getManagedIdentity())
+					.collect(Collectors.toSet())));
+		}
+		// Send each user a notification, if required. The notifications are sent after the commit by the notifier.
 		if (msg.getDeliveryMode() == DeliveryMode.NOTIFICATION || msg.getDeliveryMode() == DeliveryMode.ALL) {
-			// The asynchronous notifier method does not save the push time for some reason.
-			// For now: Make synchronous until it is a real problem.
-//			notifierService.sendNotification(msg);
+			Instant now = Instant.now();
+			int count = 0;
 			for (Envelope env : msg.getEnvelopes()) {
 				// Skip the sender envelope, if any.
 				if (env.isSender()) {
 					continue;
 				}
-				notifyRecipient(msg, env);
+				pendingNotificationDao.save(new PendingNotification(env, now));
+				count++;
+			}
+			if (count > 0) {
+				notificationsPendingEvent.fire(new NotificationsPendingEvent(count));
 			}
 		}
     	return msg.getId();
     }
 
+    /**
+     * Determines whether a message is shown in the inbox, i.e. whether the message is part of the inbox projection.
+     * @param msg the message.
+     * @return true if the message has the delivery mode ALL or MESSAGE.
+     */
+    private static boolean isInboxMessage(Message msg) {
+    	return msg.getDeliveryMode() == DeliveryMode.ALL || msg.getDeliveryMode() == DeliveryMode.MESSAGE;
+    }
+
     /**
      * Creates a conversation. This method is used by the front-end to start a conversation. Especially needed when 
      * starting a chat with someone (and no system message was received yet). 
@@ -357,22 +356,14 @@ public class PublisherService {
      * @throws BadRequestException Missing parameters.
      */
 	public @NotNull PagedResult<Message> listMessages(MessageFilter filter, Cursor cursor) throws BadRequestException {
-    	// As an optimisation we could first call the data. If less then maxResults are received, we can deduce the totalCount and thus omit
-    	// the additional call to determine the totalCount.
-    	// For now don't do conditional things. First always total count, then data if data is requested. 
-    	// Get the total count
 		filter.validate();
 		cursor.validate(MAX_RESULTS, 0);
-    	PagedResult<Long> prs = messageDao.listMessages(filter, Cursor.COUNTING_CURSOR);
-    	List<Message> results = null;
-    	if (!cursor.isCountingQuery()) {
-    		// Get the actual data
-    		PagedResult<Long> mids = messageDao.listMessages(filter, cursor);
-    		results = messageDao.loadGraphs(mids.getData(), Message.MESSAGE_ENVELOPES_ENTITY_GRAPH, Message::getId);
-    	} else {
-    		results = Collections.emptyList();
-    	}
-    	return new PagedResult<>(results, cursor, prs.getTotalCount());
+    	// A single call: The total count is determined by the first page only, then carried by the continuation token.
+		PagedResult<Long> mids = messageDao.listMessages(filter, cursor);
+    	List<Message> results = messageDao.loadGraphs(mids.getData(), Message.MESSAGE_ENVELOPES_ENTITY_GRAPH, Message::getId);
+    	PagedResult<Message> page = new PagedResult<>(results, cursor, mids.getTotalCount());
+    	page.setNext(mids.getNext());
+    	return page;
 	}
 
 	/**
@@ -430,33 +421,23 @@ public class PublisherService {
         	throw new BadRequestException("You cannot have actualOnly AND archiveOnly at the same time");
         }
     	// Get the total count
-    	PagedResult<Long> prs = messageDao.listTopMessagesByConversations(null, owner, 
-    			actualOnly, archivedOnly, sortDir, 0, offset);
-    	List<Message> messages = null;
+    	PagedResult<Long> prs = conversationDao.listInboxConversations(owner, actualOnly, archivedOnly, sortDir, 0, offset);
+    	List<Conversation> conversations = null;
     	if (maxResults > 0) {
-    		// Get the actual data
-        	PagedResult<Long> mids = messageDao.listTopMessagesByConversations(null, owner, 
-        			actualOnly, archivedOnly, sortDir, maxResults, offset);
-        	messages = messageDao.loadGraphs(mids.getData(), Message.MESSAGE_ENVELOPES_ENTITY_GRAPH, Message::getId);
+    		// Get the actual data. The inbox projection of the conversation refers to the most recent message
+        	PagedResult<Long> cids = conversationDao.listInboxConversations(owner, actualOnly, archivedOnly, sortDir, maxResults, offset);
+        	conversations = conversationDao.loadGraphs(cids.getData(), Conversation.FULL_ENTITY_GRAPH, Conversation::getId);
+        	List<Long> mids = conversations.stream()
+        			.map(Conversation::getRecentMessageId)
+        			.collect(Collectors.toList());
+        	Map<Long, Message> messages = messageDao.loadGraphs(mids, Message.MESSAGE_ENVELOPES_ENTITY_GRAPH, Message::getId).stream()
+        			.collect(Collectors.toMap(Message::getId, Function.identity()));
+        	conversations.forEach(c -> c.setRecentMessage(messages.get(c.getRecentMessageId())));
     	} else {
-    		messages = Collections.emptyList();
+    		conversations = Collections.emptyList();
     	}
     	// Detach all objects, we do not want to modify the database.
-    	messageDao.clear();
-    	List<Conversation> conversations = new ArrayList<>();
-    	for (Message msg: messages) {
-    		Conversation c = msg.getEnvelopes().stream()
-    				.filter(env -> owner.equals(env.getConversation().getOwner()))
-    				.findFirst()
-    				.orElseThrow(() -> new IllegalStateException("Expected an envelope for owner: " + owner))
-    				.getConversation();
-    		conversations.add(c);
-    		c.setRecentMessage(msg);
-    	}
-    	Map<Long, Conversation> cMap = conversations.stream()
-    			.collect(Collectors.toMap(Conversation::getId, Function.identity()));
-    	List<UnreadMessagesCount> umsgCount = envelopeDao.countUnreadMessages(cMap.keySet());
-    	umsgCount.forEach(uc -> cMap.get(uc.conversationId).setUnreadCount(uc.unreadCount.intValue()));
+    	conversationDao.clear();
     	return new PagedResult<>(conversations, maxResults, offset, prs.getTotalCount());
     }
 
@@ -539,8 +520,14 @@ public class PublisherService {
 	    		throw new BadRequestException("recipient is a mandatory parameter");
 	    	}
 	    	Envelope envdb = envelopeDao.findByMessageAndRecipient(messageId, recipient);
+	    	boolean wasUnread = envdb.getAckTime() == null;
 	    	envdb.setAckTime(ackTime);
 	    	envelopeDao.merge(envdb);
+	    	// Keep the unread count of the inbox projection in sync
+	    	if (!envdb.isSender() && isInboxMessage(envdb.getMessage()) && wasUnread != (ackTime == null)) {
+	    		conversationDao.updateUnreadCount(envdb.getConversation(), wasUnread ? -1 : 1);
+	    		inboxUpdateEvent.fire(new InboxUpdateEvent(null, Set.of(recipient.getManagedIdentity())));
+	    	}
     	} catch (NoResultException ex) {
     		throw new NotFoundException (String.format("No such recipient %s for message %d", recipient, messageId));	
     	}
@@ -552,5 +539,18 @@ public class PublisherService {
      */
 	public void acknowledgeConversation(Conversation conv) {
 		envelopeDao.acknowledge(conv, Instant.now());
+		conversationDao.resetUnreadCount(conv);
+		inboxUpdateEvent.fire(new InboxUpdateEvent(null, Set.of(conv.getOwner().getManagedIdentity())));
+	}
+
+	/**
+	 * Counts the unread messages of a number of users.
+	 * @param managedIdentities the managed identities of the users.
+	 * @return A map of the managed identity and the number of unread messages. Users without unread messages are included.
+	 */
+	public Map<String, Integer> countUnreadMessages(Collection<String> managedIdentities) {
+		Map<String, Integer> counts = conversationDao.countUnreadMessages(managedIdentities);
+		managedIdentities.forEach(mid -> counts.putIfAbsent(mid, 0));
+		return counts;
 	}
 }
@@ -20,10 +20,12 @@ import org.slf4j.Logger;
 import eu.netmobiel.commons.exception.BadRequestException;
 import eu.netmobiel.commons.filter.Cursor;
 import eu.netmobiel.commons.model.PagedResult;
+import eu.netmobiel.commons.model.SortDirection;
 import eu.netmobiel.communicator.filter.ConversationFilter;
 import eu.netmobiel.communicator.model.CommunicatorUser;
 import eu.netmobiel.communicator.model.Conversation;
 import eu.netmobiel.communicator.model.Conversation_;
+import eu.netmobiel.communicator.model.Message;
 import eu.netmobiel.communicator.test.CommunicatorIntegrationTestBase;
 
 @RunWith(Arquillian.class)
@@ -168,4 +170,38 @@ public class ConversationDaoIT extends CommunicatorIntegrationTestBase {
 			assertTrue(c.getContexts().contains(context));
 		}
     }
+
+    @Test
+    public void inboxProjection() throws Exception {
+    	List<Message> msgs = em.createQuery("select m from Message m order by m.id asc", Message.class)
+    			.setMaxResults(2)
+    			.getResultList();
+    	Message older = msgs.get(0);
+    	Message newer = msgs.get(1);
+    	dao.addInboxMessage(convP1_1, newer.getId(), newer.getCreatedTime(), true);
+    	// The older message does not replace the recent message, but counts as unread
+    	dao.addInboxMessage(convP1_1, older.getId(), older.getCreatedTime(), true);
+    	dao.addInboxMessage(convP1_2, older.getId(), older.getCreatedTime(), false);
+    	flush();
+
+    	Conversation c = dao.find(convP1_1.getId()).orElseThrow();
+    	assertEquals(newer.getId(), c.getRecentMessageId());
+    	assertEquals(newer.getCreatedTime(), c.getRecentMessageTime());
+    	assertEquals(2, c.getUnreadCount());
+    	assertEquals(2, dao.countUnreadMessages(userP1));
+
+    	PagedResult<Long> count = dao.listInboxConversations(userP1, false, false, null, 0, 0);
+    	assertEquals(2L, count.getTotalCount().longValue());
+    	PagedResult<Long> cids = dao.listInboxConversations(userP1, false, false, SortDirection.DESC, 10, 0);
+    	assertEquals(List.of(convP1_1.getId(), convP1_2.getId()), cids.getData());
+    	assertEquals(0L, dao.listInboxConversations(userP2, false, false, null, 0, 0).getTotalCount().longValue());
+
+    	dao.updateUnreadCount(convP1_1, -1);
+    	dao.updateUnreadCount(convP1_2, -1);
+    	flush();
+    	assertEquals(1, dao.countUnreadMessages(userP1));
+    	dao.resetUnreadCount(convP1_1);
+    	flush();
+    	assertEquals(0, dao.countUnreadMessages(userP1));
+    }
 }
@@ -211,85 +211,4 @@ public class MessageDaoIT extends CommunicatorIntegrationTestBase {
     	
     }
 
-
-    @Test
-    public void listTopMessagesWithConversations_Data() {
-    	log.info("Test lookup of conversations with most recent message");
-    	final CommunicatorUser participant = userC1;
-    	PagedResult<Long> archMessageIds = messageDao.listTopMessagesByConversations(null, participant, false, true, null, 100, 0);
-    	List<Message> messages = messageDao.loadGraphs(archMessageIds.getData(), Message.MESSAGE_ENVELOPES_ENTITY_GRAPH, Message::getId);
-    	dump("Archived Top Messages", messages);
-    	Long expArchCount = em.createQuery(
-        		"select count(c) from Conversation c where c.owner = :participant and c.archivedTime is not null",
-        		Long.class)
-        		.setParameter("participant", participant)
-        		.getSingleResult();
-    	assertTrue("Arch Count > 0", expArchCount > 0);
-    	assertEquals("Archived count must match", expArchCount.longValue(), archMessageIds.getCount());
-
-    	PagedResult<Long> actualMessageIds = messageDao.listTopMessagesByConversations(null, participant, true, false, null, 100, 0);
-    	Long expActualCount = em.createQuery(
-        		"select count(c) from Conversation c where c.owner = :participant and c.archivedTime is null",
-        		Long.class)
-        		.setParameter("participant", participant)
-        		.getSingleResult();
-    	assertTrue("Actual Count > 0", expActualCount > 0);
-    	assertEquals("Actual count must match", expActualCount.longValue(), actualMessageIds.getCount());
-
-    	PagedResult<Long> messageIds = messageDao.listTopMessagesByConversations(null, participant, false, false, null, 100, 0);
-    	Long expCount = em.createQuery(
-        		"select count(c) from Conversation c where c.owner = :participant",
-        		Long.class)
-        		.setParameter("participant", participant)
-        		.getSingleResult();
-    	assertTrue("Count > 0", expCount > 0);
-    	assertEquals("Total count must match", expCount.longValue(), messageIds.getCount());
-    	assertEquals("Total count must match", expCount.longValue(), archMessageIds.getCount() + actualMessageIds.getCount());
-    }
-
-    @Test
-    public void listTopMessagesWithConversations_count() {
-    	log.info("Test lookup of conversations with most recent message");
-    	final CommunicatorUser participant = userC1;
-    	PagedResult<Long> archMessageIds = messageDao.listTopMessagesByConversations(null, participant, false, true, null, 0, 0);
-    	
-    	Long expArchCount = em.createQuery(
-        		"select count(c) from Conversation c where c.owner = :participant and c.archivedTime is not null",
-        		Long.class)
-        		.setParameter("participant", participant)
-        		.getSingleResult();
-    	assertTrue("Arch Count > 0", expArchCount > 0);
-    	assertEquals("Archived count must match", expArchCount.longValue(), archMessageIds.getTotalCount().longValue());
-
-    	PagedResult<Long> actualMessageIds = messageDao.listTopMessagesByConversations(null, participant, true, false, null, 0, 0);
-    	Long expActualCount = em.createQuery(
-        		"select count(c) from Conversation c where c.owner = :participant and c.archivedTime is null",
-        		Long.class)
-        		.setParameter("participant", participant)
-        		.getSingleResult();
-    	assertTrue("Actual Count > 0", expActualCount > 0);
-    	assertEquals("Actual count must match", expActualCount.longValue(), actualMessageIds.getTotalCount().longValue());
-
-    	PagedResult<Long> messageIds = messageDao.listTopMessagesByConversations(null, participant, false, false, null, 0, 0);
-    	Long expCount = em.createQuery(
-        		"select count(c) from Conversation c where c.owner = :participant",
-        		Long.class)
-        		.setParameter("participant", participant)
-        		.getSingleResult();
-    	assertTrue("Count > 0", expCount > 0);
-    	assertEquals("Total count must match", expCount.longValue(), messageIds.getTotalCount().longValue());
-    	assertEquals("Total count must match", expCount.longValue(), archMessageIds.getTotalCount().longValue() + actualMessageIds.getTotalCount().longValue());
-
-    	String context = "Ride C1.1";
-    	PagedResult<Long> contextMessageIds = messageDao.listTopMessagesByConversations(context, participant, false, false, null, 0, 0);
-    	Long expContextCount = em.createQuery(
-        		"select count(c) from Conversation c where c.owner = :participant and :context member of c.contexts",
-        		Long.class)
-        		.setParameter("participant", participant)
-        		.setParameter("context", context)
-        		.getSingleResult();
-    	assertTrue("Count == 1", expContextCount == 1);
-    	assertEquals("Count must match", expContextCount.longValue(), contextMessageIds.getTotalCount().longValue());
-    }
-
 }
@@ -36,6 +36,7 @@ import eu.netmobiel.commons.jaxrs.ProcessingExceptionMapper;
 import eu.netmobiel.commons.jaxrs.SecurityExceptionMapper;
 import eu.netmobiel.commons.jaxrs.WebApplicationExceptionMapper;
 import eu.netmobiel.communicator.api.resource.ConversationsResource;
+import eu.netmobiel.communicator.api.resource.InboxStreamResource;
 import eu.netmobiel.communicator.api.resource.MessagesResource;
 import eu.netmobiel.communicator.api.resource.TestsResource;
 import eu.netmobiel.communicator.api.resource.UsersResource;
@@ -78,6 +79,7 @@ public class CommunicatorApplication extends Application {
     public Set<Class<?>> getClasses() {
         Set<Class<?>> resources = new HashSet<>();
         resources.add(ConversationsResource.class);
+        resources.add(InboxStreamResource.class);
         resources.add(MessagesResource.class);
         resources.add(TestsResource.class);
         resources.add(UsersResource.class);
@@ -38,6 +38,8 @@ public abstract class ConversationMapper {
 	@Mapping(target = "id", ignore = true)
 	@Mapping(target = "recentMessage", ignore = true)
 	@Mapping(target = "unreadCount", ignore = true)
+	@Mapping(target = "recentMessageId", ignore = true)
+	@Mapping(target = "recentMessageTime", ignore = true)
 	public abstract Conversation map(eu.netmobiel.communicator.api.model.Conversation source);
 
 }
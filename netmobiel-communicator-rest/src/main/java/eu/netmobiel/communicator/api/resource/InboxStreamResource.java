@@ -0,0 +1,48 @@
+package eu.netmobiel.communicator.api.resource;
+
+import javax.enterprise.context.RequestScoped;
+import javax.inject.Inject;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.sse.Sse;
+import javax.ws.rs.sse.SseEventSink;
+
+import eu.netmobiel.commons.exception.BusinessException;
+import eu.netmobiel.commons.model.CallingContext;
+import eu.netmobiel.communicator.api.stream.InboxHub;
+import eu.netmobiel.communicator.model.CommunicatorUser;
+
+/**
+ * The inbox stream of the calling (effective) user as server-sent events. Instead of polling the conversations and 
+ * the messages, the client keeps a connection open and receives a 'message' event for each new message and an
+ * 'unread' event with the total number of unread messages at each change. The first event after connecting is always 
+ * an 'unread' event. The stream is not part of the OpenAPI specification, the generator cannot handle an event sink. 
+ * 
+ * @author Jaap Reitsma
+ *
+ */
+@Path("/inbox")
+@RequestScoped
+public class InboxStreamResource extends CommunicatorResource {
+
+	@Inject
+	private InboxHub inboxHub;
+
+    @GET
+    @Path("/stream")
+    @Produces(MediaType.SERVER_SENT_EVENTS)
+    public void streamInbox(@Context SseEventSink sink, @Context Sse sse) {
+		try {
+			CallingContext<CommunicatorUser> callingContext = communicatorUserManager.findOrRegisterCallingContext(securityIdentity);
+			CommunicatorUser me = callingContext.getEffectiveUser();
+			inboxHub.subscribe(me.getManagedIdentity(), sink, sse);
+		} catch (BusinessException e) {
+			throw new WebApplicationException(e);
+		}
+    }
+
+}
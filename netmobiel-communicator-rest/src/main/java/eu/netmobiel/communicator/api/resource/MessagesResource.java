@@ -72,7 +72,7 @@ public class MessagesResource extends CommunicatorResource implements MessagesAp
 
 	@Override
 	public Response listMessages(String xDelegator, String participantId, String context, 
-			OffsetDateTime since, OffsetDateTime until, String deliveryMode, String sortDir, Integer maxResults, Integer offset) {
+			OffsetDateTime since, OffsetDateTime until, String deliveryMode, String sortDir, Integer maxResults, Integer offset, String after) {
 		Response rsp = null;
 		PagedResult<Message> result = null;
 		try {
@@ -80,7 +80,7 @@ public class MessagesResource extends CommunicatorResource implements MessagesAp
 			CommunicatorUser participant = resolveUserReference(callingContext, participantId);
 			allowAdminOrEffectiveUser(callingContext, participant);
 			MessageFilter filter = new MessageFilter(participant, since, until, context, sortDir);
-			Cursor cursor = new Cursor(maxResults, offset);
+			Cursor cursor = new Cursor(maxResults, offset, after);
 			if (deliveryMode != null && !deliveryMode.isEmpty()) {
 	        	DeliveryMode dm = Stream.of(DeliveryMode.values())
 							.filter(m -> m.name().equals(deliveryMode))
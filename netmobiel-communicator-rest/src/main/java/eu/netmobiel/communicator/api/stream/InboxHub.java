@@ -0,0 +1,259 @@
+package eu.netmobiel.communicator.api.stream;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import javax.enterprise.concurrent.ManagedExecutorService;
+import javax.enterprise.concurrent.ManagedScheduledExecutorService;
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.event.Observes;
+import javax.enterprise.event.TransactionPhase;
+import javax.inject.Inject;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.sse.OutboundSseEvent;
+import javax.ws.rs.sse.Sse;
+import javax.ws.rs.sse.SseEventSink;
+
+import org.slf4j.Logger;
+
+import eu.netmobiel.commons.annotation.Updated;
+import eu.netmobiel.commons.util.ExceptionUtil;
+import eu.netmobiel.communicator.api.mapping.MessageMapper;
+import eu.netmobiel.communicator.event.InboxUpdateEvent;
+import eu.netmobiel.communicator.model.CommunicatorUser;
+import eu.netmobiel.communicator.model.Message;
+import eu.netmobiel.communicator.service.PublisherService;
+
+/**
+ * The in-process fan-out hub of the inbox stream. Each connected client has a server-sent event sink, registered 
+ * by the managed identity of the (effective) user. After the commit of a new message or a change of the unread count,
+ * the hub pushes a 'message' event with the new message (only the envelope of the user, unless the user is the sender)
+ * and an 'unread' event with the total number of unread messages to the sinks of the affected users. 
+ * 
+ * The hub does nothing at all for users without a connection. The database is only accessed for the connected users,
+ * on a thread of the managed executor, never in the thread of the committing transaction. 
+ * A periodic heartbeat detects and removes the connections closed by the client.
+ * 
+ * @author Jaap Reitsma
+ *
+ */
+@ApplicationScoped
+public class InboxHub {
+	/**
+	 * The maximum number of simultaneous connections of a single user. When exceeded, the oldest connection is closed.
+	 */
+	public static final int MAX_CONNECTIONS_PER_USER = 8;
+	/**
+	 * The interval of the heartbeat comment. Must be shorter than the idle timeout of the proxies in between.
+	 */
+	public static final int HEARTBEAT_INTERVAL_SECS = 30;
+	/**
+	 * The initial capacity of the registry, sized for thousands of connected users.
+	 */
+	private static final int INITIAL_CAPACITY = 4096;
+
+	public static final String MESSAGE_EVENT = "message";
+	public static final String UNREAD_EVENT = "unread";
+
+	@Inject
+    private Logger log;
+
+	@Inject
+    private PublisherService publisherService;
+
+	@Inject
+    private MessageMapper messageMapper;
+
+    @Resource
+    private ManagedExecutorService executor;
+
+    @Resource
+    private ManagedScheduledExecutorService scheduler;
+
+    /**
+     * The subscriptions: The event sinks by managed identity.
+     */
+    private final ConcurrentMap<String, List<SseEventSink>> subscriptions = new ConcurrentHashMap<>(INITIAL_CAPACITY);
+
+    /**
+     * The event factory. The instance is handed over by the JAX-RS runtime at the first subscription. 
+     */
+    private volatile Sse sse;
+
+    private ScheduledFuture<?> heartbeat;
+
+    @PostConstruct
+    public void initialize() {
+    	heartbeat = scheduler.scheduleAtFixedRate(this::sendHeartbeat, HEARTBEAT_INTERVAL_SECS, HEARTBEAT_INTERVAL_SECS, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+    	if (heartbeat != null) {
+    		heartbeat.cancel(false);
+    	}
+    	subscriptions.values().forEach(sinks -> {
+    		synchronized (sinks) {
+    			sinks.forEach(this::closeQuietly);
+    		}
+    	});
+    	subscriptions.clear();
+    }
+
+    /**
+     * Registers an event sink of a user and sends the actual unread count.
+     * @param managedIdentity the managed identity of the user.
+     * @param sink the event sink of the connection.
+     * @param anSse the event factory.
+     */
+    public void subscribe(String managedIdentity, SseEventSink sink, Sse anSse) {
+    	this.sse = anSse;
+    	List<SseEventSink> evicted = new ArrayList<>(1);
+    	// The registration of a user is atomic with respect to the removal of the last sink of that user
+    	subscriptions.compute(managedIdentity, (mid, sinks) -> {
+    		List<SseEventSink> userSinks = sinks != null ? sinks : new ArrayList<>(2);
+    		synchronized (userSinks) {
+    			userSinks.add(sink);
+    			if (userSinks.size() > MAX_CONNECTIONS_PER_USER) {
+    				evicted.add(userSinks.remove(0));
+    			}
+    		}
+    		return userSinks;
+    	});
+    	evicted.forEach(this::closeQuietly);
+    	Map<String, Integer> counts = publisherService.countUnreadMessages(Set.of(managedIdentity));
+    	send(managedIdentity, sink, createUnreadEvent(counts.get(managedIdentity)));
+    }
+
+    /**
+     * Removes an event sink of a user.
+     * @param managedIdentity the managed identity of the user.
+     * @param sink the event sink.
+     */
+    public void unsubscribe(String managedIdentity, SseEventSink sink) {
+    	subscriptions.computeIfPresent(managedIdentity, (mid, sinks) -> {
+    		synchronized (sinks) {
+    			sinks.remove(sink);
+    			return sinks.isEmpty() ? null : sinks;
+    		}
+    	});
+    }
+
+    /**
+     * Returns the number of users with at least one connection.
+     * @return the number of connected users.
+     */
+    public int getConnectedUserCount() {
+    	return subscriptions.size();
+    }
+
+    /**
+     * Fans out the inbox update to the connected users, after the commit of the transaction.
+     * @param event the inbox update.
+     */
+    public void onInboxUpdate(@Observes(during = TransactionPhase.AFTER_SUCCESS) @Updated InboxUpdateEvent event) {
+    	Set<String> connected = event.getOwners().stream()
+    			.filter(subscriptions::containsKey)
+    			.collect(Collectors.toSet());
+    	if (connected.isEmpty()) {
+    		return;
+    	}
+    	executor.execute(() -> dispatch(event.getMessageId(), connected));
+    }
+
+    private void dispatch(Long messageId, Set<String> connected) {
+    	try {
+	    	Message msg = messageId != null ? publisherService.getMessage(messageId) : null;
+	    	Map<String, Integer> counts = publisherService.countUnreadMessages(connected);
+	    	for (String mid : connected) {
+	    		if (msg != null) {
+	    			broadcast(mid, createMessageEvent(mid, msg));
+	    		}
+	    		broadcast(mid, createUnreadEvent(counts.get(mid)));
+	    	}
+    	} catch (Exception ex) {
+    		log.error("Error dispatching inbox update: " + String.join("\n\t", ExceptionUtil.unwindException(ex)));
+    	}
+    }
+
+    private OutboundSseEvent createMessageEvent(String managedIdentity, Message msg) {
+    	eu.netmobiel.communicator.api.model.Message apiMsg = messageMapper.map(msg);
+    	CommunicatorUser sender = msg.getSender();
+    	// Only the sender may see the other recipients 
+    	if (sender == null || !managedIdentity.equals(sender.getManagedIdentity())) {
+    		apiMsg.getEnvelopes().removeIf(env -> !managedIdentity.equals(env.getRecipient().getManagedIdentity()));
+    	}
+    	return sse.newEventBuilder()
+    			.name(MESSAGE_EVENT)
+    			.id(String.valueOf(msg.getId()))
+    			.mediaType(MediaType.APPLICATION_JSON_TYPE)
+    			.data(eu.netmobiel.communicator.api.model.Message.class, apiMsg)
+    			.build();
+    }
+
+    private OutboundSseEvent createUnreadEvent(Integer count) {
+    	return sse.newEventBuilder()
+    			.name(UNREAD_EVENT)
+    			.mediaType(MediaType.APPLICATION_JSON_TYPE)
+    			.data(Map.class, Collections.singletonMap("unreadMessageCount", count != null ? count : 0))
+    			.build();
+    }
+
+    private void broadcast(String managedIdentity, OutboundSseEvent event) {
+    	List<SseEventSink> sinks = subscriptions.get(managedIdentity);
+    	if (sinks == null) {
+    		return;
+    	}
+    	List<SseEventSink> targets;
+    	synchronized (sinks) {
+    		targets = new ArrayList<>(sinks);
+    	}
+    	targets.forEach(sink -> send(managedIdentity, sink, event));
+    }
+
+    private void send(String managedIdentity, SseEventSink sink, OutboundSseEvent event) {
+    	if (sink.isClosed()) {
+    		unsubscribe(managedIdentity, sink);
+    		return;
+    	}
+    	sink.send(event).exceptionally(ex -> {
+    		if (log.isDebugEnabled()) {
+    			log.debug(String.format("Connection of %s is lost: %s", managedIdentity, ex.toString()));
+    		}
+    		unsubscribe(managedIdentity, sink);
+    		closeQuietly(sink);
+    		return null;
+    	});
+    }
+
+    private void sendHeartbeat() {
+    	if (sse == null) {
+    		return;
+    	}
+    	try {
+	    	OutboundSseEvent ping = sse.newEventBuilder().comment("ping").build();
+	    	subscriptions.keySet().forEach(mid -> broadcast(mid, ping));
+    	} catch (Exception ex) {
+    		log.error("Error sending the heartbeat: " + ex.toString());
+    	}
+    }
+
+    private void closeQuietly(SseEventSink sink) {
+    	try {
+    		sink.close();
+    	} catch (Exception ex) {
+    		log.warn("Error closing event sink: " + ex.toString());
+    	}
+    }
+}
@@ -6,8 +6,10 @@ import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 import javax.annotation.PostConstruct;
@@ -27,6 +29,7 @@ import com.google.firebase.messaging.FirebaseMessagingException;
 import com.google.firebase.messaging.Message;
 import com.google.firebase.messaging.MulticastMessage;
 import com.google.firebase.messaging.Notification;
+import com.google.firebase.messaging.SendResponse;
 
 import eu.netmobiel.commons.exception.BadRequestException;
 import eu.netmobiel.commons.exception.NotFoundException;
@@ -46,6 +49,10 @@ public class FirebaseMessagingClient {
 	 * Maximum lifetime of a Firebase Cloud Messaging Token 
 	 */
 	public static final int MAX_TTL_FCM_TOKEN = 60;
+	/**
+	 * Maximum number of recipients of a single multicast message.
+	 */
+	public static final int MAX_MULTICAST_TOKENS = 500;
 	
     @Inject
     private Logger log;
@@ -180,13 +187,13 @@ public class FirebaseMessagingClient {
     }
 
     /**
-     * Sends a single message to multiple recipients (at most 500). NOT TESTED. Has invalid response, 
-     * should check for fail responses and delete invalid FCM tokens.
+     * Sends a single message to multiple recipients (at most 500). 
      * @param firebaseTokens the firebase tokens of the recipients.
      * @param msg The message to send.
+     * @return the outcome for each token.
      */
-    public void send(Collection<String> firebaseTokens, NetMobielMessage msg) {
-    	send(firebaseTokens, msg, false);
+    public MulticastResult send(Collection<String> firebaseTokens, NetMobielMessage msg) {
+    	return send(firebaseTokens, msg, false);
     }
 
     /**
@@ -194,24 +201,43 @@ public class FirebaseMessagingClient {
      * @param firebaseTokens the firebase tokens of the recipients.
      * @param msg The message to send.
      * @param dryRun a boolean indicating whether to perform a dry run (validation only) of the send.
+     * @return the outcome for each token. Tokens that are not registered or invalid are rejected.
      */
-    public void send(Collection<String> firebaseTokens, NetMobielMessage msg, boolean dryRun) {
+    public MulticastResult send(Collection<String> firebaseTokens, NetMobielMessage msg, boolean dryRun) {
     	sanityCheck();
+    	if (firebaseTokens.isEmpty() || firebaseTokens.size() > MAX_MULTICAST_TOKENS) {
+    		throw new IllegalArgumentException("Number of FCM tokens must be between 1 and " + MAX_MULTICAST_TOKENS);
+    	}
+    	// The responses are in the same order as the tokens
+    	List<String> tokens = new ArrayList<>(firebaseTokens);
 	    Notification notification = Notification.builder()
 	    		.setTitle(getTitle(msg))
 	    		.setBody(msg.getBody())
 	    		.build();
     	MulticastMessage message = MulticastMessage.builder()
-        	    .addAllTokens(firebaseTokens)
+        	    .addAllTokens(tokens)
     		    .setNotification(notification)
 		        .putAllData(createCustomDataMap(msg))
     	    .build();
 		try {
 	    	BatchResponse response = client.sendMulticast(message, dryRun);
-	    	// See the BatchResponse reference documentation for the contents of response.
 			if (log.isDebugEnabled()) {
 				log.debug(String.format("Messages sent: #%d, failed #%d", response.getSuccessCount(), response.getFailureCount()));
 			}
+			MulticastResult result = new MulticastResult();
+			List<SendResponse> responses = response.getResponses();
+			for (int i = 0; i < responses.size(); i++) {
+				SendResponse sr = responses.get(i);
+				if (sr.isSuccessful()) {
+					result.addDelivered(tokens.get(i));
+				} else if (sr.getException() != null && ("registration-token-not-registered".equals(sr.getException().getErrorCode())
+						|| "invalid-argument".equals(sr.getException().getErrorCode()))) {
+					result.addRejected(tokens.get(i));
+				} else {
+					result.addFailed(tokens.get(i));
+				}
+			}
+			return result;
 		} catch (FirebaseMessagingException e) {
 			throw new SystemException("Failed to send batch message, error code " + e.getErrorCode(), e);
 		}
@@ -0,0 +1,56 @@
+package eu.netmobiel.firebase.messaging;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The outcome of sending a message to multiple recipients. Each token is either delivered, rejected (the token is
+ * not registered or invalid, do not use it again) or failed (a transient error, the message can be sent again later).
+ * 
+ * @author Jaap Reitsma
+ *
+ */
+public class MulticastResult {
+	private final List<String> deliveredTokens = new ArrayList<>();
+	private final List<String> rejectedTokens = new ArrayList<>();
+	private final List<String> failedTokens = new ArrayList<>();
+
+	void addDelivered(String token) {
+		deliveredTokens.add(token);
+	}
+
+	void addRejected(String token) {
+		rejectedTokens.add(token);
+	}
+
+	void addFailed(String token) {
+		failedTokens.add(token);
+	}
+
+	/**
+	 * The tokens to which the message was delivered.
+	 */
+	public List<String> getDeliveredTokens() {
+		return deliveredTokens;
+	}
+
+	/**
+	 * The tokens that are not registered (anymore) or invalid.
+	 */
+	public List<String> getRejectedTokens() {
+		return rejectedTokens;
+	}
+
+	/**
+	 * The tokens for which the delivery failed for another reason. A retry might succeed.
+	 */
+	public List<String> getFailedTokens() {
+		return failedTokens;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("MulticastResult [delivered %d, rejected %d, failed %d]", 
+				deliveredTokens.size(), rejectedTokens.size(), failedTokens.size());
+	}
+}
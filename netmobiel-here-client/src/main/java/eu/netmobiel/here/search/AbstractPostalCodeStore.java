@@ -0,0 +1,38 @@
+package eu.netmobiel.here.search;
+
+import java.util.List;
+import java.util.Optional;
+
+import javax.persistence.EntityManager;
+
+/**
+ * Base class of a postal code store in the database of a service. The service provides the table postal_code_cache
+ * and a subclass that supplies the entity manager of the service. 
+ * 
+ * This class uses native PostgreSQL SQL.
+ *
+ * @author Jaap Reitsma
+ *
+ */
+public abstract class AbstractPostalCodeStore implements PostalCodeStore {
+
+	protected abstract EntityManager getEntityManager();
+
+	@Override
+	public Optional<String> findPostalCode(String locationKey) {
+		@SuppressWarnings("unchecked")
+		List<String> results = getEntityManager().createNativeQuery("select postal_code from postal_code_cache where location_key = :key")
+				.setParameter("key", locationKey)
+				.getResultList();
+		return results.stream().findFirst();
+	}
+
+	@Override
+	public void savePostalCode(String locationKey, String postalCode) {
+		getEntityManager().createNativeQuery("insert into postal_code_cache (location_key, postal_code, created_time) " + 
+					"values (:key, :postalCode, now()) on conflict (location_key) do nothing")
+				.setParameter("key", locationKey)
+				.setParameter("postalCode", postalCode)
+				.executeUpdate();
+	}
+}
@@ -31,6 +31,13 @@ public class HereSearchClient {
     @Resource(lookup = "java:global/geocode/hereApiKey")
     private String hereApiKey;
 
+    /**
+     * The base URL of a stand-in for the HERE search services, e.g. the replay server used in the load tests. 
+     * The path of each service (/v1/revgeocode etc.) is appended. If empty, the HERE services are used.
+     */
+    @Resource(lookup = "java:global/geocode/hereSearchUrl")
+    private String hereSearchUrl;
+
     private static final String hereSearchAutoSuggestUrl = "https://autosuggest.search.hereapi.com/v1/autosuggest"; 
 //    private static final String hereSearchBrowseUrl = "https://browse.search.hereapi.com/v1/browse"; 
 //    private static final String hereSearchDiscoverUrl = "https://discover.search.hereapi.com/v1/discover"; 
@@ -38,11 +45,18 @@ public class HereSearchClient {
 //    private static final String hereSearchLookupUrl = "https://lookup.search.hereapi.com/v1/lookup"; 
     private static final String hereSearchReverseGeocodeUrl = "https://revgeocode.search.hereapi.com/v1/revgeocode"; 
 
+    private String autoSuggestUrl = hereSearchAutoSuggestUrl;
+    private String reverseGeocodeUrl = hereSearchReverseGeocodeUrl;
     
     private ResteasyClient client;
     
 	@PostConstruct
 	public void createClient() {
+		if (hereSearchUrl != null && !hereSearchUrl.isBlank()) {
+			log.warn("HERE search services are replaced by " + hereSearchUrl);
+			autoSuggestUrl = hereSearchUrl + "/v1/autosuggest";
+			reverseGeocodeUrl = hereSearchUrl + "/v1/revgeocode";
+		}
 		client = new ResteasyClientBuilder()
 				.connectionPoolSize(200)
 				.connectionCheckoutTimeout(5, TimeUnit.SECONDS)
@@ -81,7 +95,7 @@ public class HereSearchClient {
     	if (location == null) {
     		throw new IllegalArgumentException("getReverseGeocode: location is a mandatory parameter");
     	}
-		WebTarget target = client.target(hereSearchReverseGeocodeUrl)
+		WebTarget target = client.target(reverseGeocodeUrl)
 			.queryParam("at", String.format((Locale)null,"%f,%f", location.getLatitude(), location.getLongitude()))
 			.queryParam("lang", language)
 			.queryParam("apiKey", hereApiKey);
@@ -150,7 +164,7 @@ public class HereSearchClient {
     	if (maxResults == null) {
     		maxResults = 20;
     	}
-		WebTarget target = client.target(hereSearchAutoSuggestUrl)
+		WebTarget target = client.target(autoSuggestUrl)
 			.queryParam("q", query)
 			.queryParam("in", String.format((Locale)null, "circle:%f,%f;r=%d", centre.getLatitude(), centre.getLongitude(), radius))
 			.queryParam("lang", language)
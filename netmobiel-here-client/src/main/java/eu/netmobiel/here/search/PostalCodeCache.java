@@ -0,0 +1,189 @@
+package eu.netmobiel.here.search;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.inject.Instance;
+import javax.inject.Inject;
+
+import org.slf4j.Logger;
+
+import eu.netmobiel.commons.model.GeoLocation;
+
+/**
+ * Cache of the 6 position postal codes (1234AB) of locations, to avoid reverse geocoding the same location 
+ * over and over again. The cache is spatially keyed: the coordinates are rounded to 4 decimals, i.e. a cell of 
+ * about 11 by 7 meters in the Netherlands, much smaller than the area of a postal code. 
+ * The first level is a bounded in-memory map, the second level is the postal code store of the service, if any.
+ * 
+ * @author Jaap Reitsma
+ *
+ */
+@ApplicationScoped
+public class PostalCodeCache {
+	/**
+	 * The maximum number of entries in memory.
+	 */
+	public static final int MAX_MEMORY_ENTRIES = 10000;
+	/**
+	 * The maximum number of reverse geocode calls in progress when resolving a batch of locations.
+	 */
+	public static final int MAX_CONCURRENT_LOOKUPS = 4;
+
+	@Inject
+    private Logger log;
+
+	@Inject
+    private HereSearchClient hereSearchClient;
+
+	@Inject
+	private Instance<PostalCodeStore> postalCodeStore;
+
+	private final Map<String, String> memoryCache = Collections.synchronizedMap(new LinkedHashMap<>(1000, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+			return size() > MAX_MEMORY_ENTRIES;
+		}
+	});
+
+	/**
+	 * Creates the spatial key of a location.
+	 * @param location the location.
+	 * @return the key, the rounded latitude and longitude.
+	 */
+	public static String createLocationKey(GeoLocation location) {
+		return String.format(Locale.ROOT, "%.4f,%.4f", location.getLatitude(), location.getLongitude());
+	}
+
+	/**
+	 * Looks up the postal code of a location in the cache only. This call never waits on the geocoding service.
+	 * @param location the location.
+	 * @return the postal code or null if not known (yet).
+	 */
+	public String findPostalCode6(GeoLocation location) {
+		if (location == null) {
+			return null;
+		}
+		String key = createLocationKey(location);
+		String pc = memoryCache.get(key);
+		if (pc == null && postalCodeStore.isResolvable()) {
+			Optional<String> stored = postalCodeStore.get().findPostalCode(key);
+			if (stored.isPresent()) {
+				pc = stored.get();
+				memoryCache.put(key, pc);
+			}
+		}
+		return pc;
+	}
+
+	/**
+	 * Retrieves the postal code of a location from the cache or else from the geocoding service.
+	 * A resolved postal code is added to the memory cache, but not to the store. 
+	 * @param location the location.
+	 * @return the postal code or null if the geocoding service does not know a postal code.
+	 */
+	public String lookupPostalCode6(GeoLocation location) {
+		String pc = findPostalCode6(location);
+		if (pc == null) {
+			pc = hereSearchClient.getPostalCode6(location);
+			if (pc != null && !pc.isEmpty()) {
+				memoryCache.put(createLocationKey(location), pc);
+			}
+		}
+		return pc;
+	}
+
+	/**
+	 * Resolves the postal codes of a batch of locations. The locations that are not cached are reverse geocoded 
+	 * concurrently on the executor, at most MAX_CONCURRENT_LOOKUPS at the same time. The throttling is done at 
+	 * submission: A lookup is submitted to the executor only when a previous lookup has finished, so no executor 
+	 * thread is ever blocked waiting for its turn. The resolved postal codes are added to the memory cache. 
+	 * Use {@link #savePostalCode6} to save them in the store as well.
+	 * @param locations the locations.
+	 * @param executor the executor for the geocoding calls. 
+	 * @return a map of the locations to the postal codes. The postal code of a location is null if the location 
+	 * 		could not be resolved.
+	 */
+	public Map<GeoLocation, String> resolvePostalCodes6(Collection<GeoLocation> locations, Executor executor) {
+		Map<GeoLocation, String> results = new LinkedHashMap<>();
+		Map<GeoLocation, CompletableFuture<String>> lookups = new LinkedHashMap<>();
+		for (GeoLocation location : locations) {
+			String pc = findPostalCode6(location);
+			if (pc != null) {
+				results.put(location, pc);
+			} else if (!lookups.containsKey(location)) {
+				lookups.put(location, new CompletableFuture<>());
+			}
+		}
+		Queue<Map.Entry<GeoLocation, CompletableFuture<String>>> pending = new ConcurrentLinkedQueue<>(lookups.entrySet());
+		for (int i = 0; i < Math.min(MAX_CONCURRENT_LOOKUPS, lookups.size()); i++) {
+			submitNextLookup(pending, executor);
+		}
+		for (Map.Entry<GeoLocation, CompletableFuture<String>> entry : lookups.entrySet()) {
+			String pc = null;
+			try {
+				pc = entry.getValue().join();
+			} catch (Exception ex) {
+				log.warn(String.format("Error reverse geocoding %s: %s", entry.getKey(), ex.toString()));
+			}
+			if (pc != null && !pc.isEmpty()) {
+				memoryCache.put(createLocationKey(entry.getKey()), pc);
+			}
+			results.put(entry.getKey(), pc);
+		}
+		return results;
+	}
+
+	/**
+	 * Submits the next pending lookup to the executor. When the lookup has finished, the lookup after that one 
+	 * is submitted, keeping the number of lookups in progress constant until the queue is exhausted.
+	 * @param pending the lookups not yet submitted.
+	 * @param executor the executor for the geocoding calls.
+	 */
+	private void submitNextLookup(Queue<Map.Entry<GeoLocation, CompletableFuture<String>>> pending, Executor executor) {
+		Map.Entry<GeoLocation, CompletableFuture<String>> lookup;
+		while ((lookup = pending.poll()) != null) {
+			CompletableFuture<String> result = lookup.getValue();
+			GeoLocation location = lookup.getKey();
+			try {
+				CompletableFuture.supplyAsync(() -> hereSearchClient.getPostalCode6(location), executor)
+					.whenComplete((pc, ex) -> {
+						if (ex != null) {
+							result.completeExceptionally(ex);
+						} else {
+							result.complete(pc);
+						}
+						submitNextLookup(pending, executor);
+					});
+				return;
+			} catch (RejectedExecutionException ex) {
+				result.completeExceptionally(ex);
+			}
+		}
+	}
+
+	/**
+	 * Saves the postal code of a location in the cache, including the store. The store requires a transaction.
+	 * @param location the location.
+	 * @param postalCode the postal code. 
+	 */
+	public void savePostalCode6(GeoLocation location, String postalCode) {
+		String key = createLocationKey(location);
+		memoryCache.put(key, postalCode);
+		if (postalCodeStore.isResolvable()) {
+			postalCodeStore.get().savePostalCode(key, postalCode);
+		}
+	}
+}
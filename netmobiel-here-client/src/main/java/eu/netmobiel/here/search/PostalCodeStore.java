@@ -0,0 +1,27 @@
+package eu.netmobiel.here.search;
+
+import java.util.Optional;
+
+/**
+ * The persistent (second level) store of the postal code cache. A service that wants to keep the resolved 
+ * postal codes across restarts provides an implementation backed by its own database, 
+ * usually a subclass of {@link AbstractPostalCodeStore}.
+ * 
+ * @author Jaap Reitsma
+ *
+ */
+public interface PostalCodeStore {
+	/**
+	 * Finds the postal code of a location.
+	 * @param locationKey the spatial key of the location, see {@link PostalCodeCache#createLocationKey}.
+	 * @return the postal code, if known.
+	 */
+	Optional<String> findPostalCode(String locationKey);
+
+	/**
+	 * Saves the postal code of a location. An existing postal code of the location is kept.
+	 * @param locationKey the spatial key of the location.
+	 * @param postalCode the postal code.
+	 */
+	void savePostalCode(String locationKey, String postalCode);
+}
@@ -1,8 +1,11 @@
 package eu.netmobiel.opentripplanner.client;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.StringReader;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.time.Duration;
 import java.time.Instant;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
@@ -14,6 +17,7 @@ import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
 import java.util.function.BiPredicate;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 import javax.annotation.PostConstruct;
@@ -25,6 +29,7 @@ import javax.json.Json;
 import javax.json.JsonArray;
 import javax.json.JsonObject;
 import javax.json.JsonReader;
+import javax.json.stream.JsonParser;
 import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.client.Entity;
 import javax.ws.rs.client.WebTarget;
@@ -43,6 +48,7 @@ import eu.netmobiel.commons.util.MinimumDistanceFilter;
 import eu.netmobiel.opentripplanner.api.model.Itinerary;
 import eu.netmobiel.opentripplanner.api.model.Leg;
 import eu.netmobiel.opentripplanner.api.model.Message;
+import eu.netmobiel.opentripplanner.api.model.Place;
 import eu.netmobiel.opentripplanner.api.model.PlanResponse;
 import eu.netmobiel.opentripplanner.api.model.TraverseMode;
 
@@ -53,6 +59,12 @@ public class OpenTripPlannerClient {
     private static final String OTP_GRAPHQL_REQUEST = "/routers/nl/index/graphql"; 
     private static final String OTP_PLAN_REQUEST = "/routers/nl/plan"; 
     public static final int MINIMUM_PLANNING_DISTANCE_METERS = 20;
+    /**
+     * The plan cache parameters. Only plans without transit are cached.
+     */
+    private static final int PLAN_CACHE_MAX_ENTRIES = 10000;
+    private static final Duration PLAN_CACHE_TIME_TO_LIVE = Duration.ofHours(1);
+    private static final Duration PLAN_CACHE_TIME_BUCKET = Duration.ofMinutes(15);
 
     public static final BiPredicate<GeoLocation, GeoLocation> tooClose = (locA, locB) -> locA.getDistanceFlat(locB) < MINIMUM_PLANNING_DISTANCE_METERS;
 
@@ -60,24 +72,36 @@ public class OpenTripPlannerClient {
     @Resource(lookup = "java:global/openTripPlanner/apiUrl")
     private String openTripPlannerApi;
 
+    /**
+     * The name of the application using the client, to distinguish the metrics of the plan caches. 
+     */
+    @Resource(lookup = "java:app/AppName")
+    private String applicationName;
+
     private ResteasyClient client;
+    private Jackson2ObjectMapperContextResolver objectMapperResolver;
+    private OtpPlanCache planCache;
 	
     @Inject
     private Logger log;
     
 	@PostConstruct
 	public void createClient() {
+		objectMapperResolver = new Jackson2ObjectMapperContextResolver();
+		planCache = new OtpPlanCache("otp-plans-" + applicationName, PLAN_CACHE_MAX_ENTRIES, PLAN_CACHE_TIME_TO_LIVE, PLAN_CACHE_TIME_BUCKET);
+		planCache.registerMBean();
 		client = new ResteasyClientBuilder()
 				.connectionPoolSize(200)
 				.connectionCheckoutTimeout(5, TimeUnit.SECONDS)
 				.maxPooledPerRoute(20)
-				.register(new Jackson2ObjectMapperContextResolver())
+				.register(objectMapperResolver)
 				.property("resteasy.preferJacksonOverJsonB", true)
 				.build();
 	}
 
 	@PreDestroy
 	void cleanup() {
+		planCache.unregisterMBean();
 		client.close();
 	}
 	
@@ -111,49 +135,121 @@ public class OpenTripPlannerClient {
         return stops;
     }
 
-    public List<JsonObject> fetchAllStops() {
-    	List<JsonObject> stops = Collections.emptyList();
-        String result = grapqlQuery("{ stops { id gtfsId name lat lon platformCode } }");
-        try (JsonReader jsonReader = Json.createReader(new StringReader(result))) {
-            JsonObject jobj = jsonReader.readObject();
-            JsonArray jstops = jobj.getJsonObject("data").getJsonArray("stops");
-            stops = jstops.getValuesAs(JsonObject.class);
-        }
-        return stops;
+    /**
+     * Executes a GraphQL query and streams the elements of the top level array in the response. The response 
+     * is parsed incrementally from the input stream, only a single element is in memory at any time. 
+     * @param queryValue the GraphQL query.
+     * @param arrayName the name of the array in the data object of the response.
+     * @param consumer the consumer of each element of the array.
+     * @return the number of elements passed to the consumer.
+     */
+    protected int graphqlQueryForEach(String queryValue, String arrayName, Consumer<JsonObject> consumer) {
+		String url = openTripPlannerApi + OTP_GRAPHQL_REQUEST;
+		WebTarget target = client.target(url);
+		String query = "{ \"query\": \"" + queryValue + "\" }";
+		Entity<?> e = Entity.entity(query, MediaType.APPLICATION_JSON);
+		int count = 0;
+		try (Response response = target.request(MediaType.APPLICATION_JSON).post(e)) {
+			if (response.getStatusInfo() != Response.Status.OK) {
+				throw new WebApplicationException("Error retrieving data from OTP", response);
+			}
+			try (InputStream is = response.readEntity(InputStream.class); JsonParser parser = Json.createParser(is)) {
+				if (!advanceToArray(parser, "data", arrayName)) {
+					throw new WebApplicationException("Unexpected response from OTP: No data." + arrayName + " array");
+				}
+				while (parser.hasNext()) {
+					JsonParser.Event event = parser.next();
+					if (event == JsonParser.Event.END_ARRAY) {
+						break;
+					}
+					if (event == JsonParser.Event.START_OBJECT) {
+						consumer.accept(parser.getObject());
+						count++;
+					}
+				}
+			} catch (IOException ex) {
+				throw new WebApplicationException("Error reading data from OTP", ex);
+			}
+		}
+        return count;
     }
 
-    public List<JsonObject> fetchAllClusters() {
-    	List<JsonObject> clusters = Collections.emptyList();
-        String result = grapqlQuery("{ clusters { id gtfsId name lat lon stops { id } } }"); 
-        try (JsonReader jsonReader = Json.createReader(new StringReader(result))) {
-            JsonObject jobj = jsonReader.readObject();
-            JsonArray jclusters = jobj.getJsonObject("data").getJsonArray("clusters");
-            clusters = jclusters.getValuesAs(JsonObject.class);
-        }
-        return clusters;
+    /**
+     * Moves the parser to the start of the array with the specified path. Only the keys at the expected depth 
+     * are considered. 
+     * @param parser the parser positioned at the start of the document.
+     * @param objectName the name of the object in the root object.
+     * @param arrayName the name of the array in that object.
+     * @return true if the parser is positioned at the start of the array, false if the path is not found.
+     */
+    private static boolean advanceToArray(JsonParser parser, String objectName, String arrayName) {
+    	int depth = 0;
+    	boolean inObject = false;
+		while (parser.hasNext()) {
+			JsonParser.Event event = parser.next();
+			switch (event) {
+			case START_OBJECT:
+			case START_ARRAY:
+				depth++;
+				break;
+			case END_OBJECT:
+			case END_ARRAY:
+				depth--;
+				if (depth < 2) {
+					inObject = false;
+				}
+				break;
+			case KEY_NAME:
+				if (depth == 1 && objectName.equals(parser.getString())) {
+					inObject = parser.next() == JsonParser.Event.START_OBJECT;
+					if (inObject) {
+						depth++;
+					}
+				} else if (inObject && depth == 2 && arrayName.equals(parser.getString())) {
+					return parser.next() == JsonParser.Event.START_ARRAY;
+				}
+				break;
+			default:
+				break;
+			}
+		}
+		return false;
     }
 
-    public List<JsonObject> fetchAllRoutes() {
-    	List<JsonObject> routes = Collections.emptyList();
-        String result = grapqlQuery("{ routes { id gtfsId shortName longName type stops { id } } }"); 
-        try (JsonReader jsonReader = Json.createReader(new StringReader(result))) {
-            JsonObject jobj = jsonReader.readObject();
-            JsonArray jroutes = jobj.getJsonObject("data").getJsonArray("routes");
-            routes = jroutes.getValuesAs(JsonObject.class);
-        }
-        return routes;
+    /**
+     * Streams all stops known by OTP.
+     * @param consumer the consumer of each stop.
+     * @return the number of stops.
+     */
+    public int forEachStop(Consumer<JsonObject> consumer) {
+    	return graphqlQueryForEach("{ stops { id gtfsId name lat lon platformCode } }", "stops", consumer);
     }
 
-    public List<JsonObject> fetchAllTransfers() {
-    	List<JsonObject> transfers = Collections.emptyList();
-        String result = grapqlQuery("{ stops { id transfers { stop { id } distance } } }"); 
-        try (JsonReader jsonReader = Json.createReader(new StringReader(result))) {
-            JsonObject jobj = jsonReader.readObject();
-            JsonArray jstops = jobj.getJsonObject("data").getJsonArray("stops");
-            log.info("fetchAllTransfers: #" + jstops.size() + " stops");
-            transfers = jstops.getValuesAs(JsonObject.class);
-        }
-        return transfers;
+    /**
+     * Streams all clusters known by OTP, each with the ids of its stops.
+     * @param consumer the consumer of each cluster.
+     * @return the number of clusters.
+     */
+    public int forEachCluster(Consumer<JsonObject> consumer) {
+    	return graphqlQueryForEach("{ clusters { id gtfsId name lat lon stops { id } } }", "clusters", consumer);
+    }
+
+    /**
+     * Streams all routes known by OTP, each with the ids of its stops.
+     * @param consumer the consumer of each route.
+     * @return the number of routes.
+     */
+    public int forEachRoute(Consumer<JsonObject> consumer) {
+    	return graphqlQueryForEach("{ routes { id gtfsId shortName longName type stops { id } } }", "routes", consumer);
+    }
+
+    /**
+     * Streams all stops known by OTP, each with its transfers.
+     * @param consumer the consumer of each stop.
+     * @return the number of stops.
+     */
+    public int forEachTransferStop(Consumer<JsonObject> consumer) {
+    	return graphqlQueryForEach("{ stops { id transfers { stop { id } distance } } }", "stops", consumer);
     }
 
 	public static URI createURI(String path) {
@@ -229,6 +325,21 @@ public class OpenTripPlannerClient {
 		if (vias != null) {
 			vias.forEach(loc -> ub.queryParam("intermediatePlaces", loc.toString()));
 		}
+		Instant requestTime = travelTime.truncatedTo(ChronoUnit.SECONDS);
+		OtpPlanCache.Key cacheKey = null;
+		if (OtpPlanCache.isCacheable(modes)) {
+			List<GeoLocation> keyPlaces = new ArrayList<>();
+			keyPlaces.add(fromPlace);
+			keyPlaces.addAll(vias);
+			keyPlaces.add(toPlace);
+			cacheKey = planCache.createKey(keyPlaces, modes, requestTime, useTimeAsArriveBy, showIntermediateStops, maxWalkDistance, maxItineraries);
+			OtpPlanCache.Entry entry = planCache.get(cacheKey);
+			if (entry != null) {
+				result = readPlanResponse(entry.getResponse());
+				shiftPlan(result, Duration.between(entry.getTravelTime(), requestTime));
+				return postProcess(now, result, forcedDepartureTime);
+			}
+		}
 		WebTarget target = client.target(ub);
 		if (log.isDebugEnabled()) {
 			log.debug("OTP request: " + target.getUri().toString());
@@ -239,7 +350,15 @@ public class OpenTripPlannerClient {
 			}
 //			response.bufferEntity();
 //			log.debug(JsonHelper.prettyPrint(JsonHelper.parseJson(response.readEntity(String.class))));
-	        result = response.readEntity(PlanResponse.class);
+			if (cacheKey != null) {
+				byte[] rawResponse = response.readEntity(byte[].class);
+		        result = readPlanResponse(rawResponse);
+		        if (result.plan != null && result.error == null) {
+		        	planCache.put(cacheKey, requestTime, rawResponse);
+		        }
+			} else {
+		        result = response.readEntity(PlanResponse.class);
+			}
 		}
 //		if (result.error != null) {
 //			String msg = String.format("%s - %s", result.error.message, result.error.msg);
@@ -278,6 +397,60 @@ public class OpenTripPlannerClient {
 		return result;
     }
     
+    private PlanResponse readPlanResponse(byte[] rawResponse) {
+    	try {
+			return objectMapperResolver.getContext(PlanResponse.class).readValue(rawResponse, PlanResponse.class);
+		} catch (IOException ex) {
+			throw new WebApplicationException("Error parsing plan response from OTP", ex);
+		}
+    }
+
+    private static Instant shift(Instant instant, Duration delta) {
+    	return instant != null ? instant.plus(delta) : null;
+    }
+
+    private static void shiftPlace(Place place, Duration delta) {
+    	if (place != null) {
+    		place.arrival = shift(place.arrival, delta);
+    		place.departure = shift(place.departure, delta);
+    	}
+    }
+
+    /**
+     * Shifts a (cached) plan in time. Only valid for a plan without transit legs.
+     * @param result the plan response.
+     * @param delta the time to shift the plan.
+     */
+    private static void shiftPlan(PlanResponse result, Duration delta) {
+    	if (result.plan == null || delta.isZero()) {
+    		return;
+    	}
+    	result.plan.date = shift(result.plan.date, delta);
+    	shiftPlace(result.plan.from, delta);
+    	shiftPlace(result.plan.to, delta);
+		for (Itinerary it : result.plan.itineraries) {
+			it.startTime = shift(it.startTime, delta);
+			it.endTime = shift(it.endTime, delta);
+			for (Leg leg : it.legs) {
+				leg.startTime = shift(leg.startTime, delta);
+				leg.endTime = shift(leg.endTime, delta);
+				shiftPlace(leg.from, delta);
+				shiftPlace(leg.to, delta);
+				if (leg.intermediateStops != null) {
+					leg.intermediateStops.forEach(p -> shiftPlace(p, delta));
+				}
+			}
+		}
+    }
+
+    /**
+     * Returns the cache of the (non-transit) plans, e.g. for the statistics or to clear the cache.
+     * @return the plan cache.
+     */
+    public OtpPlanCache getPlanCache() {
+    	return planCache;
+    }
+
     private static void shiftBackItinerary(Itinerary it, Long duration) {
 		it.startTime = it.startTime.minusSeconds(duration);  
 		it.endTime = it.endTime.minusSeconds(duration);
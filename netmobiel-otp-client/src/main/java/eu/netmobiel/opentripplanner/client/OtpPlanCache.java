@@ -0,0 +1,329 @@
+package eu.netmobiel.opentripplanner.client;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import javax.management.ObjectName;
+
+import eu.netmobiel.commons.cache.CacheMBeanSupport;
+import eu.netmobiel.commons.cache.ReferenceDataCacheMXBean;
+import eu.netmobiel.commons.model.GeoLocation;
+import eu.netmobiel.opentripplanner.api.model.TraverseMode;
+
+/**
+ * Bounded cache of OTP plan responses. Only plans without transit are cached: A plan by car, on foot or by bicycle does
+ * not depend on the departure time, except for the times in the plan itself. A cached plan is therefore shifted in time
+ * to the requested travel time before use. Transit plans are never cached, they depend on the timetables.
+ *
+ * The key consists of the labels and rounded coordinates of the places, the (sorted) modes, the arriveBy flag,
+ * the remaining parameters and the time bucket of the travel time. The cache stores the raw response, each hit is deserialized into a new object,
+ * so the callers can freely modify the plan.
+ * Entries are evicted after the time-to-live or when the cache is full (least recently used first).
+ * 
+ * The hit and miss counts are published through JMX after calling {@link #registerMBean()}, in the same way 
+ * as the reference data caches.
+ *
+ * @author Jaap Reitsma
+ *
+ */
+public class OtpPlanCache implements ReferenceDataCacheMXBean {
+	/**
+	 * The number of decimals of the coordinates in the key. 5 decimals is about 1 meter.
+	 */
+	private static final double COORDINATE_SCALE = 1e5;
+
+	private final String name;
+	private final int maxEntries;
+	private final Duration timeToLive;
+	private final long timeBucketSeconds;
+
+	private final AtomicLong hitCount = new AtomicLong();
+	private final AtomicLong missCount = new AtomicLong();
+	private final AtomicLong evictionCount = new AtomicLong();
+	private final AtomicLong invalidationCount = new AtomicLong();
+	private ObjectName objectName;
+
+	/**
+	 * The cache entries in access order. Access is synchronized on the map.
+	 */
+	private final LinkedHashMap<Key, Entry> entries;
+
+	/**
+	 * A cached response.
+	 */
+	public static class Entry {
+		private final Instant travelTime;
+		private final Instant expiresAt;
+		private final byte[] response;
+
+		public Entry(Instant travelTime, Instant expiresAt, byte[] response) {
+			this.travelTime = travelTime;
+			this.expiresAt = expiresAt;
+			this.response = response;
+		}
+
+		/**
+		 * The travel time of the original request.
+		 */
+		public Instant getTravelTime() {
+			return travelTime;
+		}
+
+		/**
+		 * The raw OTP response.
+		 */
+		public byte[] getResponse() {
+			return response;
+		}
+	}
+
+	/**
+	 * The cache key.
+	 */
+	public static class Key {
+		private final String places;
+		private final String modes;
+		private final boolean arriveBy;
+		private final boolean showIntermediateStops;
+		private final Integer maxWalkDistance;
+		private final Integer maxItineraries;
+		private final long timeBucket;
+
+		private Key(String places, String modes, boolean arriveBy, boolean showIntermediateStops, Integer maxWalkDistance, Integer maxItineraries, long timeBucket) {
+			this.places = places;
+			this.modes = modes;
+			this.arriveBy = arriveBy;
+			this.showIntermediateStops = showIntermediateStops;
+			this.maxWalkDistance = maxWalkDistance;
+			this.maxItineraries = maxItineraries;
+			this.timeBucket = timeBucket;
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(places, modes, arriveBy, showIntermediateStops, maxWalkDistance, maxItineraries, timeBucket);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) obj;
+			return timeBucket == other.timeBucket && arriveBy == other.arriveBy && showIntermediateStops == other.showIntermediateStops
+					&& places.equals(other.places) && modes.equals(other.modes)
+					&& Objects.equals(maxWalkDistance, other.maxWalkDistance) && Objects.equals(maxItineraries, other.maxItineraries);
+		}
+
+		@Override
+		public String toString() {
+			return String.format("Key [%s %s %s %s]", places, modes, arriveBy, timeBucket);
+		}
+	}
+
+	/**
+	 * Creates a plan cache.
+	 * @param aMaxEntries the maximum number of entries.
+	 * @param aTimeToLive the maximum time to keep an entry.
+	 * @param aTimeBucket the size of a time bucket. Requests with a travel time in the same bucket share the plan.
+	 */
+	public OtpPlanCache(int aMaxEntries, Duration aTimeToLive, Duration aTimeBucket) {
+		this("otp-plans", aMaxEntries, aTimeToLive, aTimeBucket);
+	}
+
+	/**
+	 * Creates a plan cache.
+	 * @param aName the name of the cache, used for the metrics. The name must be unique within the application server.
+	 * @param aMaxEntries the maximum number of entries.
+	 * @param aTimeToLive the maximum time to keep an entry.
+	 * @param aTimeBucket the size of a time bucket. Requests with a travel time in the same bucket share the plan.
+	 */
+	public OtpPlanCache(String aName, int aMaxEntries, Duration aTimeToLive, Duration aTimeBucket) {
+		this.name = aName;
+		this.maxEntries = aMaxEntries;
+		this.timeToLive = aTimeToLive;
+		this.timeBucketSeconds = aTimeBucket.getSeconds();
+		this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Key, OtpPlanCache.Entry> eldest) {
+				if (size() > maxEntries) {
+					evictionCount.incrementAndGet();
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * The label is part of the key, because OTP copies the label into the plan.
+	 */
+	private static String round(GeoLocation loc) {
+		return String.format("%s::%d,%d", loc.getLabel() != null ? loc.getLabel() : "", 
+				Math.round(loc.getLatitude() * COORDINATE_SCALE), Math.round(loc.getLongitude() * COORDINATE_SCALE));
+	}
+
+	/**
+	 * Determines whether a plan with these modalities can be cached at all.
+	 * @param modes the modalities.
+	 * @return true if there is no transit involved.
+	 */
+	public static boolean isCacheable(TraverseMode[] modes) {
+		return !TraverseMode.containsTransit(modes);
+	}
+
+	/**
+	 * Creates the cache key for a plan request.
+	 * @param places the places: from, the via points and to.
+	 * @param modes the modalities.
+	 * @param travelTime the travel time.
+	 * @param arriveBy whether the travel time is the arrival time.
+	 * @param showIntermediateStops whether to list intermediate stops.
+	 * @param maxWalkDistance the maximum walk distance.
+	 * @param maxItineraries the maximum number of itineraries.
+	 * @return the key.
+	 */
+	public Key createKey(List<GeoLocation> places, TraverseMode[] modes, Instant travelTime, boolean arriveBy,
+			boolean showIntermediateStops, Integer maxWalkDistance, Integer maxItineraries) {
+		return new Key(places.stream().map(OtpPlanCache::round).collect(Collectors.joining(";")),
+				Arrays.stream(modes).map(TraverseMode::name).sorted().collect(Collectors.joining(",")),
+				arriveBy, showIntermediateStops, maxWalkDistance, maxItineraries,
+				Math.floorDiv(travelTime.getEpochSecond(), timeBucketSeconds));
+	}
+
+	/**
+	 * Looks up a plan.
+	 * @param key the key.
+	 * @return the entry or null if not found or expired.
+	 */
+	public Entry get(Key key) {
+		Entry entry;
+		synchronized (entries) {
+			entry = entries.get(key);
+			if (entry != null && entry.expiresAt.isBefore(Instant.now())) {
+				entries.remove(key);
+				evictionCount.incrementAndGet();
+				entry = null;
+			}
+		}
+		if (entry != null) {
+			hitCount.incrementAndGet();
+		} else {
+			missCount.incrementAndGet();
+		}
+		return entry;
+	}
+
+	/**
+	 * Adds a plan to the cache.
+	 * @param key the key.
+	 * @param travelTime the (exact) travel time of the request.
+	 * @param response the raw OTP response.
+	 */
+	public void put(Key key, Instant travelTime, byte[] response) {
+		Entry entry = new Entry(travelTime, Instant.now().plus(timeToLive), response);
+		synchronized (entries) {
+			entries.put(key, entry);
+		}
+	}
+
+	/**
+	 * Removes all entries, e.g. after an update of the graph.
+	 */
+	public void clear() {
+		invalidationCount.incrementAndGet();
+		synchronized (entries) {
+			entries.clear();
+		}
+	}
+
+	public int size() {
+		synchronized (entries) {
+			return entries.size();
+		}
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	@Override
+	public long getTimeToLiveSeconds() {
+		return timeToLive.getSeconds();
+	}
+
+	@Override
+	public int getSize() {
+		return size();
+	}
+
+	@Override
+	public long getHitCount() {
+		return hitCount.get();
+	}
+
+	@Override
+	public long getMissCount() {
+		return missCount.get();
+	}
+
+	@Override
+	public long getEvictionCount() {
+		return evictionCount.get();
+	}
+
+	@Override
+	public long getInvalidationCount() {
+		return invalidationCount.get();
+	}
+
+	@Override
+	public void invalidateAll() {
+		clear();
+	}
+
+	/**
+	 * The ratio of hits to the total number of lookups.
+	 * @return the hit ratio, 0 if there are no lookups yet.
+	 */
+	@Override
+	public double getHitRatio() {
+		long hits = hitCount.get();
+		long total = hits + missCount.get();
+		return total == 0 ? 0.0 : (double) hits / total;
+	}
+
+	/**
+	 * Publishes the metrics of the cache through JMX. Call {@link #unregisterMBean()} when the owner of the cache 
+	 * is destroyed.
+	 */
+	public synchronized void registerMBean() {
+		objectName = CacheMBeanSupport.register(this);
+	}
+
+	/**
+	 * Removes the metrics of the cache from JMX.
+	 */
+	public synchronized void unregisterMBean() {
+		CacheMBeanSupport.unregister(objectName);
+		objectName = null;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("OtpPlanCache %s [%d entries, %d hits, %d misses, hit ratio %.2f]", name, size(), getHitCount(), getMissCount(), getHitRatio());
+	}
+}
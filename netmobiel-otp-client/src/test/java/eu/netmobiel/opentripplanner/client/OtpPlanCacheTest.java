@@ -0,0 +1,84 @@
+package eu.netmobiel.opentripplanner.client;
+
+import static org.junit.Assert.*;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import eu.netmobiel.commons.model.GeoLocation;
+import eu.netmobiel.opentripplanner.api.model.TraverseMode;
+
+public class OtpPlanCacheTest {
+	private static final GeoLocation fromPlace = new GeoLocation(52.00416, 6.51783, "Zieuwent");
+	private static final GeoLocation toPlace = new GeoLocation(51.976426, 6.286011, "Doetinchem");
+	private static final TraverseMode[] carModes = new TraverseMode[] { TraverseMode.CAR, TraverseMode.WALK };
+	private static final Instant travelTime = Instant.parse("2020-06-01T10:05:00Z");
+
+	private OtpPlanCache cache;
+
+	@Before
+	public void setUp() {
+		cache = new OtpPlanCache(2, Duration.ofHours(1), Duration.ofMinutes(15));
+	}
+
+	@Test
+	public void testIsCacheable() {
+		assertTrue(OtpPlanCache.isCacheable(carModes));
+		assertFalse(OtpPlanCache.isCacheable(new TraverseMode[] { TraverseMode.WALK, TraverseMode.BUS }));
+	}
+
+	@Test
+	public void testHitInSameBucket() {
+		OtpPlanCache.Key key = cache.createKey(List.of(fromPlace, toPlace), carModes, travelTime, false, false, null, 1);
+		assertNull(cache.get(key));
+		cache.put(key, travelTime, new byte[] { 1 });
+		// Other order of the modes, slightly different coordinates, same bucket
+		GeoLocation from2 = new GeoLocation(52.004161, 6.517831, "Zieuwent");
+		OtpPlanCache.Key key2 = cache.createKey(List.of(from2, toPlace), new TraverseMode[] { TraverseMode.WALK, TraverseMode.CAR },
+				travelTime.plusSeconds(300), false, false, null, 1);
+		OtpPlanCache.Entry entry = cache.get(key2);
+		assertNotNull(entry);
+		assertEquals(travelTime, entry.getTravelTime());
+		assertEquals(1, cache.getHitCount());
+		assertEquals(1, cache.getMissCount());
+		assertEquals(0.5, cache.getHitRatio(), 0.001);
+	}
+
+	@Test
+	public void testMissOnOtherParameters() {
+		OtpPlanCache.Key key = cache.createKey(List.of(fromPlace, toPlace), carModes, travelTime, false, false, null, 1);
+		cache.put(key, travelTime, new byte[] { 1 });
+		assertNull(cache.get(cache.createKey(List.of(fromPlace, toPlace), carModes, travelTime, true, false, null, 1)));
+		assertNull(cache.get(cache.createKey(List.of(fromPlace, toPlace), carModes, travelTime.plus(Duration.ofMinutes(15)), false, false, null, 1)));
+		assertNull(cache.get(cache.createKey(List.of(toPlace, fromPlace), carModes, travelTime, false, false, null, 1)));
+		assertNull(cache.get(cache.createKey(List.of(fromPlace, toPlace), carModes, travelTime, false, false, 500, 1)));
+	}
+
+	@Test
+	public void testEviction() {
+		for (int i = 0; i < 3; i++) {
+			OtpPlanCache.Key key = cache.createKey(List.of(fromPlace, toPlace), carModes, travelTime.plus(Duration.ofHours(i)), false, false, null, 1);
+			cache.put(key, travelTime, new byte[] { 1 });
+		}
+		assertEquals(2, cache.size());
+		assertEquals(1, cache.getEvictionCount());
+		assertNull(cache.get(cache.createKey(List.of(fromPlace, toPlace), carModes, travelTime, false, false, null, 1)));
+		cache.invalidateAll();
+		assertEquals(0, cache.size());
+		assertEquals(1, cache.getInvalidationCount());
+	}
+
+	@Test
+	public void testExpiry() {
+		OtpPlanCache expiringCache = new OtpPlanCache(10, Duration.ofSeconds(-1), Duration.ofMinutes(15));
+		OtpPlanCache.Key key = expiringCache.createKey(List.of(fromPlace, toPlace), carModes, travelTime, false, false, null, 1);
+		expiringCache.put(key, travelTime, new byte[] { 1 });
+		assertNull(expiringCache.get(key));
+		assertEquals(0, expiringCache.size());
+		assertEquals(1, expiringCache.getEvictionCount());
+	}
+}
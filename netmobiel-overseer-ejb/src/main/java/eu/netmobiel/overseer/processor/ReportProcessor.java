@@ -1,25 +1,35 @@
 package eu.netmobiel.overseer.processor;
 
-import java.io.StringWriter;
+import java.io.IOException;
 import java.io.Writer;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
+import java.nio.file.Path;
+import java.time.Duration;
 import java.time.LocalDate;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
-import javax.activation.DataHandler;
-import javax.activation.DataSource;
 import javax.annotation.Resource;
 import javax.ejb.Asynchronous;
 import javax.ejb.ConcurrencyManagement;
@@ -28,8 +38,8 @@ import javax.ejb.Schedule;
 import javax.ejb.Singleton;
 import javax.ejb.TransactionAttribute;
 import javax.ejb.TransactionAttributeType;
+import javax.enterprise.concurrent.ManagedExecutorService;
 import javax.inject.Inject;
-import javax.mail.BodyPart;
 import javax.mail.MessagingException;
 import javax.mail.Multipart;
 import javax.mail.Session;
@@ -37,7 +47,6 @@ import javax.mail.Transport;
 import javax.mail.internet.MimeBodyPart;
 import javax.mail.internet.MimeMessage;
 import javax.mail.internet.MimeMultipart;
-import javax.mail.util.ByteArrayDataSource;
 
 import org.apache.commons.text.StringSubstitutor;
 import org.slf4j.Logger;
@@ -91,6 +100,15 @@ import eu.netmobiel.rideshare.service.RideshareReportService;
 @TransactionAttribute(TransactionAttributeType.NEVER)
 @Logging
 public class ReportProcessor {
+	/**
+	 * The maximum number of report queries running at the same time, i.e. the number of database connections 
+	 * the report may claim.
+	 */
+	public static final int DB_CONNECTION_BUDGET = 4;
+	/**
+	 * The maximum duration to wait for the report sections to complete.
+	 */
+	private static final Duration REPORT_TIMEOUT = Duration.ofHours(1);
 
 	@Resource(lookup = "java:global/report/recipientEmailAddress")
 	private String reportRecipient;
@@ -110,7 +128,17 @@ public class ReportProcessor {
 	@Resource(mappedName="java:jboss/mail/NetMobiel")
     private Session mailSession;	
 
-	private boolean jobRunning = false;
+	@Resource
+	private ManagedExecutorService executor;
+
+	private volatile boolean jobRunning = false;
+
+	/**
+	 * The scheduler of the tasks of the current report run.
+	 */
+	private volatile ReportTaskScheduler scheduler;
+
+	private List<SectionMetrics> lastSectionMetrics = Collections.emptyList();
 	
 	@Inject
 	private BankerReportService bankerReportService;
@@ -158,7 +186,10 @@ public class ReportProcessor {
     }
 
 	/**
-	 * Start the report job. This is an asynchronous job.
+	 * Start the report job. This is an asynchronous job. The report sections run concurrently on the managed executor, 
+	 * the queries of the sections share a budget of database connections. The job waits for all sections to finish,
+	 * at most REPORT_TIMEOUT. After the timeout the unfinished sections are cancelled. The job is not finished until 
+	 * the last running query has returned, a new job can not be started before.
 	 */
 	@Asynchronous
     public void startReport() {
@@ -166,6 +197,8 @@ public class ReportProcessor {
     		throw new IllegalStateException("Operation already running");
     	}
     	jobRunning = true;
+    	ReportTaskScheduler run = new ReportTaskScheduler(executor, DB_CONNECTION_BUDGET);
+    	scheduler = run;
     	try {
     		log.info("Sending report to " + reportRecipient);
     		// Get the first day
@@ -178,23 +211,115 @@ public class ReportProcessor {
     		String reportDate = until.format(DateTimeFormatter.ISO_LOCAL_DATE);
     		log.info(String.format("Start report %s for period %s - %s", reportDate, since.format(DateTimeFormatter.ISO_LOCAL_DATE), until.format(DateTimeFormatter.ISO_LOCAL_DATE)));
     		
+    		long start = System.nanoTime();
     		Map<String, ProfileReport> profileReportMap = profileReportService.reportUsers();
-    		createAndSendProfilesReport(reportDate, profileReportMap);
-    		createAndSendActivityReport(since, until, reportDate, profileReportMap);
-    		createAndSendPassengerBehaviourReport(since, until, reportDate, profileReportMap);
-    		createAndSendDriverBehaviourReport(since, until, reportDate, profileReportMap);
-    		createAndSendIncentiveModelPassengerReport(since, until, reportDate, profileReportMap);
-    		createAndSendIncentiveModelDriverReport(since, until, reportDate, profileReportMap);
-    		createAndSendRideshareRidesReport(since, until, reportDate, profileReportMap);
-    		createAndSendTripsReport(since, until, reportDate, profileReportMap);
-    		log.info("Done reporting");
+    		List<SectionMetrics> metrics = new ArrayList<>();
+    		List<CompletableFuture<Void>> sections = new ArrayList<>();
+    		sections.add(createAndSendProfilesReport(reportDate, profileReportMap, addMetrics(metrics, "profiles")));
+    		sections.add(createAndSendActivityReport(since, until, reportDate, profileReportMap, addMetrics(metrics, "activity")));
+    		sections.add(createAndSendPassengerBehaviourReport(since, until, reportDate, profileReportMap, addMetrics(metrics, "passenger behaviour")));
+    		sections.add(createAndSendDriverBehaviourReport(since, until, reportDate, profileReportMap, addMetrics(metrics, "driver behaviour")));
+    		sections.add(createAndSendIncentiveModelPassengerReport(since, until, reportDate, profileReportMap, addMetrics(metrics, "incentive model passenger")));
+    		sections.add(createAndSendIncentiveModelDriverReport(since, until, reportDate, profileReportMap, addMetrics(metrics, "incentive model driver")));
+    		sections.add(createAndSendRideshareRidesReport(since, until, reportDate, profileReportMap, addMetrics(metrics, "Rideshare rides")));
+    		sections.add(createAndSendTripsReport(since, until, reportDate, profileReportMap, addMetrics(metrics, "passenger trips")));
+    		try {
+    			CompletableFuture.allOf(sections.toArray(new CompletableFuture<?>[sections.size()]))
+    				.get(REPORT_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS);
+    		} catch (TimeoutException ex) {
+    			log.error(String.format("Report sections not finished within %s, cancelling the report (%d queries running, %d waiting)", 
+    					REPORT_TIMEOUT, run.getRunningCount(), run.getWaitingCount()));
+    		}
+    		metrics.forEach(m -> log.info(m.toString()));
+    		lastSectionMetrics = metrics;
+    		log.info(String.format("Done reporting in %d ms", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
     	} catch (Exception e) {
 			log.error("Error creating report", e);
 		} finally {
-    		jobRunning = false;
+			// Nothing should be left, unless the report failed or timed out. A running query can not be stopped.
+			run.cancel();
+			run.whenIdle(() -> jobRunning = false);
     	}
     }
 
+	/**
+	 * Returns the timing of the sections of the last report run.
+	 * @return A list with the metrics of each section. The list is empty if there is no report run yet.
+	 */
+	public List<SectionMetrics> getLastSectionMetrics() {
+		return lastSectionMetrics;
+	}
+
+	private static SectionMetrics addMetrics(List<SectionMetrics> metrics, String section) {
+		SectionMetrics m = new SectionMetrics(section);
+		metrics.add(m);
+		return m;
+	}
+
+	/**
+	 * Runs a query of a report section on the managed executor. The number of queries running at the same time is
+	 * bounded by the database connection budget: A query is submitted to the executor only when a connection
+	 * is available. Each query is executed by a service call in its own transaction, i.e. a query uses a single 
+	 * database connection. 
+	 * @param <T> the query result type.
+	 * @param metrics the metrics of the section to add the query time to.
+	 * @param query the query.
+	 * @return a future with the result of the query.
+	 */
+	protected <T> CompletableFuture<T> query(SectionMetrics metrics, Callable<T> query) {
+		return scheduler.submit(() -> {
+			long start = System.nanoTime();
+			try {
+				return query.call();
+			} finally {
+				metrics.addQuery(System.nanoTime() - start);
+			}
+		}, true);
+	}
+
+	/**
+	 * Writes the report files of a report section. 
+	 */
+	@FunctionalInterface
+	protected interface ReportWriter {
+		/**
+		 * Writes the report files to the sink.
+		 * @param sink the sink of the report section.
+		 * @throws Exception In case of trouble.
+		 */
+		void write(ReportSink sink) throws Exception;
+	}
+
+	/**
+	 * Completes a report section: When all queries are done, the reports are written and sent. The report files are 
+	 * removed afterwards. A failure is logged, the other sections continue.
+	 * @param metrics the metrics of the section.
+	 * @param name the name of the report (in the subject of the mail).
+	 * @param reportDate the report date.
+	 * @param queries the queries to wait for.
+	 * @param reportWriter the writer of the report files, called when the queries are done. 
+	 * @return a future that completes when the section is done.
+	 */
+	protected CompletableFuture<Void> completeSection(SectionMetrics metrics, String name, String reportDate, 
+			CompletableFuture<?> queries, ReportWriter reportWriter) {
+		ReportTaskScheduler run = scheduler;
+		return queries.thenCompose(v -> run.submit(() -> {
+				try (ReportSink sink = new ReportSink()) {
+					reportWriter.write(sink);
+					sendReports(name, reportDate, sink.getFiles());
+				}
+				return null;
+			}, false))
+			.handle((v, ex) -> {
+				metrics.done(ex == null);
+				if (ex != null) {
+					log.error(String.format("Error creating and sending %s report", metrics.getSection()), 
+							ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex);
+				}
+				return null;
+			});
+	}
+
 	private static String createReportFilename(String type, String reportDate) {
 		return String.format("%s-report-%s.csv", type, reportDate);
 	}
@@ -203,10 +328,11 @@ public class ReportProcessor {
 		return String.format("%s-report-spss-%s.csv", type, reportDate);
 	}
 
-	protected void createAndSendProfilesReport(String reportDate, Map<String, ProfileReport> profileReportMap) {
-    	try {
-    		// Get the rideshare users for driver-specific attributes
-    		Map<String, ProfileReport> rideshareMap = rideshareReportService.reportUsers();
+	protected CompletableFuture<Void> createAndSendProfilesReport(String reportDate, Map<String, ProfileReport> profileReportMap, SectionMetrics metrics) {
+		// Get the rideshare users for driver-specific attributes
+		CompletableFuture<Map<String, ProfileReport>> rideshareUsers = query(metrics, () -> rideshareReportService.reportUsers());
+		return completeSection(metrics, "Profielen", reportDate, rideshareUsers, sink -> {
+    		Map<String, ProfileReport> rideshareMap = rideshareUsers.join();
     		for (Map.Entry<String, ProfileReport> pr : profileReportMap.entrySet()) {
     			if (Boolean.TRUE.equals(pr.getValue().getIsDriver())) {
     				ProfileReport pr_rs = rideshareMap.get(pr.getKey());
@@ -218,13 +344,8 @@ public class ReportProcessor {
     		List<ProfileReport> report = profileReportMap.values().stream()
 	    			.sorted()
 	    			.collect(Collectors.toList());
-			String ridesReport = convertToCsv(report, ProfileReport.class);
-			Map<String, String> reports = new LinkedHashMap<>();
-			reports.put(createReportFilename("profiles", reportDate), ridesReport);
-			sendReports("Profielen", reportDate, reports);
-    	} catch (Exception e) {
-			log.error("Error creating and sending profiles report", e);
-    	}
+			writeCsv(sink, createReportFilename("profiles", reportDate), report.stream(), ProfileReport.class);
+		});
 	}
 
 	protected void copyProfileInfo(Collection<? extends ReportKey> target, Map<String, ProfileReport> sourceMap) {
@@ -236,10 +357,12 @@ public class ReportProcessor {
 		}
 	}
 
-	protected void createAndSendActivityReport(ZonedDateTime since, ZonedDateTime until, String reportDate, Map<String, ProfileReport> profileReportMap) {
-    	try {
-   		  	Map<String, ActivityReport> activityReportMap = communicatorReportService.reportActivity(since.toInstant(), until.toInstant());
-   		  	Map<String, ActivityReport> profileActivityReportMap = profileReportService.reportUsageActivity(since.toInstant(), until.toInstant());
+	protected CompletableFuture<Void> createAndSendActivityReport(ZonedDateTime since, ZonedDateTime until, String reportDate, Map<String, ProfileReport> profileReportMap, SectionMetrics metrics) {
+		CompletableFuture<Map<String, ActivityReport>> communicatorActivity = query(metrics, () -> communicatorReportService.reportActivity(since.toInstant(), until.toInstant()));
+		CompletableFuture<Map<String, ActivityReport>> profileActivity = query(metrics, () -> profileReportService.reportUsageActivity(since.toInstant(), until.toInstant()));
+		return completeSection(metrics, "Activiteitsniveau", reportDate, CompletableFuture.allOf(communicatorActivity, profileActivity), sink -> {
+   		  	Map<String, ActivityReport> activityReportMap = communicatorActivity.join();
+   		  	Map<String, ActivityReport> profileActivityReportMap = profileActivity.join();
    		  	// Merge profile activity into communicator activity 
     		for (Map.Entry<String, ActivityReport> entry : profileActivityReportMap.entrySet()) {
     			activityReportMap.computeIfAbsent(entry.getKey(), key -> new ActivityReport(entry.getValue()))
@@ -250,63 +373,48 @@ public class ReportProcessor {
 	    			.collect(Collectors.toList());
    		  	copyProfileInfo(activityReport, profileReportMap);
    		  	
-			String report = convertToCsv(activityReport, ActivityReport.class);
+			final var type = "activity";
+			writeCsv(sink, createReportFilename(type, reportDate), activityReport.stream(), ActivityReport.class);
 			
 			Collection<ActivitySpssReport> spssReports = createSpssReport(activityReport, ActivitySpssReport.class); 
-			String spssReport = convertToCsvforSpss(spssReports, ActivitySpssReport.class, since, until);
-			
-			Map<String, String> reports = new LinkedHashMap<>();
-			final var type = "activity";
-			reports.put(createReportFilename(type, reportDate), report);
-			reports.put(createSpssReportFilename(type, reportDate), spssReport);
-	
-			sendReports("Activiteitsniveau", reportDate, reports);
-    	} catch (Exception e) {
-			log.error("Error creating and sending activity report", e);
-    	}
+			writeCsvForSpss(sink, createSpssReportFilename(type, reportDate), spssReports.stream(), ActivitySpssReport.class, since, until);
+		});
 	}
 
-	protected void createAndSendPassengerBehaviourReport(ZonedDateTime since, ZonedDateTime until, String reportDate, Map<String, ProfileReport> profileReportMap) {
-    	try {
-    		Map<String, PassengerBehaviourReport> passengerReportMap = plannerReportService.reportPassengerBehaviour(since.toInstant(), until.toInstant());
+	protected CompletableFuture<Void> createAndSendPassengerBehaviourReport(ZonedDateTime since, ZonedDateTime until, String reportDate, Map<String, ProfileReport> profileReportMap, SectionMetrics metrics) {
+		CompletableFuture<Map<String, PassengerBehaviourReport>> passengerBehaviourQuery = query(metrics, () -> plannerReportService.reportPassengerBehaviour(since.toInstant(), until.toInstant()));
+		CompletableFuture<Map<String, PassengerModalityBehaviourReport>> passengerModalityQuery = query(metrics, () -> plannerReportService.reportPassengerModalityBehaviour(since.toInstant(), until.toInstant()));
+		return completeSection(metrics, "Reisgedrag Passagier", reportDate, CompletableFuture.allOf(passengerBehaviourQuery, passengerModalityQuery), sink -> {
+    		Map<String, PassengerBehaviourReport> passengerReportMap = passengerBehaviourQuery.join();
 			List<PassengerBehaviourReport> passengerReport = passengerReportMap.values().stream()
 	    			.sorted()
 	    			.collect(Collectors.toList());
    		  	copyProfileInfo(passengerReport, profileReportMap);
-			String passengerBehaviour = convertToCsv(passengerReport, PassengerBehaviourReport.class);
+			final var type = "passenger-behaviour";
+			writeCsv(sink, createReportFilename(type, reportDate), passengerReport.stream(), PassengerBehaviourReport.class);
 
 			Collection<PassengerBehaviourSpssReport> spssReport = createSpssReport(passengerReport, PassengerBehaviourSpssReport.class); 
-			String passengerBehaviourSpss = convertToCsvforSpss(spssReport, PassengerBehaviourSpssReport.class, since, until);
+			writeCsvForSpss(sink, createSpssReportFilename(type, reportDate), spssReport.stream(), PassengerBehaviourSpssReport.class, since, until);
 
-			Map<String, PassengerModalityBehaviourReport> passengerModalityReportMap = plannerReportService.reportPassengerModalityBehaviour(since.toInstant(), until.toInstant());
+			Map<String, PassengerModalityBehaviourReport> passengerModalityReportMap = passengerModalityQuery.join();
 			List<PassengerModalityBehaviourReport> passengerModalityReport = passengerModalityReportMap.values().stream()
 	    			.sorted()
 	    			.collect(Collectors.toList());
    		  	copyProfileInfo(passengerModalityReport, profileReportMap);
-			String passengerModalityBehaviour = convertToCsv(passengerModalityReport, PassengerModalityBehaviourReport.class);
+			final var typeModality = "passenger-modality-behaviour";
+			writeCsv(sink, createReportFilename(typeModality, reportDate), passengerModalityReport.stream(), PassengerModalityBehaviourReport.class);
 
 			Collection<PassengerModalityBehaviourSpssReport> spssModalityReport = createSpssModalityReport(passengerModalityReport, PassengerModalityBehaviourSpssReport.class); 
-			String passengerModalityBehaviourSpss = convertToCsvforSpss(spssModalityReport, PassengerModalityBehaviourSpssReport.class, since, until);
-
-			Map<String, String> reports = new LinkedHashMap<>();
-			final var type = "passenger-behaviour";
-			reports.put(createReportFilename(type, reportDate), passengerBehaviour);
-			reports.put(createSpssReportFilename(type, reportDate), passengerBehaviourSpss);
-			final var typeModality = "passenger-modality-behaviour";
-			reports.put(createReportFilename(typeModality, reportDate), passengerModalityBehaviour);
-			reports.put(createSpssReportFilename(typeModality, reportDate), passengerModalityBehaviourSpss);
-	
-			sendReports("Reisgedrag Passagier", reportDate, reports);
-    	} catch (Exception e) {
-			log.error("Error creating and sending passenger behaviour report", e);
-    	}
+			writeCsvForSpss(sink, createSpssReportFilename(typeModality, reportDate), spssModalityReport.stream(), PassengerModalityBehaviourSpssReport.class, since, until);
+		});
 	}
 
-	protected void createAndSendDriverBehaviourReport(ZonedDateTime since, ZonedDateTime until, String reportDate, Map<String, ProfileReport> profileReportMap) {
-    	try {
-    		Map<String, DriverBehaviourReport> driverReportMap = rideshareReportService.reportDriverActivity(since.toInstant(), until.toInstant());
-			List<ShoutOutRecipientReport> shoutOutRecipientReport = 
-					communicatorReportService.reportShoutOutActivity(since.toInstant(), until.toInstant());
+	protected CompletableFuture<Void> createAndSendDriverBehaviourReport(ZonedDateTime since, ZonedDateTime until, String reportDate, Map<String, ProfileReport> profileReportMap, SectionMetrics metrics) {
+		CompletableFuture<Map<String, DriverBehaviourReport>> driverActivity = query(metrics, () -> rideshareReportService.reportDriverActivity(since.toInstant(), until.toInstant()));
+		CompletableFuture<List<ShoutOutRecipientReport>> shoutOutActivity = query(metrics, () -> communicatorReportService.reportShoutOutActivity(since.toInstant(), until.toInstant()));
+		return completeSection(metrics, "Reisgedrag Chauffeur", reportDate, CompletableFuture.allOf(driverActivity, shoutOutActivity), sink -> {
+    		Map<String, DriverBehaviourReport> driverReportMap = driverActivity.join();
+			List<ShoutOutRecipientReport> shoutOutRecipientReport = shoutOutActivity.join();
 			// Merge the shout-out report into the driver report.
 			for (ShoutOutRecipientReport sorr : shoutOutRecipientReport) {
 				driverReportMap.computeIfAbsent(sorr.getKey(), k -> new DriverBehaviourReport(sorr))
@@ -319,26 +427,20 @@ public class ReportProcessor {
 	    			.sorted()
 	    			.collect(Collectors.toList());
    		  	copyProfileInfo(driverReport, profileReportMap);
-			String driverBehaviour = convertToCsv(driverReport, DriverBehaviourReport.class);
+			final var type = "driver-behaviour";
+			writeCsv(sink, createReportFilename(type, reportDate), driverReport.stream(), DriverBehaviourReport.class);
 			
 			Collection<DriverBehaviourSpssReport> spssReport = createSpssReport(driverReport, DriverBehaviourSpssReport.class); 
-			String driverBehaviourSpss = convertToCsvforSpss(spssReport, DriverBehaviourSpssReport.class, since, until);
-
-			Map<String, String> reports = new LinkedHashMap<>();
-			final var type = "driver-behaviour";
-			reports.put(createReportFilename(type, reportDate), driverBehaviour);
-			reports.put(createSpssReportFilename(type, reportDate), driverBehaviourSpss);
-	
-			sendReports("Reisgedrag Chauffeur", reportDate, reports);
-    	} catch (Exception e) {
-			log.error("Error creating and sending driver behaviour report", e);
-    	}
+			writeCsvForSpss(sink, createSpssReportFilename(type, reportDate), spssReport.stream(), DriverBehaviourSpssReport.class, since, until);
+		});
 	}
 
-	protected void createAndSendIncentiveModelPassengerReport(ZonedDateTime since, ZonedDateTime until, String reportDate, Map<String, ProfileReport> profileReportMap) {
-    	try {
-    		Map<String, IncentiveModelPassengerReport> reportMap = bankerReportService.reportIncentivesPassenger(since.toInstant(), until.toInstant());
-    		Map<String, IncentiveModelPassengerReport> tripsReviewedReportMap = profileReportService.reportIncentiveModelPassager(since.toInstant(), until.toInstant());
+	protected CompletableFuture<Void> createAndSendIncentiveModelPassengerReport(ZonedDateTime since, ZonedDateTime until, String reportDate, Map<String, ProfileReport> profileReportMap, SectionMetrics metrics) {
+		CompletableFuture<Map<String, IncentiveModelPassengerReport>> incentives = query(metrics, () -> bankerReportService.reportIncentivesPassenger(since.toInstant(), until.toInstant()));
+		CompletableFuture<Map<String, IncentiveModelPassengerReport>> tripsReviewed = query(metrics, () -> profileReportService.reportIncentiveModelPassager(since.toInstant(), until.toInstant()));
+		return completeSection(metrics, "Incentives Passagier", reportDate, CompletableFuture.allOf(incentives, tripsReviewed), sink -> {
+    		Map<String, IncentiveModelPassengerReport> reportMap = incentives.join();
+    		Map<String, IncentiveModelPassengerReport> tripsReviewedReportMap = tripsReviewed.join();
     		// Copy the review count into the main report
     		for (Map.Entry<String, IncentiveModelPassengerReport> entry : tripsReviewedReportMap.entrySet()) {
     			reportMap.computeIfAbsent(entry.getKey(), key -> new IncentiveModelPassengerReport(entry.getValue()))
@@ -348,26 +450,20 @@ public class ReportProcessor {
 	    			.sorted()
 	    			.collect(Collectors.toList());
    		  	copyProfileInfo(report, profileReportMap);
-			String incentiveModel = convertToCsv(report, IncentiveModelPassengerReport.class);
+			final var type = "incentives-passenger";
+			writeCsv(sink, createReportFilename(type, reportDate), report.stream(), IncentiveModelPassengerReport.class);
 
 			Collection<IncentiveModelPassengerSpssReport> spssReport = createSpssReport(report, IncentiveModelPassengerSpssReport.class); 
-			String incentiveModelSpss = convertToCsvforSpss(spssReport, IncentiveModelPassengerSpssReport.class, since, until);
-
-			Map<String, String> reports = new LinkedHashMap<>();
-			final var type = "incentives-passenger";
-			reports.put(createReportFilename(type, reportDate), incentiveModel);
-			reports.put(createSpssReportFilename(type, reportDate), incentiveModelSpss);
-	
-			sendReports("Incentives Passagier", reportDate, reports);
-    	} catch (Exception e) {
-			log.error("Error creating and sending incentive model passenger report", e);
-    	}
+			writeCsvForSpss(sink, createSpssReportFilename(type, reportDate), spssReport.stream(), IncentiveModelPassengerSpssReport.class, since, until);
+		});
 	}
 
-	protected void createAndSendIncentiveModelDriverReport(ZonedDateTime since, ZonedDateTime until, String reportDate, Map<String, ProfileReport> profileReportMap) {
-    	try {
-    		Map<String, IncentiveModelDriverReport> reportMap = bankerReportService.reportIncentivesDriver(since.toInstant(), until.toInstant());
-    		Map<String, IncentiveModelDriverReport> ridesReviewedReportMap = profileReportService.reportIncentiveModelDriver(since.toInstant(), until.toInstant());
+	protected CompletableFuture<Void> createAndSendIncentiveModelDriverReport(ZonedDateTime since, ZonedDateTime until, String reportDate, Map<String, ProfileReport> profileReportMap, SectionMetrics metrics) {
+		CompletableFuture<Map<String, IncentiveModelDriverReport>> incentives = query(metrics, () -> bankerReportService.reportIncentivesDriver(since.toInstant(), until.toInstant()));
+		CompletableFuture<Map<String, IncentiveModelDriverReport>> ridesReviewed = query(metrics, () -> profileReportService.reportIncentiveModelDriver(since.toInstant(), until.toInstant()));
+		return completeSection(metrics, "Incentives Chauffeur", reportDate, CompletableFuture.allOf(incentives, ridesReviewed), sink -> {
+    		Map<String, IncentiveModelDriverReport> reportMap = incentives.join();
+    		Map<String, IncentiveModelDriverReport> ridesReviewedReportMap = ridesReviewed.join();
     		// Copy the review count into the main report
     		for (Map.Entry<String, IncentiveModelDriverReport> entry : ridesReviewedReportMap.entrySet()) {
     			reportMap.computeIfAbsent(entry.getKey(), key -> new IncentiveModelDriverReport(entry.getValue()))
@@ -377,85 +473,124 @@ public class ReportProcessor {
 	    			.sorted()
 	    			.collect(Collectors.toList());
    		  	copyProfileInfo(report, profileReportMap);
-   		  	String incentiveModel = convertToCsv(report, IncentiveModelDriverReport.class);
+			final var type = "incentives-driver";
+			writeCsv(sink, createReportFilename(type, reportDate), report.stream(), IncentiveModelDriverReport.class);
 			
 			Collection<IncentiveModelDriverSpssReport> spssReport = createSpssReport(report, IncentiveModelDriverSpssReport.class); 
-			String incentiveModelSpss = convertToCsvforSpss(spssReport, IncentiveModelDriverSpssReport.class, since, until);
+			writeCsvForSpss(sink, createSpssReportFilename(type, reportDate), spssReport.stream(), IncentiveModelDriverSpssReport.class, since, until);
+		});
+	}
 
-			Map<String, String> reports = new LinkedHashMap<>();
-			final var type = "incentives-driver";
-			reports.put(createReportFilename(type, reportDate), incentiveModel);
-			reports.put(createSpssReportFilename(type, reportDate), incentiveModelSpss);
-	
-			sendReports("Incentives Chauffeur", reportDate, reports);
-    	} catch (Exception e) {
-			log.error("Error creating and sending incentive model driver report", e);
-    	}
+	/**
+	 * Looks up which of the contexts have a review. 
+	 * @param <R> the report record type.
+	 * @param metrics the metrics of the section. 
+	 * @param report the report with the review contexts.
+	 * @param contextOf the function to retrieve the context from a report record.
+	 * @return a future with the set of contexts with a review.
+	 */
+	private <R> CompletableFuture<Set<String>> queryReviewExists(SectionMetrics metrics, CompletableFuture<List<R>> report, Function<R, String> contextOf) {
+		return report.thenCompose(records -> query(metrics, () -> reviewManager.reviewExists(records.stream()
+				.map(contextOf)
+				.filter(ctx -> ctx != null)
+				.collect(Collectors.toList()))));
 	}
 
-	protected void createAndSendRideshareRidesReport(ZonedDateTime since, ZonedDateTime until, String reportDate, Map<String, ProfileReport> profileReportMap) {
-    	try {
-    		List<RideReport> report = rideshareReportService.reportRides(since.toInstant(), until.toInstant());
-
-    		// RSC-8 
-    		List<String> passengerReviewContexts = report.stream()
-    				.filter(r -> r.getTripUrn() != null)
-    				.map(r -> r.getTripUrn())
-    				.collect(Collectors.toList());
-    		Set<String> passengerReviewExists = reviewManager.reviewExists(passengerReviewContexts);
+	protected CompletableFuture<Void> createAndSendRideshareRidesReport(ZonedDateTime since, ZonedDateTime until, String reportDate, Map<String, ProfileReport> profileReportMap, SectionMetrics metrics) {
+		CompletableFuture<List<RideReport>> rides = query(metrics, () -> rideshareReportService.reportRides(since.toInstant(), until.toInstant()));
+		// RSC-8 
+		CompletableFuture<Set<String>> passengerReviews = queryReviewExists(metrics, rides, RideReport::getTripUrn);
+		// RSC-9 
+		CompletableFuture<Set<String>> driverReviews = queryReviewExists(metrics, rides, RideReport::getRideUrn);
+		return completeSection(metrics, "Reis Chauffeur", reportDate, CompletableFuture.allOf(passengerReviews, driverReviews), sink -> {
+    		List<RideReport> report = rides.join();
+    		Set<String> passengerReviewExists = passengerReviews.join();
+    		Set<String> driverReviewExists = driverReviews.join();
     		for(RideReport r: report) {
    				r.setReviewedByPassenger(passengerReviewExists.contains(r.getTripUrn()));
-    		}
-    		// RSC-9 
-    		List<String> driverReviewContexts = report.stream()
-    				.map(r -> r.getRideUrn())
-    				.collect(Collectors.toList());
-    		Set<String> driverReviewExists = reviewManager.reviewExists(driverReviewContexts);
-    		for(RideReport r: report) {
    				r.setReviewedByDriver(driverReviewExists.contains(r.getRideUrn()));
     		}
-
    		  	copyProfileInfo(report, profileReportMap);
-   		  	String ridesReport = convertToCsv(report, RideReport.class);
-			Map<String, String> reports = new LinkedHashMap<>();
-			reports.put(createReportFilename("rides", reportDate), ridesReport);
-	
-			sendReports("Reis Chauffeur", reportDate, reports);
-    	} catch (Exception e) {
-			log.error("Error creating and sending Rideshare rides report", e);
-    	}
+			writeCsv(sink, createReportFilename("rides", reportDate), report.stream(), RideReport.class);
+		});
 	}
 
-	protected void createAndSendTripsReport(ZonedDateTime since, ZonedDateTime until, String reportDate, Map<String, ProfileReport> profileReportMap) {
-    	try {
-    		List<TripReport> report = plannerReportService.reportTrips(since.toInstant(), until.toInstant());
-    		// RSP-10 
-    		List<String> passengerReviewContexts = report.stream()
-    				.filter(r -> r.getTripUrn() != null)
-    				.map(r -> r.getTripUrn())
-    				.collect(Collectors.toList());
-    		Set<String> passengerReviewExists = reviewManager.reviewExists(passengerReviewContexts);
+	protected CompletableFuture<Void> createAndSendTripsReport(ZonedDateTime since, ZonedDateTime until, String reportDate, Map<String, ProfileReport> profileReportMap, SectionMetrics metrics) {
+		CompletableFuture<List<TripReport>> trips = query(metrics, () -> plannerReportService.reportTrips(since.toInstant(), until.toInstant()));
+		// RSP-10 
+		CompletableFuture<Set<String>> passengerReviews = queryReviewExists(metrics, trips, TripReport::getTripUrn);
+		// RSP-11 
+		CompletableFuture<Set<String>> driverReviews = queryReviewExists(metrics, trips, TripReport::getRideUrn);
+		return completeSection(metrics, "Reis Passagier", reportDate, CompletableFuture.allOf(passengerReviews, driverReviews), sink -> {
+    		List<TripReport> report = trips.join();
+    		Set<String> passengerReviewExists = passengerReviews.join();
+    		Set<String> driverReviewExists = driverReviews.join();
     		for(TripReport r: report) {
    				r.setReviewedByPassenger(passengerReviewExists.contains(r.getTripUrn()));
-    		}
-    		// RSP-11 
-    		List<String> driverReviewContexts = report.stream()
-    				.map(r -> r.getRideUrn())
-    				.collect(Collectors.toList());
-    		Set<String> driverReviewExists = reviewManager.reviewExists(driverReviewContexts);
-    		for(TripReport r: report) {
    				r.setReviewedByDriver(driverReviewExists.contains(r.getRideUrn()));
     		}
-
    		  	copyProfileInfo(report, profileReportMap);
-   		  	String tripsReport= convertToCsv(report, TripReport.class);
-			Map<String, String> reports = new LinkedHashMap<>();
-			reports.put(createReportFilename("trips", reportDate), tripsReport);
-	
-			sendReports("Reis Passagier", reportDate, reports);
-    	} catch (Exception e) {
-			log.error("Error creating and sending passenger trips report", e);
-    	}
+			writeCsv(sink, createReportFilename("trips", reportDate), report.stream(), TripReport.class);
+		});
+	}
+
+	/**
+	 * The timing of a report section: The elapsed time from the start of the report until the report is sent 
+	 * and the number and the total duration of the queries.
+	 */
+	public static class SectionMetrics {
+		private final String section;
+		private final long startNanos = System.nanoTime();
+		private final AtomicInteger queryCount = new AtomicInteger();
+		private final AtomicLong queryNanos = new AtomicLong();
+		private volatile long elapsedNanos = -1;
+		private volatile boolean success;
+
+		public SectionMetrics(String section) {
+			this.section = section;
+		}
+
+		void addQuery(long nanos) {
+			queryCount.incrementAndGet();
+			queryNanos.addAndGet(nanos);
+		}
+
+		void done(boolean successful) {
+			this.success = successful;
+			this.elapsedNanos = System.nanoTime() - startNanos;
+		}
+
+		public String getSection() {
+			return section;
+		}
+
+		public int getQueryCount() {
+			return queryCount.get();
+		}
+
+		public Duration getQueryDuration() {
+			return Duration.ofNanos(queryNanos.get());
+		}
+
+		/**
+		 * Returns the elapsed time of the section.
+		 * @return the elapsed time or null if the section has not finished.
+		 */
+		public Duration getElapsed() {
+			return elapsedNanos < 0 ? null : Duration.ofNanos(elapsedNanos);
+		}
+
+		public boolean isSuccess() {
+			return success;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("Report section '%s': %s, %s ms elapsed, %d queries in %d ms", section, 
+					elapsedNanos < 0 ? "not finished" : (success ? "sent" : "failed"),
+					elapsedNanos < 0 ? "-" : String.valueOf(TimeUnit.NANOSECONDS.toMillis(elapsedNanos)),
+					getQueryCount(), TimeUnit.NANOSECONDS.toMillis(queryNanos.get()));
+		}
 	}
 
 	/**
@@ -497,22 +632,34 @@ public class ReportProcessor {
 	}
 
 	/**
-	 * Creates a String with CSV records from a list of report records. 
+	 * Writes the CSV records of a stream of report records, record by record.  
 	 * @param <T> The type of the report record.
-	 * @param report The list of records.
+	 * @param writer The writer to write to.
+	 * @param report The stream of records.
 	 * @param beanClazz the type of the report record. 
-	 * @return A String  with a CSV records.
 	 * @throws Exception In case of trouble.
 	 */
-	protected <T> String convertToCsv(List<T> report, Class<T> beanClazz) throws Exception {
-		try (Writer writer = new StringWriter()) {
-			FixedOrderColumnNameMappingStrategy<T> strategy = new FixedOrderColumnNameMappingStrategy<>();
-		    strategy.setType(beanClazz);
-		    StatefulBeanToCsv<T> beanToCsv = new StatefulBeanToCsvBuilder<T>(writer)
-		         .withMappingStrategy(strategy)
-		         .build();
-		    beanToCsv.write(report);
-		    return writer.toString();
+	protected <T> void convertToCsv(Writer writer, Stream<T> report, Class<T> beanClazz) throws Exception {
+		FixedOrderColumnNameMappingStrategy<T> strategy = new FixedOrderColumnNameMappingStrategy<>();
+	    strategy.setType(beanClazz);
+	    StatefulBeanToCsv<T> beanToCsv = new StatefulBeanToCsvBuilder<T>(writer)
+	         .withMappingStrategy(strategy)
+	         .build();
+	    beanToCsv.write(report);
+	}
+
+	/**
+	 * Writes a report file with CSV records to the sink of the report section. 
+	 * @param <T> The type of the report record.
+	 * @param sink the sink of the report section.
+	 * @param filename the name of the report file.
+	 * @param report The stream of records.
+	 * @param beanClazz the type of the report record. 
+	 * @throws Exception In case of trouble.
+	 */
+	protected <T> void writeCsv(ReportSink sink, String filename, Stream<T> report, Class<T> beanClazz) throws Exception {
+		try (Writer writer = sink.open(filename)) {
+			convertToCsv(writer, report, beanClazz);
 		}
 	}
 
@@ -558,25 +705,39 @@ public class ReportProcessor {
 	}
 
 	/**
-	 * Creates a String with CSV records for SPSS. 
+	 * Writes the CSV records for SPSS, record by record. 
+	 * @param <T> The SPSS record type.
+	 * @param writer The writer to write to.
+	 * @param spssReport the stream of SPSS records.
+	 * @param beanClazz the class of the SPSS record
+	 * @param since The start of the report period. Used to calculate the column expansion. 
+	 * @param until The end (exclusive) of the report period.
+	 * @throws Exception
+	 */
+	protected <T> void convertToCsvforSpss(Writer writer, Stream<T> spssReport, Class<T> beanClazz, ZonedDateTime since, ZonedDateTime until) throws Exception {
+		SpssHeaderColumnNameMappingStrategy<T> strategy = new SpssHeaderColumnNameMappingStrategy<>(since, until);
+	    strategy.setType(beanClazz);
+	    StatefulBeanToCsv<T> beanToCsv = new StatefulBeanToCsvBuilder<T>(writer)
+	         .withMappingStrategy(strategy)
+	         .withApplyQuotesToAll(true)
+	         .build();
+	    beanToCsv.write(spssReport);
+	}
+
+	/**
+	 * Writes a report file with CSV records for SPSS to the sink of the report section. 
 	 * @param <T> The SPSS record type.
-	 * @param spssReport the collection with SPSS records.
+	 * @param sink the sink of the report section.
+	 * @param filename the name of the report file.
+	 * @param spssReport the stream of SPSS records.
 	 * @param beanClazz the class of the SPSS record
 	 * @param since The start of the report period. Used to calculate the column expansion. 
 	 * @param until The end (exclusive) of the report period.
-	 * @return a String with the CSV records for SPSS.
 	 * @throws Exception
 	 */
-	protected <T> String convertToCsvforSpss(Collection<T> spssReport, Class<T> beanClazz, ZonedDateTime since, ZonedDateTime until) throws Exception {
-		try (Writer writer = new StringWriter()) {
-			SpssHeaderColumnNameMappingStrategy<T> strategy = new SpssHeaderColumnNameMappingStrategy<>(since, until);
-		    strategy.setType(beanClazz);
-		    StatefulBeanToCsv<T> beanToCsv = new StatefulBeanToCsvBuilder<T>(writer)
-		         .withMappingStrategy(strategy)
-		         .withApplyQuotesToAll(true)
-		         .build();
-		    beanToCsv.write(spssReport.stream());
-		    return writer.toString();
+	protected <T> void writeCsvForSpss(ReportSink sink, String filename, Stream<T> spssReport, Class<T> beanClazz, ZonedDateTime since, ZonedDateTime until) throws Exception {
+		try (Writer writer = sink.open(filename)) {
+			convertToCsvforSpss(writer, spssReport, beanClazz, since, until);
 		}
 	}
 
@@ -635,7 +796,7 @@ public class ReportProcessor {
 		return spssReportMap.values();
 	}
 	
-	protected void sendReports(String name, String reportDate, Map<String, String> reports) {
+	protected void sendReports(String name, String reportDate, Map<String, Path> reports) {
 		log.info(String.format("Sending report '%s' to %s", name, reportRecipient));
 		Map<String, String> valuesMap = new HashMap<>();
 		valuesMap.put("subjectPrefix", subjectPrefix);
@@ -647,7 +808,7 @@ public class ReportProcessor {
 	    sendEmail(subject, body, reportRecipient, reports);
 	}
 
-	protected void sendEmail(String subject, String body, String recipient, Map<String, String> attachments) {
+	protected void sendEmail(String subject, String body, String recipient, Map<String, Path> attachments) {
 		try {
             MimeMessage msg = new MimeMessage(mailSession);
             msg.setRecipients(javax.mail.Message.RecipientType.TO, recipient);
@@ -662,17 +823,16 @@ public class ReportProcessor {
             messageBodyPart.setContent(body, "text/plain");
             multipart.addBodyPart(messageBodyPart);
     
-            for (Map.Entry<String, String> entry : attachments.entrySet()) {
-                byte[] poiBytes = entry.getValue().getBytes();
-                DataSource dataSource = new ByteArrayDataSource(poiBytes, "text/csv");
-                BodyPart attachmentBodyPart = new MimeBodyPart();
-                attachmentBodyPart.setDataHandler(new DataHandler(dataSource));
+            for (Map.Entry<String, Path> entry : attachments.entrySet()) {
+            	// The attachment is read from disk while sending
+                MimeBodyPart attachmentBodyPart = new MimeBodyPart();
+                attachmentBodyPart.attachFile(entry.getValue().toFile(), ReportSink.CONTENT_TYPE, null);
                 attachmentBodyPart.setFileName(entry.getKey());
                 multipart.addBodyPart(attachmentBodyPart);
 			}
             
             Transport.send(msg);
-        } catch (MessagingException e) {
+        } catch (MessagingException | IOException e) {
             throw new SystemException(String.format("Failed to send email on '%s' to %s", subject, recipient), e);
         }
 	}
@@ -0,0 +1,68 @@
+package eu.netmobiel.overseer.processor;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The sink of the report files of a report section. Each report file is written as compressed temporary file, 
+ * so that the size of a report does not matter for the heap. The files are removed on close.
+ *
+ * @author Jaap Reitsma
+ *
+ */
+public class ReportSink implements AutoCloseable {
+	private static final Logger log = LoggerFactory.getLogger(ReportSink.class);
+	public static final String COMPRESSED_SUFFIX = ".gz";
+	public static final String CONTENT_TYPE = "application/gzip";
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final Map<String, Path> files = new LinkedHashMap<>();
+
+	/**
+	 * Opens a new compressed report file. The caller must close the writer when done.
+	 * @param filename the name of the (uncompressed) report file.
+	 * @return the writer for the UTF-8 encoded report.
+	 * @throws IOException In case of trouble creating the file. 
+	 */
+	public Writer open(String filename) throws IOException {
+		Path file = Files.createTempFile("netmobiel-report-", ".csv" + COMPRESSED_SUFFIX);
+		files.put(filename + COMPRESSED_SUFFIX, file);
+		return new BufferedWriter(new OutputStreamWriter(new GZIPOutputStream(Files.newOutputStream(file), BUFFER_SIZE), 
+				StandardCharsets.UTF_8), BUFFER_SIZE);
+	}
+
+	/**
+	 * Returns the report files.
+	 * @return a map of attachment names to the temporary files, in order of creation. 
+	 */
+	public Map<String, Path> getFiles() {
+		return Collections.unmodifiableMap(files);
+	}
+
+	/**
+	 * Removes the temporary files.
+	 */
+	@Override
+	public void close() {
+		for (Path file : files.values()) {
+			try {
+				Files.deleteIfExists(file);
+			} catch (IOException ex) {
+				log.warn(String.format("Cannot remove temporary report file %s: %s", file, ex.toString()));
+			}
+		}
+		files.clear();
+	}
+}
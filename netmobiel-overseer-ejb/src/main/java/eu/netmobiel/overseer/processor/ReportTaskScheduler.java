@@ -0,0 +1,170 @@
+package eu.netmobiel.overseer.processor;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Schedules the tasks of a single report run on an executor. A task that needs a database connection is submitted
+ * only when the connection budget allows it, until then the task waits in a queue. No executor thread ever blocks
+ * waiting for a connection.
+ * <p>
+ * A run can be cancelled: The waiting tasks are never submitted and the futures of all unfinished tasks are cancelled.
+ * A task that is already running can not be stopped, the run is idle when the last running task has finished.
+ *
+ * @author Jaap Reitsma
+ *
+ */
+public class ReportTaskScheduler {
+	private final Executor executor;
+	private final Deque<Task<?>> waiting = new ArrayDeque<>();
+	private final Set<Task<?>> unfinished = new LinkedHashSet<>();
+	private int availableConnections;
+	private int running;
+	private boolean cancelled;
+	private Runnable idleAction;
+
+	private class Task<T> implements Runnable {
+		private final Callable<T> callable;
+		private final boolean needsConnection;
+		private final CompletableFuture<T> result = new CompletableFuture<>();
+
+		public Task(Callable<T> aCallable, boolean needsConnection) {
+			this.callable = aCallable;
+			this.needsConnection = needsConnection;
+		}
+
+		@Override
+		public void run() {
+			try {
+				// Skip a task that is cancelled before it could start
+				if (!result.isDone()) {
+					result.complete(callable.call());
+				}
+			} catch (Exception ex) {
+				result.completeExceptionally(ex);
+			} finally {
+				finished(this);
+			}
+		}
+	}
+
+	/**
+	 * Creates a scheduler.
+	 * @param anExecutor the executor to run the tasks on.
+	 * @param connectionBudget the maximum number of tasks using a database connection at the same time.
+	 */
+	public ReportTaskScheduler(Executor anExecutor, int connectionBudget) {
+		if (connectionBudget < 1) {
+			throw new IllegalArgumentException("The connection budget must be at least 1");
+		}
+		this.executor = anExecutor;
+		this.availableConnections = connectionBudget;
+	}
+
+	/**
+	 * Submits a task.
+	 * @param <T> the result type.
+	 * @param callable the task.
+	 * @param needsConnection if true then the task uses a database connection and is subject to the connection budget.
+	 * @return a future with the result of the task. If the run is cancelled, the future is cancelled as well.
+	 */
+	public synchronized <T> CompletableFuture<T> submit(Callable<T> callable, boolean needsConnection) {
+		Task<T> task = new Task<>(callable, needsConnection);
+		if (cancelled) {
+			task.result.cancel(false);
+			return task.result;
+		}
+		unfinished.add(task);
+		if (needsConnection) {
+			waiting.add(task);
+			dispatch();
+		} else {
+			start(task);
+		}
+		return task.result;
+	}
+
+	/**
+	 * Cancels the run. The waiting tasks are dropped, the futures of all unfinished tasks are cancelled.
+	 * Tasks submitted after the cancellation are cancelled immediately.
+	 */
+	public synchronized void cancel() {
+		cancelled = true;
+		unfinished.forEach(task -> task.result.cancel(false));
+		waiting.forEach(unfinished::remove);
+		waiting.clear();
+	}
+
+	/**
+	 * Runs an action as soon as no task is running anymore. If the scheduler is idle already, the action is run
+	 * immediately by the calling thread.
+	 * @param action the action.
+	 */
+	public void whenIdle(Runnable action) {
+		synchronized (this) {
+			if (running > 0) {
+				idleAction = action;
+				return;
+			}
+		}
+		action.run();
+	}
+
+	/**
+	 * Returns the number of tasks running at this moment.
+	 * @return the number of running tasks.
+	 */
+	public synchronized int getRunningCount() {
+		return running;
+	}
+
+	/**
+	 * Returns the number of tasks waiting for a database connection.
+	 * @return the number of waiting tasks.
+	 */
+	public synchronized int getWaitingCount() {
+		return waiting.size();
+	}
+
+	private void dispatch() {
+		while (availableConnections > 0 && !waiting.isEmpty()) {
+			availableConnections--;
+			start(waiting.poll());
+		}
+	}
+
+	private void start(Task<?> task) {
+		running++;
+		try {
+			executor.execute(task);
+		} catch (RejectedExecutionException ex) {
+			task.result.completeExceptionally(ex);
+			finished(task);
+		}
+	}
+
+	private void finished(Task<?> task) {
+		Runnable action = null;
+		synchronized (this) {
+			running--;
+			unfinished.remove(task);
+			if (task.needsConnection) {
+				availableConnections++;
+			}
+			dispatch();
+			if (running == 0 && idleAction != null) {
+				action = idleAction;
+				idleAction = null;
+			}
+		}
+		if (action != null) {
+			action.run();
+		}
+	}
+}
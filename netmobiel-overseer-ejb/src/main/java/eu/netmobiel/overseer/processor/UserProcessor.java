@@ -1,7 +1,16 @@
 package eu.netmobiel.overseer.processor;
 
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import javax.annotation.Resource;
 import javax.annotation.security.RunAs;
+import javax.ejb.SessionContext;
 import javax.ejb.Stateless;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+import javax.enterprise.concurrent.ManagedExecutorService;
 import javax.enterprise.event.Observes;
 import javax.enterprise.event.TransactionPhase;
 import javax.inject.Inject;
@@ -26,6 +35,12 @@ import eu.netmobiel.rideshare.service.RideshareUserManager;
 @Logging
 @RunAs("system") 
 public class UserProcessor {
+    @Resource
+	private SessionContext sessionContext;
+
+    @Resource
+    private ManagedExecutorService executor;
+
     @Inject
     private BankerUserManager bankerUserManager;
     @Inject
@@ -43,6 +58,46 @@ public class UserProcessor {
        	rideshareUserManager.registerOrUpdateUser(profile);
     }
     
+    /**
+     * Synchronizes a batch of profiles with the user databases of the modules. The modules are processed in parallel, 
+     * each module batch in its own transaction.
+     * @param profiles the profiles to synchronize.
+     */
+    @TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+    public void syncAllUserDatabases(List<Profile> profiles) {
+    	UserProcessor self = sessionContext.getBusinessObject(UserProcessor.class);
+    	try {
+	    	CompletableFuture.allOf(
+	    			CompletableFuture.runAsync(() -> self.syncBankerUsers(profiles), executor),
+	    			CompletableFuture.runAsync(() -> self.syncCommunicatorUsers(profiles), executor),
+	    			CompletableFuture.runAsync(() -> self.syncPlannerUsers(profiles), executor),
+	    			CompletableFuture.runAsync(() -> self.syncRideshareUsers(profiles), executor)
+	    	).join();
+    	} catch (CompletionException ex) {
+    		throw new IllegalStateException("Error synchronizing the user databases", ex.getCause());
+    	}
+    }
+
+    @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+    public void syncBankerUsers(List<Profile> profiles) {
+    	profiles.forEach(p -> bankerUserManager.registerOrUpdateUser(p));
+    }
+
+    @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+    public void syncCommunicatorUsers(List<Profile> profiles) {
+    	profiles.forEach(p -> communicatorUserManager.registerOrUpdateUser(p, p.getPhoneNumber(), p.getDefaultCountry()));
+    }
+
+    @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+    public void syncPlannerUsers(List<Profile> profiles) {
+    	profiles.forEach(p -> plannerUserManager.registerOrUpdateUser(p));
+    }
+
+    @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+    public void syncRideshareUsers(List<Profile> profiles) {
+    	profiles.forEach(p -> rideshareUserManager.registerOrUpdateUser(p));
+    }
+
     public void onUserCreation(@Observes(during = TransactionPhase.IN_PROGRESS) @Created Profile profile) {
     	syncAllUserDatabases(profile);
     }
@@ -1,10 +1,16 @@
 package eu.netmobiel.overseer.service;
 
+import java.time.Duration;
+import java.time.Instant;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Optional;
 import java.util.Set;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import javax.ejb.Asynchronous;
+import javax.ejb.SessionContext;
 import javax.ejb.Singleton;
 import javax.ejb.Startup;
 import javax.ejb.TransactionAttribute;
@@ -19,6 +25,7 @@ import eu.netmobiel.commons.exception.NotFoundException;
 import eu.netmobiel.commons.filter.Cursor;
 import eu.netmobiel.commons.model.PagedResult;
 import eu.netmobiel.commons.model.SortDirection;
+import eu.netmobiel.commons.util.ExceptionUtil;
 import eu.netmobiel.commons.util.Logging;
 import eu.netmobiel.commons.util.UrnHelper;
 import eu.netmobiel.communicator.filter.MessageFilter;
@@ -39,7 +46,8 @@ import eu.netmobiel.rideshare.service.BookingManager;
 
 /**
  * Singleton startup bean for doing some maintenance on startup of the system.
- * 1. Migrate profiles to this profile service and assure all components know about all users.
+ * 1. Assure all components know about all users. Only the profiles changed since the previous synchronization 
+ * are processed. The synchronization runs in the background, it does not delay the startup.
  *  
  * @author Jaap Reitsma
  *
@@ -48,9 +56,26 @@ import eu.netmobiel.rideshare.service.BookingManager;
 @Startup
 @Logging
 public class OverseerMaintenance {
+	/**
+	 * The name of the user synchronization as consumer of the profile changes. 
+	 */
+	public static final String USER_SYNC_CONSUMER = "overseer-user-sync";
+	/**
+	 * The number of profiles in a synchronization batch.
+	 */
+	private static final int USER_SYNC_BATCH_SIZE = 100;
+	/**
+	 * The overlap of consecutive synchronizations, to include the profiles of transactions 
+	 * that were still in progress at the start of the previous synchronization. 
+	 */
+	private static final Duration USER_SYNC_OVERLAP = Duration.ofMinutes(5);
+
 	@Inject
     private Logger log;
 
+    @Resource
+	private SessionContext sessionContext;
+
 	@Inject
 	private ProfileManager profileManager; 
 	@Inject
@@ -71,32 +96,41 @@ public class OverseerMaintenance {
 	@TransactionAttribute(TransactionAttributeType.NEVER)
 	public void initialize() {
 		log.info("Starting up the Overseer, checking for maintenance tasks");
-    	syncNetmobielUsers();
+    	sessionContext.getBusinessObject(OverseerMaintenance.class).syncNetmobielUsers();
 //    	updateMessageBody();
 	}
 
-	private void syncNetmobielUsers() {
+	/**
+	 * Synchronizes the profiles changed since the previous synchronization with the user databases of the other modules.
+	 * The watermark is advanced only if all batches succeed.
+	 */
+	@Asynchronous
+	@TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+	public void syncNetmobielUsers() {
 		try {
+			Instant syncStart = Instant.now();
+			Optional<Instant> watermark = profileManager.getSyncWatermark(USER_SYNC_CONSUMER);
 			ProfileFilter filter = new ProfileFilter();
-			Cursor cursor = new Cursor(100, 0);
-			log.info("Start syncing the user data");
+			watermark.ifPresent(wm -> filter.setModifiedSince(wm.minus(USER_SYNC_OVERLAP)));
+			Cursor cursor = new Cursor(USER_SYNC_BATCH_SIZE, 0);
+			log.info("Start syncing the user data, modified since " + (watermark.isPresent() ? filter.getModifiedSince() : "ever"));
 			Long total = null;
 			while (true) {
 				PagedResult<Profile> profiles = profileManager.listProfiles(filter, cursor);
 				total = profiles.getTotalCount();
-				for (Profile p : profiles.getData()) {
-					userProcessor.syncAllUserDatabases(p);
+				if (!profiles.getData().isEmpty()) {
+					userProcessor.syncAllUserDatabases(profiles.getData());
 				}
 				if (profiles.getCount() < cursor.getMaxResults()) {
 					break;
 				}
 				cursor.next();
 			}
+			profileManager.updateSyncWatermark(USER_SYNC_CONSUMER, syncStart);
 			log.info("Done syncing the users: #" + total);
-		} catch (BusinessException e) {
-			log.error("Error synchronizing users", e);
+		} catch (Exception ex) {
+			log.error("Error synchronizing users: " + String.join("\n\t", ExceptionUtil.unwindException(ex)));
 		}
-		
 	}
 
 //	private Map<String, Profile> listAllProfiles() throws BadRequestException {
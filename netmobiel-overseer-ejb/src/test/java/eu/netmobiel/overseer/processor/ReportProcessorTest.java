@@ -2,10 +2,19 @@ package eu.netmobiel.overseer.processor;
 
 import static org.junit.Assert.*;
 
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.time.ZonedDateTime;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPInputStream;
 
 import org.junit.After;
 import org.junit.Before;
@@ -44,8 +53,11 @@ public class ReportProcessorTest {
 	@Test
 	public void testPlainReport() {
 		try {
-			String s = processor.convertToCsv(report, ActivityReport.class);
+			StringWriter writer = new StringWriter();
+			processor.convertToCsv(writer, report.stream(), ActivityReport.class);
+			String s = writer.toString();
 			System.out.println(s);
+			assertEquals(4, s.split("\n").length);
 
 		} catch (Exception e) {
 			e.printStackTrace();
@@ -58,12 +70,30 @@ public class ReportProcessorTest {
 	public void testSpssReport() {
 		try {
 			Collection<ActivitySpssReport> spssReport = processor.createSpssReport(report, ActivitySpssReport.class); 
-			String s = processor.convertToCsvforSpss(spssReport, ActivitySpssReport.class, since, until);
-			System.out.println(s);
+			StringWriter writer = new StringWriter();
+			processor.convertToCsvforSpss(writer, spssReport.stream(), ActivitySpssReport.class, since, until);
+			System.out.println(writer.toString());
 		} catch (Exception e) {
 			e.printStackTrace();
 			fail("Unexpected exception: " + e.toString());
 		}
 		
 	}
+
+	@Test
+	public void testReportSink() throws Exception {
+		Path file;
+		try (ReportSink sink = new ReportSink()) {
+			processor.writeCsv(sink, "activity-report.csv", report.stream(), ActivityReport.class);
+			Map<String, Path> files = sink.getFiles();
+			assertEquals(1, files.size());
+			file = files.get("activity-report.csv.gz");
+			assertNotNull(file);
+			try (BufferedReader reader = new BufferedReader(new InputStreamReader(new GZIPInputStream(Files.newInputStream(file)), StandardCharsets.UTF_8))) {
+				List<String> lines = reader.lines().collect(Collectors.toList());
+				assertEquals(4, lines.size());
+			}
+		}
+		assertFalse(Files.exists(file));
+	}
 }
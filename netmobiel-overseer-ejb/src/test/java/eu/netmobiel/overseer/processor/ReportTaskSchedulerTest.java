@@ -0,0 +1,113 @@
+package eu.netmobiel.overseer.processor;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ReportTaskSchedulerTest {
+
+	private ExecutorService executor;
+
+	@Before
+	public void setUp() throws Exception {
+		executor = Executors.newFixedThreadPool(4);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void testConnectionBudget() throws Exception {
+		ReportTaskScheduler scheduler = new ReportTaskScheduler(executor, 2);
+		CountDownLatch release = new CountDownLatch(1);
+		AtomicInteger concurrent = new AtomicInteger();
+		AtomicInteger maxConcurrent = new AtomicInteger();
+		List<CompletableFuture<Integer>> results = new ArrayList<>();
+		for (int i = 0; i < 6; i++) {
+			int n = i;
+			results.add(scheduler.submit(() -> {
+				maxConcurrent.accumulateAndGet(concurrent.incrementAndGet(), Math::max);
+				release.await();
+				concurrent.decrementAndGet();
+				return n;
+			}, true));
+		}
+		// The tasks beyond the budget are not submitted to the executor
+		assertEquals(4, scheduler.getWaitingCount());
+		assertEquals(2, scheduler.getRunningCount());
+		release.countDown();
+		for (int i = 0; i < 6; i++) {
+			assertEquals(Integer.valueOf(i), results.get(i).get(5, TimeUnit.SECONDS));
+		}
+		assertEquals(2, maxConcurrent.get());
+	}
+
+	@Test
+	public void testNoConnection() throws Exception {
+		ReportTaskScheduler scheduler = new ReportTaskScheduler(executor, 1);
+		CountDownLatch release = new CountDownLatch(1);
+		CompletableFuture<String> query = scheduler.submit(() -> {
+			release.await();
+			return "query";
+		}, true);
+		// A task without a connection does not wait for the budget
+		assertEquals("write", scheduler.submit(() -> "write", false).get(5, TimeUnit.SECONDS));
+		release.countDown();
+		assertEquals("query", query.get(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void testCancel() throws Exception {
+		ReportTaskScheduler scheduler = new ReportTaskScheduler(executor, 1);
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		AtomicBoolean waitingTaskRun = new AtomicBoolean();
+		CompletableFuture<String> running = scheduler.submit(() -> {
+			started.countDown();
+			release.await();
+			return "running";
+		}, true);
+		CompletableFuture<String> waiting = scheduler.submit(() -> {
+			waitingTaskRun.set(true);
+			return "waiting";
+		}, true);
+		assertTrue(started.await(5, TimeUnit.SECONDS));
+		scheduler.cancel();
+		assertTrue(running.isCancelled());
+		assertTrue(waiting.isCancelled());
+		assertTrue(scheduler.submit(() -> "late", false).isCancelled());
+		// The running task can not be stopped, the scheduler is idle when it has finished
+		CountDownLatch idle = new CountDownLatch(1);
+		scheduler.whenIdle(idle::countDown);
+		assertEquals(1, idle.getCount());
+		release.countDown();
+		assertTrue(idle.await(5, TimeUnit.SECONDS));
+		assertEquals(0, scheduler.getRunningCount());
+		assertFalse(waitingTaskRun.get());
+	}
+
+	@Test
+	public void testFailure() throws Exception {
+		ReportTaskScheduler scheduler = new ReportTaskScheduler(executor, 1);
+		CompletableFuture<String> failed = scheduler.submit(() -> {
+			throw new IllegalStateException("Query failed");
+		}, true);
+		// The connection is returned after a failure
+		assertEquals("next", scheduler.submit(() -> "next", true).get(5, TimeUnit.SECONDS));
+		assertTrue(failed.isCompletedExceptionally());
+	}
+}
@@ -0,0 +1,11 @@
+-- Planner - compact storage of the geometry and the guide steps of a leg
+-- The route data contains both the geometry and the guide steps in a versioned binary format (see LegRouteCodec).
+-- New legs do not write the leg_geometry column and the guide_step table anymore.
+ALTER TABLE public.leg
+    ADD COLUMN route_data bytea
+;
+
+-- The existing legs are migrated in the background by the planner (PlannerMigrationService), the binary format 
+-- cannot be produced in SQL. The migration clears the leg_geometry and removes the guide steps of each migrated leg.
+-- When the following query returns 0, the legacy column and table can be dropped in a later release.
+-- select count(*) from leg l where l.leg_geometry is not null or exists (select 1 from guide_step gs where gs.leg_id = l.id);
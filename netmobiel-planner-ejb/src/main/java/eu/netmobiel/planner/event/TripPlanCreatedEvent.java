@@ -0,0 +1,33 @@
+package eu.netmobiel.planner.event;
+
+import java.io.Serializable;
+
+/**
+ * This event is issued when a new trip plan (not a shout-out) is created. The identifiers of the plan are reserved,
+ * but the plan is not yet written to the database: The plan is written in the background once the transaction
+ * creating the plan has been committed.
+ *
+ * @author Jaap Reitsma
+ *
+ */
+public class TripPlanCreatedEvent implements Serializable {
+	private static final long serialVersionUID = 4186279465921634117L;
+
+	/**
+	 * The id of the new plan.
+	 */
+	private Long planId;
+
+	public TripPlanCreatedEvent(Long aPlanId) {
+		this.planId = aPlanId;
+	}
+
+	public Long getPlanId() {
+		return planId;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("TripPlanCreatedEvent [%s]", planId);
+	}
+}
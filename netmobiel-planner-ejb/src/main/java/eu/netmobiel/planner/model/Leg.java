@@ -9,6 +9,8 @@ import java.util.List;
 import java.util.stream.Collectors;
 
 import javax.enterprise.inject.Vetoed;
+import javax.persistence.Access;
+import javax.persistence.AccessType;
 import javax.persistence.Basic;
 import javax.persistence.CollectionTable;
 import javax.persistence.Column;
@@ -36,6 +38,7 @@ import eu.netmobiel.commons.model.PaymentState;
 import eu.netmobiel.commons.util.GeometryHelper;
 import eu.netmobiel.commons.util.PolylineEncoder;
 import eu.netmobiel.commons.util.UrnHelper;
+import eu.netmobiel.planner.util.LegRouteCodec;
 import eu.netmobiel.planner.util.PlannerUrnHelper;
 
 /**
@@ -46,6 +49,7 @@ import eu.netmobiel.planner.util.PlannerUrnHelper;
 @Entity
 @Table(name = "leg")
 @Vetoed
+@Access(AccessType.FIELD)
 @SequenceGenerator(name = "leg_sg", sequenceName = "leg_id_seq", allocationSize = 1, initialValue = 50)
 public class Leg implements Serializable {
 	private static final long serialVersionUID = -3789784762166689720L;
@@ -209,12 +213,40 @@ public class Leg implements Serializable {
     @Column(name = "booking_confirmed")
     private Boolean bookingConfirmed;
 
+    /**
+     * The leg's geometry and guide steps in the compact binary format of the {@link LegRouteCodec}. 
+     * The geometry and the guide steps are decoded on first use. The route data is mapped through the
+     * (property) accessor, to pick up any change to the decoded geometry or guide steps.
+     */
+    @Transient
+    private byte[] routeData;
+
     /**
      * The leg's geometry. This one is used only when storing trips into the database. 
+     * Decoded from the route data (or the legacy columns) on first use.
+     */
+    @Transient
+    private MultiPoint legGeometry; 
+
+    /**
+     * True when the geometry and the guide steps are the decoded (or the assigned) values.
+     */
+    @Transient
+    private boolean routeDecoded;
+
+    /**
+     * True when the decoded geometry and guide steps are taken from the legacy columns. 
+     */
+    @Transient
+    private boolean legacyRoute;
+
+    /**
+     * The leg's geometry as stored before the introduction of the route data. A new leg never writes it, 
+     * the migration service moves the legacy geometry into the route data. 
      */
 	@Basic			// Add this annotation, otherwise no JPA ModelGen attribute is generated.
     @Column(name = "leg_geometry", nullable = true)
-    private MultiPoint legGeometry; 
+    private MultiPoint legacyGeometry; 
 
     /**
      * The leg's geometry as encoded polyline bean. When the domain model is used as decoupling layer for OpenTripPlanner, 
@@ -225,6 +257,14 @@ public class Leg implements Serializable {
     
     /**
      * A series of turn by turn instructions used for walking, biking and driving. 
+     * Decoded from the route data (or the legacy guide steps) on first use.
+     */
+	@Transient
+    private List<GuideStep> guideSteps;
+
+    /**
+     * The guide steps as stored before the introduction of the route data. A new leg never writes guide step rows, 
+     * the migration service moves the legacy steps into the route data. 
      */
 	@ElementCollection()
 	@CollectionTable(
@@ -233,7 +273,7 @@ public class Leg implements Serializable {
 			foreignKey = @ForeignKey(name = "step_leg_fk")) 
 	)
 	@OrderColumn(name = "step_ix")
-    private List<GuideStep> guideSteps;
+    private List<GuideStep> legacyGuideSteps;
 
     /**
      * For transit legs, intermediate stops between the Place where the leg originates and the Place where the leg ends.
@@ -369,7 +409,8 @@ public class Leg implements Serializable {
 		// Copy by value
 		this.guideSteps = new ArrayList<>(other.getGuideSteps().stream().map(GuideStep::copy).collect(Collectors.toList()));
 		this.headsign = other.headsign;
-		this.legGeometry = other.legGeometry;
+		this.legGeometry = other.getLegGeometry();
+		this.routeDecoded = true;
 		this.paymentId = other.paymentId;
 		this.paymentState = other.paymentState;
 		this.plannerReport = other.plannerReport; 
@@ -590,16 +631,80 @@ public class Leg implements Serializable {
     	this.bookingConfirmed = confirmed;
     }
 
+	/**
+	 * Decodes the geometry and the guide steps, if not done already. A leg without route data is either new or 
+	 * has (perhaps) still the legacy geometry and guide steps.
+	 */
+	private void decodeRoute() {
+		if (routeDecoded) {
+			return;
+		}
+		if (routeData == null && (legacyGeometry != null || (legacyGuideSteps != null && !legacyGuideSteps.isEmpty()))) {
+			legGeometry = legacyGeometry;
+			guideSteps = legacyGuideSteps == null ? new ArrayList<>() : 
+				legacyGuideSteps.stream().map(GuideStep::copy).collect(Collectors.toList());
+			legacyRoute = true;
+		} else {
+			legGeometry = LegRouteCodec.decodeGeometry(routeData);
+			guideSteps = LegRouteCodec.decodeGuideSteps(routeData);
+		}
+		routeDecoded = true;
+	}
+
+	/**
+	 * The route data as stored in the database. If the geometry or the guide steps are decoded (or assigned), 
+	 * the data is encoded again: A change of the geometry or of a guide step is saved as well. 
+	 * A leg with a legacy route is left as is, until migrated.
+	 * @return the binary route data.
+	 */
+	@Access(AccessType.PROPERTY)
+	@Column(name = "route_data", nullable = true)
+	protected byte[] getRouteData() {
+		if (routeDecoded && !legacyRoute) {
+			routeData = LegRouteCodec.encode(legGeometry, guideSteps);
+		}
+		return routeData;
+	}
+
+	protected void setRouteData(byte[] routeData) {
+		this.routeData = routeData;
+		this.routeDecoded = false;
+		this.legacyRoute = false;
+		this.legGeometry = null;
+		this.legGeometryEncoded = null;
+		this.guideSteps = null;
+	}
+
+	/**
+	 * Moves the legacy geometry and guide steps into the route data. The legacy columns and rows are cleared.
+	 * @return true if the leg had a legacy route. 
+	 */
+	public boolean migrateLegacyRoute() {
+		decodeRoute();
+		if (!legacyRoute) {
+			return false;
+		}
+		legacyGeometry = null;
+		if (legacyGuideSteps != null) {
+			legacyGuideSteps.clear();
+		}
+		legacyRoute = false;
+		return true;
+	}
+
 	public MultiPoint getLegGeometry() {
+		decodeRoute();
 		return legGeometry;
 	}
 
 	public void setLegGeometry(MultiPoint  legGeometry) {
+		migrateLegacyRoute();
 		this.legGeometry = legGeometry;
 		this.legGeometryEncoded = null;
 	}
 
 	public EncodedPolylineBean getLegGeometryEncoded() {
+		decodeRoute();
     	if (legGeometry != null && legGeometryEncoded == null) {
     		legGeometryEncoded = PolylineEncoder.createEncodings(legGeometry);
     	}
@@ -607,6 +712,7 @@ public class Leg implements Serializable {
 	}
 
 	public void setLegGeometryEncoded(EncodedPolylineBean legGeometryEncoded) {
+		migrateLegacyRoute();
 		this.legGeometryEncoded = legGeometryEncoded;
     	if (this.legGeometryEncoded != null) {
     		this.legGeometry = GeometryHelper.createLegGeometry(this.legGeometryEncoded);
@@ -614,6 +720,7 @@ public class Leg implements Serializable {
 	}
 
 	public List<GuideStep> getGuideSteps() {
+		decodeRoute();
 		if (guideSteps == null) {
 			guideSteps = new ArrayList<>();
 		}
@@ -621,6 +728,7 @@ public class Leg implements Serializable {
 	}
 
 	public void setGuideSteps(List<GuideStep> walkSteps) {
+		migrateLegacyRoute();
 		this.guideSteps = walkSteps;
 	}
 
@@ -896,8 +1004,8 @@ public class Leg implements Serializable {
 	public String toStringFull() {
 		StringBuilder builder = new StringBuilder();
 		builder.append(toString());
-		if (guideSteps != null && !guideSteps.isEmpty()) {
-			builder.append("\n\t\t\t\t").append(guideSteps.stream().map(p -> p.toString()).collect(Collectors.joining("\n\t\t\t\t"))).append("");
+		if (!getGuideSteps().isEmpty()) {
+			builder.append("\n\t\t\t\t").append(getGuideSteps().stream().map(p -> p.toString()).collect(Collectors.joining("\n\t\t\t\t"))).append("");
 		}
 		return builder.toString();
 	}
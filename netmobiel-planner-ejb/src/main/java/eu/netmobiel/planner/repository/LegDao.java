@@ -1,5 +1,6 @@
 package eu.netmobiel.planner.repository;
 
+import java.util.Collections;
 import java.util.List;
 
 import javax.enterprise.context.ApplicationScoped;
@@ -79,4 +80,33 @@ public class LegDao extends AbstractDao<Leg, Long> {
     	return report;
     	
     }
+
+    /**
+     * Lists the legs with a legacy route, i.e. a geometry or guide steps stored before the introduction 
+     * of the route data.
+     * @param afterId list only legs with an id beyond this id.
+     * @param maxResults the maximum number of legs.
+     * @return the leg ids in ascending order.
+     */
+    public List<Long> listLegsWithLegacyRoute(Long afterId, int maxResults) {
+    	return em.createQuery("select lg.id from Leg lg where lg.id > :afterId and " +
+    			" (lg.legacyGeometry is not null or lg.legacyGuideSteps is not empty) order by lg.id asc", Long.class)
+    			.setParameter("afterId", afterId)
+    			.setMaxResults(maxResults)
+    			.getResultList();
+    }
+
+    /**
+     * Loads the legs including the legacy guide steps.
+     * @param ids the leg ids.
+     * @return the legs.
+     */
+    public List<Leg> loadWithLegacyRoute(List<Long> ids) {
+    	if (ids.isEmpty()) {
+    		return Collections.emptyList();
+    	}
+    	return em.createQuery("select distinct lg from Leg lg left join fetch lg.legacyGuideSteps where lg.id in :ids", Leg.class)
+    			.setParameter("ids", ids)
+    			.getResultList();
+    }
 }
\ No newline at end of file
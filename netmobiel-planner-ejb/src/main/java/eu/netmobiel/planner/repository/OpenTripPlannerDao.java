@@ -1,8 +1,11 @@
 package eu.netmobiel.planner.repository;
 
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
+import java.util.function.Consumer;
+import java.util.function.ToIntFunction;
 import java.util.stream.Collectors;
 
 import javax.enterprise.context.ApplicationScoped;
@@ -49,87 +52,113 @@ public class OpenTripPlannerDao {
     @Inject
     private TripPlanMapper tripPlanMapper;
 
-    public List<OtpStop> fetchAllStops() {
-    	List<OtpStop> stops = null;
-    	List<JsonObject> jstops = otpClient.fetchAllStops(); 
-        log.info("fetchAllStops: #" + jstops.size() + " stops");
+    /**
+     * Parses the streamed elements and passes them in chunks to the consumer. The chunk list is reused, 
+     * the consumer must not keep a reference to it.  
+     * @param source the streaming source of the json objects.
+     * @param type the class to map each element to.
+     * @param chunkSize the maximum number of elements in a chunk.
+     * @param chunkConsumer the consumer of each chunk.
+     * @return the total number of elements.
+     */
+    private <T> int fetchInChunks(ToIntFunction<Consumer<JsonObject>> source, Class<T> type, int chunkSize, Consumer<List<T>> chunkConsumer) {
+    	int count = 0;
         try (Jsonb jsonb = JsonbBuilder.create()) {
-            stops = jstops.stream()
-            		.map(stop -> jsonb.fromJson(stop.toString(), OtpStop.class))
-            		.collect(Collectors.toList());
+        	List<T> chunk = new ArrayList<>(chunkSize);
+        	count = source.applyAsInt(jobj -> {
+        		chunk.add(jsonb.fromJson(jobj.toString(), type));
+        		if (chunk.size() >= chunkSize) {
+        			chunkConsumer.accept(chunk);
+        			chunk.clear();
+        		}
+        	});
+        	if (!chunk.isEmpty()) {
+        		chunkConsumer.accept(chunk);
+        	}
+        } catch (RuntimeException e) {
+        	throw e;
         } catch (Exception e) {
         	throw new SystemException("Error closing Jsonb", e);
-		}
-        return stops;
+        }
+        return count;
     }
 
-    public List<OtpCluster> fetchAllClusters() {
-    	List<JsonObject> jclusters = otpClient.fetchAllClusters();
-        log.info("fetchAllClusters: #" + jclusters.size() + " clusters");
-        List<OtpCluster> clusters = null;
-        try (Jsonb jsonb = JsonbBuilder.create()) {
-            clusters = jclusters.stream()
-            		.map(stop -> jsonb.fromJson(stop.toString(), OtpCluster.class))
-            		.collect(Collectors.toList());
-        } catch (Exception e) {
-        	throw new SystemException("Error closing Jsonb", e);
-        }
-        return clusters;
+    /**
+     * Streams all stops from OTP in chunks. The memory use is independent of the size of the graph.
+     * @param chunkSize the maximum number of stops in a chunk.
+     * @param chunkConsumer the consumer of each chunk. The list is reused after the call.
+     * @return the total number of stops.
+     */
+    public int fetchAllStops(int chunkSize, Consumer<List<OtpStop>> chunkConsumer) {
+    	int count = fetchInChunks(otpClient::forEachStop, OtpStop.class, chunkSize, chunkConsumer);
+        log.info("fetchAllStops: #" + count + " stops");
+        return count;
     }
 
-    public List<OtpRoute> fetchAllRoutes() {
-    	List<JsonObject> jroutes = otpClient.fetchAllRoutes();
-    	List<OtpRoute> routes = null;
-        try (Jsonb jsonb = JsonbBuilder.create()) {
-	        log.info("fetchAllRoutes: #" + jroutes.size() + " routes");
-	        routes = jroutes.stream()
-	        		.map(stop -> jsonb.fromJson(stop.toString(), OtpRoute.class))
-	        		.collect(Collectors.toList());
-        } catch (Exception e) {
-        	throw new SystemException("Error closing Jsonb", e);
-        }
-        return routes;
+    /**
+     * Streams all clusters (with their stops) from OTP in chunks.
+     * @param chunkSize the maximum number of clusters in a chunk.
+     * @param chunkConsumer the consumer of each chunk. The list is reused after the call.
+     * @return the total number of clusters.
+     */
+    public int fetchAllClusters(int chunkSize, Consumer<List<OtpCluster>> chunkConsumer) {
+    	int count = fetchInChunks(otpClient::forEachCluster, OtpCluster.class, chunkSize, chunkConsumer);
+        log.info("fetchAllClusters: #" + count + " clusters");
+        return count;
     }
 
-    public List<OtpTransfer> fetchAllTransfers() {
-    	List<JsonObject> jstops = otpClient.fetchAllTransfers();
-    	List<OtpTransfer> transfers = null;
-        try (Jsonb jsonb = JsonbBuilder.create()) {
-            log.info("fetchAllTransfers: #" + jstops.size() + " stops");
-            transfers = jstops.stream()
-            		.map(jstop -> {
-            			OtpStop stop = jsonb.fromJson(jstop.toString(), OtpStop.class);
-            			stop.getTransfers().forEach(t -> t.setFromStop(stop));
-            			return stop;
-            		})
-            		.flatMap(stop -> stop.getTransfers().stream())
-            		.collect(Collectors.toList());
-        } catch (Exception e) {
-        	throw new SystemException("Error closing Jsonb", e);
-        }
-        return transfers;
+    /**
+     * Streams all routes (with their stops) from OTP in chunks.
+     * @param chunkSize the maximum number of routes in a chunk.
+     * @param chunkConsumer the consumer of each chunk. The list is reused after the call.
+     * @return the total number of routes.
+     */
+    public int fetchAllRoutes(int chunkSize, Consumer<List<OtpRoute>> chunkConsumer) {
+    	int count = fetchInChunks(otpClient::forEachRoute, OtpRoute.class, chunkSize, chunkConsumer);
+        log.info("fetchAllRoutes: #" + count + " routes");
+        return count;
     }
 
     /**
-     * Call the OTP to create a trip plan with a number of possible itineraries.
+     * Streams all transfers from OTP in chunks. A chunk contains the transfers of at most chunkSize stops. 
+     * @param chunkSize the maximum number of stops in a chunk.
+     * @param chunkConsumer the consumer of each chunk of transfers.
+     * @return the total number of stops.
+     */
+    public int fetchAllTransfers(int chunkSize, Consumer<List<OtpTransfer>> chunkConsumer) {
+    	int count = fetchInChunks(otpClient::forEachTransferStop, OtpStop.class, chunkSize, stops -> 
+    		chunkConsumer.accept(stops.stream()
+    				.peek(stop -> stop.getTransfers().forEach(t -> t.setFromStop(stop)))
+    				.flatMap(stop -> stop.getTransfers().stream())
+    				.collect(Collectors.toList()))
+    	);
+        log.info("fetchAllTransfers: #" + count + " stops");
+        return count;
+    }
+
+    /**
+     * Clears the cache of the non-transit plans. To be called after an update of the OTP graph.
+     */
+    public void clearPlanCache() {
+    	log.info("Clear plan cache: " + otpClient.getPlanCache().toString());
+    	otpClient.getPlanCache().clear();
+    }
+
+    /**
+     * Creates the planner report describing a call to the OTP, without actually calling the OTP.
      * @param now The time the OTP is called.
      * @param fromPlace The place to depart from.
      * @param toPlace the intended place of arrival.
-     * @param departureTime the departure time. This is an instant, i.e. a precise moment in time.
-     * @param arrivalTime the intended arrival time. This is an instant, i.e. a precise moment in time.
+     * @param travelTime the departure or arrival time.
+     * @param isArrivalPinned if true then the travel time is the arrival time.
      * @param modes An array of traversel modes like rail, bus etc.
-     * @param showIntermediateStops if true then list the intermediate stops too.
      * @param maxWalkDistance the maximum distance to walk to and from transfers.
-     * @param maxTransfers the maximum number of transfers one is allowed to take.
      * @param via a list of places that must be part of the itineraries.
      * @param maxItineraries The maximum number of itineraries to list.
-     * @return A planner result consisting of a report and a list of itineraries.
-     * @throws NotFoundException When no itinerary could be found. 
-     * @throws BadRequestException When the planner cannot plan due to the combination of parameters.
+     * @return A planner report with the request parameters filled in.
      */
-    @SuppressWarnings("resource")
-	public PlannerResult createPlan(Instant now, GeoLocation fromPlace, GeoLocation toPlace, Instant travelTime, boolean isArrivalPinned, 
-    		Set<TraverseMode> modes, boolean showIntermediateStops, Integer maxWalkDistance, Integer maxTransfers, List<GeoLocation> via, Integer maxItineraries) {
+    public PlannerReport createPlanReport(Instant now, GeoLocation fromPlace, GeoLocation toPlace, Instant travelTime, boolean isArrivalPinned,
+    		Set<TraverseMode> modes, Integer maxWalkDistance, List<GeoLocation> via, Integer maxItineraries) {
     	PlannerReport report = new PlannerReport();
     	report.setRequestTime(now);
     	report.setTravelTime(travelTime);
@@ -141,11 +170,34 @@ public class OpenTripPlannerDao {
     	report.setToolType(ToolType.OPEN_TRIP_PLANNER);
     	report.setMaxResults(maxItineraries);
     	report.setViaLocations(via);
-    	report.setRequestGeometry(GeometryHelper.createLines(fromPlace.getPoint().getCoordinate(), 
-    			toPlace.getPoint().getCoordinate(), 
+    	report.setRequestGeometry(GeometryHelper.createLines(fromPlace.getPoint().getCoordinate(),
+    			toPlace.getPoint().getCoordinate(),
     			via == null ? null : via.stream().map(loc -> loc.getPoint().getCoordinate()).toArray(Coordinate[]::new))
     	);
-    	
+    	return report;
+    }
+
+    /**
+     * Call the OTP to create a trip plan with a number of possible itineraries.
+     * @param now The time the OTP is called.
+     * @param fromPlace The place to depart from.
+     * @param toPlace the intended place of arrival.
+     * @param departureTime the departure time. This is an instant, i.e. a precise moment in time.
+     * @param arrivalTime the intended arrival time. This is an instant, i.e. a precise moment in time.
+     * @param modes An array of traversel modes like rail, bus etc.
+     * @param showIntermediateStops if true then list the intermediate stops too.
+     * @param maxWalkDistance the maximum distance to walk to and from transfers.
+     * @param maxTransfers the maximum number of transfers one is allowed to take.
+     * @param via a list of places that must be part of the itineraries.
+     * @param maxItineraries The maximum number of itineraries to list.
+     * @return A planner result consisting of a report and a list of itineraries.
+     * @throws NotFoundException When no itinerary could be found. 
+     * @throws BadRequestException When the planner cannot plan due to the combination of parameters.
+     */
+    @SuppressWarnings("resource")
+	public PlannerResult createPlan(Instant now, GeoLocation fromPlace, GeoLocation toPlace, Instant travelTime, boolean isArrivalPinned, 
+    		Set<TraverseMode> modes, boolean showIntermediateStops, Integer maxWalkDistance, Integer maxTransfers, List<GeoLocation> via, Integer maxItineraries) {
+    	PlannerReport report = createPlanReport(now, fromPlace, toPlace, travelTime, isArrivalPinned, modes, maxWalkDistance, via, maxItineraries);
     	eu.netmobiel.opentripplanner.api.model.TraverseMode[] otpModes = modes.stream()
     			.map(m -> eu.netmobiel.opentripplanner.api.model.TraverseMode.valueOf(m.name()))
     			.toArray(eu.netmobiel.opentripplanner.api.model.TraverseMode[]::new);
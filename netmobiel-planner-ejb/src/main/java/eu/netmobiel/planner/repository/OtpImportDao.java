@@ -0,0 +1,253 @@
+package eu.netmobiel.planner.repository;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import javax.persistence.EntityManager;
+
+import org.hibernate.Session;
+import org.slf4j.Logger;
+
+import eu.netmobiel.commons.model.GeoLocation;
+import eu.netmobiel.planner.annotation.PlannerDatabase;
+import eu.netmobiel.planner.model.OtpCluster;
+import eu.netmobiel.planner.model.OtpRoute;
+import eu.netmobiel.planner.model.OtpStop;
+
+/**
+ * Set-based import of the public transport reference data (stops, clusters and routes) from OTP.
+ * The rows are first inserted with JDBC batches into a temporary staging table (dropped at commit), then merged
+ * into the actual table with a few INSERT ... ON CONFLICT statements. Rows no longer present in OTP are
+ * removed in the same step. An import consists of creating the staging table, staging the rows in chunks and the merge,
+ * all in a single transaction.
+ *
+ * This DAO uses native PostgreSQL (and PostGIS) SQL.
+ *
+ * @author Jaap Reitsma
+ *
+ */
+@ApplicationScoped
+public class OtpImportDao {
+	/**
+	 * The number of rows in a single JDBC batch.
+	 */
+	private static final int BATCH_SIZE = 1000;
+	/**
+	 * The expression to calculate the transportation type mask of a route. Only the first 8 types are stored,
+	 * see the transportation types attribute of OtpStop.
+	 */
+	private static final String ROUTE_TYPE_MASK = "case when r.ov_type between 0 and 7 then 1 << r.ov_type else 0 end";
+
+    @Inject
+    private Logger log;
+
+    @Inject @PlannerDatabase
+    private EntityManager em;
+
+    private int executeUpdate(String sql) {
+    	return em.createNativeQuery(sql).executeUpdate();
+    }
+
+    @FunctionalInterface
+    private interface RowBinder<T> {
+    	void bind(PreparedStatement ps, T row) throws SQLException;
+    }
+
+    /**
+     * Inserts the rows into the (staging) table using JDBC batches.
+     * @param sql the insert statement.
+     * @param rows the rows to insert.
+     * @param binder the binder of the parameters of each row.
+     */
+    private <T> void batchInsert(String sql, List<T> rows, RowBinder<T> binder) {
+    	em.unwrap(Session.class).doWork(connection -> {
+    		try (PreparedStatement ps = connection.prepareStatement(sql)) {
+    			int count = 0;
+    			for (T row : rows) {
+    				binder.bind(ps, row);
+    				ps.addBatch();
+    				if (++count % BATCH_SIZE == 0) {
+    					ps.executeBatch();
+    				}
+    			}
+    			if (count % BATCH_SIZE != 0) {
+    				ps.executeBatch();
+    			}
+    		}
+    	});
+    }
+
+    private static void setLocation(PreparedStatement ps, int index, GeoLocation location) throws SQLException {
+    	if (location != null && location.getLatitude() != null && location.getLongitude() != null) {
+    		ps.setDouble(index, location.getLatitude());
+    		ps.setDouble(index + 1, location.getLongitude());
+    	} else {
+    		ps.setNull(index, Types.DOUBLE);
+    		ps.setNull(index + 1, Types.DOUBLE);
+    	}
+    }
+
+    private long countStaged(String table) {
+    	return ((Number) em.createNativeQuery("select count(*) from " + table).getSingleResult()).longValue();
+    }
+
+    /**
+     * Creates the staging table for the stops. The staging table lives until the end of the transaction.
+     */
+    public void createStopStaging() {
+    	executeUpdate("create temporary table otp_stop_import (id varchar(64) primary key, gtfs_id varchar(64), " +
+    			"label varchar(128), lat double precision, lon double precision, platform_code varchar(32)) on commit drop");
+    }
+
+    /**
+     * Adds a chunk of stops to the staging table.
+     * @param stops the stops to add.
+     */
+    public void stageStops(List<OtpStop> stops) {
+    	batchInsert("insert into otp_stop_import (id, gtfs_id, label, lat, lon, platform_code) values (?, ?, ?, ?, ?, ?) on conflict do nothing",
+    			stops, (ps, s) -> {
+    		ps.setString(1, s.getId());
+    		ps.setString(2, s.getGtfsId());
+    		ps.setString(3, s.getLocation() != null ? s.getLocation().getLabel() : null);
+    		setLocation(ps, 4, s.getLocation());
+    		ps.setString(6, s.getPlatformCode());
+    	});
+    }
+
+    /**
+     * Merges the staged stops into the stop table. The staging table must contain the complete set of stops.
+     * Existing stops keep their cluster, the number of routes and the transportation types are determined by
+     * the route import. Stops not present anymore are removed (including transfers and route links).
+     */
+    public void mergeStops() {
+    	int upserted = executeUpdate("insert into otp_stop (id, gtfs_id, label, point, platform_code, transportation_types, stale) " +
+    			"select i.id, i.gtfs_id, i.label, ST_SetSRID(ST_MakePoint(i.lon, i.lat), 4326), i.platform_code, 0, false from otp_stop_import i " +
+    			"on conflict (id) do update set gtfs_id = excluded.gtfs_id, label = excluded.label, point = excluded.point, " +
+    			"platform_code = excluded.platform_code, stale = false");
+    	int removed = executeUpdate("delete from otp_stop s where not exists (select 1 from otp_stop_import i where i.id = s.id)");
+    	log.info(String.format("importStops: %d stops staged, %d upserted, %d removed", countStaged("otp_stop_import"), upserted, removed));
+    }
+
+    /**
+     * Creates the staging tables for the clusters. The staging tables live until the end of the transaction.
+     */
+    public void createClusterStaging() {
+    	executeUpdate("create temporary table otp_cluster_import (id varchar(64) primary key, gtfs_id varchar(64), " +
+    			"label varchar(128), lat double precision, lon double precision, nr_stops integer) on commit drop");
+    	executeUpdate("create temporary table otp_cluster_stop_import (cluster_id varchar(64) not null, stop_id varchar(64) not null) on commit drop");
+    }
+
+    /**
+     * Adds a chunk of clusters, including their stops, to the staging tables.
+     * @param clusters the clusters to add.
+     */
+    public void stageClusters(List<OtpCluster> clusters) {
+    	batchInsert("insert into otp_cluster_import (id, gtfs_id, label, lat, lon, nr_stops) values (?, ?, ?, ?, ?, ?) on conflict do nothing",
+    			clusters, (ps, c) -> {
+    		ps.setString(1, c.getId());
+    		ps.setString(2, c.getGtfsId());
+    		ps.setString(3, c.getLocation() != null ? c.getLocation().getLabel() : null);
+    		setLocation(ps, 4, c.getLocation());
+    		ps.setInt(6, c.getStops() != null ? c.getStops().size() : 0);
+    	});
+    	List<String[]> links = clusters.stream()
+    			.filter(c -> c.getStops() != null)
+    			.flatMap(c -> c.getStops().stream().map(s -> new String[] { c.getId(), s.getId() }))
+    			.collect(Collectors.toList());
+    	batchInsert("insert into otp_cluster_stop_import (cluster_id, stop_id) values (?, ?)", links, (ps, l) -> {
+    		ps.setString(1, l[0]);
+    		ps.setString(2, l[1]);
+    	});
+    }
+
+    /**
+     * Merges the staged clusters into the cluster table and (re)assigns the stops. The staging tables must contain 
+     * the complete set of clusters. Clusters not present anymore are removed.
+     */
+    public void mergeClusters() {
+    	int upserted = executeUpdate("insert into otp_cluster (id, gtfs_id, label, point, nr_stops, transportation_types, stale) " +
+    			"select i.id, i.gtfs_id, i.label, ST_SetSRID(ST_MakePoint(i.lon, i.lat), 4326), i.nr_stops, 0, false from otp_cluster_import i " +
+    			"on conflict (id) do update set gtfs_id = excluded.gtfs_id, label = excluded.label, point = excluded.point, " +
+    			"nr_stops = excluded.nr_stops, stale = false");
+    	int assigned = executeUpdate("update otp_stop s set cluster = cs.cluster_id from otp_cluster_stop_import cs " +
+    			"where s.id = cs.stop_id and s.cluster is distinct from cs.cluster_id");
+    	// Release the stops of the clusters about to be removed
+    	executeUpdate("update otp_stop s set cluster = null where s.cluster is not null and " +
+    			"not exists (select 1 from otp_cluster_import i where i.id = s.cluster)");
+    	int removed = executeUpdate("delete from otp_cluster c where not exists (select 1 from otp_cluster_import i where i.id = c.id)");
+    	log.info(String.format("importClusters: %d clusters staged, %d upserted, %d stops (re)assigned, %d removed",
+    			countStaged("otp_cluster_import"), upserted, assigned, removed));
+    }
+
+    /**
+     * Creates the staging tables for the routes. The staging tables live until the end of the transaction.
+     */
+    public void createRouteStaging() {
+    	executeUpdate("create temporary table otp_route_import (id varchar(64) primary key, gtfs_id varchar(64), " +
+    			"short_name varchar(32), long_name varchar(96), ov_type integer not null) on commit drop");
+    	executeUpdate("create temporary table otp_route_stop_import (route_id varchar(64) not null, stop_id varchar(64) not null) on commit drop");
+    }
+
+    /**
+     * Adds a chunk of routes, including their stops, to the staging tables.
+     * @param routes the routes to add.
+     */
+    public void stageRoutes(List<OtpRoute> routes) {
+    	batchInsert("insert into otp_route_import (id, gtfs_id, short_name, long_name, ov_type) values (?, ?, ?, ?, ?) on conflict do nothing",
+    			routes, (ps, r) -> {
+    		ps.setString(1, r.getId());
+    		ps.setString(2, r.getGtfsId());
+    		ps.setString(3, r.getShortName());
+    		ps.setString(4, r.getLongName());
+    		ps.setInt(5, r.getType());
+    	});
+    	List<String[]> links = routes.stream()
+    			.filter(r -> r.getStops() != null)
+    			.flatMap(r -> r.getStops().stream().map(s -> new String[] { r.getId(), s.getId() }))
+    			.collect(Collectors.toList());
+    	batchInsert("insert into otp_route_stop_import (route_id, stop_id) values (?, ?)", links, (ps, l) -> {
+    		ps.setString(1, l[0]);
+    		ps.setString(2, l[1]);
+    	});
+    }
+
+    /**
+     * Merges the staged routes into the route table, replaces the route-stop relation and updates the route statistics.
+     * The staging tables must contain the complete set of routes. Routes not present anymore are removed.
+     */
+    public void mergeRoutes() {
+    	int upserted = executeUpdate("insert into otp_route (id, gtfs_id, short_name, long_name, ov_type, stale) " +
+    			"select i.id, i.gtfs_id, i.short_name, i.long_name, i.ov_type, false from otp_route_import i " +
+    			"on conflict (id) do update set gtfs_id = excluded.gtfs_id, short_name = excluded.short_name, " +
+    			"long_name = excluded.long_name, ov_type = excluded.ov_type, stale = false");
+    	int removed = executeUpdate("delete from otp_route r where not exists (select 1 from otp_route_import i where i.id = r.id)");
+    	// Replace the route-stop relation completely, skip the stops we don't know
+    	executeUpdate("delete from otp_route_stop");
+    	int nrLinks = executeUpdate("insert into otp_route_stop (route_id, stop_id) select distinct rs.route_id, rs.stop_id " +
+    			"from otp_route_stop_import rs join otp_stop s on s.id = rs.stop_id");
+    	log.info(String.format("importRoutes: %d routes staged, %d upserted, %d removed, %d stop links",
+    			countStaged("otp_route_import"), upserted, removed, nrLinks));
+    	updateRouteStatistics();
+    }
+
+    /**
+     * Recalculates the number of routes and the transportation types of each stop and each cluster.
+     */
+    public void updateRouteStatistics() {
+    	int nrStops = executeUpdate("update otp_stop s set nr_routes = coalesce(a.nr_routes, 0), transportation_types = coalesce(a.types, 0) " +
+    			"from otp_stop s0 left join (select rs.stop_id, count(distinct rs.route_id) as nr_routes, bit_or(" + ROUTE_TYPE_MASK + ") as types " +
+    			"from otp_route_stop rs join otp_route r on r.id = rs.route_id group by rs.stop_id) a on a.stop_id = s0.id " +
+    			"where s.id = s0.id");
+    	int nrClusters = executeUpdate("update otp_cluster c set nr_routes = coalesce(a.nr_routes, 0), transportation_types = coalesce(a.types, 0) " +
+    			"from otp_cluster c0 left join (select s.cluster, count(distinct rs.route_id) as nr_routes, bit_or(" + ROUTE_TYPE_MASK + ") as types " +
+    			"from otp_route_stop rs join otp_route r on r.id = rs.route_id join otp_stop s on s.id = rs.stop_id " +
+    			"where s.cluster is not null group by s.cluster) a on a.cluster = c0.id " +
+    			"where c.id = c0.id");
+    	log.info(String.format("updateRouteStatistics: %d stops, %d clusters updated", nrStops, nrClusters));
+    }
+}
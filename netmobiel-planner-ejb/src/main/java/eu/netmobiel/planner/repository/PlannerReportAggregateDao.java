@@ -0,0 +1,28 @@
+package eu.netmobiel.planner.repository;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.inject.Typed;
+import javax.inject.Inject;
+import javax.persistence.EntityManager;
+
+import eu.netmobiel.commons.repository.ReportAggregateDao;
+import eu.netmobiel.planner.annotation.PlannerDatabase;
+
+/**
+ * The report aggregates of the planner service, stored in the tables report_aggregate and report_aggregate_period.
+ *
+ * @author Jaap Reitsma
+ *
+ */
+@ApplicationScoped
+@Typed(PlannerReportAggregateDao.class)
+public class PlannerReportAggregateDao extends ReportAggregateDao {
+
+	@Inject @PlannerDatabase
+	private EntityManager em;
+
+	@Override
+	protected EntityManager getEntityManager() {
+		return em;
+	}
+}
@@ -0,0 +1,27 @@
+package eu.netmobiel.planner.repository;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import javax.persistence.EntityManager;
+
+import eu.netmobiel.here.search.AbstractPostalCodeStore;
+import eu.netmobiel.here.search.PostalCodeCache;
+import eu.netmobiel.planner.annotation.PlannerDatabase;
+
+/**
+ * The persistent level of the postal code cache of the planner service, see {@link PostalCodeCache}. 
+ *
+ * @author Jaap Reitsma
+ *
+ */
+@ApplicationScoped
+public class PostalCodeStoreDao extends AbstractPostalCodeStore {
+
+    @Inject @PlannerDatabase
+    private EntityManager em;
+
+	@Override
+	protected EntityManager getEntityManager() {
+		return em;
+	}
+}
@@ -12,10 +12,10 @@ import javax.enterprise.inject.Typed;
 import javax.inject.Inject;
 import javax.persistence.EntityManager;
 import javax.persistence.NoResultException;
+import javax.persistence.Tuple;
 import javax.persistence.TypedQuery;
 import javax.persistence.criteria.CriteriaBuilder;
 import javax.persistence.criteria.CriteriaQuery;
-import javax.persistence.criteria.Expression;
 import javax.persistence.criteria.Predicate;
 import javax.persistence.criteria.Root;
 
@@ -24,7 +24,6 @@ import org.slf4j.Logger;
 import eu.netmobiel.commons.filter.Cursor;
 import eu.netmobiel.commons.model.GeoLocation;
 import eu.netmobiel.commons.model.PagedResult;
-import eu.netmobiel.commons.model.SortDirection;
 import eu.netmobiel.commons.repository.AbstractDao;
 import eu.netmobiel.planner.annotation.PlannerDatabase;
 import eu.netmobiel.planner.filter.TripFilter;
@@ -55,7 +54,7 @@ public class TripDao extends AbstractDao<Trip, Long> {
 
     public PagedResult<Long> findTrips(TripFilter filter, Cursor cursor) {
     	CriteriaBuilder cb = em.getCriteriaBuilder();
-        CriteriaQuery<Long> cq = cb.createQuery(Long.class);
+        CriteriaQuery<Tuple> cq = cb.createTupleQuery();
         Root<Trip> trips = cq.from(Trip.class);
         List<Predicate> predicates = new ArrayList<>();
         if (filter.getTraveller() != null) {
@@ -77,22 +76,8 @@ public class TripDao extends AbstractDao<Trip, Long> {
         if (Boolean.TRUE.equals(filter.getSkipCancelled())) {
 	        predicates.add(cb.notEqual(trips.get(Trip_.state), TripState.CANCELLED));
         }
-        cq.where(cb.and(predicates.toArray(new Predicate[predicates.size()])));
-        Long totalCount = null;
-        List<Long> results = Collections.emptyList();
-        if (cursor.isCountingQuery()) {
-            cq.select(cb.count(trips.get(Trip_.id)));
-            totalCount = em.createQuery(cq).getSingleResult();
-        } else {
-            cq.select(trips.get(Trip_.id));
-            Expression<?> orderExpr = trips.get(Trip_.itinerary).get(Itinerary_.departureTime); 
-           	cq.orderBy(filter.getSortDir() == SortDirection.DESC ? cb.desc(orderExpr) : cb.asc(orderExpr));
-	        TypedQuery<Long> tq = em.createQuery(cq);
-			tq.setFirstResult(cursor.getOffset());
-			tq.setMaxResults(cursor.getMaxResults());
-			results = tq.getResultList();
-        }
-        return new PagedResult<>(results, cursor, totalCount);
+        return queryKeysetPage(cb, cq, trips, predicates, trips.get(Trip_.itinerary).get(Itinerary_.departureTime), 
+        		filter.getSortDir(), cursor);
     }
 
 	public List<Long> findTripsToMonitor(Instant departureBefore) {
@@ -134,15 +119,15 @@ public class TripDao extends AbstractDao<Trip, Long> {
     }
 
     /**
-     * Find the first ride without a departure or arrival postal code.
-     * @return A ride without a departure or arrival postal code or an empty Optional.
+     * Lists the trips without a departure or arrival postal code.
+     * @param maxResults the maximum number of trips to return.
+     * @return A list of trips without a departure or arrival postal code, the oldest first.
      */
-    public Optional<Trip> findFirstTripWithoutPostalCode() {
-    	List<Trip> trips = em.createQuery(
+    public List<Trip> listTripsWithoutPostalCode(int maxResults) {
+    	return em.createQuery(
     			"from Trip t where t.departurePostalCode is null or t.arrivalPostalCode is null order by t.id asc", Trip.class)
-    			.setMaxResults(1)
+    			.setMaxResults(maxResults)
     			.getResultList();
-    	return trips.isEmpty() ? Optional.empty() : Optional.of(trips.get(0)); 
     }
 
     public int updateDeparturePostalCode(GeoLocation departureLocation, String postalCode) {
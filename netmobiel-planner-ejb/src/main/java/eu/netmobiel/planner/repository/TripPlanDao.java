@@ -2,7 +2,11 @@ package eu.netmobiel.planner.repository;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
 
 import javax.enterprise.context.ApplicationScoped;
 import javax.enterprise.inject.Typed;
@@ -15,6 +19,8 @@ import javax.persistence.criteria.Expression;
 import javax.persistence.criteria.Predicate;
 import javax.persistence.criteria.Root;
 
+import org.hibernate.ReplicationMode;
+import org.hibernate.Session;
 import org.slf4j.Logger;
 
 import com.vividsolutions.jts.geom.Polygon;
@@ -28,7 +34,11 @@ import eu.netmobiel.commons.util.EllipseHelper;
 import eu.netmobiel.planner.annotation.PlannerDatabase;
 import eu.netmobiel.planner.filter.ShoutOutFilter;
 import eu.netmobiel.planner.filter.TripPlanFilter;
+import eu.netmobiel.planner.model.Itinerary;
+import eu.netmobiel.planner.model.Leg;
 import eu.netmobiel.planner.model.PlanType;
+import eu.netmobiel.planner.model.PlannerReport;
+import eu.netmobiel.planner.model.Stop;
 import eu.netmobiel.planner.model.TripPlan;
 import eu.netmobiel.planner.model.TripPlan_;
 
@@ -164,4 +174,63 @@ public class TripPlanDao extends AbstractDao<TripPlan, Long> {
         return new PagedResult<>(results, cursor, totalCount);
     }
 
+    /**
+     * Fetches a number of values from a database sequence in a single round trip.
+     * @param sequence the name of the sequence.
+     * @param count the number of values.
+     * @return the values.
+     */
+    private Iterator<Long> nextIds(String sequence, int count) {
+    	@SuppressWarnings("unchecked")
+		List<Number> ids = em.createNativeQuery("select nextval('" + sequence + "') from generate_series(1, :count)")
+    			.setParameter("count", count)
+    			.getResultList();
+    	return ids.stream().map(Number::longValue).collect(Collectors.toList()).iterator();
+    }
+
+    /**
+     * Reserves the identifiers of a new plan and its object graph (planner reports, itineraries, stops and legs)
+     * and assigns them, without writing the plan to the database. Only a single call per sequence is made. 
+     * The plan must be written later on by {@link #replicate(TripPlan)}. 
+     * @param plan the new plan.
+     */
+    public void reserveIdentifiers(TripPlan plan) {
+    	List<Itinerary> itineraries = new ArrayList<>(plan.getItineraries());
+    	List<Leg> legs = itineraries.stream()
+    			.flatMap(it -> it.getLegs().stream())
+    			.collect(Collectors.toList());
+    	// The stops are compared by value, use the identity instead
+    	Set<Stop> stops = Collections.newSetFromMap(new IdentityHashMap<>());
+    	itineraries.forEach(it -> stops.addAll(it.getStops()));
+    	legs.forEach(leg -> {
+    		stops.add(leg.getFrom());
+    		stops.add(leg.getTo());
+    	});
+    	plan.setId(nextIds("trip_plan_id_seq", 1).next());
+    	Iterator<Long> reportIds = nextIds("planner_report_id_seq", plan.getPlannerReports().size());
+    	for (PlannerReport report : plan.getPlannerReports()) {
+			report.setId(reportIds.next());
+		}
+    	Iterator<Long> itineraryIds = nextIds("itinerary_id_seq", itineraries.size());
+    	itineraries.forEach(it -> it.setId(itineraryIds.next()));
+    	Iterator<Long> stopIds = nextIds("stop_id_seq", stops.size());
+    	stops.forEach(stop -> stop.setId(stopIds.next()));
+    	Iterator<Long> legIds = nextIds("leg_id_seq", legs.size());
+    	legs.forEach(leg -> leg.setId(legIds.next()));
+    }
+
+    /**
+     * Writes a new plan with the identifiers already assigned (see {@link #reserveIdentifiers(TripPlan)}). 
+     * The replication inserts the objects without looking up the identifiers first, the insert statements are 
+     * issued as JDBC batches at the flush.
+     * @param plan the plan to write.
+     */
+    public void replicate(TripPlan plan) {
+    	Session session = em.unwrap(Session.class);
+    	// Includes the planner reports
+    	session.replicate(plan, ReplicationMode.EXCEPTION);
+    	// Includes the stops and the legs
+    	plan.getItineraries().forEach(it -> session.replicate(it, ReplicationMode.EXCEPTION));
+    	session.flush();
+    }
 }
\ No newline at end of file
@@ -0,0 +1,146 @@
+package eu.netmobiel.planner.service;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Collectors;
+
+import javax.enterprise.context.ApplicationScoped;
+
+import org.apache.commons.lang3.SerializationUtils;
+
+import eu.netmobiel.planner.model.Itinerary;
+import eu.netmobiel.planner.model.TripPlan;
+
+/**
+ * The cache of the trip plans that are written to the database in the background (write-behind).
+ * A plan is added with all identifiers already assigned and is removed after the write has been committed (or has failed).
+ * In the mean time the plan is served from this cache. The cache keeps a deep copy of the plan, taken when the plan is added,
+ * and serves a new deep copy on each lookup. The object graph of the caller and those of the readers and the writer
+ * are therefore never shared. Modifications of a served plan are not written to the database.
+ * 
+ * The cache is memory-only and local to this node. A plan in flight is lost when the application stops before 
+ * the write has been committed, the client receives a 'not found' on the next reference to the plan and must plan again. 
+ * Another node of a cluster does not see the plans in flight of this node: A reference to such a plan reaching 
+ * the other node before the write has been committed is not found either. 
+ *
+ * @author Jaap Reitsma
+ *
+ */
+@ApplicationScoped
+public class InFlightTripPlans {
+
+	private static class Entry {
+		private final TripPlan plan;
+		private final CountDownLatch written = new CountDownLatch(1);
+		private volatile Throwable failure;
+
+		public Entry(TripPlan aPlan) {
+			this.plan = aPlan;
+		}
+	}
+
+	private final ConcurrentMap<Long, Entry> plans = new ConcurrentHashMap<>();
+	private final ConcurrentMap<Long, Entry> plansByItinerary = new ConcurrentHashMap<>();
+
+	/**
+	 * Creates a deep copy of a plan, including the itineraries, legs, stops and planner reports.
+	 * @param plan the plan to copy.
+	 * @return the copy.
+	 */
+	protected static TripPlan copy(TripPlan plan) {
+		return SerializationUtils.clone(plan);
+	}
+
+	/**
+	 * Adds a copy of a plan to the cache. The itineraries are ordered by descending score, the same order as used
+	 * when loading the plan from the database.
+	 * @param plan the plan, the identifiers must already be assigned.
+	 */
+	public void add(TripPlan plan) {
+		if (plan.getId() == null) {
+			throw new IllegalArgumentException("The plan must have an identifier");
+		}
+		List<Itinerary> sorted = plan.getItineraries().stream()
+				.sorted(Comparator.comparing(Itinerary::getScore, Comparator.nullsLast(Comparator.reverseOrder())))
+				.collect(Collectors.toList());
+		plan.getItineraries().clear();
+		plan.getItineraries().addAll(sorted);
+		Entry entry = new Entry(copy(plan));
+		plans.put(plan.getId(), entry);
+		sorted.forEach(it -> plansByItinerary.put(it.getId(), entry));
+	}
+
+	/**
+	 * Looks up a plan that is still being written.
+	 * @param planId the id of the plan.
+	 * @return a copy of the plan, if the plan is still in flight.
+	 */
+	public Optional<TripPlan> find(Long planId) {
+		Entry entry = plans.get(planId);
+		return entry == null ? Optional.empty() : Optional.of(copy(entry.plan));
+	}
+
+	/**
+	 * Removes a plan from the cache, the write has been committed. Any thread waiting for the plan is released.
+	 * @param planId the id of the plan.
+	 */
+	public void remove(Long planId) {
+		release(planId, null);
+	}
+
+	/**
+	 * Removes a plan from the cache, the plan could not be written. Any thread waiting for the plan is released
+	 * and receives the failure.
+	 * @param planId the id of the plan.
+	 * @param failure the cause of the failure.
+	 */
+	public void fail(Long planId, Throwable failure) {
+		release(planId, failure);
+	}
+
+	private void release(Long planId, Throwable failure) {
+		Entry entry = plans.remove(planId);
+		if (entry != null) {
+			entry.failure = failure;
+			entry.plan.getItineraries().forEach(it -> plansByItinerary.remove(it.getId()));
+			entry.written.countDown();
+		}
+	}
+
+	/**
+	 * Waits until the plan of the specified itinerary is written, if the plan is still in flight.
+	 * @param itineraryId the id of the itinerary.
+	 * @param timeout the maximum time to wait.
+	 * @param unit the unit of the timeout.
+	 * @throws InterruptedException if the waiting thread is interrupted.
+	 * @throws TimeoutException if the plan is still not written when the timeout has elapsed.
+	 * @throws ExecutionException if the plan could not be written. The cause is the failure of the write.
+	 */
+	public void awaitItinerary(Long itineraryId, long timeout, TimeUnit unit) throws InterruptedException, TimeoutException, ExecutionException {
+		Entry entry = plansByItinerary.get(itineraryId);
+		if (entry == null) {
+			return;
+		}
+		if (!entry.written.await(timeout, unit)) {
+			throw new TimeoutException("The plan of itinerary " + itineraryId + " is still being written");
+		}
+		if (entry.failure != null) {
+			throw new ExecutionException(entry.failure);
+		}
+	}
+
+	/**
+	 * Returns the number of plans in flight.
+	 * @return the number of plans.
+	 */
+	public int size() {
+		return plans.size();
+	}
+}
@@ -1,6 +1,7 @@
 package eu.netmobiel.planner.service;
 
 import java.util.List;
+import java.util.function.Consumer;
 
 import javax.ejb.Stateless;
 import javax.ejb.TransactionAttribute;
@@ -8,15 +9,13 @@ import javax.ejb.TransactionAttributeType;
 import javax.inject.Inject;
 
 import org.jboss.ejb3.annotation.TransactionTimeout;
-import org.slf4j.Logger;
 
 import eu.netmobiel.planner.model.OtpCluster;
 import eu.netmobiel.planner.model.OtpRoute;
 import eu.netmobiel.planner.model.OtpStop;
 import eu.netmobiel.planner.model.OtpTransfer;
 import eu.netmobiel.planner.model.OtpTransferId;
-import eu.netmobiel.planner.repository.OtpClusterDao;
-import eu.netmobiel.planner.repository.OtpRouteDao;
+import eu.netmobiel.planner.repository.OtpImportDao;
 import eu.netmobiel.planner.repository.OtpStopDao;
 import eu.netmobiel.planner.repository.OtpTransferDao;
 
@@ -29,87 +28,47 @@ import eu.netmobiel.planner.repository.OtpTransferDao;
 @TransactionAttribute(TransactionAttributeType.REQUIRED)
 public class OTPDataManager {
 	
-    @Inject
-    private Logger log;
-
     @Inject
     private OtpStopDao otpStopDao;
     @Inject
-    private OtpClusterDao otpClusterDao;
-    @Inject
-    private OtpRouteDao otpRouteDao;
-    @Inject
     private OtpTransferDao otpTransferDao;
+    @Inject
+    private OtpImportDao otpImportDao;
 
-    public void prepareUpdateStops() {
-    	otpStopDao.markAllStale();
-    }
-
+    /**
+     * Imports all stops in a single set-based step. The stops are staged in chunks as they are produced by the source, 
+     * the source runs in the transaction of the import.
+     * @param source the producer of the complete set of stops as known by OTP. The source passes the chunks 
+     * 				to the consumer it is given.
+     */
     @TransactionTimeout(1800)
-    public void finishUpdateStops() {
-    	otpStopDao.removeAllStale();
+    public void importStops(Consumer<Consumer<List<OtpStop>>> source) {
+    	otpImportDao.createStopStaging();
+    	source.accept(otpImportDao::stageStops);
+    	otpImportDao.mergeStops();
     }
 
-    public void bulkUpdateStops(List<OtpStop> stops) {
-    	for (OtpStop otpStop : stops) {
-			otpStopDao.find(otpStop.getId()).ifPresentOrElse(s -> {
-				otpStop.setCluster(s.getCluster());
-				otpStop.getTransportationTypes().clear();
-				otpStopDao.merge(otpStop);
-			}, () -> otpStopDao.save(otpStop)
-			);
-		}
-    }
-
-    public void prepareUpdateClusters() {
-    	otpClusterDao.markAllStale();
-    }
-    
+    /**
+     * Imports all clusters in a single set-based step. The stops must have been imported already.
+     * @param source the producer of the complete set of clusters as known by OTP.
+     */
     @TransactionTimeout(1800)
-    public void finishUpdateClusters() {
-    	otpClusterDao.removeAllStale();
-    }
-
-    public void bulkUpdateClusters(List<OtpCluster> clusters) {
-    	for (OtpCluster otpCluster : clusters) {
-    		otpCluster.setNrStops(otpCluster.getStops().size());
-			OtpCluster cluster = otpClusterDao.find(otpCluster.getId()).map(c -> {
-				otpCluster.getTransportationTypes().clear();
-				return otpClusterDao.merge(otpCluster);
-			}).orElseGet(() -> {
-				return otpClusterDao.save(otpCluster);
-			});
-			for (OtpStop otpStop : otpCluster.getStops()) {
-				otpStopDao.find(otpStop.getId())
-					.ifPresent(s -> s.setCluster(cluster)
-				);
-			}
-		}
+    public void importClusters(Consumer<Consumer<List<OtpCluster>>> source) {
+    	otpImportDao.createClusterStaging();
+    	source.accept(otpImportDao::stageClusters);
+    	otpImportDao.mergeClusters();
     }
 
-    public void prepareUpdateRoutes() {
-    	otpRouteDao.markAllStale();
-    }
-    
+    /**
+     * Imports all routes in a single set-based step. The route count and the transportation types
+     * of the stops and clusters are updated as well. The stops and clusters must have been imported already.
+     * @param source the producer of the complete set of routes as known by OTP.
+     */
     @TransactionTimeout(1800)
-    public void finishUpdateRoutes() {
-    	otpRouteDao.removeAllStale();
-    }
-    
-    public void bulkUpdateRoutes(List<OtpRoute> routes) {
-    	for (OtpRoute otpRoute : routes) {
-			OtpRoute route = otpRouteDao.find(otpRoute.getId()).map(c -> {
-				return otpRouteDao.merge(otpRoute);
-			}).orElseGet(() -> {
-				return otpRouteDao.save(otpRoute);
-			});
-			for (OtpStop otpStop: route.getStops()) {
-				otpStopDao.find(otpStop.getId()).ifPresent(s -> {
-					s.getTransportationTypes().set(otpRoute.getType());
-					s.getCluster().getTransportationTypes().set(otpRoute.getType());
-				});
-			}
-		}
+    public void importRoutes(Consumer<Consumer<List<OtpRoute>>> source) {
+    	otpImportDao.createRouteStaging();
+    	source.accept(otpImportDao::stageRoutes);
+    	otpImportDao.mergeRoutes();
     }
 
     // Obsoleted transfers are automatically removed with the stops
@@ -127,16 +86,4 @@ public class OTPDataManager {
 		}
     }
     
-    @TransactionTimeout(1800)
-    public void bulkUpdateClusterRoutes() {
-    	log.info("Update cluster nr routes");
-    	otpClusterDao.updateNrRoutes();
-    }
-
-    @TransactionTimeout(1800)
-    public void bulkUpdateStopRoutes() {
-    	log.info("Update stop nr routes");
-    	otpStopDao.updateNrRoutes();
-    }
-    
 }
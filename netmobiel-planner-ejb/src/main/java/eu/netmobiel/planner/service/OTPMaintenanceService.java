@@ -1,7 +1,5 @@
 package eu.netmobiel.planner.service;
 
-import java.util.List;
-
 import javax.annotation.Resource;
 import javax.ejb.Asynchronous;
 import javax.ejb.ConcurrencyManagement;
@@ -15,10 +13,6 @@ import javax.inject.Inject;
 
 import org.slf4j.Logger;
 
-import eu.netmobiel.planner.model.OtpCluster;
-import eu.netmobiel.planner.model.OtpRoute;
-import eu.netmobiel.planner.model.OtpStop;
-import eu.netmobiel.planner.model.OtpTransfer;
 import eu.netmobiel.planner.repository.OpenTripPlannerDao;
 
 /**
@@ -32,10 +26,10 @@ import eu.netmobiel.planner.repository.OpenTripPlannerDao;
 @ConcurrencyManagement(ConcurrencyManagementType.BEAN)
 @TransactionAttribute(TransactionAttributeType.NEVER)
 public class OTPMaintenanceService {
-	private static final int CHUNK_SIZE_STOPS = 1000;
-	private static final int CHUNK_SIZE_CLUSTERS = 500;
-	private static final int CHUNK_SIZE_ROUTES= 100;
-	private static final int CHUNK_SIZE_TRANSFERS= 1000;
+	private static final int CHUNK_SIZE_STOPS = 5000;
+	private static final int CHUNK_SIZE_CLUSTERS = 5000;
+	private static final int CHUNK_SIZE_ROUTES = 1000;
+	private static final int CHUNK_SIZE_TRANSFERS = 1000;
 	
     @Inject
     private Logger log;
@@ -49,6 +43,9 @@ public class OTPMaintenanceService {
     @Inject
     private OTPDataManager  otpDataManager;
 
+    @Inject
+    private Planner planner;
+
     private boolean maintenanceRunning = false;
 
     /**
@@ -74,69 +71,27 @@ public class OTPMaintenanceService {
 	
     private void updatePublicTransportStops() {
     	log.info("Fetch the stops and update");
-        List<OtpStop> stops =  otpDao.fetchAllStops();
-    	int nrChunks = stops.size() / CHUNK_SIZE_STOPS;
-    	if (stops.size() % CHUNK_SIZE_STOPS > 0) {
-    		nrChunks++;
-    	}
-    	otpDataManager.prepareUpdateStops();
-    	for (int chunk = 0; chunk < nrChunks; chunk++) {
-    		log.debug(String.format("Stops chunck %d/%d", chunk + 1, nrChunks));
-    		List<OtpStop> sublist = stops.subList(chunk * CHUNK_SIZE_STOPS, Math.min((chunk + 1) * CHUNK_SIZE_STOPS, stops.size()));
-    		// Force transaction demarcation
-    		otpDataManager.bulkUpdateStops(sublist);
-    	}
-    	otpDataManager.finishUpdateStops();
+    	// Force transaction demarcation, the stops are streamed from OTP into the import
+    	otpDataManager.importStops(chunkConsumer -> otpDao.fetchAllStops(CHUNK_SIZE_STOPS, chunkConsumer));
     }
 
     private void updatePublicTransportClusters() {
     	log.info("Fetch the clusters and update");
-        List<OtpCluster> clusters = otpDao.fetchAllClusters();
-    	int nrChunks = clusters.size() / CHUNK_SIZE_CLUSTERS;
-    	if (clusters.size() % CHUNK_SIZE_CLUSTERS > 0) {
-    		nrChunks++;
-    	}
-    	otpDataManager.prepareUpdateClusters();
-    	for (int chunk = 0; chunk < nrChunks; chunk++) {
-    		log.debug(String.format("Clusters chunck %d/%d", chunk + 1, nrChunks));
-    		List<OtpCluster> sublist = clusters.subList(chunk * CHUNK_SIZE_CLUSTERS, Math.min((chunk + 1) * CHUNK_SIZE_CLUSTERS, clusters.size()));
-    		// Force transaction demarcation
-    		otpDataManager.bulkUpdateClusters(sublist);
-    	}
-    	otpDataManager.finishUpdateClusters();
+    	// Force transaction demarcation
+    	otpDataManager.importClusters(chunkConsumer -> otpDao.fetchAllClusters(CHUNK_SIZE_CLUSTERS, chunkConsumer));
     }
+
     private void updatePublicTransportRoutes() {
     	log.info("Fetch the routes and update");
-        List<OtpRoute> routes = otpDao.fetchAllRoutes();
-    	int nrChunks = routes.size() / CHUNK_SIZE_ROUTES;
-    	if (routes.size() % CHUNK_SIZE_ROUTES > 0) {
-    		nrChunks++;
-    	}
-    	otpDataManager.prepareUpdateRoutes();
-    	for (int chunk = 0; chunk < nrChunks; chunk++) {
-    		log.debug(String.format("Routes chunck %d/%d", chunk + 1, nrChunks));
-    		List<OtpRoute> sublist = routes.subList(chunk * CHUNK_SIZE_ROUTES, Math.min((chunk + 1) * CHUNK_SIZE_ROUTES, routes.size()));
-    		// Force transaction demarcation
-    		otpDataManager.bulkUpdateRoutes(sublist);
-    	}
-    	otpDataManager.finishUpdateRoutes();
+    	// Force transaction demarcation, the route counts are updated as well
+    	otpDataManager.importRoutes(chunkConsumer -> otpDao.fetchAllRoutes(CHUNK_SIZE_ROUTES, chunkConsumer));
     }
 
     @SuppressWarnings("unused")
 	private void updatePublicTransportTransfers() {
     	log.info("Fetch the transfers and update");
-        List<OtpTransfer> transfers = otpDao.fetchAllTransfers();
-    	int nrChunks = transfers.size() / CHUNK_SIZE_TRANSFERS;
-    	if (transfers.size() % CHUNK_SIZE_TRANSFERS > 0) {
-    		nrChunks++;
-    	}
-    	for (int chunk = 0; chunk < nrChunks; chunk++) {
-    		log.debug(String.format("Transfers chunck %d/%d", chunk + 1, nrChunks));
-    		List<OtpTransfer> sublist = transfers.subList(chunk * CHUNK_SIZE_TRANSFERS, Math.min((chunk + 1) * CHUNK_SIZE_TRANSFERS, transfers.size()));
-//    		// Force transaction demarcation
-//    		context.getBusinessObject(OTPMaintenanceService.class).bulkUpdateTransfers(sublist);
-    		otpDataManager.bulkUpdateTransfers(sublist);
-    	}
+    	// Each chunk is a transaction of its own
+    	otpDao.fetchAllTransfers(CHUNK_SIZE_TRANSFERS, transfers -> otpDataManager.bulkUpdateTransfers(transfers));
     }
 
     @Asynchronous
@@ -150,15 +105,17 @@ public class OTPMaintenanceService {
 	    	updatePublicTransportStops();
 	    	updatePublicTransportClusters();
 	    	updatePublicTransportRoutes();
+	    	// The street network might have changed as well
+	    	otpDao.clearPlanCache();
 	    	// Transfer does not add much info. Omit for now.
 	//    	updatePublicTransportTransfers();
-			otpDataManager.bulkUpdateClusterRoutes();
-			otpDataManager.bulkUpdateStopRoutes();
     		log.debug("Update public transport data has completed succcessfully");
     	} catch (Exception ex) {
     		log.error("Update public transport data has completed with errors");
     		throw ex;
     	} finally {
+    		// The hubs are derived from the clusters and routes, even a partial import might have changed them
+    		planner.invalidateImportantHubs();
     		maintenanceRunning = false;
     	}
     }
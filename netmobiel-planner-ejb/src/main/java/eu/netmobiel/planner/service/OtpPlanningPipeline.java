@@ -0,0 +1,160 @@
+package eu.netmobiel.planner.service;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Resource;
+import javax.enterprise.concurrent.ManagedExecutorService;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import javax.ws.rs.core.Response;
+
+import org.slf4j.Logger;
+
+import eu.netmobiel.commons.exception.SystemException;
+import eu.netmobiel.commons.model.GeoLocation;
+import eu.netmobiel.planner.model.PlannerReport;
+import eu.netmobiel.planner.model.PlannerResult;
+import eu.netmobiel.planner.model.TraverseMode;
+import eu.netmobiel.planner.repository.OpenTripPlannerDao;
+
+/**
+ * Executes a batch of OTP planning calls concurrently on the managed executor of the container.
+ * The number of calls in flight is bounded per batch, the whole batch is bounded by a deadline.
+ * The results are returned in the same order as the requests. Each result carries the planner report of the call,
+ * also when the call did not complete before the deadline.
+ *
+ * @author Jaap Reitsma
+ *
+ */
+@ApplicationScoped
+public class OtpPlanningPipeline {
+	/**
+	 * The maximum number of concurrent OTP calls for a single batch.
+	 */
+	public static final int MAX_CONCURRENT_CALLS = 8;
+
+	@Inject
+    private Logger log;
+
+    @Inject
+    private OpenTripPlannerDao otpDao;
+
+    @Resource
+    private ManagedExecutorService executor;
+
+    /**
+     * The parameters of a single call to the OTP planner. See {@link OpenTripPlannerDao#createPlan} for the meaning of the parameters.
+     */
+    public static class OtpPlanRequest {
+    	private Instant now;
+    	private GeoLocation fromPlace;
+    	private GeoLocation toPlace;
+    	private Instant travelTime;
+    	private boolean isArrivalPinned;
+    	private Set<TraverseMode> modes;
+    	private Integer maxWalkDistance;
+    	private Integer maxTransfers;
+    	private List<GeoLocation> via;
+    	private Integer maxItineraries;
+
+    	public OtpPlanRequest(Instant now, GeoLocation fromPlace, GeoLocation toPlace, Instant travelTime, boolean isArrivalPinned,
+        		Set<TraverseMode> modes, Integer maxWalkDistance, Integer maxTransfers, List<GeoLocation> via, Integer maxItineraries) {
+    		this.now = now;
+    		this.fromPlace = fromPlace;
+    		this.toPlace = toPlace;
+    		this.travelTime = travelTime;
+    		this.isArrivalPinned = isArrivalPinned;
+    		this.modes = modes;
+    		this.maxWalkDistance = maxWalkDistance;
+    		this.maxTransfers = maxTransfers;
+    		this.via = via;
+    		this.maxItineraries = maxItineraries;
+    	}
+    }
+
+    private PlannerResult executeRequest(OtpPlanRequest rq) {
+    	return otpDao.createPlan(rq.now, rq.fromPlace, rq.toPlace, rq.travelTime, rq.isArrivalPinned, rq.modes,
+    			false, rq.maxWalkDistance, rq.maxTransfers, rq.via, rq.maxItineraries);
+    }
+
+    private PlannerResult createTimeoutResult(OtpPlanRequest rq, long executionTime) {
+    	PlannerReport report = otpDao.createPlanReport(rq.now, rq.fromPlace, rq.toPlace, rq.travelTime, rq.isArrivalPinned,
+    			rq.modes, rq.maxWalkDistance, rq.via, rq.maxItineraries);
+		report.setErrorText("Planning deadline exceeded, OTP call cancelled");
+		report.setStatusCode(Response.Status.GATEWAY_TIMEOUT.getStatusCode());
+    	report.setExecutionTime(executionTime);
+    	return new PlannerResult(report);
+    }
+
+    /**
+     * Executes the OTP planning requests concurrently. Requests that have not completed when the deadline passes are
+     * cancelled, the result of such a request contains a report with a timeout status (and no itineraries).
+     * @param requests the planning requests.
+     * @param deadline the moment in time all calls must have completed.
+     * @return A list of planner results in the same order as the requests.
+     */
+    public List<PlannerResult> createPlans(List<OtpPlanRequest> requests, Instant deadline) {
+    	long start = System.currentTimeMillis();
+    	List<Callable<PlannerResult>> tasks = new ArrayList<>(requests.size());
+    	requests.forEach(rq -> tasks.add(() -> executeRequest(rq)));
+    	List<Future<PlannerResult>> futures = new ArrayList<>(tasks.size());
+    	CompletionService<PlannerResult> completionService = new ExecutorCompletionService<>(executor);
+    	int running = 0;
+    	try {
+	    	while (futures.size() < tasks.size() && running < MAX_CONCURRENT_CALLS) {
+	    		futures.add(completionService.submit(tasks.get(futures.size())));
+	    		running++;
+	    	}
+	    	while (running > 0) {
+	    		long remaining = deadline.toEpochMilli() - System.currentTimeMillis();
+	    		Future<PlannerResult> completed = remaining > 0 ? completionService.poll(remaining, TimeUnit.MILLISECONDS) : null;
+	    		if (completed == null) {
+	    			log.warn(String.format("Planning deadline exceeded, %d of %d OTP calls not completed", tasks.size() - futures.size() + running, tasks.size()));
+	    			break;
+	    		}
+	    		running--;
+	    		if (futures.size() < tasks.size()) {
+	        		futures.add(completionService.submit(tasks.get(futures.size())));
+	        		running++;
+	    		}
+	    	}
+    	} catch (InterruptedException ex) {
+    		Thread.currentThread().interrupt();
+    		log.warn("Interrupted while waiting for OTP calls");
+    	}
+    	// Collect the results in the order of the requests
+    	List<PlannerResult> results = new ArrayList<>(requests.size());
+    	for (int i = 0; i < requests.size(); i++) {
+    		PlannerResult result = null;
+    		if (i < futures.size()) {
+    			Future<PlannerResult> future = futures.get(i);
+    			if (future.isDone()) {
+    				try {
+						result = future.get();
+					} catch (InterruptedException ex) {
+						Thread.currentThread().interrupt();
+					} catch (ExecutionException ex) {
+						// The dao catches all exceptions, this should not happen
+						throw new SystemException("Error executing OTP planning request", ex.getCause());
+					}
+    			} else {
+    				future.cancel(true);
+    			}
+    		}
+    		if (result == null) {
+    			result = createTimeoutResult(requests.get(i), System.currentTimeMillis() - start);
+    		}
+    		results.add(result);
+		}
+    	return results;
+    }
+}
@@ -7,21 +7,27 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Set;
+import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.enterprise.context.ApplicationScoped;
 import javax.inject.Inject;
 import javax.ws.rs.core.Response;
 
 import org.slf4j.Logger;
 
+import eu.netmobiel.commons.cache.ReferenceDataCache;
 import eu.netmobiel.commons.exception.BadRequestException;
 import eu.netmobiel.commons.exception.BusinessException;
 import eu.netmobiel.commons.exception.SystemException;
@@ -46,6 +52,7 @@ import eu.netmobiel.planner.model.TripPlan;
 import eu.netmobiel.planner.repository.OpenTripPlannerDao;
 import eu.netmobiel.planner.repository.OtpClusterDao;
 import eu.netmobiel.planner.repository.TransportOperatorApiDao;
+import eu.netmobiel.planner.service.OtpPlanningPipeline.OtpPlanRequest;
 import eu.netmobiel.rideshare.model.Ride;
 import eu.netmobiel.rideshare.service.RideManager;
 
@@ -64,6 +71,15 @@ public class Planner {
 	private static final Integer TRANSIT_TO_CAR_SLACK = 10 * 60; // [seconds]
 	private static final int MAX_RIDESHARES = 5;	
 	private static final boolean RIDESHARE_LENIENT_SEARCH = true;	
+	/**
+	 * The maximum duration of a multimodal search. OTP calls not completed by then are cancelled.
+	 */
+	private static final Duration MAX_SEARCH_DURATION = Duration.ofSeconds(20);
+	/**
+	 * The important hubs change only with an import of the OTP data. The cache is invalidated after each import.
+	 */
+	private static final Duration IMPORTANT_HUBS_TIME_TO_LIVE = Duration.ofHours(24);
+	private static final int IMPORTANT_HUBS_MAX_ENTRIES = 5000;
 	
 	/**
 	 * Testing only: If enabled then the tomp api is used too to request rides. The results are currently logged only.
@@ -83,6 +99,31 @@ public class Planner {
     @Inject
     private OtpClusterDao otpClusterDao;
 
+    /**
+     * The important hubs between a departure and arrival location, keyed by the rounded coordinates (about 100 m).
+     */
+    private final ReferenceDataCache<String, List<OtpCluster>> importantHubCache = 
+    		new ReferenceDataCache<>("planner-important-hubs", IMPORTANT_HUBS_TIME_TO_LIVE, IMPORTANT_HUBS_MAX_ENTRIES);
+
+    @PostConstruct
+    public void initialize() {
+    	importantHubCache.registerMBean();
+    }
+
+    @PreDestroy
+    public void destroy() {
+    	importantHubCache.unregisterMBean();
+    }
+
+    /**
+     * Invalidates the cached important hubs. Call this method after an import of the public transport data.
+     */
+    public void invalidateImportantHubs() {
+    	importantHubCache.invalidateAll();
+    }
+    @Inject
+    private OtpPlanningPipeline planningPipeline;
+
     @Inject
     private TransportOperatorRegistrar transportOperatorRegistrar;
     
@@ -221,6 +262,23 @@ public class Planner {
     	// Calculate for each ride found the itinerary when the passenger would ride along, i.e., add the pickup and drop-off location
     	// as intermediate places to the OTP planner and calculate the itinerary.
     	PlannerResult driverSharedRidePlanResult = otpDao.createPlan(now, fromPlace, toPlace, travelTime,  useAsArrivalTime, modes, false, maxWalkDistance, null, via, 1);
+    	assignRideshareAgency(driverSharedRidePlanResult);
+    	return driverSharedRidePlanResult;
+    }
+
+    /**
+     * Creates the OTP request for the itinerary of a rideshare ride. See {@link #planRideshareItinerary}.
+     */
+    private OtpPlanRequest createRideshareItineraryRequest(Instant now, GeoLocation fromPlace, GeoLocation toPlace, Instant travelTime, boolean useAsArrivalTime, Integer maxWalkDistance, List<GeoLocation> via) {
+    	Set<TraverseMode> modes = new HashSet<>(Arrays.asList(new TraverseMode[] { TraverseMode.WALK, TraverseMode.CAR }));
+    	return new OtpPlanRequest(now, fromPlace, toPlace, travelTime, useAsArrivalTime, modes, maxWalkDistance, null, via, 1);
+    }
+
+    /**
+     * Marks the car legs of the rideshare itineraries as operated by Netmobiel rideshare.
+     * @param driverSharedRidePlanResult the planner result of the driver's itinerary.
+     */
+    private static void assignRideshareAgency(PlannerResult driverSharedRidePlanResult) {
     	for (Itinerary it:  driverSharedRidePlanResult.getItineraries()) {
 			it.getLegs().stream()
 			.filter(leg -> leg.getTraverseMode() == TraverseMode.CAR)
@@ -230,7 +288,6 @@ public class Planner {
 			});
 //	    	log.debug("planRideshareItinerary: \n" + it.toString());
 		}
-    	return driverSharedRidePlanResult;
     }
 
     /**
@@ -246,24 +303,32 @@ public class Planner {
 	 * @param plan the pan of the traveller
 	 * @param fromPlace The departure location of the passenger. Not necessarily the departure location of the plan (in case of a multi-legged journey).
 	 * @param toPlace The arrival location of the passenger.  Not necessarily the departure location of the plan (in case of a multi-legged journey).
+	 * @param deadline The moment the OTP calls must have been completed.
 	 * @return A list of possible itineraries.
 	 */
-    private List<PlannerResult> searchRideshareOnly(TripPlan plan, GeoLocation fromPlace, GeoLocation toPlace) throws BusinessException {
+    private List<PlannerResult> searchRideshareOnly(TripPlan plan, GeoLocation fromPlace, GeoLocation toPlace, Instant deadline) throws BusinessException {
     	RideshareResult ridesResult = searchRides(plan, fromPlace, toPlace,  RIDESHARE_LENIENT_SEARCH, MAX_RIDESHARES, 0);
 		List<GeoLocation> intermediatePlaces = Arrays.asList(new GeoLocation[] { fromPlace, toPlace });
 		List<PlannerResult> results = new ArrayList<>();
 		results.add(new PlannerResult(ridesResult.getReport()));
-    	for (Ride ride : ridesResult.getPage().getData()) {
+		List<Ride> rides = ridesResult.getPage().getData();
+		List<OtpPlanRequest> requests = new ArrayList<>();
+    	for (Ride ride : rides) {
     		if (log.isDebugEnabled()) {
     			log.debug("searchRides option: " + ride.toStringCompact());
     		}
     		// For each ride, calculate an itinerary for the shared ride
-        	GeoLocation from = ride.getFrom();
-        	GeoLocation to = ride.getTo();
         	// Calculate for each ride found the itinerary when the passenger would ride along, i.e., add the pickup and drop-off location
         	// as intermediate places to the OTP planner and calculate the itinerary.
     		Instant driverTravelTime = ride.isArrivalTimePinned() ? ride.getArrivalTime() : ride.getDepartureTime();
-        	PlannerResult driverSharedRidePlanResult = planRideshareItinerary(plan.getRequestTime(), from, to, driverTravelTime, ride.isArrivalTimePinned(), plan.getMaxWalkDistance(), intermediatePlaces);
+    		requests.add(createRideshareItineraryRequest(plan.getRequestTime(), ride.getFrom(), ride.getTo(), driverTravelTime, ride.isArrivalTimePinned(), plan.getMaxWalkDistance(), intermediatePlaces));
+    	}
+    	// The OTP calls are executed concurrently, the results are in the same order as the rides
+    	List<PlannerResult> driverSharedRidePlanResults = planningPipeline.createPlans(requests, deadline);
+    	for (int i = 0; i < rides.size(); i++) {
+    		Ride ride = rides.get(i);
+        	PlannerResult driverSharedRidePlanResult = driverSharedRidePlanResults.get(i);
+        	assignRideshareAgency(driverSharedRidePlanResult);
         	PlannerResult passengerSharedRidePlanResult = new PlannerResult(driverSharedRidePlanResult.getReport());
         	results.add(passengerSharedRidePlanResult);
     		if (driverSharedRidePlanResult.hasError()) {
@@ -323,88 +388,102 @@ public class Planner {
 		return valid;
     }
     
-    private void addRideshareAsFirstLeg(TripPlan plan, Set<Stop> transitBoardingStops, Set<TraverseMode> transitModalities) throws BusinessException {
+    private void addRideshareAsFirstLeg(TripPlan plan, Set<Stop> transitBoardingStops, Set<TraverseMode> transitModalities, Instant deadline) throws BusinessException {
     	log.debug("Search for first leg by Car");
     	if (plan.getMaxTransfers() != null && plan.getMaxTransfers() < 0) {
     		throw new IllegalArgumentException("maxTransfers cannot be 0 at this point");
     	}
     	Integer maxPublicTransportTransfers = plan.getMaxTransfers() == null ? null : plan.getMaxTransfers() - 1;
+    	List<Itinerary> passengerCarItineraries = new ArrayList<>();
+    	List<OtpPlanRequest> transitRequests = new ArrayList<>();
     	for (Stop place : transitBoardingStops) {
     		// Try to find a shared ride from passenger's departure to a transit hub
-        	List<PlannerResult> rideResults = searchRideshareOnly(plan, plan.getFrom(), place.getLocation());
+        	List<PlannerResult> rideResults = searchRideshareOnly(plan, plan.getFrom(), place.getLocation(), deadline);
         	// Add all reports
         	rideResults.stream().forEach(pr -> plan.addPlannerReport(pr.getReport()));
-        	// Collect all possible rides 
-        	List<Itinerary> passengerCarItineraries = rideResults.stream()
-        			.flatMap(pr -> pr.getItineraries().stream())
-        			.collect(Collectors.toList());
     		// Create a transit plan from shared ride dropoff to passenger's destination
     		// Add x minutes waiting time at drop off
-        	// Extract the leg for the passenger and create a complete itinerary for the passenger
-        	for (Itinerary dit : passengerCarItineraries) {
-            	Instant transitStart  = dit.getLegs().get(0).getEndTime().plusSeconds(CAR_TO_TRANSIT_SLACK);
-        		PlannerResult transitResult = otpDao.createPlan(plan.getRequestTime(), place.getLocation(), plan.getTo(), transitStart,  false, transitModalities, 
-	        			false, plan.getMaxWalkDistance(), maxPublicTransportTransfers, null, 1);
-        		plan.addPlannerReport(transitResult.getReport());
-        		if (transitResult.hasError()) {
-            		log.warn("Skip itinerary (RS first) due to OTP error: " + transitResult.getReport().shortReport());
-        		} else {
-        			// if the OTP passenger itinerary is walk only, no slack is needed, move the itinerary backward
-        			// the itinerary characteristics are recalculated in the prepend()
-        			transitResult.getItineraries().stream()
-        			.filter(Itinerary::isWalkOnly)
-        			.forEach(it -> it.shiftLinear(Duration.ofSeconds(-CAR_TO_TRANSIT_SLACK)));
-        			plan.addItineraries(transitResult.getItineraries()
-        					.stream()
-        					.filter(it -> isValid(it))
-        					.map(it -> dit.append(it))
-        					.filter(it -> isValid(it))
-        					.collect(Collectors.toList()));
-        		}
-			}
+        	rideResults.stream()
+        			.flatMap(pr -> pr.getItineraries().stream())
+        			.forEach(dit -> {
+        				Instant transitStart  = dit.getLegs().get(0).getEndTime().plusSeconds(CAR_TO_TRANSIT_SLACK);
+        				passengerCarItineraries.add(dit);
+        				transitRequests.add(new OtpPlanRequest(plan.getRequestTime(), place.getLocation(), plan.getTo(), transitStart,  false, transitModalities, 
+        	        			plan.getMaxWalkDistance(), maxPublicTransportTransfers, null, 1));
+        			});
+		}
+    	// Plan all transit legs concurrently, the results are in the same order as the car itineraries
+    	List<PlannerResult> transitResults = planningPipeline.createPlans(transitRequests, deadline);
+    	// Extract the leg for the passenger and create a complete itinerary for the passenger
+    	for (int i = 0; i < passengerCarItineraries.size(); i++) {
+    		Itinerary dit = passengerCarItineraries.get(i);
+    		PlannerResult transitResult = transitResults.get(i);
+    		plan.addPlannerReport(transitResult.getReport());
+    		if (transitResult.hasError()) {
+        		log.warn("Skip itinerary (RS first) due to OTP error: " + transitResult.getReport().shortReport());
+    		} else {
+    			// if the OTP passenger itinerary is walk only, no slack is needed, move the itinerary backward
+    			// the itinerary characteristics are recalculated in the prepend()
+    			transitResult.getItineraries().stream()
+    			.filter(Itinerary::isWalkOnly)
+    			.forEach(it -> it.shiftLinear(Duration.ofSeconds(-CAR_TO_TRANSIT_SLACK)));
+    			plan.addItineraries(transitResult.getItineraries()
+    					.stream()
+    					.filter(it -> isValid(it))
+    					.map(it -> dit.append(it))
+    					.filter(it -> isValid(it))
+    					.collect(Collectors.toList()));
+    		}
 		}
     }
 
-    private void addRideshareAsLastLeg(TripPlan plan, Set<Stop> transitAlightingStops, Set<TraverseMode> transitModalities) throws BusinessException {
+    private void addRideshareAsLastLeg(TripPlan plan, Set<Stop> transitAlightingStops, Set<TraverseMode> transitModalities, Instant deadline) throws BusinessException {
     	// Try to find a ride from transit place to drop-off (last mile by car)
     	log.debug("Search for a last leg by Car");
     	if (plan.getMaxTransfers() != null && plan.getMaxTransfers() < 0) {
     		throw new IllegalArgumentException("maxTransfers cannot be 0 at this point");
     	}
     	Integer maxPublicTransportTransfers = plan.getMaxTransfers() == null ? null : plan.getMaxTransfers() - 1;
+    	List<Itinerary> passengerCarItineraries = new ArrayList<>();
+    	List<OtpPlanRequest> transitRequests = new ArrayList<>();
     	//FIXME Should be in fact alighting stops 
     	for (Stop place : transitAlightingStops) {
     		// Try to find a shared ride from transit hub to passenger's destination
-    		List<PlannerResult> rideResults = searchRideshareOnly(plan, place.getLocation(), plan.getTo());
+    		List<PlannerResult> rideResults = searchRideshareOnly(plan, place.getLocation(), plan.getTo(), deadline);
         	// Add all reports
         	rideResults.stream().forEach(pr -> plan.addPlannerReport(pr.getReport()));
-        	// Collect all possible rides 
-        	List<Itinerary> passengerCarItineraries = rideResults.stream()
-        			.flatMap(pr -> pr.getItineraries().stream())
-        			.collect(Collectors.toList());
     		// Create a transit plan from passenger departure to shared ride pickup
     		// Add x minutes waiting time at pick up
-        	// Extract the leg for the passenger and create a complete itinerary for the passenger
-        	for (Itinerary dit : passengerCarItineraries) {
-        		Instant transitEnd  = dit.getLegs().get(0).getStartTime().minusSeconds(TRANSIT_TO_CAR_SLACK);
-        		PlannerResult transitResult = otpDao.createPlan(plan.getRequestTime(), plan.getFrom(), place.getLocation(), transitEnd, true, transitModalities,  
-            			false, plan.getMaxWalkDistance(), maxPublicTransportTransfers, null, 1);
-        		plan.addPlannerReport(transitResult.getReport());
-        		if (transitResult.hasError()) {
-            		log.warn("Skip itinerary (RS last) due to OTP error: " + transitResult.getReport().shortReport());
-        		} else {
-        			// if the OTP passenger itinerary is walk only, no slack is needed, move the itinerary forward
-        			// the itinerary characteristics are recalculated in the prepend()
-        			transitResult.getItineraries().stream()
-        			.filter(Itinerary::isWalkOnly)
-        			.forEach(it -> it.shiftLinear(Duration.ofSeconds(TRANSIT_TO_CAR_SLACK)));
-        			plan.addItineraries(transitResult.getItineraries()
-        					.stream()
-        					.map(it -> dit.prepend(it))
-        					.filter(it -> isValid(it))
-        					.collect(Collectors.toList()));
-        		}
-			}
+        	rideResults.stream()
+        			.flatMap(pr -> pr.getItineraries().stream())
+        			.forEach(dit -> {
+        				Instant transitEnd  = dit.getLegs().get(0).getStartTime().minusSeconds(TRANSIT_TO_CAR_SLACK);
+        				passengerCarItineraries.add(dit);
+        				transitRequests.add(new OtpPlanRequest(plan.getRequestTime(), plan.getFrom(), place.getLocation(), transitEnd, true, transitModalities,  
+        						plan.getMaxWalkDistance(), maxPublicTransportTransfers, null, 1));
+        			});
+		}
+    	// Plan all transit legs concurrently, the results are in the same order as the car itineraries
+    	List<PlannerResult> transitResults = planningPipeline.createPlans(transitRequests, deadline);
+    	// Extract the leg for the passenger and create a complete itinerary for the passenger
+    	for (int i = 0; i < passengerCarItineraries.size(); i++) {
+    		Itinerary dit = passengerCarItineraries.get(i);
+    		PlannerResult transitResult = transitResults.get(i);
+    		plan.addPlannerReport(transitResult.getReport());
+    		if (transitResult.hasError()) {
+        		log.warn("Skip itinerary (RS last) due to OTP error: " + transitResult.getReport().shortReport());
+    		} else {
+    			// if the OTP passenger itinerary is walk only, no slack is needed, move the itinerary forward
+    			// the itinerary characteristics are recalculated in the prepend()
+    			transitResult.getItineraries().stream()
+    			.filter(Itinerary::isWalkOnly)
+    			.forEach(it -> it.shiftLinear(Duration.ofSeconds(TRANSIT_TO_CAR_SLACK)));
+    			plan.addItineraries(transitResult.getItineraries()
+    					.stream()
+    					.map(it -> dit.prepend(it))
+    					.filter(it -> isValid(it))
+    					.collect(Collectors.toList()));
+    		}
 		}
     }
 
@@ -432,14 +511,15 @@ public class Planner {
 					modes, false, maxWalkDistance, maxTransfers, null, maxItineraries);
     }
     
-    private void addRidesharePlans(TripPlan plan, Set<TraverseMode> transitModalities) throws BusinessException {
+    private void addRidesharePlans(TripPlan plan, Set<TraverseMode> transitModalities, Instant deadline, Runnable stepCompleted) throws BusinessException {
     	// Add the RIDESHARE only itineraries
-		List<PlannerResult> rideResults = searchRideshareOnly(plan, plan.getFrom(), plan.getTo());
+		List<PlannerResult> rideResults = searchRideshareOnly(plan, plan.getFrom(), plan.getTo(), deadline);
     	rideResults.stream().forEach(pr -> plan.addPlannerReport(pr.getReport()));
     	List<Itinerary> passengerItineraries = rideResults.stream()
     			.flatMap(pr -> pr.getItineraries().stream())
     			.collect(Collectors.toList());
     	plan.addItineraries(passengerItineraries);
+    	stepCompleted.run();
 
 		// If transit is an option too then collect possible pickup and drop-off places near transit stops
 		if (!transitModalities.isEmpty() && plan.isRideshareLegAllowed() && 
@@ -456,20 +536,38 @@ public class Planner {
 				//FIXME The ordering of the clusters depends probably on first or last leg. Check.
 		    	transitBoardingStops = collectStops(plan, findTransitBoardingStops(transitRefResult.getItineraries()), nearbyClusters);
 	    		if (plan.isFirstLegRideshareAllowed()) {
-	        		addRideshareAsFirstLeg(plan, transitBoardingStops, transitModalities);
+	        		addRideshareAsFirstLeg(plan, transitBoardingStops, transitModalities, deadline);
+	        		stepCompleted.run();
 	    		}
 	    		if (plan.isLastLegRideshareAllowed()) {
-	        		addRideshareAsLastLeg(plan, transitBoardingStops, transitModalities);
+	        		addRideshareAsLastLeg(plan, transitBoardingStops, transitModalities, deadline);
+	        		stepCompleted.run();
 	    		}
     		}
 		}
     }
 
-    private static void rankItineraries(TripPlan plan) {
+    /**
+     * Completes the itineraries added to the plan since the previous call: The totals are calculated and the 
+     * itinerary is ranked. The score of an itinerary does not depend on the other itineraries, so ranking 
+     * the itineraries as they arrive yields the same scores as ranking them all at the end.
+     * @param plan the plan with the itineraries.
+     * @param ranked the itineraries ranked by previous calls. Updated with the new itineraries. 
+     * @param progressListener if not null then called with the newly ranked itineraries, if any.
+     */
+    private static void rankNewItineraries(TripPlan plan, Set<Itinerary> ranked, Consumer<List<Itinerary>> progressListener) {
     	BasicItineraryRankingAlgorithm ranker = new BasicItineraryRankingAlgorithm();
+    	List<Itinerary> newItineraries = new ArrayList<>();
     	for (Itinerary it: plan.getItineraries()) {
-    		ranker.calculateScore(it, plan.getTravelTime(), plan.isUseAsArrivalTime());
-    		ranker.calculateSustainabilityRating(it);
+    		if (ranked.add(it)) {
+        		it.updateFare();
+        		ranker.calculateScore(it, plan.getTravelTime(), plan.isUseAsArrivalTime());
+        		ranker.calculateSustainabilityRating(it);
+        		newItineraries.add(it);
+    		}
+    	}
+    	if (progressListener != null && !newItineraries.isEmpty()) {
+    		progressListener.accept(newItineraries);
     	}
     }
 
@@ -516,13 +614,26 @@ public class Planner {
     	return stops;
     }
     
+    private static GeoLocation roundLocation(GeoLocation location) {
+    	return new GeoLocation(Math.round(location.getLatitude() * 1000) / 1000.0, Math.round(location.getLongitude() * 1000) / 1000.0);
+    }
+
+    /**
+     * Searches the important transit hubs between two locations. The hubs are cached by the locations rounded to 
+     * about 100 meter, the search itself uses the rounded locations too, for a consistent result. 
+     */
     private List<OtpCluster> searchImportantTransitStops(GeoLocation fromPlace, GeoLocation toPlace, Set<TraverseMode> modes, int maxResults) {
-    	EligibleArea ea = EllipseHelper.calculateEllipse(fromPlace.getPoint(), toPlace.getPoint(), null, PASSENGER_RELATIVE_MAX_DETOUR / 2);
-//    	log.debug("Passenger ellipse: " + GeometryHelper.createWKT(ea.eligibleAreaGeometry));
-    	// Find all hub-alike transit clusters inside this ellipse
-//    	TraverseMode[] transitModes = Arrays.stream(modes).filter(mode -> mode.isTransit()).toArray(TraverseMode[]::new);
-    	return otpClusterDao.findImportantHubs(fromPlace, ea.eligibleAreaGeometry, maxResults);
-    	
+    	GeoLocation from = roundLocation(fromPlace);
+    	GeoLocation to = roundLocation(toPlace);
+    	String key = String.format(Locale.ROOT, "%.3f,%.3f;%.3f,%.3f;%d", 
+    			from.getLatitude(), from.getLongitude(), to.getLatitude(), to.getLongitude(), maxResults);
+    	return importantHubCache.get(key, k -> {
+	    	EligibleArea ea = EllipseHelper.calculateEllipse(from.getPoint(), to.getPoint(), null, PASSENGER_RELATIVE_MAX_DETOUR / 2);
+//	    	log.debug("Passenger ellipse: " + GeometryHelper.createWKT(ea.eligibleAreaGeometry));
+	    	// Find all hub-alike transit clusters inside this ellipse
+//	    	TraverseMode[] transitModes = Arrays.stream(modes).filter(mode -> mode.isTransit()).toArray(TraverseMode[]::new);
+	    	return otpClusterDao.findImportantHubs(from, ea.eligibleAreaGeometry, maxResults);
+    	});
     }
 
     private static Set<Stop> combineClustersIntoStops(Collection<Stop> otherStops, Collection<OtpCluster> clusters) {
@@ -561,6 +672,21 @@ public class Planner {
      * @return
      */
     public TripPlan searchMultiModal(TripPlan plan) throws BusinessException {
+    	return searchMultiModal(plan, null);
+    }
+
+    /**
+     * Creates a multi-modal travel plan for a passenger, reporting the progress of the search. Each time a sub-search 
+     * (transit, rideshare only, rideshare as first leg, rideshare as last leg) completes, the listener is called with 
+     * the new itineraries, ranked already. The itineraries have no identity yet.
+     * The listener is called in the thread of the caller.
+     * @param plan the plan to search itineraries for.
+     * @param progressListener the listener for the intermediate results. If null then the progress is not reported.
+     * @return the plan with all itineraries.
+     * @throws BusinessException
+     */
+    public TripPlan searchMultiModal(TripPlan plan, Consumer<List<Itinerary>> progressListener) throws BusinessException {
+    	Instant deadline = Instant.now().plus(MAX_SEARCH_DURATION);
     	if (ENABLE_TOMP) {
         	if (!transportOperatorRegistrar.hasOperators()) {
             	transportOperatorRegistrar.updateRegistry();
@@ -583,14 +709,16 @@ public class Planner {
     			plan.addItineraries(transitResult.getItineraries());
     		}
 		}
+		// Itineraries have no id yet, only the identity of the object is meaningful
+		Set<Itinerary> ranked = Collections.newSetFromMap(new IdentityHashMap<>());
+		rankNewItineraries(plan, ranked, progressListener);
 
 		if (rideshareEligable) {
-			addRidesharePlans(plan, transitModalities);
+			addRidesharePlans(plan, transitModalities, deadline, () -> rankNewItineraries(plan, ranked, progressListener));
 		}
 		
-		// Calculate totals
-		plan.getItineraries().forEach(it -> it.updateFare());
-    	rankItineraries(plan);
+		// Calculate totals and rank whatever is left
+    	rankNewItineraries(plan, ranked, null);
     	// The itineraries are listed by the plan ordered by score descending (when listed from the database), see model.
     	// FIXME Sort this somehow
 //    	plan.getItineraries().sort(new Comparator<Itinerary>() {
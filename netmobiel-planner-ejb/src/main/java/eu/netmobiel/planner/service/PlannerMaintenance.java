@@ -1,23 +1,23 @@
 package eu.netmobiel.planner.service;
 
-import java.io.Serializable;
-import java.util.Optional;
+import java.util.List;
+import java.util.Map;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
-import javax.ejb.NoSuchObjectLocalException;
+import javax.ejb.Schedule;
 import javax.ejb.Singleton;
 import javax.ejb.Startup;
-import javax.ejb.Timeout;
-import javax.ejb.Timer;
-import javax.ejb.TimerConfig;
-import javax.ejb.TimerService;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+import javax.enterprise.concurrent.ManagedExecutorService;
 import javax.inject.Inject;
 
 import org.slf4j.Logger;
 
 import eu.netmobiel.commons.model.GeoLocation;
-import eu.netmobiel.here.search.HereSearchClient;
+import eu.netmobiel.commons.util.ExceptionUtil;
+import eu.netmobiel.here.search.PostalCodeCache;
 
 /**
  * Singleton startup bean for doing some maintenance on startup of the system
@@ -27,6 +27,10 @@ import eu.netmobiel.here.search.HereSearchClient;
 @Singleton
 @Startup
 public class PlannerMaintenance {
+	/**
+	 * The maximum number of trips inspected for missing postal codes in a single run.
+	 */
+	private static final int GEOCODING_BATCH_SIZE = 100;
 
 	@Inject
     private Logger log;
@@ -39,18 +43,15 @@ public class PlannerMaintenance {
 //    private TransportOperatorRegistrar transportOperatorRegistrar;
 
 	@Inject
-    private HereSearchClient hereSearchClient;
+    private PostalCodeCache postalCodeCache;
 
 	@Resource
-    private TimerService timerService;
-
-    private Timer geocodingTimer;
+    private ManagedExecutorService executor;
 
 	@PostConstruct
 	public void initialize() {
 		log.info("Starting up the Planner, doing some maintenance tasks");
 		tripMonitor.reviveTripMonitors();
-		schedulePostalCodeGeocoding();
 		// If enabled, at startup a spurious error might occur: 
 		// RESTEASY008200: JSON Binding deserialization error: javax.json.bind.JsonbException: Can't infer a type for unmarshalling into: eu.netmobiel.tomp.api.model.OneOfassetTypeConditionsItems
 		// Can't infer a type for unmarshalling into: eu.netmobiel.tomp.api.model.OneOfassetTypeConditionsItems
@@ -58,74 +59,25 @@ public class PlannerMaintenance {
 //		transportOperatorRegistrar.updateRegistry();
 	}
 
-	private static class GeocodingTimerInfo implements Serializable {
-		private static final long serialVersionUID = 2140854309635368743L;
-		private String title;
-
-		public GeocodingTimerInfo(String info) {
-			this.title = info;
-		}
-
-		@Override
-		public String toString() {
-			return title;
-		}
-
-		public String getTitle() {
-			return title;
-		}
-	}
-	
-	/**
-	 * Schedules an interval timer to do geocoding. To prevent rate limiting, do it slowly, no need
-	 * for a hurry. The postal codes are used for reporting.
-	 */
-	private void schedulePostalCodeGeocoding() {
-		TimerConfig tc = new TimerConfig(new GeocodingTimerInfo("Trip Geocoding Timer"), false); 
-		geocodingTimer = timerService.createIntervalTimer(20 * 1000L, 15 * 1000L, tc);
-		log.info("Started " + ((GeocodingTimerInfo) tc.getInfo()).getTitle());
-	}
-
 	/**
-	 * Handle the timeout. In case of the geocoding timer, fetch the next geolocation. 
-	 * If none is found then stop the geocoding interval timer.
-	 * @param timer the timer causing the timeout.
-	 */
-	@Timeout
-	public void onTimeout(Timer timer) {
-		try {
-			if (timer.getInfo() instanceof GeocodingTimerInfo) {
-				boolean foundOne = fillNextMissingPostalCode();
-				if (!foundOne) {
-					// Ok, all is well, stop geocoding
-					log.info("No more geocoding to do, stopping " + ((GeocodingTimerInfo) timer.getInfo()).getTitle());
-					geocodingTimer.cancel();
-				}
-			}
-		} catch(NoSuchObjectLocalException ex) {
-			log.error(String.format("Error handling timeout: %s", ex.toString()));
-		}
-	}
-	
-	/**
-	 * Fetch the next geolocation without a postal code and reverse geocode it with the HERE service.
+	 * Resolves the missing postal codes, a batch of locations each minute. The postal codes are used for reporting. 
+	 * The locations are looked up in the postal code cache first, the remaining locations are reverse geocoded with 
+	 * the HERE service with a limited concurrency to prevent rate limiting.
 	 * In case of an error in the postal code (not an exception), the postal code is set to '??????', to prevent an endless
 	 * loop. The postal code will be used for all fields and records with the exact same location.
-	 * @return true if there was a missing postal code, false if the work is done.
 	 */
-	private boolean fillNextMissingPostalCode() {
-		Optional<GeoLocation> location = tripManager.findNextMissingPostalCode();
-		if (location.isPresent()) {
-			String postalCode = hereSearchClient.getPostalCode6(location.get());
-			if (postalCode == null || postalCode.isEmpty()) {
-				log.warn("Error looking up postal code for " + location);
-				// Give it a value to prevent endless loop
-				postalCode = "??????";
+	@Schedule(info = "Postal code geocoding", hour = "*", minute = "*/1", second = "15", persistent = false /* non-critical job */)
+	@TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+	public void fillMissingPostalCodes() {
+		try {
+			List<GeoLocation> locations = tripManager.listMissingPostalCodeLocations(GEOCODING_BATCH_SIZE);
+			if (!locations.isEmpty()) {
+				Map<GeoLocation, String> postalCodes = postalCodeCache.resolvePostalCodes6(locations, executor);
+				int cnt = tripManager.assignPostalCodes(postalCodes);
+				log.info(String.format("Updated %d fields with %d postal codes", cnt, postalCodes.size()));
 			}
-			int cnt = tripManager.assignPostalCode(location.get(), postalCode);
-			log.info(String.format("Updated %d fields with postal code %s", cnt, postalCode));
+		} catch (Exception ex) {
+			log.error("Error filling the missing postal codes: " + String.join("\n\t", ExceptionUtil.unwindException(ex)));
 		}
-		return location.isPresent();
 	}
-
 }
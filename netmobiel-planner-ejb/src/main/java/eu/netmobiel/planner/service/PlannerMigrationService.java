@@ -1,11 +1,21 @@
 package eu.netmobiel.planner.service;
 
+import java.util.List;
+
+import javax.annotation.Resource;
+import javax.ejb.Schedule;
+import javax.ejb.SessionContext;
 import javax.ejb.Stateless;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
 import javax.inject.Inject;
 
 import org.slf4j.Logger;
 
+import eu.netmobiel.commons.util.ExceptionUtil;
 import eu.netmobiel.commons.util.Logging;
+import eu.netmobiel.planner.model.Leg;
+import eu.netmobiel.planner.repository.LegDao;
 
 /**
  * Migration service to help migration of things that can not easy be fixed by an sql script.
@@ -16,8 +26,59 @@ import eu.netmobiel.commons.util.Logging;
 @Stateless
 @Logging
 public class PlannerMigrationService {
+	/**
+	 * The maximum number of legs migrated in a single transaction.
+	 */
+	public static final int LEG_MIGRATION_BATCH_SIZE = 200;
 
-	@SuppressWarnings("unused")
 	@Inject
     private Logger log;
-}
\ No newline at end of file
+
+    @Resource
+	private SessionContext sessionContext;
+
+    @Inject
+    private LegDao legDao;
+
+    /**
+     * Moves the legacy geometry and guide steps of the legs into the compact route data, batch after batch. 
+     * Each batch is a transaction of its own. When all legs are migrated, the job is reduced to a single query.
+     */
+	@Schedule(info = "Leg route migration", hour = "*", minute = "20", second = "0", persistent = false /* non-critical job */)
+    @TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+	public void migrateLegRoutes() {
+		try {
+			PlannerMigrationService self = sessionContext.getBusinessObject(PlannerMigrationService.class);
+			Long lastId = 0L;
+			int total = 0;
+			List<Long> ids;
+			do {
+				ids = self.migrateLegRouteBatch(lastId, LEG_MIGRATION_BATCH_SIZE);
+				if (!ids.isEmpty()) {
+					lastId = ids.get(ids.size() - 1);
+					total += ids.size();
+				}
+			} while (ids.size() == LEG_MIGRATION_BATCH_SIZE);
+			if (total > 0) {
+				log.info(String.format("Migrated the route of %d legs", total));
+			}
+		} catch (Exception ex) {
+			log.error("Error migrating the leg routes: " + String.join("\n\t", ExceptionUtil.unwindException(ex)));
+		}
+	}
+
+	/**
+	 * Migrates the route of a batch of legs.
+	 * @param afterId migrate only legs beyond this id.
+	 * @param maxResults the maximum number of legs.
+	 * @return the ids of the legs handled, in ascending order.
+	 */
+    @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+	public List<Long> migrateLegRouteBatch(Long afterId, int maxResults) {
+		List<Long> ids = legDao.listLegsWithLegacyRoute(afterId, maxResults);
+		for (Leg leg : legDao.loadWithLegacyRoute(ids)) {
+			leg.migrateLegacyRoute();
+		}
+		return ids;
+	}
+}
@@ -1,6 +1,7 @@
 package eu.netmobiel.planner.service;
 
 import java.time.Instant;
+import java.time.YearMonth;
 import java.time.ZoneId;
 import java.util.ArrayList;
 import java.util.Comparator;
@@ -10,7 +11,12 @@ import java.util.Map;
 import java.util.Optional;
 import java.util.stream.Collectors;
 
+import javax.annotation.Resource;
+import javax.ejb.Schedule;
+import javax.ejb.SessionContext;
 import javax.ejb.Stateless;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
 import javax.inject.Inject;
 
 import org.slf4j.Logger;
@@ -24,6 +30,7 @@ import eu.netmobiel.commons.report.PassengerBehaviourReport;
 import eu.netmobiel.commons.report.PassengerModalityBehaviourReport;
 import eu.netmobiel.commons.report.ProfileReport;
 import eu.netmobiel.commons.report.TripReport;
+import eu.netmobiel.commons.util.ExceptionUtil;
 import eu.netmobiel.commons.util.Logging;
 import eu.netmobiel.commons.util.TriStateLogic;
 import eu.netmobiel.planner.model.Leg;
@@ -31,15 +38,14 @@ import eu.netmobiel.planner.model.PlannerUser;
 import eu.netmobiel.planner.model.TraverseMode;
 import eu.netmobiel.planner.model.Trip;
 import eu.netmobiel.planner.model.TripPlan;
+import eu.netmobiel.planner.repository.PlannerReportAggregateDao;
 import eu.netmobiel.planner.repository.PlannerUserDao;
 import eu.netmobiel.planner.repository.TripDao;
-import eu.netmobiel.planner.repository.TripPlanDao;
 
 @Stateless
 @Logging
 public class PlannerReportService {
 	
-	@SuppressWarnings("unused")
 	@Inject
     private Logger log;
 
@@ -47,67 +53,132 @@ public class PlannerReportService {
     private TripDao tripDao;
 
     @Inject
-    private TripPlanDao tripPlanDao;
+    private PlannerUserDao userDao;
 
     @Inject
-    private PlannerUserDao userDao;
+    private PlannerReportAggregateDao reportAggregateDao;
+
+    /**
+     * The time zone of the report, the months of the report are determined in this zone. 
+     * The same setting is used by the report processor.
+     */
+    @Resource(lookup = "java:global/report/timeZone")
+    private String reportTimeZone;
+
+    @Resource
+	private SessionContext sessionContext;
+
+    /**
+     * The report count queries that are aggregated per month, once the month is settled.
+     */
+    private static final List<String> AGGREGATED_COUNT_QUERIES = List.of(
+    		Trip.RGP_1_TRIPS_CREATED_COUNT,
+    		Trip.RGP_2_TRIPS_CANCELLED_COUNT,
+    		Trip.RGP_3_TRIPS_CANCELLED_BY_PASSENGER_COUNT,
+    		Trip.RGP_4_TRIPS_CANCELLED_BY_PROVIDER_COUNT,
+    		Trip.RGP_5_TRIPS_WITH_CONFIRMED_RIDESHARE_COUNT,
+    		Trip.RGP_6_TRIPS_WITH_CANCELLED_RIDESHARE_PAYMENT_COUNT,
+    		Trip.RGP_7_MONO_MODAL_TRIPS_COUNT,
+    		Trip.RGP_9_MULTI_MODAL_TRIPS_COUNT,
+    		TripPlan.RGP_11_TRIP_PLAN_SHOUT_OUT_ISSUED_COUNT,
+    		TripPlan.RGP_12_TRIP_PLAN_SHOUT_OUT_AT_LEAST_ONE_OFFER_COUNT,
+    		TripPlan.RGP_13_TRIP_PLAN__SHOUT_OUT_ACCEPTED_COUNT
+    );
+
+    private static final List<String> AGGREGATED_MODALITY_COUNT_QUERIES = List.of(
+    		Trip.RGP_8_MONO_MODAL_TRIPS_BY_MODALITY_COUNT,
+    		Trip.RGP_10_MULTI_MODAL_TRIPS_BY_MODALITY_COUNT
+    );
+
+    private ZoneId getReportZone() {
+    	return ZoneId.of(reportTimeZone);
+    }
+
+    /**
+     * Aggregates the report counts of the settled months that are not aggregated yet,
+     * see {@link PlannerReportAggregateDao#aggregateSettledPeriods(List, ZoneId, java.util.function.BiConsumer)}.
+     */
+	@Schedule(info = "Report aggregation", hour = "2", minute = "40", second = "0", persistent = false /* non-critical job */)
+    @TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+    public void aggregateReports() {
+    	try {
+	    	PlannerReportService self = sessionContext.getBusinessObject(PlannerReportService.class);
+	    	int count = reportAggregateDao.aggregateSettledPeriods(AGGREGATED_COUNT_QUERIES, getReportZone(),
+	    			(queryName, period) -> self.aggregateReportPeriod(queryName, period, false));
+	    	count += reportAggregateDao.aggregateSettledPeriods(AGGREGATED_MODALITY_COUNT_QUERIES, getReportZone(),
+	    			(queryName, period) -> self.aggregateReportPeriod(queryName, period, true));
+	    	if (count > 0) {
+	    		log.info(String.format("Aggregated %d report periods", count));
+	    	}
+		} catch (Exception ex) {
+			log.error("Error aggregating the reports: " + String.join("\n\t", ExceptionUtil.unwindException(ex)));
+		}
+    }
+
+    /**
+     * Aggregates the report counts of a single month in a transaction of its own.
+     */
+    @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+    public void aggregateReportPeriod(String queryName, YearMonth period, boolean byModality) {
+    	reportAggregateDao.aggregateReportPeriod(queryName, period, getReportZone(), byModality);
+    }
 	
     public Map<String, PassengerBehaviourReport> reportPassengerBehaviour(Instant since, Instant until) throws BadRequestException {
     	Map<String, PassengerBehaviourReport> reportMap = new HashMap<>();
     	// The first could have been realized without lookup, but now it is all the same.
     	// RGP-1
-    	for (NumericReportValue nrv : tripDao.reportCount(Trip.RGP_1_TRIPS_CREATED_COUNT, since, until)) {
+    	for (NumericReportValue nrv : reportAggregateDao.reportAggregatedCount(Trip.RGP_1_TRIPS_CREATED_COUNT, since, until, getReportZone())) {
     		reportMap.computeIfAbsent(nrv.getKey(), k -> new PassengerBehaviourReport(nrv))
 			.setTripsCreatedCount(nrv.getValue());
 		}
     	// RGP-2
-    	for (NumericReportValue nrv : tripDao.reportCount(Trip.RGP_2_TRIPS_CANCELLED_COUNT, since, until)) {
+    	for (NumericReportValue nrv : reportAggregateDao.reportAggregatedCount(Trip.RGP_2_TRIPS_CANCELLED_COUNT, since, until, getReportZone())) {
     		reportMap.computeIfAbsent(nrv.getKey(), k -> new PassengerBehaviourReport(nrv))
     			.setTripsCancelledCount(nrv.getValue());
 		}
     	// RGP-3
-    	for (NumericReportValue nrv : tripDao.reportCount(Trip.RGP_3_TRIPS_CANCELLED_BY_PASSENGER_COUNT, since, until)) {
+    	for (NumericReportValue nrv : reportAggregateDao.reportAggregatedCount(Trip.RGP_3_TRIPS_CANCELLED_BY_PASSENGER_COUNT, since, until, getReportZone())) {
     		reportMap.computeIfAbsent(nrv.getKey(), k -> new PassengerBehaviourReport(nrv))
     			.setTripsCancelledByPassengerCount(nrv.getValue());
 		}
     	// RGP-4
-    	for (NumericReportValue nrv : tripDao.reportCount(Trip.RGP_4_TRIPS_CANCELLED_BY_PROVIDER_COUNT, since, until)) {
+    	for (NumericReportValue nrv : reportAggregateDao.reportAggregatedCount(Trip.RGP_4_TRIPS_CANCELLED_BY_PROVIDER_COUNT, since, until, getReportZone())) {
     		reportMap.computeIfAbsent(nrv.getKey(), k -> new PassengerBehaviourReport(nrv))
     			.setTripsCancelledByProviderCount(nrv.getValue());
 		}
     	// RGP-5
-    	for (NumericReportValue nrv : tripDao.reportCount(Trip.RGP_5_TRIPS_WITH_CONFIRMED_RIDESHARE_COUNT, since, until)) {
+    	for (NumericReportValue nrv : reportAggregateDao.reportAggregatedCount(Trip.RGP_5_TRIPS_WITH_CONFIRMED_RIDESHARE_COUNT, since, until, getReportZone())) {
     		reportMap.computeIfAbsent(nrv.getKey(), k -> new PassengerBehaviourReport(nrv))
     			.setTripsWithConfirmedRideshareCount(nrv.getValue());
 		}
     	// RGP-6
-    	for (NumericReportValue nrv : tripDao.reportCount(Trip.RGP_6_TRIPS_WITH_CANCELLED_RIDESHARE_PAYMENT_COUNT, since, until)) {
+    	for (NumericReportValue nrv : reportAggregateDao.reportAggregatedCount(Trip.RGP_6_TRIPS_WITH_CANCELLED_RIDESHARE_PAYMENT_COUNT, since, until, getReportZone())) {
     		reportMap.computeIfAbsent(nrv.getKey(), k -> new PassengerBehaviourReport(nrv))
     			.setTripsWithCancelledRidesharePaymentCount(nrv.getValue());
 		}
     	// RGP-7
-    	for (NumericReportValue nrv : tripDao.reportCount(Trip.RGP_7_MONO_MODAL_TRIPS_COUNT, since, until)) {
+    	for (NumericReportValue nrv : reportAggregateDao.reportAggregatedCount(Trip.RGP_7_MONO_MODAL_TRIPS_COUNT, since, until, getReportZone())) {
     		reportMap.computeIfAbsent(nrv.getKey(), k -> new PassengerBehaviourReport(nrv))
     			.setTripsCancelledByProviderCount(nrv.getValue());
 		}
     	// RGP-9
-    	for (NumericReportValue nrv : tripDao.reportCount(Trip.RGP_9_MULTI_MODAL_TRIPS_COUNT, since, until)) {
+    	for (NumericReportValue nrv : reportAggregateDao.reportAggregatedCount(Trip.RGP_9_MULTI_MODAL_TRIPS_COUNT, since, until, getReportZone())) {
     		reportMap.computeIfAbsent(nrv.getKey(), k -> new PassengerBehaviourReport(nrv))
     			.setTripsMultiModalCount(nrv.getValue());
 		}
 
     	// RGP-11
-    	for (NumericReportValue nrv : tripPlanDao.reportCount(TripPlan.RGP_11_TRIP_PLAN_SHOUT_OUT_ISSUED_COUNT, since, until)) {
+    	for (NumericReportValue nrv : reportAggregateDao.reportAggregatedCount(TripPlan.RGP_11_TRIP_PLAN_SHOUT_OUT_ISSUED_COUNT, since, until, getReportZone())) {
     		reportMap.computeIfAbsent(nrv.getKey(), k -> new PassengerBehaviourReport(nrv))
     			.setTripPlanShoutOutIssuedCount(nrv.getValue());
 		}
     	// RGP-12
-    	for (NumericReportValue nrv : tripPlanDao.reportCount(TripPlan.RGP_12_TRIP_PLAN_SHOUT_OUT_AT_LEAST_ONE_OFFER_COUNT, since, until)) {
+    	for (NumericReportValue nrv : reportAggregateDao.reportAggregatedCount(TripPlan.RGP_12_TRIP_PLAN_SHOUT_OUT_AT_LEAST_ONE_OFFER_COUNT, since, until, getReportZone())) {
     		reportMap.computeIfAbsent(nrv.getKey(), k -> new PassengerBehaviourReport(nrv))
     			.setTripPlanShoutOutAtLeastOneOfferCount(nrv.getValue());
 		}
     	// RGP-13
-    	for (NumericReportValue nrv : tripPlanDao.reportCount(TripPlan.RGP_13_TRIP_PLAN__SHOUT_OUT_ACCEPTED_COUNT, since, until)) {
+    	for (NumericReportValue nrv : reportAggregateDao.reportAggregatedCount(TripPlan.RGP_13_TRIP_PLAN__SHOUT_OUT_ACCEPTED_COUNT, since, until, getReportZone())) {
     		reportMap.computeIfAbsent(nrv.getKey(), k -> new PassengerBehaviourReport(nrv))
     			.setTripPlanShoutOutAcceptedCount(nrv.getValue());
 		}
@@ -119,12 +190,12 @@ public class PlannerReportService {
     	Map<String, PassengerModalityBehaviourReport> reportMap = new HashMap<>();
     	// The first could have been realized without lookup, but now it is all the same.
     	// RGP-8
-    	for (ModalityNumericReportValue nrv : tripDao.reportModalityCount(Trip.RGP_8_MONO_MODAL_TRIPS_BY_MODALITY_COUNT, since, until)) {
+    	for (ModalityNumericReportValue nrv : reportAggregateDao.reportAggregatedModalityCount(Trip.RGP_8_MONO_MODAL_TRIPS_BY_MODALITY_COUNT, since, until, getReportZone())) {
     		reportMap.computeIfAbsent(nrv.getKey(), k -> new PassengerModalityBehaviourReport(nrv))
     			.setTripsMonoModalCount(nrv.getValue());
 		}
     	// RGP-10
-    	for (ModalityNumericReportValue nrv : tripDao.reportModalityCount(Trip.RGP_10_MULTI_MODAL_TRIPS_BY_MODALITY_COUNT, since, until)) {
+    	for (ModalityNumericReportValue nrv : reportAggregateDao.reportAggregatedModalityCount(Trip.RGP_10_MULTI_MODAL_TRIPS_BY_MODALITY_COUNT, since, until, getReportZone())) {
     		reportMap.computeIfAbsent(nrv.getKey(), k -> new PassengerModalityBehaviourReport(nrv))
     			.setTripsMultiModalCount(nrv.getValue());
 		}
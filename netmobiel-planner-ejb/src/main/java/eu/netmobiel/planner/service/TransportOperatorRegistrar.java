@@ -1,5 +1,6 @@
 package eu.netmobiel.planner.service;
 
+import java.time.Duration;
 import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
@@ -8,6 +9,8 @@ import java.util.Map;
 import java.util.Set;
 import java.util.stream.Collectors;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.ejb.ConcurrencyManagement;
 import javax.ejb.ConcurrencyManagementType;
 import javax.ejb.Lock;
@@ -17,6 +20,7 @@ import javax.inject.Inject;
 
 import org.slf4j.Logger;
 
+import eu.netmobiel.commons.cache.ReferenceDataCache;
 import eu.netmobiel.commons.util.ExceptionUtil;
 import eu.netmobiel.planner.model.TransportOperator;
 import eu.netmobiel.planner.model.TraverseMode;
@@ -26,12 +30,16 @@ import eu.netmobiel.tomp.api.model.AssetClass;
 import eu.netmobiel.tomp.api.model.AssetType;
 
 /**
- * Session Bean implementation class TransportOperatorRegistrar
+ * Session Bean implementation class TransportOperatorRegistrar. The registry of the transport operators and the 
+ * traverse modes they support. The enabled operators and the available assets of each operator are cached, 
+ * updating the registry does not query the database nor call the API of the operators each time.
  */
 @Singleton
 @ConcurrencyManagement(ConcurrencyManagementType.CONTAINER)
 @Lock(LockType.READ)
 public class TransportOperatorRegistrar {
+	private static final Duration TIME_TO_LIVE = Duration.ofHours(1);
+	private static final String ENABLED_OPERATORS = "enabled";
 
 	@Inject
     private Logger log;
@@ -42,6 +50,15 @@ public class TransportOperatorRegistrar {
 	@Inject
 	private TransportOperatorDao transportOperatorDao;
 
+	private final ReferenceDataCache<String, List<TransportOperator>> operatorCache = 
+			new ReferenceDataCache<>("planner-transport-operators", TIME_TO_LIVE, 1);
+	/**
+	 * The available assets of each operator. A failed lookup is not cached, the API of the operator is called again 
+	 * at the next update of the registry.
+	 */
+	private final ReferenceDataCache<Long, List<AssetType>> assetTypeCache = 
+			new ReferenceDataCache<>("planner-operator-assets", TIME_TO_LIVE, 100);
+
 	/**
      * Default constructor. 
      */
@@ -53,6 +70,18 @@ public class TransportOperatorRegistrar {
 	private Map<TraverseMode, Set<TransportOperator>> traverseMode2Operators;
 	private Map<TransportOperator, Set<TraverseMode>> operator2TraverseModes;
 
+	@PostConstruct
+	public void initialize() {
+		operatorCache.registerMBean();
+		assetTypeCache.registerMBean();
+	}
+
+	@PreDestroy
+	public void destroy() {
+		operatorCache.unregisterMBean();
+		assetTypeCache.unregisterMBean();
+	}
+
 	private void addSupportedTraverseMode(TransportOperator operator, TraverseMode supportedMode) {
 		if (log.isDebugEnabled()) {
 			log.debug(String.format("Transport Operator '%s' supports %s", operator.getAgencyName(), supportedMode));
@@ -65,18 +94,32 @@ public class TransportOperatorRegistrar {
 			.add(TraverseMode.RIDESHARE);
 	}
 
-	private void addOperator(TransportOperator operator) {
+	/**
+	 * Fetches the available assets of an operator.
+	 * @param operator the transport operator.
+	 * @return the available assets or null if the operator could not be reached. 
+	 */
+	private List<AssetType> fetchAvailableAssets(TransportOperator operator) {
 		try {
-			List<AssetType> assetTypes = operatorApiDao.getAvailableAssets(operator);
-			for (AssetType at : assetTypes) {
-				if (at.getAssetClass() == AssetClass.CAR && "RIDESHARE".equals(at.getAssetSubClass())) {
-					addSupportedTraverseMode(operator, TraverseMode.RIDESHARE);
-				} else {
-					// Add support for more transport operators
-				}
-			}
+			return operatorApiDao.getAvailableAssets(operator);
 		} catch (Exception ex) {
 			log.error(String.join("\n\t", ExceptionUtil.unwindExceptionMessage("Error adding transport operator: " + operator.getAgencyName(), ex)));
+			return null;
+		}
+	}
+
+	private void addOperator(TransportOperator operator) {
+		List<AssetType> assetTypes = assetTypeCache.get(operator.getId(), id -> fetchAvailableAssets(operator));
+		if (assetTypes == null) {
+			// The operator is not available now, no modalities
+			return;
+		}
+		for (AssetType at : assetTypes) {
+			if (at.getAssetClass() == AssetClass.CAR && "RIDESHARE".equals(at.getAssetSubClass())) {
+				addSupportedTraverseMode(operator, TraverseMode.RIDESHARE);
+			} else {
+				// Add support for more transport operators
+			}
 		}
 	}
 
@@ -85,9 +128,9 @@ public class TransportOperatorRegistrar {
 	 */
 	@Lock(LockType.WRITE)
     public void updateRegistry() {
-		List<TransportOperator> operators = transportOperatorDao.findAll().stream()
+		List<TransportOperator> operators = operatorCache.get(ENABLED_OPERATORS, k -> transportOperatorDao.findAll().stream()
 				.filter(to -> to.isEnabled())
-				.collect(Collectors.toList());
+				.collect(Collectors.toList()));
 		traverseMode2Operators.clear();
 		operator2TraverseModes.clear();
 		for (TransportOperator to : operators) {
@@ -97,6 +140,18 @@ public class TransportOperatorRegistrar {
 		}
     }
 
+	/**
+	 * Invalidates the cached operators and their assets and clears the registry. Call this method after 
+	 * a change of the transport operators. The registry is rebuilt at the next update.
+	 */
+	@Lock(LockType.WRITE)
+	public void invalidateRegistry() {
+		operatorCache.invalidateAll();
+		assetTypeCache.invalidateAll();
+		traverseMode2Operators.clear();
+		operator2TraverseModes.clear();
+	}
+
 	public Set<TransportOperator> getOperatorsforTraverseMode(TraverseMode mode) {
 		return traverseMode2Operators.containsKey(mode) ? traverseMode2Operators.get(mode) : Collections.emptySet(); 
 	}
@@ -2,8 +2,13 @@ package eu.netmobiel.planner.service;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import javax.ejb.Stateless;
 import javax.ejb.TransactionAttribute;
@@ -20,6 +25,7 @@ import eu.netmobiel.commons.exception.BadRequestException;
 import eu.netmobiel.commons.exception.BusinessException;
 import eu.netmobiel.commons.exception.NotFoundException;
 import eu.netmobiel.commons.exception.RemoveException;
+import eu.netmobiel.commons.exception.SystemException;
 import eu.netmobiel.commons.exception.UpdateException;
 import eu.netmobiel.commons.filter.Cursor;
 import eu.netmobiel.commons.model.ConfirmationReasonType;
@@ -30,7 +36,7 @@ import eu.netmobiel.commons.util.Command;
 import eu.netmobiel.commons.util.EventFireWrapper;
 import eu.netmobiel.commons.util.Logging;
 import eu.netmobiel.commons.util.UrnHelper;
-import eu.netmobiel.here.search.HereSearchClient;
+import eu.netmobiel.here.search.PostalCodeCache;
 import eu.netmobiel.planner.event.BookingAssignedEvent;
 import eu.netmobiel.planner.event.BookingCancelledEvent;
 import eu.netmobiel.planner.event.BookingConfirmedEvent;
@@ -63,9 +69,13 @@ import eu.netmobiel.planner.repository.TripDao;
 @Logging
 public class TripManager {
 	public static final Integer MAX_RESULTS = 10; 
+	/**
+	 * The maximum time to wait for a trip plan that is written in the background [s].
+	 */
+	private static final long IN_FLIGHT_PLAN_TIMEOUT = 10;
 	
     @Inject
-	private HereSearchClient hereSearchClient;
+	private PostalCodeCache postalCodeCache;
 	
 	@Inject
     private Logger log;
@@ -75,6 +85,9 @@ public class TripManager {
 
     @Inject
     private ItineraryDao itineraryDao;
+
+    @Inject
+    private InFlightTripPlans inFlightTripPlans;
     
     @Inject
     private LegDao legDao;
@@ -114,17 +127,14 @@ public class TripManager {
     	filter.validate();
     	cursor.validate(MAX_RESULTS, 0);
         List<Trip> results = Collections.emptyList();
-        Long totalCount = 0L;
-		PagedResult<Long> prs = tripDao.findTrips(filter, Cursor.COUNTING_CURSOR);
-		totalCount = prs.getTotalCount();
-    	if (totalCount > 0 && !cursor.isCountingQuery()) {
-    		// Get the actual data
-    		PagedResult<Long> tripIds = tripDao.findTrips(filter, cursor);
-    		if (tripIds.getData().size() > 0) {
-    			results = tripDao.loadGraphs(tripIds.getData(), Trip.DETAILED_ENTITY_GRAPH, Trip::getId);
-    		}
-    	}
-    	return new PagedResult<>(results, cursor, totalCount);
+        // The page comes with the total count (determined only once, then carried by the continuation token)
+		PagedResult<Long> tripIds = tripDao.findTrips(filter, cursor);
+		if (tripIds.getData().size() > 0) {
+			results = tripDao.loadGraphs(tripIds.getData(), Trip.DETAILED_ENTITY_GRAPH, Trip::getId);
+		}
+    	PagedResult<Trip> page = new PagedResult<>(results, cursor, tripIds.getTotalCount());
+    	page.setNext(tripIds.getNext());
+    	return page;
     }
 
     /**
@@ -132,9 +142,11 @@ public class TripManager {
      * @param user the user for whom the trip is created
      * @param trip the new trip
      * @return The ID of the trip just created.
-     * @throws NotFoundException In case one of the referenced object cannot be found.
+     * @throws NotFoundException In case one of the referenced object cannot be found. This includes an itinerary
+     * 			of a plan that was still in flight on another node or during a restart, see {@link InFlightTripPlans}.
      * @throws BadRequestException In case of bad parameters.
      * @throws BusinessException In case of an exception coming through the event observers.
+     * @throws SystemException In case the plan of the itinerary has not been written (in time).
      */
     public Long createTrip(PlannerUser organizer, PlannerUser traveller, Trip trip) throws NotFoundException, BadRequestException, BusinessException {
     	trip.setOrganizer(organizer);
@@ -142,9 +154,21 @@ public class TripManager {
     	if (trip.getItineraryRef() == null) {
     		throw new BadRequestException("Specify an itinerary reference");
     	}
+    	Long itineraryId = UrnHelper.getId(Itinerary.URN_PREFIX, trip.getItineraryRef());
+    	// The plan of the itinerary might still be written in the background 
+    	try {
+			inFlightTripPlans.awaitItinerary(itineraryId, IN_FLIGHT_PLAN_TIMEOUT, TimeUnit.SECONDS);
+		} catch (TimeoutException e) {
+			throw new SystemException("Timeout waiting for the plan of itinerary " + itineraryId + " to be written, please try again");
+		} catch (ExecutionException e) {
+			throw new SystemException("The plan of itinerary " + itineraryId + " could not be written", e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SystemException("Interrupted while waiting for the plan of itinerary " + itineraryId);
+		}
 		// Create a trip for this itinerary
     	Itinerary it = itineraryDao
-    			.loadGraph(UrnHelper.getId(Itinerary.URN_PREFIX, trip.getItineraryRef()), Itinerary.LIST_ITINERARIES_ENTITY_GRAPH)
+    			.loadGraph(itineraryId, Itinerary.LIST_ITINERARIES_ENTITY_GRAPH)
     			.orElseThrow(() -> new NotFoundException("No such itinerary: " + trip.getItineraryRef()));
     	trip.setItinerary(it);
     	trip.setState(TripState.PLANNING);
@@ -159,9 +183,9 @@ public class TripManager {
     	trip.setNrSeats(plan.getNrSeats());
         trip.setFrom(plan.getFrom());
         trip.setTo(plan.getTo());
-        //TODO Use the local database first to lookup the coordinate. Omit for now. 
-        trip.setDeparturePostalCode(hereSearchClient.getPostalCode6(trip.getFrom()));
-        trip.setArrivalPostalCode(hereSearchClient.getPostalCode6(trip.getTo()));
+        // Only use the cache, a missing postal code is resolved later by the maintenance
+        trip.setDeparturePostalCode(postalCodeCache.findPostalCode6(trip.getFrom()));
+        trip.setArrivalPostalCode(postalCodeCache.findPostalCode6(trip.getTo()));
         Trip tripdb = tripDao.save(trip);
        	tripDao.flush();
    		// Update the state before doing any booking stuff
@@ -412,20 +436,45 @@ public class TripManager {
 	}
 
     /**
-     * Search for a trip that have no postal code assigned to departure or arrival location.
-     * @return
+     * Lists the distinct locations of the trips that have no postal code assigned to the departure or arrival location.
+     * This is a maintenance method, not intended for use by the presentation layer. 
+     * @param maxTrips the maximum number of trips to inspect.
+     * @return the locations without postal code.
      */
-	public Optional<GeoLocation> findNextMissingPostalCode() {
-		Optional<Trip> t = tripDao.findFirstTripWithoutPostalCode();
-		GeoLocation loc = null;
-		if (t.isPresent()) {
-			if (t.get().getDeparturePostalCode() == null) {
-				loc = t.get().getFrom();
+	public List<GeoLocation> listMissingPostalCodeLocations(int maxTrips) {
+		Map<String, GeoLocation> locations = new LinkedHashMap<>();
+		for (Trip t : tripDao.listTripsWithoutPostalCode(maxTrips)) {
+			if (t.getDeparturePostalCode() == null) {
+				locations.putIfAbsent(PostalCodeCache.createLocationKey(t.getFrom()), t.getFrom());
+			}
+			if (t.getArrivalPostalCode() == null) {
+				locations.putIfAbsent(PostalCodeCache.createLocationKey(t.getTo()), t.getTo());
+			}
+		}
+		return new ArrayList<>(locations.values());
+	}
+
+    /**
+     * Assigns the resolved postal codes to all trips with the same GeoLocations and saves them in the postal code cache.
+     * A location that could not be resolved is assigned '??????' to prevent looking it up over and over again, 
+     * that value is not cached.
+     * This is a maintenance method, not intended for use by the presentation layer. 
+     * @param postalCodes the postal code of each location, null if not resolved. 
+     * @return the number of trips altered.
+     */
+	public int assignPostalCodes(Map<GeoLocation, String> postalCodes) {
+		int affectedRows = 0;
+		for (Map.Entry<GeoLocation, String> entry : postalCodes.entrySet()) {
+			String postalCode = entry.getValue();
+			if (postalCode == null || postalCode.isEmpty()) {
+				log.warn("Error looking up postal code for " + entry.getKey());
+				postalCode = "??????";
 			} else {
-				loc = t.get().getTo();
+				postalCodeCache.savePostalCode6(entry.getKey(), postalCode);
 			}
+			affectedRows += assignPostalCode(entry.getKey(), postalCode);
 		}
-		return Optional.ofNullable(loc);
+		return affectedRows;
 	}
 
     /**
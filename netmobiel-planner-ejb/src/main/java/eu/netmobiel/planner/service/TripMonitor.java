@@ -6,7 +6,6 @@ import java.time.Instant;
 import java.util.Collection;
 import java.util.Date;
 import java.util.List;
-import java.util.Optional;
 import java.util.stream.Collectors;
 
 import javax.annotation.Resource;
@@ -17,14 +16,18 @@ import javax.ejb.SessionContext;
 import javax.ejb.Stateless;
 import javax.ejb.Timeout;
 import javax.ejb.Timer;
+import javax.ejb.TimerConfig;
 import javax.ejb.TimerService;
 import javax.ejb.TransactionAttribute;
 import javax.ejb.TransactionAttributeType;
 import javax.enterprise.event.Event;
+import javax.enterprise.event.Observes;
+import javax.enterprise.event.TransactionPhase;
 import javax.inject.Inject;
 
 import org.slf4j.Logger;
 
+import eu.netmobiel.commons.event.MonitorWakeupEvent;
 import eu.netmobiel.commons.event.TripValidationEvent;
 import eu.netmobiel.commons.exception.BusinessException;
 import eu.netmobiel.commons.exception.NotFoundException;
@@ -32,6 +35,7 @@ import eu.netmobiel.commons.repository.ClockDao;
 import eu.netmobiel.commons.util.EventFireWrapper;
 import eu.netmobiel.commons.util.ExceptionUtil;
 import eu.netmobiel.commons.util.Logging;
+import eu.netmobiel.commons.util.MonitorTimerRegistry;
 import eu.netmobiel.commons.util.ValidEjbTimer;
 import eu.netmobiel.planner.event.TripEvent;
 import eu.netmobiel.planner.model.Leg;
@@ -99,7 +103,18 @@ public class TripMonitor {
     @Inject
     private Event<TripEvent> tripEvent;
 
+    @Inject
+    private Event<MonitorWakeupEvent> wakeupEvent;
+
     private final static ValidEjbTimer validEjbTimer = new ValidEjbTimer();
+
+    /**
+     * The wake-up times of the monitored trips. The registry is shared by all instances of this stateless bean.
+     * A single container timer (with WAKEUP_TIMER_INFO) is set at the earliest wake-up. 
+     * The registry is only changed after a successful commit, see onWakeupChange.
+     */
+    private final static MonitorTimerRegistry<Long> timerRegistry = new MonitorTimerRegistry<>();
+    private final static String WAKEUP_TIMER_INFO = "TripMonitorWakeup";
     
     public static class TripInfo implements Serializable {
 		private static final long serialVersionUID = -2715209888482006490L;
@@ -135,8 +150,8 @@ public class TripMonitor {
     public void restartValidation(Trip trip) throws BusinessException {
     	if (trip.getState().isPostTravelState() ) {
     		// The fare was uncancelled or refunded, any way, the trip needs validation again
+    		// The state machine replaces the wake-up, if any.
     		trip.setState(TripState.ARRIVING);
-    		cancelTripTimer(trip, TripMonitorEvent.TIME_TO_CHECK);
     		updateTripStateMachine(trip);
     	}
     }
@@ -265,6 +280,13 @@ public class TripMonitor {
 					// Trigger an asynchronous evaluation, use a separate event (processed only after a successful commit of the current update)
 		        	EventFireWrapper.fire(tripValidationEvent, new TripValidationEvent(trip.getTripRef(), true));
 				}
+				if (nextTimeout == null) {
+					// Keep (or after a restart: restore) the wake-up for the next reminder or the expiration
+					nextTimeout = trip.getValidationExpirationTime();
+					if (trip.getItinerary().isPassengerConfirmationPending() && trip.getValidationReminderTime().isBefore(nextTimeout)) {
+						nextTimeout = trip.getValidationReminderTime();
+					}
+				}
 			}
 			break;
 		case COMPLETED:
@@ -285,6 +307,11 @@ public class TripMonitor {
     @Timeout
 	public void onTimeout(Timer timer) {
 		try {
+			if (WAKEUP_TIMER_INFO.equals(timer.getInfo())) {
+				processWakeups();
+				return;
+			}
+			// Timers from before the registry, still in the timer table
 			if (! (timer.getInfo() instanceof TripInfo)) {
 				log.error("Don't know how to handle timeout: " + timer.getInfo());
 				return;
@@ -332,6 +359,21 @@ public class TripMonitor {
     	updateStateMachine(tripId);
     }
 
+    /**
+     * Updates the state machine of each trip that is due. Each trip is evaluated in its own transaction.
+     * Finally the timer is set for the next wake-up.
+     */
+    private void processWakeups() {
+    	List<Long> tripIds = timerRegistry.pollDue(Instant.now());
+		if (log.isDebugEnabled()) {
+			log.debug(String.format("processWakeups: %d trips due, %d waiting", tripIds.size(), timerRegistry.size()));
+		}
+		for (Long tripId : tripIds) {
+			sessionContext.getBusinessObject(this.getClass()).updateStateMachine(tripId);
+		}
+		armWakeupTimer();
+    }
+
     @Schedule(info = "Collect due trips", hour = "*/1", minute = "1", second = "30", persistent = false /* non-critical job */)
 	public void checkForDueTrips() {
     	//FIXME Change the algorithm such that there is just one time calling the state machine. Then there are no concurrency issues.
@@ -345,6 +387,8 @@ public class TripMonitor {
 				// If so then only set the timer, do not update the state.
 				sessionContext.getBusinessObject(this.getClass()).updateStateMachine(tripId);
 			}
+			// Just in case the wake-up timer got lost
+			armWakeupTimer();
 		} catch (Exception ex) {
 			log.error(String.format("Error handling timeout: %s", ex.toString()));
 		}
@@ -354,25 +398,34 @@ public class TripMonitor {
 		if (log.isDebugEnabled()) {
 			log.debug(String.format("setupTimer %s %s", trip.getTripRef(), expirationTime));
 		}
-		Collection<Timer> timers = getActiveTimers(trip);
-		if (timers.size() > 1) {
-			log.warn(String.format("Too many timers for Trip %s, cancelling all of them", trip.getId()));
-			timers.forEach(tm -> tm.cancel());
-		}
-		Optional<Timer> tm = timers.stream().findFirst();
-		if (tm.isPresent()) {
-			Timer tmr = tm.get();
-			if (!validEjbTimer.test(tmr) || !tmr.getNextTimeout().toInstant().equals(expirationTime)) {
-//				log.debug("Canceling timer: " + tmr.getInfo());
-				cancelTimer(tmr);
-				tm = Optional.empty();
-			}
+		wakeupEvent.fire(new MonitorWakeupEvent(WAKEUP_TIMER_INFO, trip.getId(), expirationTime));
+	}
+
+	/**
+	 * Applies a change of a wake-up to the registry, but only after the transaction that caused the change has 
+	 * been committed. A rollback leaves the registry as it was.
+	 * @param event the wake-up change.
+	 */
+	public void onWakeupChange(@Observes(during = TransactionPhase.AFTER_SUCCESS) MonitorWakeupEvent event) {
+		if (!WAKEUP_TIMER_INFO.equals(event.getMonitor())) {
+			return;
 		}
-		if (tm.isEmpty()) {
-			timerService.createTimer(Date.from(expirationTime), new TripInfo(trip.getId()));
+		if (event.isCancel()) {
+			timerRegistry.cancel(event.getObjectId());
+		} else {
+			timerRegistry.schedule(event.getObjectId(), event.getWakeupTime());
+			armWakeupTimer();
 		}
 	}
 
+	/**
+	 * Sets the container timer for the earliest wake-up, if necessary.
+	 */
+	private void armWakeupTimer() {
+		timerRegistry.arm(Instant.now())
+			.ifPresent(t -> timerService.createSingleActionTimer(Date.from(t), new TimerConfig(WAKEUP_TIMER_INFO, false)));
+	}
+
     private void cancelTimer(Timer tm) {
 		try {
 			tm.cancel();
@@ -381,24 +434,8 @@ public class TripMonitor {
 		}
     }
 
-    private Collection<Timer> getActiveTimers(Trip trip) {
-    	Collection<Timer> timers = timerService.getTimers();
-    	// Remove the timers that are not used with TripInfo
-    	timers.removeIf(tm -> !(tm.getInfo() instanceof TripInfo && ((TripInfo)tm.getInfo()).tripId.equals(trip.getId())));
-    	if (timers.size() > TripMonitorEvent.values().length) {
-    		log.warn(String.format("getActiveTimers: %d timers active for trip %s!", timers.size(), trip.getId()));
-    	}
-    	return timers;
-    }
-    
 	private void cancelTripTimers(Trip trip) {
-    	// Find all timers related to this trip and cancel them
-		getActiveTimers(trip).forEach(tm -> cancelTimer(tm));
-	}
-
-	private void cancelTripTimer(Trip trip, TripMonitorEvent event) {
-		Collection<Timer> timers = getActiveTimers(trip);
-		timers.forEach(tm -> cancelTimer(tm));
+		wakeupEvent.fire(new MonitorWakeupEvent(WAKEUP_TIMER_INFO, trip.getId(), null));
 	}
 	
 	private List<TripInfo> listAllTripMonitorTimers() {
@@ -415,7 +452,7 @@ public class TripMonitor {
     	timers.removeAll(invalidTimers);
     	timers.removeIf(tm -> !(tm.getInfo() instanceof TripInfo));
 		if (timers.isEmpty()) {
-			log.info("NO active trip timers");
+			log.info("NO active (legacy) trip timers");
 		} else {
 			log.info("Active trip timers:\n\t" + String.join("\n\t", 
 					timers.stream()
@@ -431,11 +468,12 @@ public class TripMonitor {
 	/**
 	 * Revive the trip monitors that have been crashed due due to some unrecoverable errors.
 	 * This call is made on startup of the application only.
-	 * Not used anymore, only for logging the active timers now.
+	 * The timer registry is in-memory only, evaluate the trips to monitor to fill the registry. 
 	 */
 	public void reviveTripMonitors() {
 		listAllTripMonitorTimers();
-//		checkForDueTrips();
+		checkForDueTrips();
+		log.info(String.format("Trip monitor wake-ups: %d", timerRegistry.size()));
 	}
 	
 }
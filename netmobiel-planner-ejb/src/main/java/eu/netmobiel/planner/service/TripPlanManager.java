@@ -14,6 +14,7 @@ import java.util.List;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 import javax.ejb.EJBAccessException;
@@ -36,6 +37,7 @@ import eu.netmobiel.commons.util.Logging;
 import eu.netmobiel.commons.util.UrnHelper;
 import eu.netmobiel.planner.event.BookingProposalRejectedEvent;
 import eu.netmobiel.planner.event.TravelOfferEvent;
+import eu.netmobiel.planner.event.TripPlanCreatedEvent;
 import eu.netmobiel.planner.filter.ShoutOutFilter;
 import eu.netmobiel.planner.filter.TripPlanFilter;
 import eu.netmobiel.planner.model.Itinerary;
@@ -87,10 +89,14 @@ public class TripPlanManager {
     private ItineraryDao itineraryDao;
     @Inject
     private OpenTripPlannerDao otpDao;
+    @Inject
+    private InFlightTripPlans inFlightTripPlans;
 
     @Inject
     private Event<TripPlan> shoutOutRequestedEvent;
     @Inject
+    private Event<TripPlanCreatedEvent> tripPlanCreatedEvent;
+    @Inject
     private Event<TravelOfferEvent> travelOfferProposedEvent;
     @Inject
     private Event<BookingProposalRejectedEvent> bookingRejectedEvent;
@@ -259,6 +265,8 @@ public class TripPlanManager {
     /**
      * Creates a trip plan on behalf of a user. If the type of the plan is a shout-out, then a shout-out event is sent. 
      * Otherwise the planner is called and a list of possible itineraries is prepared. 
+     * The plan with the itineraries is written in the background (write-behind), only the identifiers are reserved 
+     * in this call. Until the write is done, the plan is served from the in-flight cache. A shout-out is written directly.
      * @param requestor the user creating the plan.
      * @param traveller the user for whom the plan is created
      * @param plan the new plan
@@ -267,6 +275,22 @@ public class TripPlanManager {
      * @throws BusinessException 
      */
     public TripPlan createAndReturnTripPlan(PlannerUser requestor, PlannerUser traveller, TripPlan plan, Instant now) throws BusinessException {
+    	return createAndReturnTripPlan(requestor, traveller, plan, now, null);
+    }
+
+    /**
+     * Creates a trip plan on behalf of a user, like {@link #createAndReturnTripPlan(PlannerUser, PlannerUser, TripPlan, Instant)}, 
+     * but reports the progress of the search: The listener is called with the new (ranked) itineraries each time a part
+     * of the multi-modal search completes. The progress of a shout-out is never reported. 
+     * @param requestor the user creating the plan.
+     * @param traveller the user for whom the plan is created
+     * @param plan the new plan
+     * @param now the timestamp of this very moment, used for testing
+     * @param progressListener the listener for intermediate results. The itineraries have no identity yet. 
+     * @return The plan just created.
+     * @throws BusinessException 
+     */
+    public TripPlan createAndReturnTripPlan(PlannerUser requestor, PlannerUser traveller, TripPlan plan, Instant now, Consumer<List<Itinerary>> progressListener) throws BusinessException {
     	plan.setRequestor(requestor != null ? requestor : traveller);
     	plan.setTraveller(traveller);
     	plan.setRequestTime(now);
@@ -293,7 +317,7 @@ public class TripPlanManager {
     	plan.setPlanState(PlanState.OPEN);
        	if (plan.getPlanType() != PlanType.SHOUT_OUT) {
        		// Start a search
-       		plan = planner.searchMultiModal(plan);
+       		plan = planner.searchMultiModal(plan, progressListener);
         	plan.setPlanState(PlanState.FINAL);
         	plan.close();
        	} else {
@@ -305,10 +329,15 @@ public class TripPlanManager {
        			plan.setReferenceItinerary(planResult.getItineraries().get(0));
        		}
        	}
-       	tripPlanDao.save(plan);
        	if (plan.getPlanType() == PlanType.SHOUT_OUT) {
+           	tripPlanDao.save(plan);
        		EventFireWrapper.fire(shoutOutRequestedEvent, plan);
        		// Note:the plan remains open, itineraries will hopefully arrive, one by one.
+       	} else {
+       		// Write-behind: Reserve the ids, a copy of the plan is written in the background after the commit
+       		tripPlanDao.reserveIdentifiers(plan);
+       		inFlightTripPlans.add(plan);
+       		tripPlanCreatedEvent.fire(new TripPlanCreatedEvent(plan.getId()));
        	}
     	return plan;
     }
@@ -328,12 +357,17 @@ public class TripPlanManager {
     }
 
     /**
-     * Retrieves a trip plan. All available details are retrieved.
+     * Retrieves a trip plan. All available details are retrieved. A plan that is still being written is
+     * served from the in-flight cache, as a copy.
      * @param id the id of the trip plan
      * @return The TripPlan object
      * @throws NotFoundException In case of an invalid trip plan ID.
      */
     public TripPlan getTripPlan(Long id) throws NotFoundException {
+    	Optional<TripPlan> inFlightPlan = inFlightTripPlans.find(id);
+    	if (inFlightPlan.isPresent()) {
+    		return inFlightPlan.get();
+    	}
     	TripPlan plandb = tripPlanDao.loadGraph(id, TripPlan.DETAILED_ENTITY_GRAPH)
     			.orElseThrow(() -> new NotFoundException("No such trip plan: " + id));
     	return plandb;
@@ -0,0 +1,108 @@
+package eu.netmobiel.planner.service;
+
+import java.util.Optional;
+
+import javax.annotation.Resource;
+import javax.ejb.Asynchronous;
+import javax.ejb.SessionContext;
+import javax.ejb.Stateless;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+import javax.enterprise.event.Observes;
+import javax.enterprise.event.TransactionPhase;
+import javax.inject.Inject;
+
+import org.slf4j.Logger;
+
+import eu.netmobiel.commons.exception.SystemException;
+import eu.netmobiel.commons.util.ExceptionUtil;
+import eu.netmobiel.planner.event.TripPlanCreatedEvent;
+import eu.netmobiel.planner.model.TripPlan;
+import eu.netmobiel.planner.repository.TripPlanDao;
+
+/**
+ * Writes the trip plans in the background (write-behind). The identifiers of the plan have been reserved already
+ * and the plan is served from the in-flight cache until the write has been committed. The write starts only after
+ * the transaction creating the plan has been committed and works on a copy of the plan taken from the in-flight cache.
+ * The pending writes are not persistent, see {@link InFlightTripPlans} for the consequences of a restart or a cluster.
+ *
+ * @author Jaap Reitsma
+ *
+ */
+@Stateless
+public class TripPlanWriter {
+	/**
+	 * The number of attempts to write a plan.
+	 */
+	private static final int MAX_WRITE_ATTEMPTS = 2;
+
+	@Inject
+    private Logger log;
+
+    @Resource
+	private SessionContext sessionContext;
+
+    @Inject
+    private TripPlanDao tripPlanDao;
+
+    @Inject
+    private InFlightTripPlans inFlightTripPlans;
+
+    /**
+     * Starts the write of a new plan after the creating transaction has been committed.
+     * @param event the plan creation event.
+     */
+    public void onTripPlanCreated(@Observes(during = TransactionPhase.AFTER_SUCCESS) TripPlanCreatedEvent event) {
+    	sessionContext.getBusinessObject(TripPlanWriter.class).writeTripPlan(event.getPlanId());
+    }
+
+    /**
+     * Discards a new plan when the creating transaction has been rolled back.
+     * @param event the plan creation event.
+     */
+    public void onTripPlanDiscarded(@Observes(during = TransactionPhase.AFTER_FAILURE) TripPlanCreatedEvent event) {
+    	inFlightTripPlans.fail(event.getPlanId(), new SystemException("The creation of trip plan " + event.getPlanId() + " has been rolled back"));
+    }
+
+    /**
+     * Writes the plan in a transaction of its own and removes the plan from the in-flight cache afterwards,
+     * i.e. after the commit. A failed write is retried once. If the plan can not be written, the plan is removed
+     * from the in-flight cache and the failure is passed to anyone waiting for the plan.
+     * @param planId the id of the plan in the in-flight cache.
+     */
+    @Asynchronous
+    @TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+    public void writeTripPlan(Long planId) {
+    	Exception failure = null;
+    	for (int attempt = 1; attempt <= MAX_WRITE_ATTEMPTS; attempt++) {
+    		// A fresh copy for each attempt, a failed attempt may leave the object graph in an undefined state
+    		Optional<TripPlan> plan = inFlightTripPlans.find(planId);
+    		if (plan.isEmpty()) {
+    			return;
+    		}
+    		try {
+    			sessionContext.getBusinessObject(TripPlanWriter.class).insertTripPlan(plan.get());
+    			failure = null;
+    			break;
+    		} catch (Exception ex) {
+    			failure = ex;
+    			log.warn(String.format("Attempt %d of writing trip plan %s failed: %s", attempt, planId, ex.toString()));
+    		}
+    	}
+    	if (failure == null) {
+    		inFlightTripPlans.remove(planId);
+    	} else {
+    		log.error(String.format("Error writing trip plan %s: %s", planId, String.join("\n\t", ExceptionUtil.unwindException(failure))));
+    		inFlightTripPlans.fail(planId, failure);
+    	}
+    }
+
+    /**
+     * Inserts the plan and its object graph.
+     * @param plan the plan with the identifiers assigned.
+     */
+    @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+    public void insertTripPlan(TripPlan plan) {
+    	tripPlanDao.replicate(plan);
+    }
+}
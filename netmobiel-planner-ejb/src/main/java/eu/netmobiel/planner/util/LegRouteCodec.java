@@ -0,0 +1,309 @@
+package eu.netmobiel.planner.util;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.MultiPoint;
+
+import eu.netmobiel.commons.util.GeometryHelper;
+import eu.netmobiel.planner.model.AbsoluteDirection;
+import eu.netmobiel.planner.model.GuideStep;
+import eu.netmobiel.planner.model.RelativeDirection;
+
+/**
+ * Compact binary format of the route of a leg, i.e. the geometry and the guide steps, stored in a single column.
+ * The format is versioned by the first byte. Version 1 layout:
+ * <pre>
+ * version          byte
+ * geometry length  varint, the number of bytes of the geometry section
+ * geometry         varint (number of points + 1, 0 means no geometry), then per point the zigzag varint delta of
+ *                  latitude and longitude in micro degrees
+ * guide steps      varint number of steps, then per step a varint with presence flags and the present fields
+ * </pre>
+ * A string is written as varint (length in bytes + 1, 0 means null) followed by the UTF-8 bytes, a direction as the
+ * string of its code. The coordinates of the steps are delta encoded too. The precision of a coordinate is
+ * 10<sup>-6</sup> degree (about 0.1 m), better than the encoded polyline of OpenTripPlanner.
+ *
+ * @author Jaap Reitsma
+ *
+ */
+public class LegRouteCodec {
+	public static final byte VERSION_1 = 1;
+	private static final double COORDINATE_SCALE = 1e6;
+
+	private static final int LATITUDE = 1;
+	private static final int LONGITUDE = 1 << 1;
+	private static final int NAME = 1 << 2;
+	private static final int DISTANCE = 1 << 3;
+	private static final int RELATIVE_DIRECTION = 1 << 4;
+	private static final int ABSOLUTE_DIRECTION = 1 << 5;
+	private static final int EXIT = 1 << 6;
+	private static final int STAY_ON = 1 << 7;
+	private static final int STAY_ON_TRUE = 1 << 8;
+	private static final int AREA = 1 << 9;
+	private static final int AREA_TRUE = 1 << 10;
+	private static final int BOGUS_NAME = 1 << 11;
+	private static final int BOGUS_NAME_TRUE = 1 << 12;
+
+	private LegRouteCodec() {
+		// Only static methods.
+	}
+
+	/**
+	 * Encodes the route of a leg.
+	 * @param geometry the geometry, may be null.
+	 * @param guideSteps the guide steps, may be null.
+	 * @return the binary form, null if there is neither a geometry nor a guide step.
+	 */
+	public static byte[] encode(MultiPoint geometry, List<GuideStep> guideSteps) {
+		if (geometry == null && (guideSteps == null || guideSteps.isEmpty())) {
+			return null;
+		}
+		Writer geo = new Writer();
+		if (geometry == null) {
+			geo.writeVarint(0);
+		} else {
+			Coordinate[] coords = geometry.getCoordinates();
+			geo.writeVarint(coords.length + 1);
+			long lat = 0;
+			long lon = 0;
+			for (Coordinate c : coords) {
+				long clat = toFixed(c.y);
+				long clon = toFixed(c.x);
+				geo.writeSignedVarint(clat - lat);
+				geo.writeSignedVarint(clon - lon);
+				lat = clat;
+				lon = clon;
+			}
+		}
+		Writer out = new Writer();
+		out.write(VERSION_1);
+		out.writeVarint(geo.size());
+		geo.writeTo(out);
+		List<GuideStep> steps = guideSteps == null ? List.of() : guideSteps;
+		out.writeVarint(steps.size());
+		long lat = 0;
+		long lon = 0;
+		for (GuideStep step : steps) {
+			int flags = 0;
+			flags |= step.getLatitude() != null ? LATITUDE : 0;
+			flags |= step.getLongitude() != null ? LONGITUDE : 0;
+			flags |= step.getName() != null ? NAME : 0;
+			flags |= step.getDistance() != null ? DISTANCE : 0;
+			flags |= step.getRelativeDirection() != null ? RELATIVE_DIRECTION : 0;
+			flags |= step.getAbsoluteDirection() != null ? ABSOLUTE_DIRECTION : 0;
+			flags |= step.getExit() != null ? EXIT : 0;
+			flags |= flagsOf(step.getStayOn(), STAY_ON, STAY_ON_TRUE);
+			flags |= flagsOf(step.getArea(), AREA, AREA_TRUE);
+			flags |= flagsOf(step.getBogusName(), BOGUS_NAME, BOGUS_NAME_TRUE);
+			out.writeVarint(flags);
+			if (step.getLatitude() != null) {
+				long clat = toFixed(step.getLatitude());
+				out.writeSignedVarint(clat - lat);
+				lat = clat;
+			}
+			if (step.getLongitude() != null) {
+				long clon = toFixed(step.getLongitude());
+				out.writeSignedVarint(clon - lon);
+				lon = clon;
+			}
+			if (step.getName() != null) {
+				out.writeString(step.getName());
+			}
+			if (step.getDistance() != null) {
+				out.writeSignedVarint(step.getDistance());
+			}
+			if (step.getRelativeDirection() != null) {
+				out.writeString(step.getRelativeDirection().getCode());
+			}
+			if (step.getAbsoluteDirection() != null) {
+				out.writeString(step.getAbsoluteDirection().getCode());
+			}
+			if (step.getExit() != null) {
+				out.writeString(step.getExit());
+			}
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Decodes the geometry only.
+	 * @param data the binary route.
+	 * @return the geometry or null if there is none.
+	 */
+	public static MultiPoint decodeGeometry(byte[] data) {
+		if (data == null) {
+			return null;
+		}
+		Reader in = new Reader(data);
+		in.readVarint(); // The size of the geometry section
+		int count = in.readVarint() - 1;
+		if (count < 0) {
+			return null;
+		}
+		Coordinate[] coords = new Coordinate[count];
+		long lat = 0;
+		long lon = 0;
+		for (int i = 0; i < count; i++) {
+			lat += in.readSignedVarint();
+			lon += in.readSignedVarint();
+			coords[i] = new Coordinate(lon / COORDINATE_SCALE, lat / COORDINATE_SCALE);
+		}
+		return GeometryHelper.createMultiPoint(coords);
+	}
+
+	/**
+	 * Decodes the guide steps only.
+	 * @param data the binary route.
+	 * @return the guide steps, never null.
+	 */
+	public static List<GuideStep> decodeGuideSteps(byte[] data) {
+		List<GuideStep> steps = new ArrayList<>();
+		if (data == null) {
+			return steps;
+		}
+		Reader in = new Reader(data);
+		in.skip(in.readVarint());
+		int count = in.readVarint();
+		long lat = 0;
+		long lon = 0;
+		for (int i = 0; i < count; i++) {
+			int flags = in.readVarint();
+			GuideStep step = new GuideStep();
+			if ((flags & LATITUDE) != 0) {
+				lat += in.readSignedVarint();
+				step.setLatitude(lat / COORDINATE_SCALE);
+			}
+			if ((flags & LONGITUDE) != 0) {
+				lon += in.readSignedVarint();
+				step.setLongitude(lon / COORDINATE_SCALE);
+			}
+			if ((flags & NAME) != 0) {
+				step.setName(in.readString());
+			}
+			if ((flags & DISTANCE) != 0) {
+				step.setDistance(Math.toIntExact(in.readSignedVarint()));
+			}
+			if ((flags & RELATIVE_DIRECTION) != 0) {
+				String code = in.readString();
+				step.setRelativeDirection(Stream.of(RelativeDirection.values())
+						.filter(d -> d.getCode().equals(code))
+						.findFirst()
+						.orElseThrow(() -> new IllegalArgumentException("Unknown relative direction: " + code)));
+			}
+			if ((flags & ABSOLUTE_DIRECTION) != 0) {
+				String code = in.readString();
+				step.setAbsoluteDirection(Stream.of(AbsoluteDirection.values())
+						.filter(d -> d.getCode().equals(code))
+						.findFirst()
+						.orElseThrow(() -> new IllegalArgumentException("Unknown absolute direction: " + code)));
+			}
+			if ((flags & EXIT) != 0) {
+				step.setExit(in.readString());
+			}
+			step.setStayOn(valueOf(flags, STAY_ON, STAY_ON_TRUE));
+			step.setArea(valueOf(flags, AREA, AREA_TRUE));
+			step.setBogusName(valueOf(flags, BOGUS_NAME, BOGUS_NAME_TRUE));
+			steps.add(step);
+		}
+		return steps;
+	}
+
+	private static long toFixed(double degrees) {
+		return Math.round(degrees * COORDINATE_SCALE);
+	}
+
+	private static int flagsOf(Boolean value, int present, int isTrue) {
+		if (value == null) {
+			return 0;
+		}
+		return value ? present | isTrue : present;
+	}
+
+	private static Boolean valueOf(int flags, int present, int isTrue) {
+		if ((flags & present) == 0) {
+			return null;
+		}
+		return (flags & isTrue) != 0;
+	}
+
+	private static class Writer extends ByteArrayOutputStream {
+		public Writer() {
+			super(64);
+		}
+
+		public void writeVarint(long value) {
+			while ((value & ~0x7FL) != 0) {
+				write((int) ((value & 0x7F) | 0x80));
+				value >>>= 7;
+			}
+			write((int) value);
+		}
+
+		public void writeSignedVarint(long value) {
+			writeVarint((value << 1) ^ (value >> 63));
+		}
+
+		public void writeString(String value) {
+			byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+			writeVarint(bytes.length + 1);
+			write(bytes, 0, bytes.length);
+		}
+
+		public void writeTo(Writer other) {
+			other.write(buf, 0, count);
+		}
+	}
+
+	private static class Reader {
+		private final ByteBuffer buffer;
+
+		public Reader(byte[] data) {
+			buffer = ByteBuffer.wrap(data);
+			byte version = buffer.get();
+			if (version != VERSION_1) {
+				throw new IllegalArgumentException("Unsupported leg route version: " + version);
+			}
+		}
+
+		public int readVarint() {
+			return Math.toIntExact(readLong());
+		}
+
+		public long readSignedVarint() {
+			long value = readLong();
+			return (value >>> 1) ^ -(value & 1);
+		}
+
+		private long readLong() {
+			long value = 0;
+			int shift = 0;
+			byte b;
+			do {
+				b = buffer.get();
+				value |= (long) (b & 0x7F) << shift;
+				shift += 7;
+			} while ((b & 0x80) != 0);
+			return value;
+		}
+
+		public String readString() {
+			int length = readVarint() - 1;
+			if (length < 0) {
+				return null;
+			}
+			String value = new String(buffer.array(), buffer.position(), length, StandardCharsets.UTF_8);
+			skip(length);
+			return value;
+		}
+
+		public void skip(int length) {
+			buffer.position(buffer.position() + length);
+		}
+	}
+}
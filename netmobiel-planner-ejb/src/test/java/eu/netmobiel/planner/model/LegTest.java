@@ -3,6 +3,7 @@ package eu.netmobiel.planner.model;
 import static org.junit.Assert.*;
 
 import java.time.Instant;
+import java.util.List;
 
 import org.junit.After;
 import org.junit.Before;
@@ -10,8 +11,11 @@ import org.junit.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.vividsolutions.jts.geom.Coordinate;
+
 import eu.netmobiel.commons.model.GeoLocation;
 import eu.netmobiel.commons.model.PaymentState;
+import eu.netmobiel.commons.util.GeometryHelper;
 
 public class LegTest {
     @SuppressWarnings("unused")
@@ -157,4 +161,19 @@ public class LegTest {
 		assertEquals(TripState.COMPLETED, state);
 		
 	}
+
+	@Test
+	public void testRouteCopy() {
+		Instant now = Instant.parse("2021-12-17T21:00:00Z");
+		Leg leg = createLeg(now);
+		leg.setLegGeometry(GeometryHelper.createMultiPoint(new Coordinate[] { 
+				new Coordinate(6.519542, 52.004485), new Coordinate(6.45004, 52.081233) }));
+		leg.getGuideSteps().add(new GuideStep(6.519542, 52.004485, "Kerkstraat"));
+		Leg copy = new Leg(leg);
+		assertEquals(leg.getLegGeometry(), copy.getLegGeometry());
+		List<GuideStep> steps = copy.getGuideSteps(); 
+		assertEquals(1, steps.size());
+		assertNotSame(leg.getGuideSteps().get(0), steps.get(0));
+		assertEquals("Kerkstraat", steps.get(0).getName());
+	}
 }
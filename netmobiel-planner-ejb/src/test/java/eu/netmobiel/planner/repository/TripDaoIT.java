@@ -145,7 +145,7 @@ public class TripDaoIT  extends PlannerIntegrationTestBase {
     	assertTrue(puu.isLoaded(leg, Leg_.FROM));
     	assertTrue(puu.isLoaded(leg, Leg_.TO));
     	assertFalse(puu.isLoaded(leg, Leg_.PLANNER_REPORT));
-    	assertFalse(puu.isLoaded(leg, Leg_.GUIDE_STEPS));
+    	assertFalse(puu.isLoaded(leg, Leg_.LEGACY_GUIDE_STEPS));
 	}
 	
 	@Test
@@ -170,7 +170,7 @@ public class TripDaoIT  extends PlannerIntegrationTestBase {
     	assertTrue(puu.isLoaded(leg, Leg_.FROM));
     	assertTrue(puu.isLoaded(leg, Leg_.TO));
     	assertFalse(puu.isLoaded(leg, Leg_.PLANNER_REPORT));
-    	assertFalse(puu.isLoaded(leg, Leg_.GUIDE_STEPS));
+    	assertFalse(puu.isLoaded(leg, Leg_.LEGACY_GUIDE_STEPS));
 	}
 
 //	@Test
@@ -0,0 +1,109 @@
+package eu.netmobiel.planner.service;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import eu.netmobiel.planner.model.Itinerary;
+import eu.netmobiel.planner.model.TripPlan;
+
+public class InFlightTripPlansTest {
+
+	private InFlightTripPlans cache;
+	private TripPlan plan;
+
+	private static Itinerary createItinerary(Long id, Double score) {
+		Itinerary it = new Itinerary();
+		it.setId(id);
+		it.setScore(score);
+		return it;
+	}
+
+	@Before
+	public void setUp() {
+		cache = new InFlightTripPlans();
+		plan = new TripPlan();
+		plan.setId(1L);
+		plan.addItinerary(createItinerary(10L, 2.0));
+		plan.addItinerary(createItinerary(11L, null));
+		plan.addItinerary(createItinerary(12L, 5.0));
+	}
+
+	@Test
+	public void testAddAndFind() {
+		cache.add(plan);
+		assertEquals(1, cache.size());
+		TripPlan found = cache.find(1L).orElseThrow();
+		assertNotSame(plan, found);
+		assertEquals(plan.getId(), found.getId());
+		assertTrue(cache.find(2L).isEmpty());
+		// Highest score first, like the database ordering 
+		List<Itinerary> its = new ArrayList<>(found.getItineraries());
+		assertEquals(Long.valueOf(12L), its.get(0).getId());
+		assertEquals(Long.valueOf(10L), its.get(1).getId());
+		assertEquals(Long.valueOf(11L), its.get(2).getId());
+		assertSame(found, its.get(0).getTripPlan());
+	}
+
+	@Test
+	public void testCopies() {
+		cache.add(plan);
+		// Neither the caller nor a reader can modify the cached plan
+		plan.getItineraries().clear();
+		TripPlan found = cache.find(1L).orElseThrow();
+		assertEquals(3, found.getItineraries().size());
+		found.getItineraries().clear();
+		assertEquals(3, cache.find(1L).orElseThrow().getItineraries().size());
+	}
+
+	@Test
+	public void testRemove() throws Exception {
+		cache.add(plan);
+		try {
+			cache.awaitItinerary(10L, 10, TimeUnit.MILLISECONDS);
+			fail("Expected a timeout");
+		} catch (TimeoutException ex) {
+			// Expected
+		}
+		cache.remove(1L);
+		assertEquals(0, cache.size());
+		assertTrue(cache.find(1L).isEmpty());
+		cache.awaitItinerary(10L, 10, TimeUnit.MILLISECONDS);
+	}
+
+	@Test
+	public void testFail() throws Exception {
+		cache.add(plan);
+		Thread writer = new Thread(() -> cache.fail(1L, new IllegalStateException("Write failed")));
+		writer.start();
+		try {
+			cache.awaitItinerary(11L, 5, TimeUnit.SECONDS);
+			fail("Expected an ExecutionException");
+		} catch (ExecutionException ex) {
+			assertTrue(ex.getCause() instanceof IllegalStateException);
+		}
+		writer.join();
+		assertEquals(0, cache.size());
+	}
+
+	@Test
+	public void testAwaitWrite() throws Exception {
+		cache.add(plan);
+		Thread writer = new Thread(() -> cache.remove(1L));
+		writer.start();
+		cache.awaitItinerary(12L, 5, TimeUnit.SECONDS);
+		writer.join();
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testAddWithoutId() {
+		cache.add(new TripPlan());
+	}
+}
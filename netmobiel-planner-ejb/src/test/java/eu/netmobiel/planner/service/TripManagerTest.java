@@ -72,6 +72,9 @@ public class TripManagerTest {
 
 	@Injectable
     private ItineraryDao itineraryDao;
+
+	@Injectable
+    private InFlightTripPlans inFlightTripPlans;
 	
 	@Injectable
 	private TripMonitor tripMonitor;
@@ -132,7 +135,7 @@ public class TripManagerTest {
     	filter.validate();
     	cursor.validate(9,  1);
 		new Expectations() {{
-			tripDao.findTrips(filter, Cursor.COUNTING_CURSOR);
+			tripDao.findTrips(filter, cursor);
 			result = PagedResult.empty();
 		}};
 		try {
@@ -141,8 +144,8 @@ public class TripManagerTest {
 			fail("Unexpected exception: " + ex);
 		}
 		new Verifications() {{
-			// Verify call to DAO. No results returned, so no second call.
-			tripDao.findTrips(filter, Cursor.COUNTING_CURSOR);
+			// Verify call to DAO. A single call returns both the page and the total count.
+			tripDao.findTrips(filter, cursor);
 			times = 1;
 //			tripDao.findTrips(traveller, state, since, until, deletedToo, sortDir, maxResults, offset);
 //			times = 1;
@@ -31,6 +31,7 @@ import eu.netmobiel.commons.model.SortDirection;
 import eu.netmobiel.commons.util.UrnHelper;
 import eu.netmobiel.planner.event.BookingProposalRejectedEvent;
 import eu.netmobiel.planner.event.TravelOfferEvent;
+import eu.netmobiel.planner.event.TripPlanCreatedEvent;
 import eu.netmobiel.planner.filter.ShoutOutFilter;
 import eu.netmobiel.planner.filter.TripPlanFilter;
 import eu.netmobiel.planner.model.Itinerary;
@@ -79,9 +80,15 @@ public class TripPlanManagerTest {
 	@Injectable
     private OpenTripPlannerDao otpDao;
 
+	@Injectable
+    private InFlightTripPlans inFlightTripPlans;
+
 	@Injectable
     private Event<TripPlan> shoutOutRequestedEvent;
 
+	@Injectable
+    private Event<TripPlanCreatedEvent> tripPlanCreatedEvent;
+
 	@Injectable
     private Event<TravelOfferEvent> travelOfferEvent;
 
@@ -0,0 +1,104 @@
+package eu.netmobiel.planner.util;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.MultiPoint;
+
+import eu.netmobiel.commons.util.GeometryHelper;
+import eu.netmobiel.planner.model.AbsoluteDirection;
+import eu.netmobiel.planner.model.GuideStep;
+import eu.netmobiel.planner.model.RelativeDirection;
+
+public class LegRouteCodecTest {
+
+	private static MultiPoint createGeometry() {
+		return GeometryHelper.createMultiPoint(new Coordinate[] {
+				new Coordinate(6.519542, 52.004485),
+				new Coordinate(6.51961, 52.00452),
+				new Coordinate(6.45004, 52.081233),
+				new Coordinate(-0.127758, 51.507351)
+		});
+	}
+
+	private static List<GuideStep> createGuideSteps() {
+		List<GuideStep> steps = new ArrayList<>();
+		GuideStep step1 = new GuideStep(6.519542, 52.004485, "Kerkstraat");
+		step1.setDistance(120);
+		step1.setRelativeDirection(RelativeDirection.DEPART);
+		step1.setAbsoluteDirection(AbsoluteDirection.NORTHEAST);
+		steps.add(step1);
+		GuideStep step2 = new GuideStep();
+		step2.setName("Rotonde Ruurloseweg");
+		step2.setRelativeDirection(RelativeDirection.CIRCLE_CLOCKWISE);
+		step2.setExit("2");
+		step2.setStayOn(true);
+		step2.setArea(null);
+		step2.setBogusName(false);
+		steps.add(step2);
+		GuideStep step3 = new GuideStep(6.45004, 52.081233, null);
+		step3.setDistance(0);
+		steps.add(step3);
+		return steps;
+	}
+
+	private static void assertStepEquals(GuideStep expected, GuideStep actual) {
+		assertEquals(expected.getLatitude(), actual.getLatitude());
+		assertEquals(expected.getLongitude(), actual.getLongitude());
+		assertEquals(expected.getName(), actual.getName());
+		assertEquals(expected.getDistance(), actual.getDistance());
+		assertEquals(expected.getRelativeDirection(), actual.getRelativeDirection());
+		assertEquals(expected.getAbsoluteDirection(), actual.getAbsoluteDirection());
+		assertEquals(expected.getExit(), actual.getExit());
+		assertEquals(expected.getStayOn(), actual.getStayOn());
+		assertEquals(expected.getArea(), actual.getArea());
+		assertEquals(expected.getBogusName(), actual.getBogusName());
+	}
+
+	@Test
+	public void testRoundTrip() {
+		MultiPoint geometry = createGeometry();
+		List<GuideStep> steps = createGuideSteps();
+		byte[] data = LegRouteCodec.encode(geometry, steps);
+		assertEquals(LegRouteCodec.VERSION_1, data[0]);
+		MultiPoint decodedGeometry = LegRouteCodec.decodeGeometry(data);
+		assertEquals(geometry.getNumPoints(), decodedGeometry.getNumPoints());
+		for (int i = 0; i < geometry.getCoordinates().length; i++) {
+			assertEquals(geometry.getCoordinates()[i].x, decodedGeometry.getCoordinates()[i].x, 0.0);
+			assertEquals(geometry.getCoordinates()[i].y, decodedGeometry.getCoordinates()[i].y, 0.0);
+		}
+		List<GuideStep> decodedSteps = LegRouteCodec.decodeGuideSteps(data);
+		assertEquals(steps.size(), decodedSteps.size());
+		for (int i = 0; i < steps.size(); i++) {
+			assertStepEquals(steps.get(i), decodedSteps.get(i));
+		}
+		// The encoding is stable, otherwise each flush would update the leg 
+		assertArrayEquals(data, LegRouteCodec.encode(decodedGeometry, decodedSteps));
+	}
+
+	@Test
+	public void testEmpty() {
+		assertNull(LegRouteCodec.encode(null, null));
+		assertNull(LegRouteCodec.encode(null, new ArrayList<>()));
+		assertNull(LegRouteCodec.decodeGeometry(null));
+		assertTrue(LegRouteCodec.decodeGuideSteps(null).isEmpty());
+		byte[] data = LegRouteCodec.encode(null, createGuideSteps());
+		assertNull(LegRouteCodec.decodeGeometry(data));
+		assertEquals(3, LegRouteCodec.decodeGuideSteps(data).size());
+		data = LegRouteCodec.encode(createGeometry(), null);
+		assertEquals(4, LegRouteCodec.decodeGeometry(data).getNumPoints());
+		assertTrue(LegRouteCodec.decodeGuideSteps(data).isEmpty());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testUnknownVersion() {
+		byte[] data = LegRouteCodec.encode(createGeometry(), null);
+		data[0] = 99;
+		LegRouteCodec.decodeGeometry(data);
+	}
+}
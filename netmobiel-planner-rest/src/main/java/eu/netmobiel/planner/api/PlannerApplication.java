@@ -39,6 +39,7 @@ import eu.netmobiel.commons.jaxrs.WebApplicationExceptionMapper;
 import eu.netmobiel.planner.api.resource.MaintenanceResource;
 import eu.netmobiel.planner.api.resource.PlansResource;
 import eu.netmobiel.planner.api.resource.SearchResource;
+import eu.netmobiel.planner.api.resource.SearchStreamResource;
 import eu.netmobiel.planner.api.resource.ShoutOutsResource;
 import eu.netmobiel.planner.api.resource.TestsResource;
 import eu.netmobiel.planner.api.resource.TripsResource;
@@ -84,6 +85,7 @@ public class PlannerApplication extends Application {
         resources.add(MaintenanceResource.class);
         resources.add(PlansResource.class);
         resources.add(SearchResource.class);
+        resources.add(SearchStreamResource.class);
         resources.add(ShoutOutsResource.class);
         resources.add(TestsResource.class);
         resources.add(TripsResource.class);
@@ -2,13 +2,22 @@ package eu.netmobiel.planner.api.resource;
 
 import java.time.Instant;
 import java.time.OffsetDateTime;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.stream.Collectors;
 
 import javax.servlet.http.HttpServletRequest;
+import javax.ws.rs.BadRequestException;
 
 import com.google.common.base.Objects;
 
 import eu.netmobiel.commons.model.CallingContext;
+import eu.netmobiel.commons.model.GeoLocation;
+import eu.netmobiel.planner.model.PlanType;
 import eu.netmobiel.planner.model.PlannerUser;
+import eu.netmobiel.planner.model.TraverseMode;
+import eu.netmobiel.planner.model.TripPlan;
 
 /**
  * Base class for the planner resource handling. Contains a few convenience methods.
@@ -17,6 +26,7 @@ import eu.netmobiel.planner.model.PlannerUser;
  *
  */
 class PlannerResource {
+	private static final int DEFAULT_MAX_WALK_DISTANCE = 1000;
 	
     protected Instant toInstant(OffsetDateTime odt) {
 		return odt == null ? null : odt.toInstant();
@@ -29,4 +39,66 @@ class PlannerResource {
     	}
     }
     
+    /**
+     * Creates a regular plan from the parameters of a search. The parameters are validated and defaults are applied.
+     * @return the plan, ready for the planner.
+     * @throws BadRequestException if a parameter is missing or invalid. 
+     */
+    protected TripPlan createSearchPlan(String from, String to, OffsetDateTime travelTime, Boolean useAsArrivalTime,
+    		OffsetDateTime earliestDepartureTime, OffsetDateTime latestArrivalTime, String modalities, Integer maxWalkDistance, 
+    		Integer nrSeats, Integer maxTransfers, Boolean firstLegRideshare, Boolean lastLegRideshare) {
+    	TripPlan plan = new TripPlan();
+    	if (from == null || to == null) {
+    		throw new BadRequestException("Missing one or more mandatory parameters: from, to");
+    	}
+    	Set<TraverseMode> domainModalities = parseModalities(modalities);
+    	if (domainModalities == null) {
+    		domainModalities = new HashSet<>(Arrays.asList(new TraverseMode[] { TraverseMode.WALK, TraverseMode.RIDESHARE, TraverseMode.TRANSIT }));
+    	}
+    	if (maxWalkDistance == null) {
+    		maxWalkDistance = DEFAULT_MAX_WALK_DISTANCE;
+    	} else if (maxWalkDistance < 0) {
+			throw new BadRequestException("Constraint validation error: maxWalkDistance == null || maxWalkDistance >= 0");
+    	}
+    	if (nrSeats != null) {
+    		if (nrSeats < 1) {
+    			throw new BadRequestException("Constraint validation error: nrSeats == null || nrSeats >= 1");
+        	}
+    	} else {
+    		nrSeats = 1;
+    	}
+    	try {
+			plan.setFrom(GeoLocation.fromString(from));
+			plan.setTo(GeoLocation.fromString(to));
+		} catch (IllegalArgumentException ex) {
+			throw new BadRequestException("Input parameter has unrecognized format", ex);
+		}
+		plan.setTravelTime(toInstant(travelTime));
+		plan.setUseAsArrivalTime(Boolean.TRUE.equals(useAsArrivalTime));
+		plan.setEarliestDepartureTime(toInstant(earliestDepartureTime));
+		plan.setLatestArrivalTime(toInstant(latestArrivalTime));
+		plan.setTraverseModes(domainModalities);
+		plan.setMaxWalkDistance(maxWalkDistance);
+		plan.setNrSeats(nrSeats);
+		plan.setMaxTransfers(maxTransfers);
+		plan.setFirstLegRideshareAllowed(Boolean.TRUE.equals(firstLegRideshare));
+		plan.setLastLegRideshareAllowed(Boolean.TRUE.equals(lastLegRideshare));
+		plan.setPlanType(PlanType.REGULAR);
+    	return plan;
+    }
+
+    private static Set<TraverseMode> parseModalities(String modalities) {
+    	Set<TraverseMode> traverseModes = new HashSet<>();
+    	if (modalities != null && modalities.trim().length() > 0) {
+        	try {
+    	    	String modes[] = modalities.split("[,\\s]+");
+    	    	traverseModes = Arrays.stream(modes)
+    	    			.map(m -> TraverseMode.valueOf(m))
+    	    			.collect(Collectors.toSet());
+        	} catch (IllegalArgumentException ex) {
+        		throw new BadRequestException("Failed to parse modalities: " + modalities, ex);
+        	}
+    	}
+    	return traverseModes;
+    }
 }
@@ -0,0 +1,180 @@
+package eu.netmobiel.planner.api.resource;
+
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import javax.enterprise.context.RequestScoped;
+import javax.inject.Inject;
+import javax.ws.rs.Consumes;
+import javax.ws.rs.GET;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.GenericType;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.sse.OutboundSseEvent;
+import javax.ws.rs.sse.Sse;
+import javax.ws.rs.sse.SseEventSink;
+
+import org.slf4j.Logger;
+
+import eu.netmobiel.commons.exception.BusinessException;
+import eu.netmobiel.commons.model.CallingContext;
+import eu.netmobiel.commons.security.SecurityIdentity;
+import eu.netmobiel.commons.util.ExceptionUtil;
+import eu.netmobiel.planner.api.mapping.ItineraryMapper;
+import eu.netmobiel.planner.api.mapping.TripPlanMapper;
+import eu.netmobiel.planner.model.Itinerary;
+import eu.netmobiel.planner.model.PlannerUser;
+import eu.netmobiel.planner.model.TripPlan;
+import eu.netmobiel.planner.service.PlannerUserManager;
+import eu.netmobiel.planner.service.TripPlanManager;
+
+/**
+ * Progressive multi-modal search as server-sent events. The search is the same as the /search/plan (GET) and
+ * the /plans (POST) endpoints, but instead of waiting for the complete plan, the client receives an 'itineraries' event
+ * each time a part of the search (transit, rideshare only, rideshare as first leg, rideshare as last leg) completes.
+ * The itineraries in such an event are ranked already, but have no identity yet. The last event is always either
+ * a 'plan' event with the final plan, including all itineraries with their identity, or an 'error' event.
+ * The stream is not part of the OpenAPI specification, the generator cannot handle an event sink.
+ *
+ * @author Jaap Reitsma
+ *
+ */
+@Path("/search/stream")
+@RequestScoped
+public class SearchStreamResource extends PlannerResource {
+	public static final String ITINERARIES_EVENT = "itineraries";
+	public static final String PLAN_EVENT = "plan";
+	public static final String ERROR_EVENT = "error";
+
+	private static final GenericType<List<eu.netmobiel.planner.api.model.Itinerary>> ITINERARY_LIST_TYPE =
+			new GenericType<List<eu.netmobiel.planner.api.model.Itinerary>>() {};
+
+	@Inject
+    private Logger log;
+
+	@Inject
+    private TripPlanManager tripPlanManager;
+
+	@Inject
+    private PlannerUserManager userManager;
+
+    @Inject
+    private TripPlanMapper tripPlanMapper;
+
+    @Inject
+    private ItineraryMapper itineraryMapper;
+
+    @Inject
+	private SecurityIdentity securityIdentity;
+
+    @GET
+    @Path("/plan")
+    @Produces(MediaType.SERVER_SENT_EVENTS)
+	public void streamSearchPlan(
+			@QueryParam("from") String from,
+			@QueryParam("to") String to,
+			@QueryParam("travelTime") OffsetDateTime travelTime,
+			@QueryParam("useAsArrivalTime") Boolean useAsArrivalTime,
+			@QueryParam("earliestDepartureTime") OffsetDateTime earliestDepartureTime,
+			@QueryParam("latestArrivalTime") OffsetDateTime latestArrivalTime,
+			@QueryParam("modalities") String modalities,
+			@QueryParam("maxWalkDistance") Integer maxWalkDistance,
+			@QueryParam("nrSeats") Integer nrSeats,
+			@QueryParam("now") OffsetDateTime now,
+			@QueryParam("maxTransfers") Integer maxTransfers,
+			@QueryParam("firstLegRideshare") Boolean firstLegRideshare,
+			@QueryParam("lastLegRideshare") Boolean lastLegRideshare,
+			@Context SseEventSink sink,
+			@Context Sse sse) {
+    	TripPlan plan = createSearchPlan(from, to, travelTime, useAsArrivalTime, earliestDepartureTime, latestArrivalTime,
+    			modalities, maxWalkDistance, nrSeats, maxTransfers, firstLegRideshare, lastLegRideshare);
+    	streamPlan(plan, now != null ? toInstant(now) : Instant.now(), sink, sse);
+    }
+
+    @POST
+    @Path("/plan")
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces(MediaType.SERVER_SENT_EVENTS)
+	public void streamCreatePlan(eu.netmobiel.planner.api.model.TripPlan tripPlan, @Context SseEventSink sink, @Context Sse sse) {
+    	streamPlan(tripPlanMapper.map(tripPlan), Instant.now(), sink, sse);
+    }
+
+    private void streamPlan(TripPlan plan, Instant now, SseEventSink sink, Sse sse) {
+    	CallingContext<PlannerUser> context;
+		try {
+			context = userManager.findOrRegisterCallingContext(securityIdentity);
+		} catch (BusinessException ex) {
+			throw new WebApplicationException(ex);
+		}
+		// From here on the outcome is reported as an event
+    	try {
+    		TripPlan result = tripPlanManager.createAndReturnTripPlan(context.getCallingUser(), context.getEffectiveUser(), plan, now,
+    				its -> send(sink, createItinerariesEvent(sse, its)));
+    		// Never map the instance of the search itself: Serve a copy from the in-flight cache (or the database 
+    		// once written), sorted by score and with exactly the content that is written
+    		result = tripPlanManager.getTripPlan(result.getId());
+    		await(sink, sse.newEventBuilder()
+    				.name(PLAN_EVENT)
+    				.mediaType(MediaType.APPLICATION_JSON_TYPE)
+    				.data(eu.netmobiel.planner.api.model.TripPlan.class, tripPlanMapper.map(result))
+    				.build());
+		} catch (Exception ex) {
+			log.error("Error in progressive search: " + String.join("\n\t", ExceptionUtil.unwindException(ex)));
+			await(sink, sse.newEventBuilder()
+					.name(ERROR_EVENT)
+					.mediaType(MediaType.APPLICATION_JSON_TYPE)
+					.data(Map.class, Collections.singletonMap("message", ex.getMessage() != null ? ex.getMessage() : ex.toString()))
+					.build());
+		} finally {
+			sink.close();
+		}
+    }
+
+    private OutboundSseEvent createItinerariesEvent(Sse sse, List<Itinerary> itineraries) {
+    	return sse.newEventBuilder()
+    			.name(ITINERARIES_EVENT)
+    			.mediaType(MediaType.APPLICATION_JSON_TYPE)
+    			.data(ITINERARY_LIST_TYPE, itineraries.stream()
+    					.map(itineraryMapper::mapDetails)
+    					.collect(Collectors.toList()))
+    			.build();
+    }
+
+    /**
+     * Sends an intermediate event. A client that went away does not stop the search, the plan is still saved.
+     */
+    private void send(SseEventSink sink, OutboundSseEvent event) {
+    	if (sink.isClosed()) {
+    		return;
+    	}
+    	sink.send(event).exceptionally(ex -> {
+    		if (log.isDebugEnabled()) {
+    			log.debug("Client of progressive search is gone: " + ex.toString());
+    		}
+    		return null;
+    	});
+    }
+
+    /**
+     * Sends the final event and waits for its delivery before the sink is closed.
+     */
+    private void await(SseEventSink sink, OutboundSseEvent event) {
+    	if (sink.isClosed()) {
+    		return;
+    	}
+    	try {
+    		sink.send(event).toCompletableFuture().join();
+    	} catch (Exception ex) {
+			log.warn("Cannot send the final event of a progressive search: " + ex.toString());
+    	}
+    }
+}
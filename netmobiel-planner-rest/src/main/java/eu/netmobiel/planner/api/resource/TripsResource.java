@@ -121,7 +121,7 @@ public class TripsResource extends PlannerResource implements TripsApi {
 	@Override
 	public Response getTrips(String xDelegator, String userRef, String tripState, 
 			OffsetDateTime since, OffsetDateTime until, Boolean deletedToo, Boolean skipCancelled,
-			String sortDir, Integer maxResults, Integer offset) {
+			String sortDir, Integer maxResults, Integer offset, String after) {
     	Response rsp = null;
 		try {
 			CallingContext<PlannerUser> context = userManager.findOrRegisterCallingContext(securityIdentity);
@@ -134,7 +134,7 @@ public class TripsResource extends PlannerResource implements TripsApi {
 	    	}
 	    	allowAdminOrEffectiveUser(request, context, traveller);
 	    	TripFilter filter = new TripFilter(traveller, since, until, tripState, deletedToo, skipCancelled, sortDir);
-	    	Cursor cursor = new Cursor(maxResults, offset);
+	    	Cursor cursor = new Cursor(maxResults, offset, after);
 	    	PagedResult<Trip> results = tripManager.listTrips(filter, cursor);
 			rsp = Response.ok(pageMapper.mapMine(results)).build();
 		} catch (IllegalArgumentException e) {
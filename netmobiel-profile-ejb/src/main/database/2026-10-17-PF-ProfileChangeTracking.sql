@@ -0,0 +1,15 @@
+-- Profile Service: Track the modification of the profiles, to synchronize only the changed profiles with the other services.
+
+ALTER TABLE public.profile
+	ADD COLUMN modification_time timestamp without time zone
+;
+
+UPDATE public.profile SET modification_time = creation_time WHERE modification_time IS NULL;
+
+CREATE INDEX profile_modification_time_ix ON public.profile USING btree (modification_time);
+
+CREATE TABLE public.sync_watermark (
+    consumer character varying(32) NOT NULL,
+    watermark timestamp without time zone NOT NULL,
+    CONSTRAINT sync_watermark_pkey PRIMARY KEY (consumer)
+);
@@ -1,11 +1,17 @@
 package eu.netmobiel.profile.filter;
 
+import java.time.Instant;
+
 import eu.netmobiel.commons.filter.BaseFilter;
 import eu.netmobiel.profile.model.UserRole;
 
 public class ProfileFilter extends BaseFilter {
 	private String text;
 	private UserRole userRole;
+	/**
+	 * Select only the profiles modified at or after this time.
+	 */
+	private Instant modifiedSince;
 	
 	public ProfileFilter() {
 		// Constructor
@@ -37,6 +43,14 @@ public class ProfileFilter extends BaseFilter {
 		this.userRole = ur;
 	}
 
+	public Instant getModifiedSince() {
+		return modifiedSince;
+	}
+
+	public void setModifiedSince(Instant modifiedSince) {
+		this.modifiedSince = modifiedSince;
+	}
+
 	@Override
 	public String toString() {
 		StringBuilder builder = new StringBuilder();
@@ -50,6 +64,11 @@ public class ProfileFilter extends BaseFilter {
 			builder.append(userRole);
 			builder.append(" ");
 		}
+		if (modifiedSince != null) {
+			builder.append("ms=");
+			builder.append(modifiedSince);
+			builder.append(" ");
+		}
 		builder.append(super.toString());
 		return builder.toString();
 	}
@@ -24,6 +24,8 @@ import javax.persistence.ManyToOne;
 import javax.persistence.NamedEntityGraph;
 import javax.persistence.NamedEntityGraphs;
 import javax.persistence.OneToMany;
+import javax.persistence.PrePersist;
+import javax.persistence.PreUpdate;
 import javax.persistence.SequenceGenerator;
 import javax.persistence.Table;
 import javax.persistence.Transient;
@@ -172,6 +174,12 @@ public class Profile extends User  {
     @Column(name = "creation_time", updatable = false)
     private Instant creationTime;
 
+	/**
+	 * The time of the last modification of the profile row. Used to synchronize the changed profiles only.
+	 */
+    @Column(name = "modification_time")
+    private Instant modificationTime;
+
 	public Profile() {
 		this(null);
     }
@@ -338,6 +346,20 @@ public class Profile extends User  {
 		this.creationTime = creationTime;
 	}
 
+	public Instant getModificationTime() {
+		return modificationTime;
+	}
+
+	public void setModificationTime(Instant modificationTime) {
+		this.modificationTime = modificationTime;
+	}
+
+	@PrePersist
+	@PreUpdate
+	void onUpdateOrPersist() {
+		this.modificationTime = Instant.now();
+	}
+
 	public Set<Place> getPlaces() {
 		if (places == null) {
 			places = new HashSet<>();
@@ -4,19 +4,25 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.Instant;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
 import javax.enterprise.context.ApplicationScoped;
 import javax.inject.Inject;
 import javax.ws.rs.core.Response;
 
+import org.jboss.resteasy.client.jaxrs.ResteasyClientBuilder;
 import org.keycloak.OAuth2Constants;
 import org.keycloak.admin.client.CreatedResponseUtil;
 import org.keycloak.admin.client.Keycloak;
@@ -41,8 +47,34 @@ import eu.netmobiel.commons.model.PagedResult;
 import eu.netmobiel.commons.security.SecurityIdentity;
 import eu.netmobiel.commons.util.ExceptionUtil;
 
+/**
+ * Access to the user administration of Keycloak through the admin client. A single admin client is shared by 
+ * all calls: The client has a pool of connections and caches the access token of the service account. 
+ * The token is renewed before it expires. The users retrieved by id or email address are cached shortly. 
+ * 
+ * @author Jaap Reitsma
+ *
+ */
 @ApplicationScoped
 public class KeycloakDao {
+	/**
+	 * The maximum number of concurrent connections to Keycloak. 
+	 */
+	private static final int CONNECTION_POOL_SIZE = 20;
+	/**
+	 * The access token is renewed when the remaining validity drops below this value. Requests
+	 * will then never fail because the token expires in transit.
+	 */
+	private static final long TOKEN_MIN_VALIDITY_SECONDS = 60;
+	/**
+	 * The time to live of a cached user.
+	 */
+	private static final Duration USER_CACHE_TTL = Duration.ofSeconds(60);
+	/**
+	 * The maximum number of users in the cache. When exceeded the expired entries are removed, 
+	 * and if that does not help, the cache is emptied. 
+	 */
+	private static final int USER_CACHE_MAX_SIZE = 1000;
 
 	@SuppressWarnings("unused")
 	@Inject
@@ -60,7 +92,30 @@ public class KeycloakDao {
     private AdapterConfig profileServiceAccount;
 
     /**
-     * Initializes the profile service account credentials. 
+     * The shared admin client. The client is thread-safe.
+     */
+    private Keycloak keycloak;
+
+    private static class CachedUser {
+    	final NetMobielUser user;
+    	final Instant expirationTime;
+
+    	CachedUser(NetMobielUser user) {
+    		this.user = user;
+    		this.expirationTime = Instant.now().plus(USER_CACHE_TTL);
+    	}
+
+    	boolean isExpired(Instant now) {
+    		return now.isAfter(expirationTime);
+    	}
+    }
+
+    private final Map<String, CachedUser> usersById = new ConcurrentHashMap<>();
+    private final Map<String, CachedUser> usersByEmail = new ConcurrentHashMap<>();
+
+    /**
+     * Initializes the profile service account credentials and the admin client. 
+     * The access token is acquired on first use. 
      */
     @PostConstruct
     void initialize() {
@@ -69,16 +124,68 @@ public class KeycloakDao {
     	} catch (IOException ex) {
     		throw new SystemException("Unable to read profile service account configuration", ex);
 		}
-    }
-
-	private Keycloak createKeycloakClient() {
-		return KeycloakBuilder.builder()
+    	keycloak = KeycloakBuilder.builder()
 				.serverUrl(profileServiceAccount.getAuthServerUrl())
 				.realm(profileServiceAccount.getRealm())
 				.clientId(profileServiceAccount.getResource())
 				.clientSecret(profileServiceAccount.getCredentials().get("secret").toString())
 				.grantType(OAuth2Constants.CLIENT_CREDENTIALS)
+				.resteasyClient(new ResteasyClientBuilder()
+						.connectionPoolSize(CONNECTION_POOL_SIZE)
+						.maxPooledPerRoute(CONNECTION_POOL_SIZE)
+						.connectionCheckoutTimeout(5, TimeUnit.SECONDS)
+						.build())
 				.build();
+    	keycloak.tokenManager().setMinTokenValidity(TOKEN_MIN_VALIDITY_SECONDS);
+    }
+
+    @PreDestroy
+    void cleanup() {
+    	if (keycloak != null) {
+    		keycloak.close();
+    	}
+    }
+
+	private RealmResource realm() {
+		return keycloak.realm(profileServiceAccount.getRealm());
+	}
+
+	private Optional<NetMobielUser> lookupCache(Map<String, CachedUser> cache, String key) {
+		CachedUser cu = cache.get(key);
+		if (cu == null) {
+			return Optional.empty();
+		}
+		if (cu.isExpired(Instant.now())) {
+			cache.remove(key, cu);
+			return Optional.empty();
+		}
+		return Optional.of(cu.user);
+	}
+
+	private void cache(NetMobielUser user) {
+		if (usersById.size() >= USER_CACHE_MAX_SIZE) {
+			Instant now = Instant.now();
+			usersById.values().removeIf(cu -> cu.isExpired(now));
+			usersByEmail.values().removeIf(cu -> cu.isExpired(now));
+			if (usersById.size() >= USER_CACHE_MAX_SIZE) {
+				usersById.clear();
+				usersByEmail.clear();
+			}
+		}
+		CachedUser cu = new CachedUser(user);
+		usersById.put(user.getManagedIdentity(), cu);
+		if (user.getEmail() != null) {
+			usersByEmail.put(user.getEmail(), cu);
+		}
+	}
+
+	/**
+	 * Removes a user from the cache. Called on every modification of the user.
+	 * @param managedIdentity the managed identity of the user.
+	 */
+	private void evict(String managedIdentity) {
+		usersById.remove(managedIdentity);
+		usersByEmail.values().removeIf(cu -> managedIdentity.equals(cu.user.getManagedIdentity()));
 	}
 
 	/**
@@ -89,99 +196,91 @@ public class KeycloakDao {
 	 */
 	public String addUser(NetMobielUser user) throws BusinessException {
 		String managedIdentity = null;
-		try (Keycloak kc = createKeycloakClient()) {
-			RealmResource realm = kc.realm(profileServiceAccount.getRealm());
-			UserRepresentation urep = new UserRepresentation();
-			urep.setEmail(user.getEmail());
-			urep.setFirstName(user.getGivenName());
-			urep.setLastName(user.getFamilyName());
-			urep.setEnabled(true);
-			try (Response response = realm.users().create(urep)) {
-//				if (log.isDebugEnabled()) {
-//					log.debug(String.format("AddUser: Response is %s %s", response.getStatus(), response.getStatusInfo()));
-//				}
-				if (response.getStatusInfo() == Response.Status.CREATED) {
-					managedIdentity = CreatedResponseUtil.getCreatedId(response);
-				} else if (response.getStatusInfo() == Response.Status.CONFLICT) {
-					ErrorRepresentation error = response.readEntity(ErrorRepresentation.class);
-					throw new DuplicateEntryException(error.getErrorMessage());
-				} else {
-					ExceptionUtil.throwExceptionFromResponse("Error adding user to Keycloak", response);
-				}
+		UserRepresentation urep = new UserRepresentation();
+		urep.setEmail(user.getEmail());
+		urep.setFirstName(user.getGivenName());
+		urep.setLastName(user.getFamilyName());
+		urep.setEnabled(true);
+		try (Response response = realm().users().create(urep)) {
+//			if (log.isDebugEnabled()) {
+//				log.debug(String.format("AddUser: Response is %s %s", response.getStatus(), response.getStatusInfo()));
+//			}
+			if (response.getStatusInfo() == Response.Status.CREATED) {
+				managedIdentity = CreatedResponseUtil.getCreatedId(response);
+			} else if (response.getStatusInfo() == Response.Status.CONFLICT) {
+				ErrorRepresentation error = response.readEntity(ErrorRepresentation.class);
+				throw new DuplicateEntryException(error.getErrorMessage());
+			} else {
+				ExceptionUtil.throwExceptionFromResponse("Error adding user to Keycloak", response);
 			}
 		}
 		return managedIdentity;
 	}
 
 	public Optional<NetMobielUser> findUserByEmail(String email) throws BusinessException {
+		Optional<NetMobielUser> cachedUser = lookupCache(usersByEmail, email);
+		if (cachedUser.isPresent()) {
+			return cachedUser;
+		}
 		NetMobielUserImpl user = null;
-		try (Keycloak kc = createKeycloakClient()) {
-			RealmResource realm = kc.realm(profileServiceAccount.getRealm());
-			Optional<UserRepresentation> existingUser = Optional.empty(); 
-			existingUser = realm.users().search(email).stream()
-				.filter(ur -> email.equals(ur.getEmail()))
-				.findFirst();
-			if (existingUser.isPresent()) {
-				UserRepresentation urep = existingUser.get();
-				user = new NetMobielUserImpl(urep.getId(), urep.getFirstName(), urep.getLastName(), urep.getEmail());
-			}
+		Optional<UserRepresentation> existingUser = realm().users().search(email).stream()
+			.filter(ur -> email.equals(ur.getEmail()))
+			.findFirst();
+		if (existingUser.isPresent()) {
+			UserRepresentation urep = existingUser.get();
+			user = new NetMobielUserImpl(urep.getId(), urep.getFirstName(), urep.getLastName(), urep.getEmail());
+			cache(user);
 		}
 		return Optional.ofNullable(user); 
 	}
 
 	public void removeUser(String managedIdentity) throws BusinessException {
-		try (Keycloak kc = createKeycloakClient()) {
-			RealmResource realm = kc.realm(profileServiceAccount.getRealm());
-			try (Response response = realm.users().delete(managedIdentity)) {
-	//			if (log.isDebugEnabled()) {
-	//				log.debug(String.format("RemoveUser: Response is %s %s", response.getStatus(), response.getStatusInfo()));
-	//			}
-				if (response.getStatusInfo() != Response.Status.NO_CONTENT) {
-					ExceptionUtil.throwExceptionFromResponse("Error removing user from Keycloak", response);
-				}
+		evict(managedIdentity);
+		try (Response response = realm().users().delete(managedIdentity)) {
+//			if (log.isDebugEnabled()) {
+//				log.debug(String.format("RemoveUser: Response is %s %s", response.getStatus(), response.getStatusInfo()));
+//			}
+			if (response.getStatusInfo() != Response.Status.NO_CONTENT) {
+				ExceptionUtil.throwExceptionFromResponse("Error removing user from Keycloak", response);
 			}
 		}
 	}
 
 	public void disableUser(String managedIdentity) throws BusinessException {
-		try (Keycloak kc = createKeycloakClient()) {
-			RealmResource realm = kc.realm(profileServiceAccount.getRealm());
-			UserResource ur = realm.users().get(managedIdentity);
-			if (ur != null) {
-				UserRepresentation urep = ur.toRepresentation();
-				urep.setEnabled(false);
-				ur.update(urep);
-			} else {
-				throw new NotFoundException("No such user: " + managedIdentity);
-			}
+		evict(managedIdentity);
+		UserResource ur = realm().users().get(managedIdentity);
+		if (ur != null) {
+			UserRepresentation urep = ur.toRepresentation();
+			urep.setEnabled(false);
+			ur.update(urep);
+		} else {
+			throw new NotFoundException("No such user: " + managedIdentity);
 		}
 	}
 
 	public void verifyUserByEmail(String managedIdentity) {
-		try (Keycloak kc = createKeycloakClient()) {
-			RealmResource realm = kc.realm(profileServiceAccount.getRealm());
-			UserResource ur = realm.users().get(managedIdentity);
-			// We don't want to include the keycloak-server-spi jar. Use the String instead.
-			ur.executeActionsEmail(List.of("VERIFY_EMAIL"));
-		}
+		UserResource ur = realm().users().get(managedIdentity);
+		// We don't want to include the keycloak-server-spi jar. Use the String instead.
+		ur.executeActionsEmail(List.of("VERIFY_EMAIL"));
 	}
 
 	public void forceUpdatePassword(String managedIdentity) {
-		try (Keycloak kc = createKeycloakClient()) {
-			RealmResource realm = kc.realm(profileServiceAccount.getRealm());
-			UserResource ur = realm.users().get(managedIdentity);
-			ur.executeActionsEmail(List.of("UPDATE_PASSWORD"));
-		}
+		UserResource ur = realm().users().get(managedIdentity);
+		ur.executeActionsEmail(List.of("UPDATE_PASSWORD"));
 	}
 
 	public Optional<NetMobielUser> getUser(String managedIdentity) throws BadRequestException {
+		Optional<NetMobielUser> cachedUser = lookupCache(usersById, managedIdentity);
+		if (cachedUser.isPresent()) {
+			return cachedUser;
+		}
 		NetMobielUserImpl user = null;
-		try (Keycloak kc = createKeycloakClient()) {
-			RealmResource realm = kc.realm(profileServiceAccount.getRealm());
-			UserResource ur = realm.users().get(managedIdentity);
+		try {
+			UserResource ur = realm().users().get(managedIdentity);
 			if (ur != null) {
 				UserRepresentation urep = ur.toRepresentation();
 				user = new NetMobielUserImpl(urep.getId(), urep.getFirstName(), urep.getLastName(), urep.getEmail());
+				cache(user);
 			}
 		} catch (javax.ws.rs.NotFoundException ex) {
 			// Ignore
@@ -193,16 +292,14 @@ public class KeycloakDao {
 		cursor.validate(100, 0);
 		List<NetMobielUser> users = null;
 		Long totalcount = null;
-		try (Keycloak kc = createKeycloakClient()) {
-			RealmResource realm = kc.realm(profileServiceAccount.getRealm());
-			if (cursor.isCountingQuery()) {
-				totalcount = realm.users().count().longValue();
-			} else {
-				users = realm.users().list(cursor.getOffset(), cursor.getMaxResults())
-						.stream()
-						.map(ur -> new NetMobielUserImpl(ur.getId(), ur.getFirstName(), ur.getLastName(), ur.getEmail()))
-						.collect(Collectors.toList());
-			}
+		RealmResource realm = realm();
+		if (cursor.isCountingQuery()) {
+			totalcount = realm.users().count().longValue();
+		} else {
+			users = realm.users().list(cursor.getOffset(), cursor.getMaxResults())
+					.stream()
+					.map(ur -> new NetMobielUserImpl(ur.getId(), ur.getFirstName(), ur.getLastName(), ur.getEmail()))
+					.collect(Collectors.toList());
 		}
 		return new PagedResult<>(users, cursor, totalcount);
 	}
@@ -213,57 +310,49 @@ public class KeycloakDao {
 	 * @throws BusinessException 
 	 */
 	public void updateUser(NetMobielUser user) {
-		try (Keycloak kc = createKeycloakClient()) {
-			RealmResource realm = kc.realm(profileServiceAccount.getRealm());
-			UserResource ur = realm.users().get(user.getManagedIdentity());
-			if (ur != null) {
-				UserRepresentation urep = ur.toRepresentation();
-				urep.setEnabled(true);
-				urep.setFirstName(user.getGivenName());
-				urep.setLastName(user.getFamilyName());
-				urep.setEmail(user.getEmail());
-				ur.update(urep);
-			}
+		evict(user.getManagedIdentity());
+		UserResource ur = realm().users().get(user.getManagedIdentity());
+		if (ur != null) {
+			UserRepresentation urep = ur.toRepresentation();
+			urep.setEnabled(true);
+			urep.setFirstName(user.getGivenName());
+			urep.setLastName(user.getFamilyName());
+			urep.setEmail(user.getEmail());
+			ur.update(urep);
 		}
 	}
 	
 	public void addDelegator(NetMobielUser delegate, NetMobielUser delegator) {
-		try (Keycloak kc = createKeycloakClient()) {
-			RealmResource realm = kc.realm(profileServiceAccount.getRealm());
-			UserResource ur = realm.users().get(delegate.getManagedIdentity());
-			if (ur != null) {
-				UserRepresentation urep = ur.toRepresentation();
-				Map<String, List<String>> attribs = urep.getAttributes();
-				if (attribs == null) {
-					attribs = new HashMap<>();
-					urep.setAttributes(attribs);
-				}
-    			String key = SecurityIdentity.getDelegatorsClaimName(applicationStage); 
-				attribs.computeIfAbsent(key, k -> new ArrayList<>());
-				List<String> delegators = attribs.get(key);
-				if (! delegators.contains(delegator.getManagedIdentity())) {
-					delegators.add(delegator.getManagedIdentity());
-					ur.update(urep);
-				}
+		UserResource ur = realm().users().get(delegate.getManagedIdentity());
+		if (ur != null) {
+			UserRepresentation urep = ur.toRepresentation();
+			Map<String, List<String>> attribs = urep.getAttributes();
+			if (attribs == null) {
+				attribs = new HashMap<>();
+				urep.setAttributes(attribs);
+			}
+			String key = SecurityIdentity.getDelegatorsClaimName(applicationStage); 
+			attribs.computeIfAbsent(key, k -> new ArrayList<>());
+			List<String> delegators = attribs.get(key);
+			if (! delegators.contains(delegator.getManagedIdentity())) {
+				delegators.add(delegator.getManagedIdentity());
+				ur.update(urep);
 			}
 		}
 	}
 
 	public void removeDelegator(NetMobielUser delegate, NetMobielUser delegator) {
-		try (Keycloak kc = createKeycloakClient()) {
-			RealmResource realm = kc.realm(profileServiceAccount.getRealm());
-			UserResource ur = realm.users().get(delegate.getManagedIdentity());
-			if (ur != null) {
-				UserRepresentation urep = ur.toRepresentation();
-				Map<String, List<String>> attribs = urep.getAttributes();
-				if (attribs != null) {
-	    			String key = SecurityIdentity.getDelegatorsClaimName(applicationStage); 
-					attribs.computeIfAbsent(key, k -> new ArrayList<>());
-					List<String> delegators = attribs.get(key);
-					if (delegators != null && delegators.contains(delegator.getManagedIdentity())) {
-						delegators.remove(delegator.getManagedIdentity());
-						ur.update(urep);
-					}
+		UserResource ur = realm().users().get(delegate.getManagedIdentity());
+		if (ur != null) {
+			UserRepresentation urep = ur.toRepresentation();
+			Map<String, List<String>> attribs = urep.getAttributes();
+			if (attribs != null) {
+    			String key = SecurityIdentity.getDelegatorsClaimName(applicationStage); 
+				attribs.computeIfAbsent(key, k -> new ArrayList<>());
+				List<String> delegators = attribs.get(key);
+				if (delegators != null && delegators.contains(delegator.getManagedIdentity())) {
+					delegators.remove(delegator.getManagedIdentity());
+					ur.update(urep);
 				}
 			}
 		}
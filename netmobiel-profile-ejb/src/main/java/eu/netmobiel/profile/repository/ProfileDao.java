@@ -87,6 +87,9 @@ public class ProfileDao extends UserDao<Profile> {
 		        predicates.add(rolePred);
         	}
         }        
+        if (filter.getModifiedSince() != null) {
+	        predicates.add(cb.greaterThanOrEqualTo(profile.get(Profile_.modificationTime), filter.getModifiedSince()));
+        }
         cq.where(cb.and(predicates.toArray(new Predicate[predicates.size()])));
         Long totalCount = null;
         List<Long> results = null;
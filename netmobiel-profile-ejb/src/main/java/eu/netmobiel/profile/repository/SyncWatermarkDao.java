@@ -0,0 +1,54 @@
+package eu.netmobiel.profile.repository;
+
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.List;
+import java.util.Optional;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import javax.persistence.EntityManager;
+
+import eu.netmobiel.profile.annotation.ProfileDatabase;
+
+/**
+ * The watermarks of the consumers of the profile changes. A consumer, e.g. the user synchronization of the overseer, 
+ * processes only the profiles modified since its watermark.
+ * 
+ * This DAO uses native PostgreSQL SQL.
+ *
+ * @author Jaap Reitsma
+ *
+ */
+@ApplicationScoped
+public class SyncWatermarkDao {
+
+	@Inject @ProfileDatabase
+    private EntityManager em;
+
+	/**
+	 * Retrieves the watermark of a consumer.
+	 * @param consumer the name of the consumer.
+	 * @return the watermark, if any. 
+	 */
+	public Optional<Instant> findWatermark(String consumer) {
+		@SuppressWarnings("unchecked")
+		List<Timestamp> results = em.createNativeQuery("select watermark from sync_watermark where consumer = :consumer")
+				.setParameter("consumer", consumer)
+				.getResultList();
+		return results.stream().findFirst().map(Timestamp::toInstant);
+	}
+
+	/**
+	 * Sets the watermark of a consumer.
+	 * @param consumer the name of the consumer.
+	 * @param watermark the new watermark.
+	 */
+	public void saveWatermark(String consumer, Instant watermark) {
+		em.createNativeQuery("insert into sync_watermark (consumer, watermark) values (:consumer, :watermark) " + 
+					"on conflict (consumer) do update set watermark = excluded.watermark")
+				.setParameter("consumer", consumer)
+				.setParameter("watermark", Timestamp.from(watermark))
+				.executeUpdate();
+	}
+}
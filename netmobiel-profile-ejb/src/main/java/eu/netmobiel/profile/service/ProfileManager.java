@@ -60,6 +60,7 @@ import eu.netmobiel.profile.repository.UserEventDao;
 import eu.netmobiel.profile.repository.ProfileDao;
 import eu.netmobiel.profile.repository.RidesharePreferencesDao;
 import eu.netmobiel.profile.repository.SearchPreferencesDao;
+import eu.netmobiel.profile.repository.SyncWatermarkDao;
 import eu.netmobiel.profile.repository.UserSessionDao;
 
 /**
@@ -119,6 +120,9 @@ public class ProfileManager {
     @Inject
     private UserEventDao userEventDao;
 
+    @Inject
+    private SyncWatermarkDao syncWatermarkDao;
+
     public CallingContext<Profile> findCallingContext(SecurityIdentity securityIdentity) throws NotFoundException {
 		Profile caller = getFlatProfileByManagedIdentity(securityIdentity.getPrincipal().getName());
 		Profile effectiveUser = caller;
@@ -146,6 +150,25 @@ public class ProfileManager {
     	return new PagedResult<>(results, cursor, prs.getTotalCount());
 	}
 
+    /**
+     * Retrieves the synchronization watermark of a consumer of the profile changes.
+     * @param consumer the name of the consumer.
+     * @return the time of the last synchronization, if any. 
+     */
+    public Optional<Instant> getSyncWatermark(String consumer) {
+    	return syncWatermarkDao.findWatermark(consumer);
+    }
+
+    /**
+     * Sets the synchronization watermark of a consumer of the profile changes. The next synchronization
+     * will include the profiles modified at or after the watermark (see the profile filter).
+     * @param consumer the name of the consumer.
+     * @param watermark the new watermark.
+     */
+    public void updateSyncWatermark(String consumer, Instant watermark) {
+    	syncWatermarkDao.saveWatermark(consumer, watermark);
+    }
+
     /**
      * Creates a new Keycloak account or attaches an existing Keycloak account (lookup by email) to the given profile.
      * In case of an existing account the attributes are copied into the profile.
@@ -0,0 +1,19 @@
+-- Rideshare - Persistent level of the postal code cache, keyed by the rounded coordinates (lat,lon), see PostalCodeCache
+
+CREATE TABLE public.postal_code_cache (
+    location_key character varying(32) NOT NULL,
+    postal_code character varying(6) NOT NULL,
+    created_time timestamp without time zone NOT NULL,
+    CONSTRAINT postal_code_cache_pkey PRIMARY KEY (location_key)
+);
+
+-- Seed the cache with the postal codes already known
+INSERT INTO public.postal_code_cache (location_key, postal_code, created_time)
+    SELECT DISTINCT ON (k.location_key) k.location_key, k.postal_code, now() FROM (
+        SELECT to_char(ST_Y(from_point), 'FM990.0000') || ',' || to_char(ST_X(from_point), 'FM990.0000') AS location_key, departure_postal_code AS postal_code
+        FROM public.ride WHERE departure_postal_code IS NOT NULL AND departure_postal_code <> '??????'
+        UNION ALL
+        SELECT to_char(ST_Y(to_point), 'FM990.0000') || ',' || to_char(ST_X(to_point), 'FM990.0000'), arrival_postal_code
+        FROM public.ride WHERE arrival_postal_code IS NOT NULL AND arrival_postal_code <> '??????'
+    ) k
+ON CONFLICT (location_key) DO NOTHING;
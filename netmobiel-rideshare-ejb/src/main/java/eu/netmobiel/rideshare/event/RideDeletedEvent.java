@@ -0,0 +1,21 @@
+package eu.netmobiel.rideshare.event;
+
+import java.io.Serializable;
+
+import eu.netmobiel.rideshare.model.Ride;
+
+
+/**
+ * This event is issued when a ride has been removed from the database (hard delete).  
+ * 
+ * @author Jaap Reitsma
+ *
+ */
+public class RideDeletedEvent extends BasicRideEvent implements Serializable {
+
+	private static final long serialVersionUID = -2389563358406718742L;
+
+    public RideDeletedEvent(Ride aRide) {
+    	super(aRide);
+    }
+}
@@ -0,0 +1,65 @@
+package eu.netmobiel.rideshare.model;
+
+import java.time.Instant;
+
+import com.vividsolutions.jts.geom.Geometry;
+
+/**
+ * The search attributes of a ride as kept in the in-memory ride index.
+ * The entry is immutable, a change of a ride replaces the entry.
+ *
+ * @author Jaap Reitsma
+ *
+ */
+public class RideIndexEntry {
+	private final Long rideId;
+	private final Geometry shareEligibility;
+	private final Integer carthesianBearing;
+	private final Instant departureTime;
+	private final Instant arrivalTime;
+	private final Long driverId;
+
+	public RideIndexEntry(Long aRideId, Geometry aShareEligibility, Integer aCarthesianBearing,
+			Instant aDepartureTime, Instant anArrivalTime, Long aDriverId) {
+		this.rideId = aRideId;
+		this.shareEligibility = aShareEligibility;
+		this.carthesianBearing = aCarthesianBearing;
+		this.departureTime = aDepartureTime;
+		this.arrivalTime = anArrivalTime;
+		this.driverId = aDriverId;
+	}
+
+	public RideIndexEntry(Ride ride) {
+		this(ride.getId(), ride.getShareEligibility(), ride.getCarthesianBearing(),
+				ride.getDepartureTime(), ride.getArrivalTime(), ride.getDriver() != null ? ride.getDriver().getId() : null);
+	}
+
+	public Long getRideId() {
+		return rideId;
+	}
+
+	public Geometry getShareEligibility() {
+		return shareEligibility;
+	}
+
+	public Integer getCarthesianBearing() {
+		return carthesianBearing;
+	}
+
+	public Instant getDepartureTime() {
+		return departureTime;
+	}
+
+	public Instant getArrivalTime() {
+		return arrivalTime;
+	}
+
+	public Long getDriverId() {
+		return driverId;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("RideIndexEntry [%s %s %s]", rideId, departureTime, arrivalTime);
+	}
+}
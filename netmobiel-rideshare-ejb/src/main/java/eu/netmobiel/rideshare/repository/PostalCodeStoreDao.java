@@ -0,0 +1,27 @@
+package eu.netmobiel.rideshare.repository;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import javax.persistence.EntityManager;
+
+import eu.netmobiel.here.search.AbstractPostalCodeStore;
+import eu.netmobiel.here.search.PostalCodeCache;
+import eu.netmobiel.rideshare.annotation.RideshareDatabase;
+
+/**
+ * The persistent level of the postal code cache of the rideshare service, see {@link PostalCodeCache}. 
+ *
+ * @author Jaap Reitsma
+ *
+ */
+@ApplicationScoped
+public class PostalCodeStoreDao extends AbstractPostalCodeStore {
+
+    @Inject @RideshareDatabase
+    private EntityManager em;
+
+	@Override
+	protected EntityManager getEntityManager() {
+		return em;
+	}
+}
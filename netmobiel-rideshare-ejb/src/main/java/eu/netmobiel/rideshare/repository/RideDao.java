@@ -33,6 +33,7 @@ import eu.netmobiel.rideshare.model.Booking;
 import eu.netmobiel.rideshare.model.Booking_;
 import eu.netmobiel.rideshare.model.Ride;
 import eu.netmobiel.rideshare.model.RideBase_;
+import eu.netmobiel.rideshare.model.RideIndexEntry;
 import eu.netmobiel.rideshare.model.RideState;
 import eu.netmobiel.rideshare.model.RideTemplate;
 import eu.netmobiel.rideshare.model.Ride_;
@@ -49,6 +50,9 @@ public class RideDao extends AbstractDao<Ride, Long> {
     @Inject @RideshareDatabase
     private EntityManager em;
 
+    @Inject
+    private RideIndex rideIndex;
+
     public RideDao() {
 		super(Ride.class);
 	}
@@ -138,6 +142,10 @@ public class RideDao extends AbstractDao<Ride, Long> {
      */
     public PagedResult<Long> search(RideshareUser traveller, GeoLocation fromPlace, GeoLocation toPlace, int maxBearingDifference, 
     		Instant earliestDeparture, Instant latestArrival, Integer nrSeatsRequested, boolean lenient, Integer maxBookings, Integer maxResults, Integer offset) {
+    	if (rideIndex.isLoaded()) {
+    		return searchWithIndex(traveller, fromPlace, toPlace, maxBearingDifference, earliestDeparture, latestArrival, 
+    				nrSeatsRequested, lenient, maxBookings, maxResults, offset);
+    	}
     	int searchBearing = Math.toIntExact(Math.round(EllipseHelper.getBearing(fromPlace.getPoint(), toPlace.getPoint())));
 //    	if (logger.isDebugEnabled()) {
 //	    	logger.debug(String.format("Search for ride from %s to %s D %s A %s #%d seats %s, bearing %d, max %s ", fromPlace, toPlace, 
@@ -187,6 +195,54 @@ public class RideDao extends AbstractDao<Ride, Long> {
         return new PagedResult<>(results, maxResults, offset, totalCount);
     }
 
+    /**
+     * Searches for matching rides using the in-memory ride index. The index resolves the spatial, bearing and temporal 
+     * rules, the database only verifies the remaining rules for the candidates. Because the candidate set is complete, 
+     * the total count is always included in the result, also when a page of results is requested.
+     * See {@link #search} for the description of the parameters.
+     * @return A list of potential matches, the total count is set.
+     */
+    protected PagedResult<Long> searchWithIndex(RideshareUser traveller, GeoLocation fromPlace, GeoLocation toPlace, int maxBearingDifference, 
+    		Instant earliestDeparture, Instant latestArrival, Integer nrSeatsRequested, boolean lenient, Integer maxBookings, Integer maxResults, Integer offset) {
+    	List<Long> candidates = rideIndex.search(traveller != null ? traveller.getId() : null, fromPlace, toPlace, maxBearingDifference, 
+    			earliestDeparture, latestArrival, lenient);
+        List<Long> matches = Collections.emptyList();
+        if (!candidates.isEmpty()) {
+        	// The index can be slightly behind, verify the state as well
+        	matches = em.createQuery("select r.id from Ride r where r.id in :candidates and " +
+	    			"r.nrSeatsAvailable >= :nrSeatsRequested and " +
+	    			"(r.deleted is null or r.deleted = false) and " +
+	    			"(:maxBookings is null or (select cast(count(b) as java.lang.Integer) from r.bookings b where b.state <> eu.netmobiel.rideshare.model.BookingState.CANCELLED) < :maxBookings) and " +
+	    			"(:traveller is null or r.driver != :traveller) and " +
+	    			"r.state = :state " +
+	    			"order by r.departureTime asc, r.id asc", Long.class)
+        		.setParameter("candidates", candidates)
+    			.setParameter("nrSeatsRequested", nrSeatsRequested)
+        		.setParameter("maxBookings", maxBookings)
+        		.setParameter("traveller", traveller)
+        		.setParameter("state", RideState.SCHEDULED)
+        		.getResultList();
+        }
+        Long totalCount = Long.valueOf(matches.size());
+        List<Long> results = Collections.emptyList();
+        if (maxResults != 0 && offset < matches.size()) {
+        	results = new ArrayList<>(matches.subList(offset, Math.min(matches.size(), offset + maxResults)));
+        }
+        return new PagedResult<>(results, maxResults, offset, totalCount);
+    }
+
+    /**
+     * Lists the search attributes of all rides that can be found by a search, i.e. the scheduled rides that are not deleted.
+     * @return A list of index entries.
+     */
+    public List<RideIndexEntry> listRideIndexEntries() {
+    	return em.createQuery("select new eu.netmobiel.rideshare.model.RideIndexEntry(" + 
+    			"r.id, r.shareEligibility, r.carthesianBearing, r.departureTime, r.arrivalTime, r.driver.id) " + 
+    			"from Ride r where r.state = :state and (r.deleted is null or r.deleted = false)", RideIndexEntry.class)
+    			.setParameter("state", RideState.SCHEDULED)
+    			.getResultList();
+    }
+
     public List<Long> findFollowingRideIds(RideTemplate template, Instant departureTime) {
     	TypedQuery<Long> tq = em.createQuery(
     			"select r.id from Ride r where r.rideTemplate = :template and r.departureTime > :departureTime " + 
@@ -293,15 +349,15 @@ public class RideDao extends AbstractDao<Ride, Long> {
     }
     
     /**
-     * Find the first ride without a departure or arrival postal code.
-     * @return A ride without a departure or arrival postal code or an empty Optional.
+     * Lists the rides without a departure or arrival postal code.
+     * @param maxResults the maximum number of rides to return.
+     * @return A list of rides without a departure or arrival postal code, the oldest first.
      */
-    public Optional<Ride> findFirstRideWithoutPostalCode() {
-    	List<Ride> rides = em.createQuery(
+    public List<Ride> listRidesWithoutPostalCode(int maxResults) {
+    	return em.createQuery(
     			"from Ride r where r.departurePostalCode is null or r.arrivalPostalCode is null order by r.id asc", Ride.class)
-    			.setMaxResults(1)
+    			.setMaxResults(maxResults)
     			.getResultList();
-    	return rides.isEmpty() ? Optional.empty() : Optional.of(rides.get(0)); 
     }
 
     /**
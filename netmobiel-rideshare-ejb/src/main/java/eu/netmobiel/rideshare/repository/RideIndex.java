@@ -0,0 +1,287 @@
+package eu.netmobiel.rideshare.repository;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Collectors;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.event.Observes;
+import javax.enterprise.event.TransactionPhase;
+import javax.inject.Inject;
+
+import org.slf4j.Logger;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Point;
+import com.vividsolutions.jts.index.strtree.STRtree;
+
+import eu.netmobiel.commons.model.GeoLocation;
+import eu.netmobiel.commons.util.EllipseHelper;
+import eu.netmobiel.rideshare.event.RideDeletedEvent;
+import eu.netmobiel.rideshare.event.RideEvent;
+import eu.netmobiel.rideshare.model.Ride;
+import eu.netmobiel.rideshare.model.RideIndexEntry;
+import eu.netmobiel.rideshare.model.RideState;
+
+/**
+ * In-memory spatio-temporal index of the scheduled rides. The index is used to find the candidate rides for a passenger
+ * without querying the eligibility areas in the database.
+ * The rides are bucketed by departure time, each bucket has its own R-tree (STR packed) over the envelopes
+ * of the share eligibility areas. A tree is (re)built lazily after a modification of its bucket.
+ *
+ * The index is loaded at startup (and refreshed periodically) by the maintenance bean. In between the index
+ * follows the ride events after the commit of the transaction. The index is a pre-filter only: The non-spatial
+ * conditions that change without a ride event (bookings, seats) are verified in the database.
+ *
+ * @author Jaap Reitsma
+ *
+ */
+@ApplicationScoped
+public class RideIndex {
+	/**
+	 * The size of a departure time bucket.
+	 */
+	private static final long BUCKET_SIZE_SECONDS = Duration.ofHours(6).getSeconds();
+
+	@Inject
+    private Logger log;
+
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	/**
+	 * All entries by ride id.
+	 */
+	private final Map<Long, RideIndexEntry> entries = new HashMap<>();
+
+	/**
+	 * The buckets by bucket number (departure time epoch seconds / bucket size).
+	 */
+	private final NavigableMap<Long, Bucket> buckets = new TreeMap<>();
+
+	/**
+	 * The maximum duration of a ride in the index. Needed to determine the buckets to search in a lenient search.
+	 */
+	private Duration maxRideDuration = Duration.ZERO;
+
+	private volatile boolean loaded = false;
+
+	/**
+	 * A set of rides departing in the same time window.
+	 */
+	private static class Bucket {
+		private final Map<Long, RideIndexEntry> rides = new HashMap<>();
+		private STRtree tree;
+
+		public synchronized void add(RideIndexEntry entry) {
+			rides.put(entry.getRideId(), entry);
+			tree = null;
+		}
+
+		public synchronized void remove(Long rideId) {
+			rides.remove(rideId);
+			tree = null;
+		}
+
+		public synchronized boolean isEmpty() {
+			return rides.isEmpty();
+		}
+
+		/**
+		 * Returns the entries with an eligibility envelope covering the specified point.
+		 * @param point the point to look for.
+		 * @return A list of candidate entries.
+		 */
+		@SuppressWarnings("unchecked")
+		public synchronized List<RideIndexEntry> query(Envelope pointEnvelope) {
+			if (tree == null) {
+				// An STRtree cannot be modified after building, rebuild completely.
+				tree = new STRtree();
+				rides.values().forEach(e -> tree.insert(e.getShareEligibility().getEnvelopeInternal(), e));
+				tree.build();
+			}
+			return tree.query(pointEnvelope);
+		}
+	}
+
+	private static long bucketOf(Instant departureTime) {
+		return Math.floorDiv(departureTime.getEpochSecond(), BUCKET_SIZE_SECONDS);
+	}
+
+	private static boolean isIndexable(Ride ride) {
+		return ride.getState() == RideState.SCHEDULED && !ride.isDeleted() && ride.getShareEligibility() != null
+				&& ride.getDepartureTime() != null && ride.getArrivalTime() != null && ride.getCarthesianBearing() != null;
+	}
+
+	private void addEntry(RideIndexEntry entry) {
+		removeEntry(entry.getRideId());
+		entries.put(entry.getRideId(), entry);
+		buckets.computeIfAbsent(bucketOf(entry.getDepartureTime()), k -> new Bucket()).add(entry);
+		Duration duration = Duration.between(entry.getDepartureTime(), entry.getArrivalTime());
+		if (duration.compareTo(maxRideDuration) > 0) {
+			maxRideDuration = duration;
+		}
+	}
+
+	private void removeEntry(Long rideId) {
+		RideIndexEntry old = entries.remove(rideId);
+		if (old != null) {
+			long bucketNr = bucketOf(old.getDepartureTime());
+			Bucket bucket = buckets.get(bucketNr);
+			if (bucket != null) {
+				bucket.remove(rideId);
+				if (bucket.isEmpty()) {
+					buckets.remove(bucketNr);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Replaces the content of the index.
+	 * @param indexEntries the entries of all searchable rides.
+	 */
+	public void rebuild(Collection<RideIndexEntry> indexEntries) {
+		lock.writeLock().lock();
+		try {
+			entries.clear();
+			buckets.clear();
+			maxRideDuration = Duration.ZERO;
+			indexEntries.stream()
+				.filter(e -> e.getShareEligibility() != null && e.getDepartureTime() != null && e.getArrivalTime() != null && e.getCarthesianBearing() != null)
+				.forEach(e -> addEntry(e));
+			loaded = true;
+		} finally {
+			lock.writeLock().unlock();
+		}
+		log.info(String.format("Ride index rebuilt: %d rides in %d buckets", entries.size(), buckets.size()));
+	}
+
+	/**
+	 * Adds, replaces or removes the ride in the index, depending on its state.
+	 * @param ride the ride.
+	 */
+	public void update(Ride ride) {
+		boolean indexable = isIndexable(ride);
+		RideIndexEntry entry = indexable ? new RideIndexEntry(ride) : null;
+		lock.writeLock().lock();
+		try {
+			if (indexable) {
+				addEntry(entry);
+			} else {
+				removeEntry(ride.getId());
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Removes a ride from the index.
+	 * @param rideId the ride id.
+	 */
+	public void remove(Long rideId) {
+		lock.writeLock().lock();
+		try {
+			removeEntry(rideId);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Whether the index has been loaded. If not, the index must not be used for searching.
+	 * @return true if loaded.
+	 */
+	public boolean isLoaded() {
+		return loaded;
+	}
+
+	public int size() {
+		lock.readLock().lock();
+		try {
+			return entries.size();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+    /**
+     * Searches for candidate rides. The rules are the same as those of the database search in {@link RideDao#search},
+     * except for the number of seats and the number of bookings, these are not in the index.
+     * @param travellerId The id of the traveller asking the question. Rides by this user are skipped. Can be null.
+     * @param fromPlace The location for pickup
+     * @param toPlace The location for drop-off
+     * @param maxBearingDifference The maximum difference in bearing direction between driver and passenger vectors.
+     * @param earliestDeparture The date and time to depart earliest
+     * @param latestArrival The date and time to arrive latest
+     * @param lenient if true then also retrieve rides that partly overlap the passenger's travel window.
+     * @return A list of ride ids, ordered by departure time ascending.
+     */
+	public List<Long> search(Long travellerId, GeoLocation fromPlace, GeoLocation toPlace, int maxBearingDifference,
+			Instant earliestDeparture, Instant latestArrival, boolean lenient) {
+    	int searchBearing = Math.toIntExact(Math.round(EllipseHelper.getBearing(fromPlace.getPoint(), toPlace.getPoint())));
+    	Point fromPoint = fromPlace.getPoint();
+    	Point toPoint = toPlace.getPoint();
+    	Envelope fromEnvelope = fromPoint.getEnvelopeInternal();
+    	List<RideIndexEntry> candidates = new ArrayList<>();
+		lock.readLock().lock();
+		try {
+			// A ride departing before the earliest departure can still match in a lenient search
+			NavigableMap<Long, Bucket> selection = buckets;
+			if (earliestDeparture != null) {
+				selection = selection.tailMap(bucketOf(earliestDeparture.minus(maxRideDuration)), true);
+			}
+			if (latestArrival != null) {
+				selection = selection.headMap(bucketOf(latestArrival), true);
+			}
+			for (Bucket bucket : selection.values()) {
+				candidates.addAll(bucket.query(fromEnvelope));
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+		return candidates.stream()
+				.filter(e -> travellerId == null || !travellerId.equals(e.getDriverId()))
+				.filter(e -> Math.abs(e.getCarthesianBearing() - searchBearing) < maxBearingDifference)
+				.filter(e -> earliestDeparture == null ||
+					(!lenient && !e.getDepartureTime().isBefore(earliestDeparture)) ||
+					(lenient && !e.getArrivalTime().isBefore(earliestDeparture)))
+				.filter(e -> latestArrival == null ||
+					(!lenient && !e.getArrivalTime().isAfter(latestArrival)) ||
+					(lenient && e.getDepartureTime().isBefore(latestArrival)))
+				.filter(e -> e.getShareEligibility().contains(fromPoint) && e.getShareEligibility().contains(toPoint))
+				.sorted(Comparator.comparing(RideIndexEntry::getDepartureTime).thenComparing(RideIndexEntry::getRideId))
+				.map(RideIndexEntry::getRideId)
+				.collect(Collectors.toList());
+	}
+
+	/*********************************************/
+	/**********  CALLBACK METHODS  ***************/
+	/*********************************************/
+
+	/**
+	 * Every change of a ride passes the state machine of the ride monitor. Follow the changes, but only after the commit.
+	 * @param event the ride event.
+	 */
+	public void onRideEvent(@Observes(during = TransactionPhase.AFTER_SUCCESS) RideEvent event) {
+		try {
+			update(event.getRide());
+		} catch (Exception ex) {
+			log.error(String.format("Error updating ride index for ride %s: %s", event.getRide().getId(), ex.toString()));
+		}
+	}
+
+	public void onRideDeleted(@Observes(during = TransactionPhase.AFTER_SUCCESS) RideDeletedEvent event) {
+		remove(event.getRide().getId());
+	}
+}
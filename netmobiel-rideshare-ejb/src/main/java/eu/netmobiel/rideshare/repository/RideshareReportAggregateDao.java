@@ -0,0 +1,28 @@
+package eu.netmobiel.rideshare.repository;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.inject.Typed;
+import javax.inject.Inject;
+import javax.persistence.EntityManager;
+
+import eu.netmobiel.commons.repository.ReportAggregateDao;
+import eu.netmobiel.rideshare.annotation.RideshareDatabase;
+
+/**
+ * The report aggregates of the rideshare service, stored in the tables report_aggregate and report_aggregate_period.
+ *
+ * @author Jaap Reitsma
+ *
+ */
+@ApplicationScoped
+@Typed(RideshareReportAggregateDao.class)
+public class RideshareReportAggregateDao extends ReportAggregateDao {
+
+	@Inject @RideshareDatabase
+	private EntityManager em;
+
+	@Override
+	protected EntityManager getEntityManager() {
+		return em;
+	}
+}
@@ -4,9 +4,11 @@ import java.time.Instant;
 import java.time.ZoneOffset;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Optional;
+import java.util.Map;
 import java.util.stream.Collectors;
 
 import javax.annotation.Resource;
@@ -40,7 +42,8 @@ import eu.netmobiel.commons.model.PagedResult;
 import eu.netmobiel.commons.util.EventFireWrapper;
 import eu.netmobiel.commons.util.Logging;
 import eu.netmobiel.commons.util.UrnHelper;
-import eu.netmobiel.here.search.HereSearchClient;
+import eu.netmobiel.here.search.PostalCodeCache;
+import eu.netmobiel.rideshare.event.RideDeletedEvent;
 import eu.netmobiel.rideshare.event.RideEvaluatedEvent;
 import eu.netmobiel.rideshare.filter.RideFilter;
 import eu.netmobiel.rideshare.model.Booking;
@@ -55,6 +58,7 @@ import eu.netmobiel.rideshare.model.RideshareUser;
 import eu.netmobiel.rideshare.repository.BookingDao;
 import eu.netmobiel.rideshare.repository.CarDao;
 import eu.netmobiel.rideshare.repository.RideDao;
+import eu.netmobiel.rideshare.repository.RideIndex;
 import eu.netmobiel.rideshare.repository.RideTemplateDao;
 import eu.netmobiel.rideshare.repository.RideshareUserDao;
 /**
@@ -100,6 +104,8 @@ public class RideManager {
     @Inject
     private RideDao rideDao;
     @Inject
+    private RideIndex rideIndex;
+    @Inject
     private BookingDao bookingDao;
     @Inject
     private RideTemplateDao rideTemplateDao;
@@ -108,7 +114,7 @@ public class RideManager {
     @Inject
     private IdentityHelper identityHelper;
     @Inject
-    private HereSearchClient hereSearchClient;
+    private PostalCodeCache postalCodeCache;
 
     @Inject
     private RideMonitor rideMonitor;
@@ -119,6 +125,9 @@ public class RideManager {
     @Inject @Removed
     private Event<Ride> rideRemovedEvent;
 
+    @Inject
+    private Event<RideDeletedEvent> rideDeletedEvent;
+
     /**
      * Signals the evaluation for a reward of some kind.
      */
@@ -272,13 +281,15 @@ public class RideManager {
     	}
     	RideshareUser traveller = userDao.findByManagedIdentity(travellerIdentity).orElse(null);
     	List<Ride> results = Collections.emptyList();
-        PagedResult<Long> prs = rideDao.search(traveller, fromPlace, toPlace, MAX_BEARING_DIFFERENCE, earliestDeparture, latestArrival, nrSeats, lenient, MAX_BOOKINGS, 0, 0);
-        Long totalCount = prs.getTotalCount();
-    	if (totalCount > 0 && maxResults > 0) {
-    		PagedResult<Long> rideIds = rideDao.search(traveller, fromPlace, toPlace, MAX_BEARING_DIFFERENCE, earliestDeparture, latestArrival, nrSeats, lenient, MAX_BOOKINGS, maxResults, offset);
-        	if (! rideIds.getData().isEmpty()) {
-        		results = rideDao.loadGraphs(rideIds.getData(), Ride.SEARCH_RIDES_ENTITY_GRAPH, Ride::getId);
-        	}
+        // With the ride index the search returns the total count as well, otherwise count separately
+        PagedResult<Long> rideIds = rideDao.search(traveller, fromPlace, toPlace, MAX_BEARING_DIFFERENCE, earliestDeparture, latestArrival, nrSeats, lenient, MAX_BOOKINGS, maxResults, offset);
+        Long totalCount = rideIds.getTotalCount();
+        if (totalCount == null) {
+            PagedResult<Long> prs = rideDao.search(traveller, fromPlace, toPlace, MAX_BEARING_DIFFERENCE, earliestDeparture, latestArrival, nrSeats, lenient, MAX_BOOKINGS, 0, 0);
+            totalCount = prs.getTotalCount();
+        }
+    	if (totalCount > 0 && maxResults > 0 && ! rideIds.getData().isEmpty()) {
+    		results = rideDao.loadGraphs(rideIds.getData(), Ride.SEARCH_RIDES_ENTITY_GRAPH, Ride::getId);
     	}
     	return new PagedResult<>(results, maxResults, offset, totalCount);
     }
@@ -367,8 +378,9 @@ public class RideManager {
 		ride.setArrivalTime(travelTime);
 		// Calculate the ellipse
     	ride.updateShareEligibility();
-    	ride.setDeparturePostalCode(hereSearchClient.getPostalCode6(ride.getFrom()));
-    	ride.setArrivalPostalCode(hereSearchClient.getPostalCode6(ride.getTo()));
+    	// Only use the cache, a missing postal code is resolved later by the maintenance
+    	ride.setDeparturePostalCode(postalCodeCache.findPostalCode6(ride.getFrom()));
+    	ride.setArrivalPostalCode(postalCodeCache.findPostalCode6(ride.getTo()));
     	// Put the ride into the persistence context, but omit the template for now
     	ride.setRideTemplate(null);
     	ride.setState(RideState.SCHEDULED);
@@ -568,10 +580,10 @@ public class RideManager {
     	// Recalculate the ellipse for determining the rideshare eligibility
     	ride.updateShareEligibility();
     	if (!ride.getFrom().equals(ridedb.getFrom())) {
-    		ride.setDeparturePostalCode(hereSearchClient.getPostalCode6(ride.getFrom()));
+    		ride.setDeparturePostalCode(postalCodeCache.findPostalCode6(ride.getFrom()));
     	}
     	if (!ride.getTo().equals(ridedb.getTo())) {
-    		ride.setArrivalPostalCode(hereSearchClient.getPostalCode6(ride.getTo()));
+    		ride.setArrivalPostalCode(postalCodeCache.findPostalCode6(ride.getTo()));
     	}
     	
     }
@@ -696,6 +708,7 @@ public class RideManager {
 	    		rideMonitor.updateRideStateMachine(ridedb);
 			} else {
 				rideDao.remove(ridedb);
+				rideDeletedEvent.fire(new RideDeletedEvent(ridedb));
 			}
     	}
     }
@@ -754,17 +767,46 @@ public class RideManager {
 		return rideDao.matchesRecurrentRideCondition(driver, firstDate, lastDate, evaluationPeriod, minimumRides);
 	}
 	
-	public Optional<GeoLocation> findNextMissingPostalCode() {
-		Optional<Ride> r = rideDao.findFirstRideWithoutPostalCode();
-		GeoLocation loc = null;
-		if (r.isPresent()) {
-			if (r.get().getDeparturePostalCode() == null) {
-				loc = r.get().getFrom();
+    /**
+     * Lists the distinct locations of the rides that have no postal code assigned to the departure or arrival location.
+     * This is a maintenance method, not intended for use by the presentation layer. 
+     * @param maxRides the maximum number of rides to inspect.
+     * @return the locations without postal code.
+     */
+	public List<GeoLocation> listMissingPostalCodeLocations(int maxRides) {
+		Map<String, GeoLocation> locations = new LinkedHashMap<>();
+		for (Ride r : rideDao.listRidesWithoutPostalCode(maxRides)) {
+			if (r.getDeparturePostalCode() == null) {
+				locations.putIfAbsent(PostalCodeCache.createLocationKey(r.getFrom()), r.getFrom());
+			}
+			if (r.getArrivalPostalCode() == null) {
+				locations.putIfAbsent(PostalCodeCache.createLocationKey(r.getTo()), r.getTo());
+			}
+		}
+		return new ArrayList<>(locations.values());
+	}
+
+    /**
+     * Assigns the resolved postal codes to all rides with the same GeoLocations and saves them in the postal code cache.
+     * A location that could not be resolved is assigned '??????' to prevent looking it up over and over again, 
+     * that value is not cached.
+     * This is a maintenance method, not intended for use by the presentation layer. 
+     * @param postalCodes the postal code of each location, null if not resolved. 
+     * @return the number of rides altered.
+     */
+	public int assignPostalCodes(Map<GeoLocation, String> postalCodes) {
+		int affectedRows = 0;
+		for (Map.Entry<GeoLocation, String> entry : postalCodes.entrySet()) {
+			String postalCode = entry.getValue();
+			if (postalCode == null || postalCode.isEmpty()) {
+				log.warn("Error looking up postal code for " + entry.getKey());
+				postalCode = "??????";
 			} else {
-				loc = r.get().getTo();
+				postalCodeCache.savePostalCode6(entry.getKey(), postalCode);
 			}
+			affectedRows += assignPostalCode(entry.getKey(), postalCode);
 		}
-		return Optional.ofNullable(loc);
+		return affectedRows;
 	}
 
 	public int assignPostalCode(GeoLocation location, String postalCode) {
@@ -830,5 +872,18 @@ public class RideManager {
 			}
 		}
 	}
+
+    /**
+	 * (Re)loads the in-memory ride index from the database. The index follows the ride events, a periodic 
+	 * reload repairs any drift, e.g. when a ride is modified without passing the ride monitor.
+	 */
+	@Schedule(info = "Ride index reload", hour = "*", minute = "*/15", second = "45", persistent = false /* non-critical job */)
+	public void rebuildRideIndex() {
+		try {
+			rideIndex.rebuild(rideDao.listRideIndexEntries());
+		} catch (Exception ex) {
+			log.error(String.format("Error rebuilding ride index: %s", ex.toString()));
+		}
+	}
 	
 }
@@ -6,7 +6,6 @@ import java.time.Instant;
 import java.util.Collection;
 import java.util.Date;
 import java.util.List;
-import java.util.Optional;
 import java.util.stream.Collectors;
 
 import javax.annotation.Resource;
@@ -17,21 +16,26 @@ import javax.ejb.SessionContext;
 import javax.ejb.Stateless;
 import javax.ejb.Timeout;
 import javax.ejb.Timer;
+import javax.ejb.TimerConfig;
 import javax.ejb.TimerService;
 import javax.ejb.TransactionAttribute;
 import javax.ejb.TransactionAttributeType;
 import javax.enterprise.event.Event;
+import javax.enterprise.event.Observes;
+import javax.enterprise.event.TransactionPhase;
 import javax.inject.Inject;
 
 import org.slf4j.Logger;
 
 import eu.netmobiel.commons.annotation.Removed;
+import eu.netmobiel.commons.event.MonitorWakeupEvent;
 import eu.netmobiel.commons.exception.BusinessException;
 import eu.netmobiel.commons.exception.NotFoundException;
 import eu.netmobiel.commons.repository.ClockDao;
 import eu.netmobiel.commons.util.EventFireWrapper;
 import eu.netmobiel.commons.util.ExceptionUtil;
 import eu.netmobiel.commons.util.Logging;
+import eu.netmobiel.commons.util.MonitorTimerRegistry;
 import eu.netmobiel.commons.util.ValidEjbTimer;
 import eu.netmobiel.rideshare.event.RideEvent;
 import eu.netmobiel.rideshare.model.Ride;
@@ -97,7 +101,18 @@ public class RideMonitor {
     @Inject
     private Event<RideEvent> rideEvent;
 
+    @Inject
+    private Event<MonitorWakeupEvent> wakeupEvent;
+
     private final static ValidEjbTimer validEjbTimer = new ValidEjbTimer();
+
+    /**
+     * The wake-up times of the monitored rides. The registry is shared by all instances of this stateless bean.
+     * A single container timer (with WAKEUP_TIMER_INFO) is set at the earliest wake-up. 
+     * The registry is only changed after a successful commit, see onWakeupChange.
+     */
+    private final static MonitorTimerRegistry<Long> timerRegistry = new MonitorTimerRegistry<>();
+    private final static String WAKEUP_TIMER_INFO = "RideMonitorWakeup";
     
     /**
      * Retrieves a ride with the booking details. 
@@ -120,8 +135,7 @@ public class RideMonitor {
     public void restartValidation(Ride ride) throws BusinessException {
     	if (ride.getState().isPostTravelState() ) {
     		// The fare was uncancelled or refunded, any way, the ride needs validation again
-    		// Force a restart from the arriving state
-    		cancelRideTimers(ride);
+    		// Force a restart from the arriving state. The state machine replaces the wake-up, if any. 
     		ride.setState(RideState.ARRIVING);
     		updateRideStateMachine(ride);
     	}
@@ -196,6 +210,9 @@ public class RideMonitor {
 					ride.setValidationReminderTime(now.plus(VALIDATION_INTERVAL));
 					nextTimeout = ride.getValidationReminderTime();
 					event = RideMonitorEvent.TIME_TO_SEND_VALIDATION_REMINDER;
+				} else if (ride.isConfirmationPending()) {
+					// Keep (or after a restart: restore) the wake-up for the next reminder
+					nextTimeout = ride.getValidationReminderTime();
 				}
 			}
 			break;
@@ -224,6 +241,11 @@ public class RideMonitor {
 	@Timeout
 	public void onTimeout(Timer timer) {
 		try {
+			if (WAKEUP_TIMER_INFO.equals(timer.getInfo())) {
+				processWakeups();
+				return;
+			}
+			// Timers from before the registry, still in the timer table
 			if (! (timer.getInfo() instanceof RideInfo)) {
 				log.error("Don't know how to handle timeout: " + timer.getInfo());
 				return;
@@ -271,6 +293,21 @@ public class RideMonitor {
     	updateStateMachine(rideId);
     }
 
+    /**
+     * Updates the state machine of each ride that is due. Each ride is evaluated in its own transaction.
+     * Finally the timer is set for the next wake-up.
+     */
+    private void processWakeups() {
+    	List<Long> rideIds = timerRegistry.pollDue(Instant.now());
+		if (log.isDebugEnabled()) {
+			log.debug(String.format("processWakeups: %d rides due, %d waiting", rideIds.size(), timerRegistry.size()));
+		}
+		for (Long rideId : rideIds) {
+			sessionContext.getBusinessObject(this.getClass()).updateStateMachine(rideId);
+		}
+		armWakeupTimer();
+    }
+
     @Schedule(info = "Collect due rides", hour = "*/1", minute = "0", second = "30", persistent = false /* non-critical job */)
 	public void checkForDueRides() {
 		// Get all rides that need monitoring and have a departure time within a certain window
@@ -281,6 +318,8 @@ public class RideMonitor {
 			for (Long rideId : rideIds) {
 				sessionContext.getBusinessObject(this.getClass()).updateStateMachine(rideId);
 			}
+			// Just in case the wake-up timer got lost
+			armWakeupTimer();
 		} catch (Exception ex) {
 			log.error(String.format("Error handling timeout: %s", ex.toString()));
 		}
@@ -290,38 +329,34 @@ public class RideMonitor {
 		if (log.isDebugEnabled()) {
 			log.debug(String.format("setupTimer %s %s", ride.getUrn(), expirationTime));
 		}
-		Collection<Timer> timers = getActiveTimers(ride);
-		if (timers.size() > 1) {
-			log.warn(String.format("Too many timers for Ride %s, cancelling all of them", ride.getId()));
-			timers.forEach(tm -> tm.cancel());
-		}
-		Optional<Timer> tm = timers.stream().findFirst();
-		if (tm.isPresent()) {
-			Timer tmr = tm.get();
-			if (!validEjbTimer.test(tmr) || !tmr.getNextTimeout().toInstant().equals(expirationTime)) {
-//				log.debug("Canceling timer: " + tmr.getInfo());
-				cancelTimer(tmr);
-				tm = Optional.empty();
-			}
+		wakeupEvent.fire(new MonitorWakeupEvent(WAKEUP_TIMER_INFO, ride.getId(), expirationTime));
+	}
+
+	/**
+	 * Applies a change of a wake-up to the registry, but only after the transaction that caused the change has 
+	 * been committed. A rollback leaves the registry as it was.
+	 * @param event the wake-up change.
+	 */
+	public void onWakeupChange(@Observes(during = TransactionPhase.AFTER_SUCCESS) MonitorWakeupEvent event) {
+		if (!WAKEUP_TIMER_INFO.equals(event.getMonitor())) {
+			return;
 		}
-		if (tm.isEmpty()) {
-			timerService.createTimer(Date.from(expirationTime), new RideInfo(ride.getId())); 
+		if (event.isCancel()) {
+			timerRegistry.cancel(event.getObjectId());
+		} else {
+			timerRegistry.schedule(event.getObjectId(), event.getWakeupTime());
+			armWakeupTimer();
 		}
 	}
 
-    private Collection<Timer> getActiveTimers(Ride ride) {
-    	Collection<Timer> timers = timerService.getTimers();
-    	// Remove the timers that are not used with RideInfo
-    	timers.removeIf(tm -> !(tm.getInfo() instanceof RideInfo && ((RideInfo)tm.getInfo()).rideId.equals(ride.getId())));
-//    	if (log.isDebugEnabled()) {
-//    		log.debug(String.format("getActiveTimers: %d timers in total active for this EJB", timers.size()));
-//    	}
-    	if (timers.size() > 1) {
-    		log.warn(String.format("getActiveTimers: %d timers active for ride %s!", timers.size(), ride.getId()));
-    	}
-    	return timers;
-    }
-    
+	/**
+	 * Sets the container timer for the earliest wake-up, if necessary.
+	 */
+	private void armWakeupTimer() {
+		timerRegistry.arm(Instant.now())
+			.ifPresent(t -> timerService.createSingleActionTimer(Date.from(t), new TimerConfig(WAKEUP_TIMER_INFO, false)));
+	}
+
     private void cancelTimer(Timer tm) {
 		try {
 			tm.cancel();
@@ -331,8 +366,7 @@ public class RideMonitor {
     }
 
     private void cancelRideTimers(Ride ride) {
-    	// Find all timers related to this ride and cancel them
-		getActiveTimers(ride).forEach(tm -> cancelTimer(tm));
+		wakeupEvent.fire(new MonitorWakeupEvent(WAKEUP_TIMER_INFO, ride.getId(), null));
 	}
 
 	private List<RideInfo> listAllRideMonitorTimers() {
@@ -349,7 +383,7 @@ public class RideMonitor {
     	timers.removeAll(invalidTimers);
     	timers.removeIf(tm -> !(tm.getInfo() instanceof RideInfo));
 		if (timers.isEmpty()) {
-			log.info("NO active ride timers");
+			log.info("NO active (legacy) ride timers");
 		} else {
 			log.info("Active ride timers:\n\t" + String.join("\n\t", 
 					timers.stream()
@@ -363,12 +397,13 @@ public class RideMonitor {
 	}
 	
 	/**
-	 * Revive the ride monitors that have been down after system restart.
-	 * Not used anymore, only for logging the active timers now.
+	 * Revive the ride monitors that have been down after system restart. The timer registry is in-memory only, 
+	 * evaluate the rides to monitor to fill the registry. 
 	 */
 	public void reviveRideMonitors() {
 		listAllRideMonitorTimers();
-//		checkForDueRides();
+		checkForDueRides();
+		log.info(String.format("Ride monitor wake-ups: %d", timerRegistry.size()));
 	}
 
 }
@@ -1,28 +1,29 @@
 package eu.netmobiel.rideshare.service;
 
-import java.io.Serializable;
-import java.util.Optional;
+import java.util.List;
+import java.util.Map;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
-import javax.ejb.NoSuchObjectLocalException;
+import javax.ejb.Schedule;
 import javax.ejb.Singleton;
 import javax.ejb.Startup;
-import javax.ejb.Timeout;
-import javax.ejb.Timer;
-import javax.ejb.TimerConfig;
-import javax.ejb.TimerService;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+import javax.enterprise.concurrent.ManagedExecutorService;
 import javax.inject.Inject;
 
 import org.slf4j.Logger;
 
 import eu.netmobiel.commons.model.GeoLocation;
-import eu.netmobiel.here.search.HereSearchClient;
+import eu.netmobiel.commons.util.ExceptionUtil;
+import eu.netmobiel.here.search.PostalCodeCache;
 
 /**
  * Singleton startup bean for doing some maintenance on startup of the system.
  * 1. Restart ride monitors if necessary
- * 2. Do some reverse geocoding to fetch the postal code for each ride, if necessary.
+ * 2. Load the in-memory ride index.
+ * 3. Do some reverse geocoding to fetch the postal code for each ride, if necessary (scheduled).
  *  
  * @author Jaap Reitsma
  *
@@ -30,6 +31,10 @@ import eu.netmobiel.here.search.HereSearchClient;
 @Singleton
 @Startup
 public class RideshareMaintenance {
+	/**
+	 * The maximum number of rides inspected for missing postal codes in a single run.
+	 */
+	private static final int GEOCODING_BATCH_SIZE = 100;
 
 	@Inject
     private Logger log;
@@ -40,88 +45,38 @@ public class RideshareMaintenance {
 	private RideMonitor rideMonitor;
     
 	@Inject
-    private HereSearchClient hereSearchClient;
+    private PostalCodeCache postalCodeCache;
     
 	@Resource
-    private TimerService timerService;
-
-    private Timer geocodingTimer;
+    private ManagedExecutorService executor;
     
 	@PostConstruct
 	public void initialize() {
 		log.info("Starting up the Rideshare, doing some maintenance tasks");
 		rideMonitor.reviveRideMonitors();
-		schedulePostalCodeGeocoding();
 		rideManager.fixMissingBookedLegs();
-	}
-	
-	private static class GeocodingTimerInfo implements Serializable {
-		private static final long serialVersionUID = 2140854309635368743L;
-		private String title;
-
-		public GeocodingTimerInfo(String info) {
-			this.title = info;
-		}
-
-		@Override
-		public String toString() {
-			return title;
-		}
-
-		public String getTitle() {
-			return title;
-		}
+		rideManager.rebuildRideIndex();
 	}
 	
 	/**
-	 * Schedules an interval timer to do geocoding. To prevent rate limiting, do it slowly, no need
-	 * for a hurry. The postal codes are used for reporting.
-	 */
-	private void schedulePostalCodeGeocoding() {
-		TimerConfig tc = new TimerConfig(new GeocodingTimerInfo("Ride Geocoding Timer"), false); 
-		geocodingTimer = timerService.createIntervalTimer(15 * 1000L, 15 * 1000L, tc);
-		log.info("Started " + ((GeocodingTimerInfo) tc.getInfo()).getTitle());
-	}
-
-	/**
-	 * Handle the timeout. In case of the geocoding timer, fetch the next geolocation. 
-	 * If none is found then stop the geocoding interval timer.
-	 * @param timer the timer causing the timeout.
-	 */
-	@Timeout
-	public void onTimeout(Timer timer) {
-		try {
-			if (timer.getInfo() instanceof GeocodingTimerInfo) {
-				boolean foundOne = fillNextMissingPostalCode();
-				if (!foundOne) {
-					// Ok, all is well, stop geocoding
-					log.info("No more geocoding to do, stopping " + ((GeocodingTimerInfo) timer.getInfo()).getTitle());
-					geocodingTimer.cancel();
-				}
-			}
-		} catch(NoSuchObjectLocalException ex) {
-			log.error(String.format("Error handling timeout: %s", ex.toString()));
-		}
-	}
-	
-	/**
-	 * Fetch the next geolocation without a postal code and reverse geocode it with the HERE service.
+	 * Resolves the missing postal codes, a batch of locations each minute. The postal codes are used for reporting. 
+	 * The locations are looked up in the postal code cache first, the remaining locations are reverse geocoded with 
+	 * the HERE service with a limited concurrency to prevent rate limiting.
 	 * In case of an error in the postal code (not an exception), the postal code is set to '??????', to prevent an endless
 	 * loop. The postal code will be used for all fields and records with the exact same location.
-	 * @return true if there was a missing postal code, false if the work is done.
 	 */
-	private boolean fillNextMissingPostalCode() {
-		Optional<GeoLocation> location = rideManager.findNextMissingPostalCode();
-		if (location.isPresent()) {
-			String postalCode = hereSearchClient.getPostalCode6(location.get());
-			if (postalCode == null || postalCode.isEmpty()) {
-				log.warn("Error looking up postal code for " + location);
-				// Give it a value to prevent endless loop
-				postalCode = "??????";
+	@Schedule(info = "Postal code geocoding", hour = "*", minute = "*/1", second = "45", persistent = false /* non-critical job */)
+	@TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+	public void fillMissingPostalCodes() {
+		try {
+			List<GeoLocation> locations = rideManager.listMissingPostalCodeLocations(GEOCODING_BATCH_SIZE);
+			if (!locations.isEmpty()) {
+				Map<GeoLocation, String> postalCodes = postalCodeCache.resolvePostalCodes6(locations, executor);
+				int cnt = rideManager.assignPostalCodes(postalCodes);
+				log.info(String.format("Updated %d fields with %d postal codes", cnt, postalCodes.size()));
 			}
-			int cnt = rideManager.assignPostalCode(location.get(), postalCode);
-			log.info(String.format("Updated %d fields with postal code %s", cnt, postalCode));
+		} catch (Exception ex) {
+			log.error("Error filling the missing postal codes: " + String.join("\n\t", ExceptionUtil.unwindException(ex)));
 		}
-		return location.isPresent();
 	}
 }
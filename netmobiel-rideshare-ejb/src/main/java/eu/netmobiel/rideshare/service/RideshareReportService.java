@@ -1,6 +1,7 @@
 package eu.netmobiel.rideshare.service;
 
 import java.time.Instant;
+import java.time.YearMonth;
 import java.time.ZoneId;
 import java.util.ArrayList;
 import java.util.Comparator;
@@ -9,7 +10,12 @@ import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 
+import javax.annotation.Resource;
+import javax.ejb.Schedule;
+import javax.ejb.SessionContext;
 import javax.ejb.Stateless;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
 import javax.inject.Inject;
 
 import org.slf4j.Logger;
@@ -21,55 +27,109 @@ import eu.netmobiel.commons.report.DriverBehaviourReport;
 import eu.netmobiel.commons.report.NumericReportValue;
 import eu.netmobiel.commons.report.ProfileReport;
 import eu.netmobiel.commons.report.RideReport;
+import eu.netmobiel.commons.util.ExceptionUtil;
 import eu.netmobiel.commons.util.Logging;
 import eu.netmobiel.rideshare.model.Booking;
 import eu.netmobiel.rideshare.model.Recurrence;
 import eu.netmobiel.rideshare.model.Ride;
 import eu.netmobiel.rideshare.model.RideshareUser;
-import eu.netmobiel.rideshare.repository.BookingDao;
 import eu.netmobiel.rideshare.repository.RideDao;
+import eu.netmobiel.rideshare.repository.RideshareReportAggregateDao;
 import eu.netmobiel.rideshare.repository.RideshareUserDao;
 
 @Stateless
 @Logging
 public class RideshareReportService {
 
-	@SuppressWarnings("unused")
 	@Inject
 	private Logger log;
 	@Inject
 	private RideDao rideDao;
 	@Inject
-	private BookingDao bookingDao;
-	@Inject
 	private RideshareUserDao userDao;
+
+    @Inject
+    private RideshareReportAggregateDao reportAggregateDao;
+
+    /**
+     * The time zone of the report, the months of the report are determined in this zone. 
+     * The same setting is used by the report processor.
+     */
+    @Resource(lookup = "java:global/report/timeZone")
+    private String reportTimeZone;
+
+    @Resource
+	private SessionContext sessionContext;
+
+    /**
+     * The report count queries that are aggregated per month, once the month is settled.
+     */
+    private static final List<String> AGGREGATED_COUNT_QUERIES = List.of(
+    		Ride.RGC_1_OFFERED_RIDES_COUNT,
+    		Booking.RGC_2_BOOKINGS_CANCELLED_BY_PASSENGER_COUNT,
+    		Booking.RGC_3_BOOKINGS_CANCELLED_BY_DRIVER_COUNT,
+    		Booking.RGC_4_BOOKINGS_CONFIRMED_COUNT,
+    		Booking.RGC_7_RIDES_PROPOSED_COUNT,
+    		Booking.RGC_8_RIDES_PROPOSED_AND_ACCEPTED_COUNT
+    );
+
+    private ZoneId getReportZone() {
+    	return ZoneId.of(reportTimeZone);
+    }
+
+    /**
+     * Aggregates the report counts of the settled months that are not aggregated yet,
+     * see {@link RideshareReportAggregateDao#aggregateSettledPeriods(List, ZoneId, java.util.function.BiConsumer)}.
+     */
+	@Schedule(info = "Report aggregation", hour = "2", minute = "45", second = "0", persistent = false /* non-critical job */)
+    @TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+    public void aggregateReports() {
+    	try {
+	    	RideshareReportService self = sessionContext.getBusinessObject(RideshareReportService.class);
+	    	int count = reportAggregateDao.aggregateSettledPeriods(AGGREGATED_COUNT_QUERIES, getReportZone(),
+	    			(queryName, period) -> self.aggregateReportPeriod(queryName, period, false));
+	    	if (count > 0) {
+	    		log.info(String.format("Aggregated %d report periods", count));
+	    	}
+		} catch (Exception ex) {
+			log.error("Error aggregating the reports: " + String.join("\n\t", ExceptionUtil.unwindException(ex)));
+		}
+    }
+
+    /**
+     * Aggregates the report counts of a single month in a transaction of its own.
+     */
+    @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+    public void aggregateReportPeriod(String queryName, YearMonth period, boolean byModality) {
+    	reportAggregateDao.aggregateReportPeriod(queryName, period, getReportZone(), byModality);
+    }
     
 
     public Map<String, DriverBehaviourReport> reportDriverActivity(Instant since, Instant until) throws BadRequestException {
     	Map<String, DriverBehaviourReport> reportMap = new HashMap<>();
     	// The first could have been realized without lookup, but now it is all the same.
-    	for (NumericReportValue nrv : rideDao.reportCount(Ride.RGC_1_OFFERED_RIDES_COUNT, since, until)) {
+    	for (NumericReportValue nrv : reportAggregateDao.reportAggregatedCount(Ride.RGC_1_OFFERED_RIDES_COUNT, since, until, getReportZone())) {
     		reportMap.computeIfAbsent(nrv.getKey(), k -> new DriverBehaviourReport(nrv))
     			.setRidesOfferedCount(nrv.getValue());
 		}
-    	for (NumericReportValue nrv : bookingDao.reportCount(Booking.RGC_2_BOOKINGS_CANCELLED_BY_PASSENGER_COUNT, since, until)) {
+    	for (NumericReportValue nrv : reportAggregateDao.reportAggregatedCount(Booking.RGC_2_BOOKINGS_CANCELLED_BY_PASSENGER_COUNT, since, until, getReportZone())) {
     		reportMap.computeIfAbsent(nrv.getKey(), k -> new DriverBehaviourReport(nrv))
     			.setBookingsCancelledByPassengerCount(nrv.getValue());
 		}
-    	for (NumericReportValue nrv : bookingDao.reportCount(Booking.RGC_3_BOOKINGS_CANCELLED_BY_DRIVER_COUNT, since, until)) {
+    	for (NumericReportValue nrv : reportAggregateDao.reportAggregatedCount(Booking.RGC_3_BOOKINGS_CANCELLED_BY_DRIVER_COUNT, since, until, getReportZone())) {
     		reportMap.computeIfAbsent(nrv.getKey(), k -> new DriverBehaviourReport(nrv))
     			.setBookingsCancelledByDriverCount(nrv.getValue());
 		}
-    	for (NumericReportValue nrv : bookingDao.reportCount(Booking.RGC_4_BOOKINGS_CONFIRMED_COUNT, since, until)) {
+    	for (NumericReportValue nrv : reportAggregateDao.reportAggregatedCount(Booking.RGC_4_BOOKINGS_CONFIRMED_COUNT, since, until, getReportZone())) {
     		reportMap.computeIfAbsent(nrv.getKey(), k -> new DriverBehaviourReport(nrv))
 			.setBookingsConfirmedCount(nrv.getValue());
 		}
     	// RGC-5 and RGC-6 are queries from the Communicator.
-    	for (NumericReportValue nrv : bookingDao.reportCount(Booking.RGC_7_RIDES_PROPOSED_COUNT, since, until)) {
+    	for (NumericReportValue nrv : reportAggregateDao.reportAggregatedCount(Booking.RGC_7_RIDES_PROPOSED_COUNT, since, until, getReportZone())) {
     		reportMap.computeIfAbsent(nrv.getKey(), k -> new DriverBehaviourReport(nrv))
 			.setRidesProposedCount(nrv.getValue());
 		}
-    	for (NumericReportValue nrv : bookingDao.reportCount(Booking.RGC_8_RIDES_PROPOSED_AND_ACCEPTED_COUNT, since, until)) {
+    	for (NumericReportValue nrv : reportAggregateDao.reportAggregatedCount(Booking.RGC_8_RIDES_PROPOSED_AND_ACCEPTED_COUNT, since, until, getReportZone())) {
     		reportMap.computeIfAbsent(nrv.getKey(), k -> new DriverBehaviourReport(nrv))
 			.setRidesProposedAndAcceptedCount(nrv.getValue());
 		}
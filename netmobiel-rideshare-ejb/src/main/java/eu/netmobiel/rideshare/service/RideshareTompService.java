@@ -181,17 +181,18 @@ public class RideshareTompService {
 
     private PagedResult<Ride> search(PlanRequest pr, boolean lenient) throws BadRequestException {
     	List<Ride> results = Collections.emptyList();
-        PagedResult<Long> prs = rideDao.search(pr.getRequestor(), pr.getFrom(), pr.getTo(), 
-        		RideManager.MAX_BEARING_DIFFERENCE, pr.getEarliestDepartureTime(), pr.getLatestArrivalTime(), 
-        		pr.getNrSeats(), lenient, RideManager.MAX_BOOKINGS, 0, 0);
-        Long totalCount = prs.getTotalCount();
-    	if (totalCount > 0 && pr.getMaxResults() > 0) {
-    		PagedResult<Long> rideIds = rideDao.search(pr.getRequestor(), pr.getFrom(), pr.getTo(), 
-    				RideManager.MAX_BEARING_DIFFERENCE, pr.getEarliestDepartureTime(), pr.getLatestArrivalTime(), 
-    				pr.getNrSeats(), lenient, RideManager.MAX_BOOKINGS, pr.getMaxResults(), 0);
-        	if (! rideIds.getData().isEmpty()) {
-        		results = rideDao.loadGraphs(rideIds.getData(), Ride.SEARCH_RIDES_ENTITY_GRAPH, Ride::getId);
-        	}
+        PagedResult<Long> rideIds = rideDao.search(pr.getRequestor(), pr.getFrom(), pr.getTo(), 
+				RideManager.MAX_BEARING_DIFFERENCE, pr.getEarliestDepartureTime(), pr.getLatestArrivalTime(), 
+				pr.getNrSeats(), lenient, RideManager.MAX_BOOKINGS, pr.getMaxResults(), 0);
+        Long totalCount = rideIds.getTotalCount();
+        if (totalCount == null) {
+	        PagedResult<Long> prs = rideDao.search(pr.getRequestor(), pr.getFrom(), pr.getTo(), 
+	        		RideManager.MAX_BEARING_DIFFERENCE, pr.getEarliestDepartureTime(), pr.getLatestArrivalTime(), 
+	        		pr.getNrSeats(), lenient, RideManager.MAX_BOOKINGS, 0, 0);
+	        totalCount = prs.getTotalCount();
+        }
+    	if (totalCount > 0 && pr.getMaxResults() > 0 && ! rideIds.getData().isEmpty()) {
+    		results = rideDao.loadGraphs(rideIds.getData(), Ride.SEARCH_RIDES_ENTITY_GRAPH, Ride::getId);
     	}
     	return new PagedResult<>(results, pr.getMaxResults(), 0, totalCount);
     }
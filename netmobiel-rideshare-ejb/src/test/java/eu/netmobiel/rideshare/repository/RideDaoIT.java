@@ -19,6 +19,7 @@ import org.slf4j.Logger;
 import eu.netmobiel.commons.filter.Cursor;
 import eu.netmobiel.commons.model.GeoLocation;
 import eu.netmobiel.commons.model.PagedResult;
+import eu.netmobiel.rideshare.event.RideEvent;
 import eu.netmobiel.rideshare.filter.RideFilter;
 import eu.netmobiel.rideshare.model.Booking;
 import eu.netmobiel.rideshare.model.BookingState;
@@ -35,7 +36,9 @@ public class RideDaoIT extends RideshareIntegrationTestBase {
     @Deployment
     public static Archive<?> createTestArchive() {
         WebArchive archive = createDeploymentBase()
-            .addClass(RideDao.class);
+            .addClass(RideDao.class)
+            .addClass(RideIndex.class)
+            .addPackages(true, RideEvent.class.getPackage());
 //		System.out.println(archive.toString(true));
 		return archive;
     }
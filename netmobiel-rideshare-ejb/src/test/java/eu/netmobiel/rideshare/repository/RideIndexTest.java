@@ -0,0 +1,129 @@
+package eu.netmobiel.rideshare.repository;
+
+import static org.junit.Assert.*;
+
+import java.lang.reflect.Field;
+import java.time.Instant;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+import com.vividsolutions.jts.geom.Geometry;
+
+import eu.netmobiel.commons.model.GeoLocation;
+import eu.netmobiel.commons.util.EllipseHelper;
+import eu.netmobiel.commons.util.GeometryHelper;
+import eu.netmobiel.rideshare.model.RideIndexEntry;
+
+public class RideIndexTest {
+	private static final GeoLocation fromPlace = GeoLocation.fromString("Zieuwent::52.004166,6.517835");
+	private static final GeoLocation toPlace = GeoLocation.fromString("Doetinchem::51.976426,6.286011");
+	/**
+	 * An eligibility area covering both the pickup and the drop-off location.
+	 */
+	private static final Geometry achterhoek = GeometryHelper.createFromWKT("POLYGON((6.2 51.9, 6.6 51.9, 6.6 52.1, 6.2 52.1, 6.2 51.9))");
+	/**
+	 * An eligibility area elsewhere.
+	 */
+	private static final Geometry amsterdam = GeometryHelper.createFromWKT("POLYGON((4.8 52.3, 5.0 52.3, 5.0 52.4, 4.8 52.4, 4.8 52.3))");
+	private static final int MAX_BEARING_DIFFERENCE = 60;
+	private static final Long DRIVER_ID = 1L;
+
+	private RideIndex index;
+	private int bearing;
+
+	@Before
+	public void setUp() throws Exception {
+		index = new RideIndex();
+		Field logField = RideIndex.class.getDeclaredField("log");
+		logField.setAccessible(true);
+		logField.set(index, LoggerFactory.getLogger(RideIndex.class));
+		bearing = Math.toIntExact(Math.round(EllipseHelper.getBearing(fromPlace.getPoint(), toPlace.getPoint())));
+	}
+
+	private RideIndexEntry createEntry(long rideId, Geometry eligibility, String departure, String arrival) {
+		return new RideIndexEntry(rideId, eligibility, bearing, Instant.parse(departure), Instant.parse(arrival), DRIVER_ID);
+	}
+
+	private List<Long> search(String earliestDeparture, String latestArrival, boolean lenient) {
+		return index.search(null, fromPlace, toPlace, MAX_BEARING_DIFFERENCE,
+				Instant.parse(earliestDeparture), Instant.parse(latestArrival), lenient);
+	}
+
+	@Test
+	public void testRebuild() {
+		assertFalse(index.isLoaded());
+		index.rebuild(List.of(
+				createEntry(1L, achterhoek, "2020-06-01T10:00:00Z", "2020-06-01T11:00:00Z"),
+				// Incomplete, skipped
+				new RideIndexEntry(2L, null, bearing, Instant.parse("2020-06-01T10:00:00Z"), Instant.parse("2020-06-01T11:00:00Z"), DRIVER_ID)
+		));
+		assertTrue(index.isLoaded());
+		assertEquals(1, index.size());
+		index.rebuild(List.of());
+		assertEquals(0, index.size());
+	}
+
+	@Test
+	public void testBucketEdges() {
+		// The buckets are 6 hours, starting at midnight UTC
+		index.rebuild(List.of(
+				createEntry(1L, achterhoek, "2020-06-01T05:59:59Z", "2020-06-01T06:30:00Z"),
+				createEntry(2L, achterhoek, "2020-06-01T06:00:00Z", "2020-06-01T06:30:00Z"),
+				createEntry(3L, achterhoek, "2020-06-01T11:00:00Z", "2020-06-01T12:00:00Z"),
+				createEntry(4L, achterhoek, "2020-06-01T12:00:00Z", "2020-06-01T12:30:00Z")
+		));
+		assertEquals(List.of(2L, 3L), search("2020-06-01T06:00:00Z", "2020-06-01T12:00:00Z", false));
+		assertEquals(List.of(1L, 2L, 3L), search("2020-06-01T05:59:59Z", "2020-06-01T12:00:00Z", false));
+		assertEquals(List.of(2L, 3L, 4L), search("2020-06-01T06:00:00Z", "2020-06-01T12:30:00Z", false));
+	}
+
+	@Test
+	public void testSpatialQuery() {
+		index.rebuild(List.of(
+				createEntry(1L, achterhoek, "2020-06-01T10:00:00Z", "2020-06-01T11:00:00Z"),
+				createEntry(2L, amsterdam, "2020-06-01T10:00:00Z", "2020-06-01T11:00:00Z")
+		));
+		assertEquals(List.of(1L), search("2020-06-01T09:00:00Z", "2020-06-01T12:00:00Z", false));
+		// The tree of the bucket is rebuilt after a modification
+		index.remove(1L);
+		assertTrue(search("2020-06-01T09:00:00Z", "2020-06-01T12:00:00Z", false).isEmpty());
+		index.rebuild(List.of(
+				createEntry(1L, achterhoek, "2020-06-01T10:00:00Z", "2020-06-01T11:00:00Z"),
+				createEntry(3L, achterhoek, "2020-06-01T10:30:00Z", "2020-06-01T11:30:00Z")
+		));
+		assertEquals(List.of(1L, 3L), search("2020-06-01T09:00:00Z", "2020-06-01T12:00:00Z", false));
+	}
+
+	@Test
+	public void testFilters() {
+		index.rebuild(List.of(
+				createEntry(1L, achterhoek, "2020-06-01T10:00:00Z", "2020-06-01T11:00:00Z"),
+				new RideIndexEntry(2L, achterhoek, (bearing + 180) % 360,
+						Instant.parse("2020-06-01T10:00:00Z"), Instant.parse("2020-06-01T11:00:00Z"), DRIVER_ID)
+		));
+		// The opposite direction does not match
+		assertEquals(List.of(1L), search("2020-06-01T09:00:00Z", "2020-06-01T12:00:00Z", false));
+		// The rides of the traveller are skipped
+		assertTrue(index.search(DRIVER_ID, fromPlace, toPlace, MAX_BEARING_DIFFERENCE,
+				Instant.parse("2020-06-01T09:00:00Z"), Instant.parse("2020-06-01T12:00:00Z"), false).isEmpty());
+	}
+
+	@Test
+	public void testLenientWindow() {
+		index.rebuild(List.of(
+				// Departs in the previous bucket, arrives within the window
+				createEntry(1L, achterhoek, "2020-06-01T05:00:00Z", "2020-06-01T07:00:00Z"),
+				// Arrives before the window
+				createEntry(2L, achterhoek, "2020-06-01T04:00:00Z", "2020-06-01T05:00:00Z"),
+				// Departs within the window, arrives after the window
+				createEntry(3L, achterhoek, "2020-06-01T08:30:00Z", "2020-06-01T10:00:00Z"),
+				// Departs after the window
+				createEntry(4L, achterhoek, "2020-06-01T09:00:00Z", "2020-06-01T09:30:00Z")
+		));
+		assertTrue(search("2020-06-01T06:30:00Z", "2020-06-01T09:00:00Z", false).isEmpty());
+		assertEquals(List.of(1L, 3L), search("2020-06-01T06:30:00Z", "2020-06-01T09:00:00Z", true));
+	}
+}